@@ -15,6 +15,7 @@ import com.badlogic.gdx.graphics.g2d.BitmapFont;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.math.Vector3;
 
+import de.codesourcery.voxelengine.engine.ChunkAutoSaver;
 import de.codesourcery.voxelengine.engine.ChunkManager;
 import de.codesourcery.voxelengine.engine.ItemFactory;
 import de.codesourcery.voxelengine.engine.PlayerController;
@@ -23,6 +24,7 @@ import de.codesourcery.voxelengine.engine.ShaderManager;
 import de.codesourcery.voxelengine.engine.TaskScheduler;
 import de.codesourcery.voxelengine.engine.TextureManager;
 import de.codesourcery.voxelengine.engine.WorldRenderer;
+import de.codesourcery.voxelengine.engine.WriteBehindSaver;
 import de.codesourcery.voxelengine.model.BlockKey;
 import de.codesourcery.voxelengine.model.BlockType;
 import de.codesourcery.voxelengine.model.Chunk;
@@ -51,6 +53,7 @@ public class ApplicationMain implements ApplicationListener {
     private World world;
     private PerspectiveCamera camera;
     private ChunkManager chunkManager;
+    private ChunkAutoSaver chunkAutoSaver;
     private WorldRenderer worldRenderer;
     private ShaderManager shaderManager;
     private PlayerController playerController;
@@ -91,6 +94,7 @@ public class ApplicationMain implements ApplicationListener {
             throw new RuntimeException("Failed to create chunk directory",e);
         }
         chunkManager = new ChunkManager( chunkDir , taskScheduler );
+        chunkAutoSaver = new ChunkAutoSaver( chunkManager , taskScheduler );
 
         shaderManager = new ShaderManager();
         world = new World( shaderManager, chunkManager , camera );
@@ -104,7 +108,7 @@ public class ApplicationMain implements ApplicationListener {
         world.player.setPosition(-115,13,50);
         world.player.lookAt( -1000 , 13 , 0 );
 
-        worldRenderer = new WorldRenderer( world , shaderManager , textureManager );
+        worldRenderer = new WorldRenderer( world , shaderManager , textureManager , taskScheduler );
         playerController = new PlayerController( world.player );
 
         Gdx.input.setInputProcessor( playerController );
@@ -137,6 +141,9 @@ public class ApplicationMain implements ApplicationListener {
         Gdx.gl30.glClearColor( 0 , 0 , 0 , 1 );
         Gdx.gl30.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
 
+        // run tasks that need to be executed on the rendering thread
+        taskScheduler.render();
+        
         // process keyboard/mouse inputs
         playerController.update( deltaTime );
 
@@ -186,6 +193,8 @@ public class ApplicationMain implements ApplicationListener {
                     final int by = BlockKey.getY( blockID );
                     final int bz = BlockKey.getZ( blockID );
 
+                    final int blockIndex = Chunk.blockIndex( bx , by , bz );
+                    final int oldBlockType = selectedChunk.getBlockType( blockIndex );
                     boolean blockChanged = false;
                     if ( tool.canCreateBlock() ) 
                     {
@@ -205,32 +214,36 @@ public class ApplicationMain implements ApplicationListener {
                         {
                             playerController.buttonPressRegistered();
                             touchedChunks.add( selectedChunk );                            
-                            selectedChunk.setBlockTypeAndInvalidate( Chunk.blockIndex( bx , by , bz ) , BlockType.AIR );
+                            selectedChunk.setBlockTypeAndInvalidate( blockIndex , BlockType.AIR );
                             blockChanged = true;
                         }
                     }
                     if ( blockChanged ) 
                     {
+                        chunkManager.blockChanged( selectedChunk , blockIndex , oldBlockType , selectedChunk.getBlockType( blockIndex ) );
+                        worldRenderer.blockChanged( selectedChunk , blockIndex );
+                        // faces of adjacent blocks in neighbouring chunks may have become (in)visible
                         if ( bx == 0 ) {
-                            selectedChunk.leftNeighbour.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                            selectedChunk.leftNeighbour.setFlags( Chunk.FLAG_NEEDS_REMESH );
                         } else if ( bx == World.CHUNK_SIZE-1 ) {
-                            selectedChunk.rightNeighbour.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                            selectedChunk.rightNeighbour.setFlags( Chunk.FLAG_NEEDS_REMESH );
                         }
                         if ( by == 0 ) {
-                            selectedChunk.bottomNeighbour.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                            selectedChunk.bottomNeighbour.setFlags( Chunk.FLAG_NEEDS_REMESH );
                         } else if ( by == World.CHUNK_SIZE -1 ) {
-                            selectedChunk.topNeighbour.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                            selectedChunk.topNeighbour.setFlags( Chunk.FLAG_NEEDS_REMESH );
                         }
                         if ( bz == 0 ) {
-                            selectedChunk.backNeighbour.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                            selectedChunk.backNeighbour.setFlags( Chunk.FLAG_NEEDS_REMESH );
                         } else if ( bz == World.CHUNK_SIZE -1 ) {
-                            selectedChunk.frontNeighbour.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                            selectedChunk.frontNeighbour.setFlags( Chunk.FLAG_NEEDS_REMESH );
                         }                        
                     }
             	});
             	
             	if ( ! touchedChunks.isEmpty() ) 
             	{
+            	    chunkManager.commitBlockChanges();
             	    if ( selection == world.currentSelection.selection) 
             	    {
             	        selection.clear();
@@ -242,12 +255,15 @@ public class ApplicationMain implements ApplicationListener {
             			} else if ( tool.canDestroyBlock() ) {
             				chunk.updateIsEmptyFlag();
             			}
-            			chunk.setFlags( Chunk.FLAG_NEEDS_REBUILD | Chunk.FLAG_NEEDS_SAVE );
+            			chunk.setFlags( Chunk.FLAG_NEEDS_REMESH | Chunk.FLAG_NEEDS_SAVE );
             		});
             	}
             } 
         } 
 
+        // incrementally save chunks with unsaved changes
+        chunkAutoSaver.tick();
+        
         // render selection
         world.currentSelection.render();
         
@@ -443,6 +459,25 @@ public class ApplicationMain implements ApplicationListener {
         y -= fontHeight;
         font.draw(spriteBatch, append("Total triangles: ",worldRenderer.totalTriangles), 10, y );  
         
+        y -= fontHeight;
+        font.draw(spriteBatch, append("Chunk memory (MB): ",(int) (worldRenderer.getMemoryGovernor().getUsedBytes()/(1024*1024)) ), 10, y );
+        
+        y -= fontHeight;
+        font.draw(spriteBatch, append("Render distance: ",worldRenderer.getRenderDistance()), 10, y );
+        
+        y -= fontHeight;
+        font.draw(spriteBatch, append("Auto-save backlog: ",chunkAutoSaver.getBacklogSize()), 10, y );
+        
+        y -= fontHeight;
+        font.draw(spriteBatch, append("Last full auto-save (s): ",(int) (chunkAutoSaver.getMillisSinceLastFullAutosave()/1000) ), 10, y );
+        
+        final WriteBehindSaver.Statistics writeStats = chunkManager.getWriteStatistics();
+        y -= fontHeight;
+        font.draw(spriteBatch, append("Write queue: ",writeStats.queueLength ), 10, y );
+        
+        y -= fontHeight;
+        font.draw(spriteBatch, append("Write latency (ms): ",(float) writeStats.avgLatencyMillis ), 10, y );
+        
         if ( currentTarget.isValid() ) 
         {
             y -= fontHeight;
@@ -454,7 +489,9 @@ public class ApplicationMain implements ApplicationListener {
             final int by = BlockKey.getY( blockID );
             final int bz = BlockKey.getZ( blockID );
             final byte level = chunkManager.getChunk( chunkID ).getLightLevel( bx , by, bz );
-            font.draw(spriteBatch, append("Light level: ",level) , 10, y );            
+            font.draw(spriteBatch, append("Sky light: ",Chunk.getChannel( level , Chunk.CHANNEL_SKY )) , 10, y );            
+            y -= fontHeight;
+            font.draw(spriteBatch, append("Block light: ",Chunk.getChannel( level , Chunk.CHANNEL_BLOCK )) , 10, y );            
         } else {
             y -= fontHeight;
             font.draw(spriteBatch, "Selection: NONE" , 10, y );
@@ -0,0 +1,423 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.World;
+
+/**
+ * Append-only journal of block changes.
+ *
+ * <p>Every block edit gets appended to the journal as a small fixed-size record (chunk ID, block index, old and new block type)
+ * so that edits survive a crash without having to rewrite the whole chunk. Journaled edits are replayed
+ * onto chunks when they get loaded. Since every block edit is journaled and replay applies edits in the order
+ * they happened, replaying edits that are already contained in a chunk file is harmless.</p>
+ *
+ * <p>The journal consists of (at most) two segments, the current one that receives new records and an old one
+ * that is currently being compacted. Compaction works like this:
+ * <ol>
+ * <li>{@link #beginCompaction()} turns the current segment into the old segment and starts a new, empty current segment</li>
+ * <li>the caller writes all chunks affected by the old segment to chunk storage and makes sure they reached the disk</li>
+ * <li>{@link #endCompaction()} deletes the old segment</li>
+ * </ol>
+ * If the application crashes before compaction finished, both segments get replayed on the next start.</p>
+ *
+ * <p>Record layout (16 bytes):</p>
+ * <pre>
+ * long  chunk ID
+ * short block index
+ * byte  old block type
+ * byte  new block type
+ * int   CRC32 of the preceding 12 bytes
+ * </pre>
+ * <p>Records with a bad checksum (torn writes at the end of the file) and everything following them are discarded when opening the journal.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class BlockJournal implements Closeable
+{
+    private static final Logger LOG = Logger.getLogger(BlockJournal.class);
+
+    public static final String FILE_NAME = "blocks.journal";
+
+    public static final String OLD_SUFFIX = ".old";
+
+    public static final int MAGIC = 0xb10cd1ff;
+
+    public static final int VERSION = 1;
+
+    protected static final int HEADER_SIZE = 8;
+
+    public static final int RECORD_SIZE = 16;
+
+    private final File dir;
+    private final File currentFile;
+    private final File oldFile;
+
+    private FileChannel channel;
+
+    // edits per chunk ID , each edit is packed as ( blockIndex << 8 | newType )
+    private LongMap<IntArray> currentEdits = new LongMap<>();
+    private LongMap<IntArray> oldEdits = new LongMap<>();
+
+    private int currentRecords;
+    private boolean dirty;
+
+    private final ByteBuffer record = ByteBuffer.allocate( RECORD_SIZE );
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens the journal in a given directory, creating it if necessary.
+     *
+     * @param dir
+     * @throws IOException
+     */
+    public BlockJournal(File dir) throws IOException
+    {
+        Validate.notNull(dir, "dir must not be NULL");
+        this.dir = dir;
+        this.currentFile = new File( dir , FILE_NAME );
+        this.oldFile = new File( dir , FILE_NAME+OLD_SUFFIX );
+
+        if ( oldFile.exists() )
+        {
+            try ( FileChannel old = FileChannel.open( oldFile.toPath() , StandardOpenOption.READ ) ) {
+                final int count = read( old , oldFile , oldEdits );
+                LOG.info("BlockJournal(): Found "+count+" block edits from interrupted compaction in "+oldFile.getAbsolutePath());
+            }
+        }
+        channel = FileChannel.open( currentFile.toPath() , StandardOpenOption.CREATE , StandardOpenOption.READ , StandardOpenOption.WRITE );
+        if ( channel.size() == 0 ) {
+            writeHeader( channel );
+        } else {
+            currentRecords = read( channel , currentFile , currentEdits );
+            // discard torn records at the end
+            channel.truncate( HEADER_SIZE + (long) currentRecords * RECORD_SIZE );
+            if ( currentRecords > 0 ) {
+                LOG.info("BlockJournal(): Found "+currentRecords+" block edits in "+currentFile.getAbsolutePath());
+            }
+        }
+        channel.position( channel.size() );
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC ).putInt( VERSION ).flip();
+        writeFully( channel , header );
+    }
+
+    private int read(FileChannel in,File file,LongMap<IntArray> edits) throws IOException
+    {
+        final long size = in.size();
+        if ( size < HEADER_SIZE ) {
+            throw new IOException("Journal "+file.getAbsolutePath()+" is truncated");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( (int) Math.min( size , 1024*1024 ) );
+        in.position( 0 );
+        readFully( in , buffer , HEADER_SIZE );
+        final int magic = buffer.getInt();
+        final int version = buffer.getInt();
+        if ( magic != MAGIC || version != VERSION ) {
+            throw new IOException("Journal "+file.getAbsolutePath()+" has unsupported magic/version: 0x"+Integer.toHexString( magic )+" / "+version);
+        }
+
+        int count = 0;
+        long remaining = ( size - HEADER_SIZE ) / RECORD_SIZE;
+        while ( remaining > 0 )
+        {
+            final int records = (int) Math.min( remaining , buffer.capacity() / RECORD_SIZE );
+            readFully( in , buffer , records * RECORD_SIZE );
+            for ( int i = 0 ; i < records ; i++ )
+            {
+                final long chunkID = buffer.getLong();
+                final int blockIndex = buffer.getShort() & 0xffff;
+                buffer.get(); // old type , only kept for diagnostics
+                final int newType = buffer.get() & 0xff;
+                final int checksum = buffer.getInt();
+                if ( checksum != checksum( buffer.array() , buffer.position() - RECORD_SIZE ) || blockIndex >= World.BLOCKS_IN_CHUNK )
+                {
+                    LOG.warn("read(): Discarding corrupted journal records at offset "+(HEADER_SIZE + (long) count*RECORD_SIZE)+" in "+file.getAbsolutePath());
+                    return count;
+                }
+                add( edits , chunkID , blockIndex , newType );
+                count++;
+            }
+            remaining -= records;
+        }
+        return count;
+    }
+
+    private static void readFully(FileChannel in,ByteBuffer buffer,int len) throws IOException
+    {
+        buffer.clear().limit( len );
+        while ( buffer.hasRemaining() )
+        {
+            if ( in.read( buffer ) < 0 ) {
+                throw new IOException("Premature end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel out,ByteBuffer buffer) throws IOException
+    {
+        while ( buffer.hasRemaining() ) {
+            out.write( buffer );
+        }
+    }
+
+    private int checksum(byte[] data,int offset)
+    {
+        crc.reset();
+        crc.update( data , offset , RECORD_SIZE - 4 );
+        return (int) crc.getValue();
+    }
+
+    private static void add(LongMap<IntArray> edits,long chunkID,int blockIndex,int newType)
+    {
+        IntArray list = edits.get( chunkID );
+        if ( list == null ) {
+            list = new IntArray( 16 );
+            edits.put( chunkID , list );
+        }
+        list.add( blockIndex << 8 | newType );
+    }
+
+    /**
+     * Appends a block change to the journal.
+     *
+     * <p>The record is handed to the operating system immediately so it survives the application crashing,
+     * use {@link #sync()} to also make it survive a power loss.</p>
+     *
+     * @param chunkID
+     * @param blockIndex
+     * @param oldType
+     * @param newType
+     * @throws IOException
+     */
+    public synchronized void append(long chunkID,int blockIndex,int oldType,int newType) throws IOException
+    {
+        Validate.isTrue( blockIndex >= 0 && blockIndex < World.BLOCKS_IN_CHUNK , "Block index out of range: "+blockIndex);
+        Validate.isTrue( ( oldType & ~0xff ) == 0 && ( newType & ~0xff ) == 0 , "Block type out of range");
+        ensureOpen();
+
+        record.clear();
+        record.putLong( chunkID ).putShort( (short) blockIndex ).put( (byte) oldType ).put( (byte) newType );
+        record.putInt( checksum( record.array() , 0 ) );
+        record.flip();
+        writeFully( channel , record );
+
+        add( currentEdits , chunkID , blockIndex , newType );
+        currentRecords++;
+        dirty = true;
+    }
+
+    /**
+     * Returns whether the journal holds edits for a given chunk.
+     *
+     * @param chunkID
+     * @return
+     */
+    public synchronized boolean hasEdits(long chunkID) {
+        return currentEdits.containsKey( chunkID ) || oldEdits.containsKey( chunkID );
+    }
+
+    /**
+     * Applies all journaled edits to a chunk.
+     *
+     * @param chunk
+     * @return <code>true</code> if the chunk was changed
+     */
+    public boolean replay(Chunk chunk)
+    {
+        final long chunkID = chunk.chunkKey.toID();
+        final IntArray old;
+        final IntArray current;
+        synchronized(this)
+        {
+            old = copy( oldEdits.get( chunkID ) );
+            current = copy( currentEdits.get( chunkID ) );
+        }
+        if ( old == null && current == null ) {
+            return false;
+        }
+        // newest edits first
+        final BitSet seen = new BitSet( World.BLOCKS_IN_CHUNK );
+        boolean changed = apply( chunk , current , seen );
+        changed |= apply( chunk , old , seen );
+        if ( changed ) {
+            chunk.updateIsEmptyFlag();
+        }
+        return changed;
+    }
+
+    private static IntArray copy(IntArray array) {
+        return array == null ? null : new IntArray( array );
+    }
+
+    /**
+     * Applies edits to a chunk.
+     *
+     * @param chunk
+     * @param edits edits as returned by {@link #beginCompaction()}, may be <code>null</code>
+     * @return <code>true</code> if the chunk was changed
+     */
+    public static boolean apply(Chunk chunk,IntArray edits)
+    {
+        return apply( chunk , edits , new BitSet( World.BLOCKS_IN_CHUNK ) );
+    }
+
+    private static boolean apply(Chunk chunk,IntArray edits,BitSet seen)
+    {
+        boolean changed = false;
+        if ( edits != null )
+        {
+            // only the most recent edit of each block matters
+            for ( int i = edits.size - 1 ; i >= 0 ; i-- )
+            {
+                final int edit = edits.items[i];
+                final int blockIndex = edit >>> 8;
+                if ( ! seen.get( blockIndex ) )
+                {
+                    seen.set( blockIndex );
+                    final int newType = edit & 0xff;
+                    if ( chunk.getBlockType( blockIndex ) != newType ) {
+                        chunk.setBlockType( blockIndex , newType );
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the number of records in the current segment.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return currentRecords;
+    }
+
+    /**
+     * Returns whether a compaction has been started but not finished yet.
+     *
+     * @return
+     */
+    public synchronized boolean isCompacting() {
+        return oldEdits.size > 0 || oldFile.exists();
+    }
+
+    /**
+     * Starts compaction.
+     *
+     * <p>If there is no unfinished compaction, the current segment becomes the old segment and a new current segment gets created.
+     * The caller must then persist the returned edits to chunk storage and invoke {@link #endCompaction()}.</p>
+     *
+     * @return edits (per chunk ID) that need to be persisted. The returned map must not be modified
+     * @throws IOException
+     */
+    public synchronized LongMap<IntArray> beginCompaction() throws IOException
+    {
+        if ( ! isCompacting() )
+        {
+            ensureOpen();
+            channel.force( false );
+            channel.close();
+            channel = null;
+            try {
+                Files.move( currentFile.toPath() , oldFile.toPath() , StandardCopyOption.ATOMIC_MOVE );
+            } 
+            catch(IOException e) 
+            {
+                channel = FileChannel.open( currentFile.toPath() , StandardOpenOption.READ , StandardOpenOption.WRITE );
+                channel.position( channel.size() );
+                throw e;
+            }
+
+            oldEdits = currentEdits;
+            currentEdits = new LongMap<>();
+            currentRecords = 0;
+            dirty = false;
+
+            // the new segment must only become visible after the old one
+            channel = FileChannel.open( currentFile.toPath() , StandardOpenOption.CREATE_NEW , StandardOpenOption.READ , StandardOpenOption.WRITE );
+            writeHeader( channel );
+            channel.force( false );
+            ChunkFile.syncDirectory( dir );
+        }
+        return oldEdits;
+    }
+
+    /**
+     * Finishes compaction by discarding the old segment.
+     *
+     * <p>Must only be called after all edits returned by {@link #beginCompaction()} have been persisted.</p>
+     *
+     * @throws IOException
+     */
+    public synchronized void endCompaction() throws IOException
+    {
+        Files.deleteIfExists( oldFile.toPath() );
+        oldEdits = new LongMap<>();
+        ChunkFile.syncDirectory( dir );
+    }
+
+    /**
+     * Forces all records to the storage device.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException
+    {
+        if ( dirty && channel != null ) {
+            channel.force( false );
+            dirty = false;
+        }
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if ( channel == null ) {
+            throw new IOException("Journal "+currentFile.getAbsolutePath()+" is closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if ( channel != null )
+        {
+            try {
+                sync();
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BlockJournal[ "+currentFile.getAbsolutePath()+" ]";
+    }
+}
@@ -0,0 +1,203 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+
+/**
+ * Periodically saves loaded chunks that have unsaved changes so that a crash
+ * does not lose edits to chunks that have not been unloaded yet.
+ *
+ * <p>Every {@link #setIntervalMillis(long) interval} the auto-saver collects all dirty chunks
+ * and then works through this backlog incrementally on each {@link #tick()}.
+ * Each tick takes a consistent snapshot of as many chunks as the per-tick byte and time budgets allow,
+ * and the {@link TaskScheduler.Prio#LO low-priority} worker queues the snapshots with the chunk manager's {@link WriteBehindSaver}.
+ * A chunk only stops counting towards the {@link #getBacklogSize() backlog} once the saver reports it as written , 
+ * failed writes are retried by the saver.</p>
+ *
+ * <p>Since chunk unloading also runs on the low-priority worker (and that worker processes
+ * tasks in FIFO order), a snapshot can never overwrite more recent data written by an unload.</p>
+ *
+ * <p>This class is not thread-safe and must only be used from the rendering thread.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ChunkAutoSaver
+{
+    private static final Logger LOG = Logger.getLogger(ChunkAutoSaver.class);
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 60*1000;
+
+    public static final int DEFAULT_MAX_BYTES_PER_TICK = 512*1024;
+
+    public static final long DEFAULT_MAX_NANOS_PER_TICK = 1000*1000; // 1 ms
+
+    private final ChunkManager chunkManager;
+    private final TaskScheduler scheduler;
+
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private int maxBytesPerTick = DEFAULT_MAX_BYTES_PER_TICK;
+    private long maxNanosPerTick = DEFAULT_MAX_NANOS_PER_TICK;
+
+    // dirty chunks collected at the start of the current pass
+    private final List<Chunk> backlog = new ArrayList<>();
+    private int backlogPtr;
+
+    // IDs of chunks whose snapshots have been handed to the scheduler but not written yet
+    private final Set<Long> pendingWrites = ConcurrentHashMap.newKeySet();
+
+    // start of the current pass or 0 if no pass is in progress
+    private long passStartMillis;
+    private long lastPassStartMillis;
+    private long lastFullAutosaveMillis;
+
+    /**
+     * Task that writes a chunk snapshot to disk.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class SnapshotWriter extends TaskScheduler.Task
+    {
+        private final Chunk original;
+        private final Chunk snapshot;
+
+        public SnapshotWriter(Chunk original,Chunk snapshot)
+        {
+            super(TaskScheduler.Prio.LO);
+            this.original = original;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean perform()
+        {
+            if ( ! chunkManager.queueSave( snapshot ) )
+            {
+                pendingWrites.remove( snapshot.chunkKey.toID() );
+                // flags may only be changed on the rendering thread
+                scheduler.add( new TaskScheduler.Task( TaskScheduler.Prio.RENDER )
+                {
+                    @Override
+                    public boolean perform()
+                    {
+                        if ( ! original.isDisposed() ) {
+                            original.setNeedsSave( true );
+                        }
+                        return true;
+                    }
+                });
+            }
+            return true;
+        }
+    }
+
+    public ChunkAutoSaver(ChunkManager chunkManager,TaskScheduler scheduler)
+    {
+        Validate.notNull(chunkManager, "chunkManager must not be NULL");
+        Validate.notNull(scheduler, "scheduler must not be NULL");
+        this.chunkManager = chunkManager;
+        this.scheduler = scheduler;
+        this.lastPassStartMillis = this.lastFullAutosaveMillis = System.currentTimeMillis();
+        chunkManager.addWriteListener( keys -> 
+        {
+            for ( ChunkKey key : keys ) {
+                pendingWrites.remove( key.toID() );
+            }
+        });
+    }
+
+    /**
+     * Advances auto-saving, needs to be called once per frame.
+     */
+    public void tick()
+    {
+        final long now = System.currentTimeMillis();
+        if ( passStartMillis == 0 )
+        {
+            if ( now - lastPassStartMillis < intervalMillis ) {
+                return;
+            }
+            startPass( now );
+        }
+
+        final long startNanos = System.nanoTime();
+        int bytes = 0;
+        while ( backlogPtr < backlog.size() && bytes < maxBytesPerTick && ( System.nanoTime() - startNanos ) < maxNanosPerTick )
+        {
+            final Chunk chunk = backlog.get( backlogPtr );
+            backlog.set( backlogPtr++ , null );
+            // chunk may have been saved/unloaded since the pass was started
+            if ( chunk.needsSave() && ! chunk.isMarkedForUnloading() && ! chunk.isDisposed() )
+            {
+                final Chunk snapshot = chunk.createSnapshot();
+                chunk.setNeedsSave( false );
+                pendingWrites.add( chunk.chunkKey.toID() );
+                scheduler.add( new SnapshotWriter( chunk , snapshot ) );
+                bytes += snapshot.getDataSizeInBytes();
+            }
+        }
+
+        if ( backlogPtr == backlog.size() && pendingWrites.isEmpty() )
+        {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("tick(): Auto-saved "+backlog.size()+" chunks in "+(now-passStartMillis)+" ms");
+            }
+            lastFullAutosaveMillis = passStartMillis;
+            passStartMillis = 0;
+            backlog.clear();
+            backlogPtr = 0;
+        }
+    }
+
+    private void startPass(long now)
+    {
+        backlog.clear();
+        backlogPtr = 0;
+        chunkManager.getDirtyChunks( backlog );
+        passStartMillis = lastPassStartMillis = now;
+    }
+
+    /**
+     * Returns the number of dirty chunks that still need to be written by the current auto-save pass.
+     *
+     * @return
+     */
+    public int getBacklogSize() {
+        return ( backlog.size() - backlogPtr ) + pendingWrites.size();
+    }
+
+    /**
+     * Returns the number of milliseconds since the start of the last auto-save pass that
+     * wrote all chunks that were dirty at that time.
+     *
+     * @return
+     */
+    public long getMillisSinceLastFullAutosave() {
+        return System.currentTimeMillis() - lastFullAutosaveMillis;
+    }
+
+    public void setIntervalMillis(long intervalMillis)
+    {
+        Validate.isTrue( intervalMillis > 0 , "interval must be > 0");
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void setMaxBytesPerTick(int maxBytesPerTick)
+    {
+        Validate.isTrue( maxBytesPerTick > 0 , "max. bytes per tick must be > 0");
+        this.maxBytesPerTick = maxBytesPerTick;
+    }
+
+    public void setMaxNanosPerTick(long maxNanosPerTick)
+    {
+        Validate.isTrue( maxNanosPerTick > 0 , "max. nanoseconds per tick must be > 0");
+        this.maxNanosPerTick = maxNanosPerTick;
+    }
+}
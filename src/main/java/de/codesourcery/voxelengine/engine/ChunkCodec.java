@@ -0,0 +1,489 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.badlogic.gdx.utils.IntIntMap;
+
+/**
+ * Codecs for compressing the block type and light level arrays of a chunk.
+ *
+ * <p>The codec used to write a chunk is recorded in the header of the {@link ChunkFile} segment,
+ * see {@link #id}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public enum ChunkCodec
+{
+    /**
+     * No compression , ints are stored as big-endian 32-bit values.
+     */
+    NONE(0)
+    {
+        @Override
+        public byte[] encodeInts(int[] values)
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate( values.length*4 );
+            buffer.asIntBuffer().put( values );
+            return buffer.array();
+        }
+
+        @Override
+        public int[] decodeInts(byte[] data,int count) throws IOException
+        {
+            if ( data.length != count*4 ) {
+                throw new IOException("Expected "+(count*4)+" bytes but got "+data.length);
+            }
+            final int[] result = new int[ count ];
+            ByteBuffer.wrap( data ).asIntBuffer().get( result );
+            return result;
+        }
+
+        @Override
+        public byte[] encodeBytes(byte[] values) {
+            return values;
+        }
+
+        @Override
+        public byte[] decodeBytes(byte[] data,int count) throws IOException
+        {
+            if ( data.length != count ) {
+                throw new IOException("Expected "+count+" bytes but got "+data.length);
+            }
+            return data;
+        }
+    },
+    /**
+     * Run-length encoding along the block index order (x varies fastest).
+     *
+     * <p>Each run is stored as (varint length, zig-zag varint value).</p>
+     */
+    RLE(1)
+    {
+        @Override
+        public byte[] encodeInts(int[] values)
+        {
+            final ByteSink out = new ByteSink( 256 );
+            for ( int i = 0 , len = values.length ; i < len ; )
+            {
+                final int value = values[i];
+                int end = i+1;
+                while ( end < len && values[end] == value ) {
+                    end++;
+                }
+                out.writeVarInt( end - i );
+                out.writeVarInt( zigZag( value ) );
+                i = end;
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public int[] decodeInts(byte[] data,int count) throws IOException
+        {
+            final int[] result = new int[ count ];
+            final ByteSource in = new ByteSource( data );
+            int ptr = 0;
+            while ( in.hasRemaining() )
+            {
+                final int runLength = in.readVarInt();
+                final int value = unZigZag( in.readVarInt() );
+                if ( runLength <= 0 || ptr + runLength > count ) {
+                    throw new IOException("Corrupted RLE data, run of "+runLength+" at offset "+ptr);
+                }
+                Arrays.fill( result , ptr , ptr + runLength , value );
+                ptr += runLength;
+            }
+            if ( ptr != count ) {
+                throw new IOException("Corrupted RLE data, expected "+count+" values but got "+ptr);
+            }
+            return result;
+        }
+
+        @Override
+        public byte[] encodeBytes(byte[] values) {
+            return encodeInts( toInts( values ) );
+        }
+
+        @Override
+        public byte[] decodeBytes(byte[] data,int count) throws IOException {
+            return toBytes( decodeInts( data , count ) );
+        }
+    },
+    /**
+     * Palette of distinct values plus bit-packed palette indices.
+     *
+     * <p>Layout: varint palette size, zig-zag varint palette entries, byte bits per index,
+     * indices packed into big-endian longs (no index spans two longs).
+     * A chunk consisting of a single block type takes just a few bytes.</p>
+     */
+    PALETTE(2)
+    {
+        @Override
+        public byte[] encodeInts(int[] values)
+        {
+            final IntIntMap indices = new IntIntMap();
+            final ByteSink paletteOut = new ByteSink( 64 );
+            for ( int value : values )
+            {
+                if ( ! indices.containsKey( value ) )
+                {
+                    indices.put( value , indices.size );
+                    paletteOut.writeVarInt( zigZag( value ) );
+                }
+            }
+            final int bits = bitsPerIndex( indices.size );
+            final ByteSink out = new ByteSink( 16 + paletteOut.size + packedLongs( values.length , bits )*8 );
+            out.writeVarInt( indices.size );
+            out.write( paletteOut.buffer , 0 , paletteOut.size );
+            out.writeByte( bits );
+            if ( bits > 0 )
+            {
+                final int perLong = 64 / bits;
+                long current = 0;
+                int shift = 0;
+                for ( int i = 0 , len = values.length ; i < len ; i++ )
+                {
+                    current |= (long) indices.get( values[i] , 0 ) << shift;
+                    shift += bits;
+                    if ( ( i+1 ) % perLong == 0 || i == len-1 )
+                    {
+                        out.writeLong( current );
+                        current = 0;
+                        shift = 0;
+                    }
+                }
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public int[] decodeInts(byte[] data,int count) throws IOException
+        {
+            final ByteSource in = new ByteSource( data );
+            final int paletteSize = in.readVarInt();
+            if ( paletteSize <= 0 || paletteSize > count ) {
+                throw new IOException("Corrupted palette data, palette size "+paletteSize);
+            }
+            final int[] palette = new int[ paletteSize ];
+            for ( int i = 0 ; i < paletteSize ; i++ ) {
+                palette[i] = unZigZag( in.readVarInt() );
+            }
+            final int bits = in.readByte();
+            if ( bits != bitsPerIndex( paletteSize ) ) {
+                throw new IOException("Corrupted palette data, "+bits+" bits per index for palette size "+paletteSize);
+            }
+            final int[] result = new int[ count ];
+            if ( bits == 0 )
+            {
+                Arrays.fill( result , palette[0] );
+                return result;
+            }
+            final int perLong = 64 / bits;
+            final long mask = ( 1L << bits ) - 1;
+            for ( int i = 0 ; i < count ; )
+            {
+                long current = in.readLong();
+                for ( int j = 0 ; j < perLong && i < count ; j++ , i++ , current >>>= bits )
+                {
+                    final int index = (int) ( current & mask );
+                    if ( index >= paletteSize ) {
+                        throw new IOException("Corrupted palette data, index "+index+" out of range");
+                    }
+                    result[i] = palette[ index ];
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public byte[] encodeBytes(byte[] values) {
+            return encodeInts( toInts( values ) );
+        }
+
+        @Override
+        public byte[] decodeBytes(byte[] data,int count) throws IOException {
+            return toBytes( decodeInts( data , count ) );
+        }
+    },
+    /**
+     * Uncompressed data compressed with the JDK's {@link Deflater}.
+     */
+    DEFLATE(3)
+    {
+        @Override
+        public byte[] encodeInts(int[] values) {
+            return deflate( NONE.encodeInts( values ) );
+        }
+
+        @Override
+        public int[] decodeInts(byte[] data,int count) throws IOException {
+            return NONE.decodeInts( inflate( data , count*4 ) , count );
+        }
+
+        @Override
+        public byte[] encodeBytes(byte[] values) {
+            return deflate( values );
+        }
+
+        @Override
+        public byte[] decodeBytes(byte[] data,int count) throws IOException {
+            return inflate( data , count );
+        }
+    };
+
+    /**
+     * ID of this codec as recorded in the segment header.
+     */
+    public final int id;
+
+    private ChunkCodec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the codec with a given ID.
+     *
+     * @param id
+     * @return
+     * @throws IOException if there is no codec with this ID
+     */
+    public static ChunkCodec fromId(int id) throws IOException
+    {
+        for ( ChunkCodec codec : values() ) {
+            if ( codec.id == id ) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown chunk codec "+id);
+    }
+
+    /**
+     * Encode block types.
+     *
+     * @param values
+     * @return
+     */
+    public abstract byte[] encodeInts(int[] values);
+
+    /**
+     * Decode block types.
+     *
+     * @param data
+     * @param count number of values to decode
+     * @return
+     * @throws IOException if the data is corrupted
+     */
+    public abstract int[] decodeInts(byte[] data,int count) throws IOException;
+
+    /**
+     * Encode light levels.
+     *
+     * @param values
+     * @return
+     */
+    public abstract byte[] encodeBytes(byte[] values);
+
+    /**
+     * Decode light levels.
+     *
+     * @param data
+     * @param count number of values to decode
+     * @return
+     * @throws IOException if the data is corrupted
+     */
+    public abstract byte[] decodeBytes(byte[] data,int count) throws IOException;
+
+    protected static int bitsPerIndex(int paletteSize) {
+        return paletteSize <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros( paletteSize - 1 );
+    }
+
+    private static int packedLongs(int count,int bits) {
+        return bits == 0 ? 0 : ( count + (64/bits) - 1 ) / (64/bits);
+    }
+
+    private static int zigZag(int value) {
+        return ( value << 1 ) ^ ( value >> 31 );
+    }
+
+    private static int unZigZag(int value) {
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+
+    private static int[] toInts(byte[] values)
+    {
+        final int[] result = new int[ values.length ];
+        for ( int i = 0 ; i < values.length ; i++ ) {
+            result[i] = values[i];
+        }
+        return result;
+    }
+
+    private static byte[] toBytes(int[] values)
+    {
+        final byte[] result = new byte[ values.length ];
+        for ( int i = 0 ; i < values.length ; i++ ) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    private static byte[] deflate(byte[] data)
+    {
+        final Deflater deflater = new Deflater();
+        try
+        {
+            deflater.setInput( data );
+            deflater.finish();
+            final ByteSink out = new ByteSink( Math.max( 64 , data.length / 8 ) );
+            final byte[] tmp = new byte[ 8192 ];
+            while ( ! deflater.finished() )
+            {
+                final int len = deflater.deflate( tmp );
+                out.write( tmp , 0 , len );
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data,int expectedLength) throws IOException
+    {
+        final Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput( data );
+            final byte[] result = new byte[ expectedLength ];
+            int ptr = 0;
+            while ( ptr < expectedLength && ! inflater.finished() )
+            {
+                final int len = inflater.inflate( result , ptr , expectedLength - ptr );
+                if ( len == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    break;
+                }
+                ptr += len;
+            }
+            if ( ptr != expectedLength || ! inflater.finished() ) {
+                throw new IOException("Corrupted deflate data, expected "+expectedLength+" bytes but got "+ptr);
+            }
+            return result;
+        }
+        catch(DataFormatException e) {
+            throw new IOException("Corrupted deflate data",e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    // growable byte buffer
+    private static final class ByteSink
+    {
+        public byte[] buffer;
+        public int size;
+
+        public ByteSink(int initialSize) {
+            buffer = new byte[ initialSize ];
+        }
+
+        private void ensureCapacity(int bytes)
+        {
+            if ( size + bytes > buffer.length ) {
+                buffer = Arrays.copyOf( buffer , Math.max( buffer.length*2 , size + bytes ) );
+            }
+        }
+
+        public void writeByte(int value)
+        {
+            ensureCapacity( 1 );
+            buffer[ size++ ] = (byte) value;
+        }
+
+        public void write(byte[] data,int offset,int len)
+        {
+            ensureCapacity( len );
+            System.arraycopy( data , offset , buffer , size , len );
+            size += len;
+        }
+
+        public void writeVarInt(int value)
+        {
+            ensureCapacity( 5 );
+            while ( ( value & ~0x7f ) != 0 )
+            {
+                buffer[ size++ ] = (byte) ( ( value & 0x7f ) | 0x80 );
+                value >>>= 7;
+            }
+            buffer[ size++ ] = (byte) value;
+        }
+
+        public void writeLong(long value)
+        {
+            ensureCapacity( 8 );
+            for ( int shift = 56 ; shift >= 0 ; shift -= 8 ) {
+                buffer[ size++ ] = (byte) ( value >>> shift );
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf( buffer , size );
+        }
+    }
+
+    private static final class ByteSource
+    {
+        private final byte[] data;
+        private int ptr;
+
+        public ByteSource(byte[] data) {
+            this.data = data;
+        }
+
+        public boolean hasRemaining() {
+            return ptr < data.length;
+        }
+
+        private void checkAvailable(int bytes) throws IOException
+        {
+            if ( ptr + bytes > data.length ) {
+                throw new IOException("Premature end of data at offset "+ptr);
+            }
+        }
+
+        public int readByte() throws IOException
+        {
+            checkAvailable( 1 );
+            return data[ ptr++ ] & 0xff;
+        }
+
+        public int readVarInt() throws IOException
+        {
+            int result = 0;
+            for ( int shift = 0 ; shift < 35 ; shift += 7 )
+            {
+                final int b = readByte();
+                result |= ( b & 0x7f ) << shift;
+                if ( ( b & 0x80 ) == 0 ) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint at offset "+ptr);
+        }
+
+        public long readLong() throws IOException
+        {
+            checkAvailable( 8 );
+            long result = 0;
+            for ( int i = 0 ; i < 8 ; i++ ) {
+                result = ( result << 8 ) | ( data[ ptr++ ] & 0xff );
+            }
+            return result;
+        }
+    }
+}
@@ -1,20 +1,31 @@
 package de.codesourcery.voxelengine.engine;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.log4j.Logger;
 
 import com.badlogic.gdx.math.Vector3;
 
+import de.codesourcery.voxelengine.model.BlockType;
 import de.codesourcery.voxelengine.model.Chunk;
 import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
 import de.codesourcery.voxelengine.model.World;
 
 /**
@@ -32,30 +43,97 @@ public class ChunkFile
 
     protected static final int VERSION_HEADER = 1;
     protected static final int VERSION_CHUNK = 1;
+    // chunk segment with compressed block/light arrays , see ChunkCodec
+    protected static final int VERSION_CHUNK_COMPRESSED = 2;
+    // chunk segment that only holds the blocks that differ from the generated baseline , see ChunkGenerator
+    protected static final int VERSION_CHUNK_DIFF = 3;
+    // chunk segment made up of independently decodable sections , see Sections
+    protected static final int VERSION_CHUNK_SECTIONED = 4;
     protected static final int VERSION_SUB_CHUNK = 1;
 
     // segment types
     public static final int TYPE_HEADER_SEGMENT = 1;
     public static final int TYPE_CHUNK_SEGMENT = 2;
 
+    // sections of a VERSION_CHUNK_SECTIONED chunk segment
+    public static final int SECTION_METADATA = 0;
+    public static final int SECTION_BLOCKS = 1;
+    public static final int SECTION_LIGHT = 2;
+    public static final int SECTION_BORDERS = 3;
+    public static final int SECTION_LIGHT_STAMP = 4;
+
+    protected static final int SECTION_COUNT = 5;
+
+    // size of a section table entry: int id , int offset , int length
+    private static final int SECTION_ENTRY_SIZE = 3*4;
+
+    // chunk coordinates stored in position-independent chunk segments , see store(Chunk,OutputStream,ChunkCodec,boolean)
+    private static final int NO_POSITION = Integer.MIN_VALUE;
+
+    // encodings of the block section
+    private static final int BLOCKS_FULL = 0;
+    private static final int BLOCKS_DIFF = 1;
+
+    /**
+     * Codec used when storing chunks.
+     */
+    public static final ChunkCodec DEFAULT_CODEC = ChunkCodec.RLE;
+
+    /**
+     * Whether compressed chunks get stored as a diff against their procedurally generated baseline.
+     */
+    public static final boolean STORE_DIFFS = true;
+
+    /**
+     * Max. number of changed blocks for a chunk to be stored as a diff instead of storing all blocks.
+     */
+    public static final int MAX_DIFF_BLOCKS = World.BLOCKS_IN_CHUNK / 8;
+
+    /**
+     * Whether compressed chunks get stored as independently decodable sections, see {@link Sections}.
+     */
+    public static final boolean STORE_SECTIONED = true;
+
     private final File file;
 
+    /**
+     * A segment of a chunk file.
+     * 
+     * <p>Each segment starts with a header made up of three 32-bit ints: type, version and payload length.
+     * The upper 16 bits of the version field hold the {@link ChunkCodec#id ID} of the codec used to encode the payload, 
+     * files written before codecs were introduced always have these bits cleared.</p> 
+     */
     protected interface Segment 
     {
         public int type(); 
 
         public int version();
 
+        public int codec();
+
         public int payloadLength();
 
-        public byte[] payload();
+        /**
+         * Returns the byte at a given payload offset.
+         * 
+         * @param offset
+         * @return
+         */
+        public byte getByte(int offset);
 
         /**
-         * Read int from payload.
+         * Returns the int at a given payload offset.
          * 
          * @param offset
          * @return
          */
+        public int getInt(int offset);
+
+        /**
+         * Read int from payload.
+         * 
+         * @return
+         */
         public int readInt();
 
         /*
@@ -68,24 +146,82 @@ public class ChunkFile
         public int[] readIntArray();
 
         public byte[] readByteArray();
+
+        /**
+         * Moves the read position to a given payload offset.
+         * 
+         * @param offset
+         */
+        public void seek(int offset);
+
+        /**
+         * Returns a copy of this segment that stays valid after the segment's underlying buffer got reused.
+         * 
+         * @return
+         * @throws IOException
+         */
+        public Segment copy() throws IOException;
     }    
 
     public static final class LoadVisitor  
     {
+        private final boolean bordersOnly;
+        private final boolean lazy;
+        private final ChunkKey key;
         private boolean headerFound;
         private Chunk topLevelChunk; 
+        private Sections sections;
+        
+        public LoadVisitor() {
+            this(false);
+        }
+        
+        /**
+         * Create visitor.
+         * 
+         * @param bordersOnly whether to only decode the border slices of the chunk and return a {@link HaloChunk}
+         */
+        public LoadVisitor(boolean bordersOnly) {
+            this( bordersOnly , false , null );
+        }
+
+        /**
+         * Create visitor.
+         * 
+         * @param bordersOnly
+         * @param lazy whether to only decode the metadata , see {@link Sections}
+         * @param key key of the chunk being loaded , required for position-independent chunk data , may be <code>null</code> otherwise
+         */
+        private LoadVisitor(boolean bordersOnly,boolean lazy,ChunkKey key) 
+        {
+            this.bordersOnly = bordersOnly;
+            this.lazy = lazy;
+            this.key = key;
+        }
 
-        public void visit(Segment t) 
+        public void visit(Segment t) throws IOException
         {
             switch( t.type() ) 
             {
                 case TYPE_CHUNK_SEGMENT:
-                    if ( t.version() == VERSION_CHUNK ) 
+                    if ( t.version() == VERSION_CHUNK || t.version() == VERSION_CHUNK_COMPRESSED || t.version() == VERSION_CHUNK_DIFF || t.version() == VERSION_CHUNK_SECTIONED ) 
                     {
-                        if ( topLevelChunk != null ) {
+                        if ( topLevelChunk != null || sections != null ) {
                             throw new RuntimeException("Duplicate chunk segment with version "+t.version());
                         }
-                        topLevelChunk = readChunk( t );
+                        if ( lazy ) 
+                        {
+                            // the segment's buffer gets reused , lazily decoded sections need their own copy
+                            sections = t.version() == VERSION_CHUNK_SECTIONED ? new Sections( t.copy() , key ) : new Sections( readChunk( t , false ) );
+                        } 
+                        else if ( t.version() == VERSION_CHUNK_SECTIONED ) 
+                        {
+                            final Sections s = new Sections( t , key );
+                            topLevelChunk = bordersOnly ? s.toHaloChunk() : s.toChunk();
+                        }
+                        else {
+                            topLevelChunk = readChunk( t , bordersOnly );
+                        }
                         return;
                     }
                     break;
@@ -102,8 +238,8 @@ public class ChunkFile
                         }
                         for ( int i = 0 , len = FILE_HEADER_MAGIC.length ; i < len ; i++ ) 
                         {
-                            if ( t.payload()[i] != FILE_HEADER_MAGIC[i] ) {
-                                throw new RuntimeException("Invalid file magic, byte["+i+"] should've been 0x"+Integer.toHexString( FILE_HEADER_MAGIC[i] )+" but was 0x"+Integer.toHexString( t.payload()[i] ) );
+                            if ( t.getByte(i) != FILE_HEADER_MAGIC[i] ) {
+                                throw new RuntimeException("Invalid file magic, byte["+i+"] should've been 0x"+Integer.toHexString( FILE_HEADER_MAGIC[i] )+" but was 0x"+Integer.toHexString( t.getByte(i) ) );
                             }
                         }
                         headerFound = true;
@@ -119,11 +255,19 @@ public class ChunkFile
             if ( ! headerFound ) {
                 throw new RuntimeException("Internal error,file contains no header?");
             }
-            if ( topLevelChunk == null ) {
+            if ( topLevelChunk == null && sections == null ) {
                 throw new RuntimeException("Internal error,file contains no top-level chunk?");
             }
         }
 
+        private Sections getSections() 
+        {
+            if ( sections == null ) {
+                throw new IllegalStateException("Reading top-level chunk file failed");
+            }
+            return sections;
+        }
+
         public Chunk getChunk() 
         {
             if ( topLevelChunk == null ) {
@@ -133,6 +277,16 @@ public class ChunkFile
         }
     }
 
+    // decodes a chunk segment written using one of the versions that have no sections
+    private static Chunk readChunk(Segment s,boolean bordersOnly) throws IOException 
+    {
+        if ( s.version() == VERSION_CHUNK ) {
+            return bordersOnly ? readHaloChunk( s ) : readChunk( s );
+        }
+        final Chunk chunk = s.version() == VERSION_CHUNK_COMPRESSED ? readCompressedChunk( s ) : readDiffChunk( s );
+        return bordersOnly ? HaloChunk.fromChunk( chunk ) : chunk;
+    }
+
     private static Chunk readChunk(Segment s) {
 
         final int totalChunkSize = s.readInt();
@@ -157,244 +311,817 @@ public class ChunkFile
         return result;
     }   
 
-    private static void writeChunk(SegmentWriter writer,Chunk chunk) throws IOException 
+    private static Chunk readCompressedChunk(Segment s) throws IOException 
     {
-        if ( chunk.chunkKey == null ) { // only sub-chunks do not have a ChunkKey set
-            throw new IllegalArgumentException("ChunkKey needs to be set ");
+        final ChunkCodec codec = ChunkCodec.fromId( s.codec() );
+        final int totalChunkSize = s.readInt();
+        final float blockSize = s.readFloat();
+        if ( totalChunkSize != World.CHUNK_SIZE ) {
+            throw new RuntimeException("Internal error, file has incompatible chunk size "+totalChunkSize);
         }
-        writer.setType( TYPE_CHUNK_SEGMENT );
-        writer.setVersion( VERSION_CHUNK );
+        if ( blockSize != World.BLOCK_SIZE ) {
+            throw new RuntimeException("Internal error, file has incompatible chunk block size "+blockSize);
+        }        
+        final int flags = s.readInt();
+        final int chunkX = s.readInt();
+        final int chunkY = s.readInt();
+        final int chunkZ = s.readInt();
+        final int[] blockTypes = codec.decodeInts( s.readByteArray() , World.BLOCKS_IN_CHUNK );
+        final byte[] lightLevels = codec.decodeBytes( s.readByteArray() , World.BLOCKS_IN_CHUNK );
 
-        setPayload( writer , chunk );
-        writer.writeSegment();
+        final Chunk result = new Chunk( new ChunkKey( chunkX ,chunkY,chunkZ ) , blockTypes , lightLevels );
+        result.flags = flags;
+        return result;
     }
 
-    private static void setPayload(SegmentWriter writer,Chunk chunk) throws IOException {
-        writer.writeInt( World.CHUNK_SIZE );
-        writer.writeFloat( World.BLOCK_SIZE );
-        writer.writeInt( chunk.flags & ~Chunk.FLAG_NEEDS_SAVE );
-        writer.writeIntArray( chunk.blockTypes );
-        writer.writeByteArray( chunk.lightLevels );
-        writer.writeInt( chunk.chunkKey.x );
-        writer.writeInt( chunk.chunkKey.y );
-        writer.writeInt( chunk.chunkKey.z );
-    }    
+    private static Chunk readDiffChunk(Segment s) throws IOException 
+    {
+        final ChunkCodec codec = ChunkCodec.fromId( s.codec() );
+        final int totalChunkSize = s.readInt();
+        final float blockSize = s.readFloat();
+        if ( totalChunkSize != World.CHUNK_SIZE ) {
+            throw new RuntimeException("Internal error, file has incompatible chunk size "+totalChunkSize);
+        }
+        if ( blockSize != World.BLOCK_SIZE ) {
+            throw new RuntimeException("Internal error, file has incompatible chunk block size "+blockSize);
+        }        
+        final int flags = s.readInt();
+        final int chunkX = s.readInt();
+        final int chunkY = s.readInt();
+        final int chunkZ = s.readInt();
+        final long seed = (long) s.readInt() << 32 | ( s.readInt() & 0xffffffffL );
+        final int diffCount = s.readInt();
+        final byte[] encodedDiffs = s.readByteArray();
+        final int[] diffs = diffCount == 0 ? new int[0] : codec.decodeInts( encodedDiffs , diffCount );
+        final byte[] lightLevels = codec.decodeBytes( s.readByteArray() , World.BLOCKS_IN_CHUNK );
 
-    protected static final class SegmentWriter implements AutoCloseable {
+        final ChunkKey key = new ChunkKey( chunkX ,chunkY,chunkZ );
+        final int[] blockTypes = applyDiffs( key , seed , diffs );
 
-        private final byte[] headerBuffer = new byte[ HEADER_SIZE ];
-        private byte[] dataBuffer = new byte[ 64*1024 ];
+        final Chunk result = new Chunk( key , blockTypes , lightLevels );
+        result.flags = flags;
+        result.setSeed( seed );
+        return result;
+    }
 
-        private int type;
-        private int version;
-        private int payloadLength=0;
+    /**
+     * Reads only the border slices of a chunk.
+     * 
+     * <p>Instead of decoding the whole payload, this method only decodes
+     * the block types and light levels of blocks that lie on the chunk's borders.</p>
+     * 
+     * @param s
+     * @return
+     */
+    private static HaloChunk readHaloChunk(Segment s) 
+    {
+        final int totalChunkSize = s.readInt();
+        final float blockSize = s.readFloat();
+        if ( totalChunkSize != World.CHUNK_SIZE ) {
+            throw new RuntimeException("Internal error, file has incompatible chunk size "+totalChunkSize);
+        }
+        if ( blockSize != World.BLOCK_SIZE ) {
+            throw new RuntimeException("Internal error, file has incompatible chunk block size "+blockSize);
+        }        
+        final int flags = s.readInt();
+        final int blockCount = s.readInt();
+        if ( blockCount != World.BLOCKS_IN_CHUNK ) {
+            throw new RuntimeException("Internal error, file has incompatible block count "+blockCount);
+        }
+        
+        // payload layout: chunk size, block size, flags, int[] block types, byte[] light levels, x, y, z 
+        final int blockTypesOffset = 4*4;
+        final int lightLevelsOffset = blockTypesOffset + blockCount*4 + 4;
+        final int chunkKeyOffset = lightLevelsOffset + blockCount;
+        
+        final int[] blockTypes = new int[ HaloChunk.BORDER_BLOCK_COUNT ];
+        final byte[] lightLevels = new byte[ HaloChunk.BORDER_BLOCK_COUNT ];
+        for ( int i = 0 ; i < HaloChunk.BORDER_BLOCK_COUNT ; i++ ) 
+        {
+            final int blockIndex = HaloChunk.blockIndexOfBorderIndex( i );
+            blockTypes[i] = s.getInt( blockTypesOffset + blockIndex*4 );
+            lightLevels[i] = s.getByte( lightLevelsOffset + blockIndex );
+        }
+        final int chunkX = s.getInt( chunkKeyOffset );
+        final int chunkY = s.getInt( chunkKeyOffset+4 );
+        final int chunkZ = s.getInt( chunkKeyOffset+8 );
+        
+        final HaloChunk result = new HaloChunk( new ChunkKey( chunkX , chunkY , chunkZ ) , blockTypes , lightLevels );
+        result.flags = flags & ~( Chunk.FLAG_NEEDS_SAVE | Chunk.FLAG_NEEDS_REBUILD );
+        return result;
+    }
+    
+    /**
+     * Chunk data split into sections that are decoded on demand.
+     * 
+     * <p>A {@link #VERSION_CHUNK_SECTIONED sectioned} chunk segment starts with a table holding the ID, payload offset and length
+     * of each section, followed by the sections themselves:</p>
+     * <ul>
+     *   <li>{@link ChunkFile#SECTION_METADATA}: chunk size, block size, flags, chunk key, world seed, number of non-air blocks and
+     *   the indices of all light-emitting blocks</li>
+     *   <li>{@link ChunkFile#SECTION_BLOCKS}: block types, either encoded as a whole or as a diff against the generated baseline</li>
+     *   <li>{@link ChunkFile#SECTION_LIGHT}: light levels</li>
+     *   <li>{@link ChunkFile#SECTION_BORDERS}: block types and light levels of the border slices , see {@link HaloChunk}</li>
+     *   <li>{@link ChunkFile#SECTION_LIGHT_STAMP}: the surroundings the light levels were calculated against , see {@link Chunk#getLightStamp()}.
+     *   Chunks written before this section was introduced have no stamp , their light levels always get re-calculated</li>
+     * </ul>
+     * <p>Only the metadata gets decoded up-front, all other sections are decoded when first requested. 
+     * Sections with unknown IDs are ignored.</p>
+     * 
+     * <p>Chunks that are not stored as a diff may be written without their chunk key (position-independent) so that
+     * identical chunks yield identical bytes, the key then needs to be supplied when loading.</p>
+     * 
+     * <p>Chunks stored using any other format are fully decoded when loaded and then exposed through this class as well.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Sections 
+    {
+        private final Segment segment;
+        private final ChunkCodec codec;
 
-        private final OutputStream out;
+        // payload offset and length of each section , offset is -1 if the section is not present
+        private final int[] offsets = new int[ SECTION_COUNT ];
+        private final int[] lengths = new int[ SECTION_COUNT ];
 
-        public SegmentWriter(OutputStream out) throws FileNotFoundException  
+        private final ChunkKey chunkKey;
+        private final int flags;
+        private final long seed;
+        private final int nonAirBlockCount;
+        private final int[] emitters;
+        private final long lightStamp;
+
+        private int[] blockTypes;
+        private byte[] lightLevels;
+
+        protected Sections(Segment segment,ChunkKey key) throws IOException 
         {
-            Validate.notNull(out, "output stream must not be NULL");
-            this.out = out;
+            this.segment = segment;
+            this.codec = ChunkCodec.fromId( segment.codec() );
+            Arrays.fill( offsets , -1 );
+
+            segment.seek( 0 );
+            final int sectionCount = segment.readInt();
+            for ( int i = 0 ; i < sectionCount ; i++ ) 
+            {
+                final int id = segment.readInt();
+                final int offset = segment.readInt();
+                final int length = segment.readInt();
+                if ( offset < 0 || length < 0 || offset + length > segment.payloadLength() ) {
+                    throw new IOException("Section "+id+" ( offset "+offset+", length "+length+") exceeds payload length "+segment.payloadLength());
+                }
+                if ( id >= 0 && id < SECTION_COUNT ) 
+                {
+                    offsets[id] = offset;
+                    lengths[id] = length;
+                }
+            }
+            if ( ! contains( SECTION_METADATA ) ) {
+                throw new IOException("Chunk segment has no metadata section");
+            }
+            segment.seek( offsets[ SECTION_METADATA ] );
+            final int totalChunkSize = segment.readInt();
+            final float blockSize = segment.readFloat();
+            if ( totalChunkSize != World.CHUNK_SIZE ) {
+                throw new RuntimeException("Internal error, file has incompatible chunk size "+totalChunkSize);
+            }
+            if ( blockSize != World.BLOCK_SIZE ) {
+                throw new RuntimeException("Internal error, file has incompatible chunk block size "+blockSize);
+            }        
+            this.flags = segment.readInt();
+            final int x = segment.readInt();
+            final int y = segment.readInt();
+            final int z = segment.readInt();
+            if ( x == NO_POSITION && y == NO_POSITION && z == NO_POSITION ) 
+            {
+                if ( key == null ) {
+                    throw new IOException("Chunk data is position-independent but no chunk key was given");
+                }
+                this.chunkKey = key;
+            } else {
+                this.chunkKey = new ChunkKey( x , y , z );
+            }
+            this.seed = (long) segment.readInt() << 32 | ( segment.readInt() & 0xffffffffL );
+            this.nonAirBlockCount = segment.readInt();
+            this.emitters = segment.readIntArray();
+            if ( contains( SECTION_LIGHT_STAMP ) ) 
+            {
+                segment.seek( offsets[ SECTION_LIGHT_STAMP ] );
+                this.lightStamp = (long) segment.readInt() << 32 | ( segment.readInt() & 0xffffffffL );
+            } else {
+                this.lightStamp = Chunk.NO_LIGHT_STAMP;
+            }
         }
 
-        public void setType(int type) {
-            this.type = type;
+        protected Sections(Chunk chunk) 
+        {
+            this.segment = null;
+            this.codec = ChunkCodec.NONE;
+            for ( int i = 0 ; i < SECTION_COUNT ; i++ ) {
+                offsets[i] = i == SECTION_BORDERS || i == SECTION_LIGHT_STAMP ? -1 : 0;
+            }
+            this.chunkKey = chunk.chunkKey;
+            this.flags = chunk.flags;
+            this.seed = chunk.getSeed();
+            this.blockTypes = chunk.blockTypes;
+            this.lightLevels = chunk.lightLevels;
+            this.nonAirBlockCount = countNonAirBlocks( blockTypes );
+            this.emitters = chunk.getEmitters();
+            this.lightStamp = chunk.getLightStamp();
         }
 
-        public void setVersion(int version) {
-            this.version = version;
+        /**
+         * Returns whether a given section is present.
+         * 
+         * @param section
+         * @return
+         */
+        public boolean contains(int section) {
+            return section >= 0 && section < SECTION_COUNT && offsets[ section ] != -1;
         }
 
-        public void setPayload(byte[] data) 
-        {
-            this.payloadLength = data.length;
-            maybeGrowDataBuffer(data.length);
-            System.arraycopy( data , 0 , dataBuffer , 0 , data.length );
+        public ChunkKey getChunkKey() {
+            return chunkKey;
         }
 
-        public void writeSegment() throws IOException 
-        {
-            if ( type == -1 || version == -1 || payloadLength < 0 ) {
-                throw new IllegalStateException("write() called although writer not properly populated");
-            }
-            writeInt( type , headerBuffer , 0 );
-            writeInt( version , headerBuffer , 4 );
-            writeInt( payloadLength , headerBuffer , 8 );
+        public int getFlags() {
+            return flags;
+        }
 
-            out.write( headerBuffer , 0 , HEADER_SIZE );
+        public long getSeed() {
+            return seed;
+        }
 
-            if ( payloadLength > 0 ) 
-            {
-                out.write( dataBuffer , 0 , payloadLength );
-            }
-            type = version = -1;
-            payloadLength = 0;
+        public int getNonAirBlockCount() {
+            return nonAirBlockCount;
+        }
+
+        /**
+         * Returns the stamp identifying the surroundings the stored light levels were calculated against.
+         * 
+         * @return stamp or {@link Chunk#NO_LIGHT_STAMP}
+         */
+        public long getLightStamp() {
+            return lightStamp;
+        }
+
+        /**
+         * Returns the indices of all light-emitting blocks.
+         * 
+         * @return
+         */
+        public int[] getEmitters() {
+            return emitters;
         }
 
-        private void maybeGrowDataBuffer(int minBytesFree) 
+        /**
+         * Returns the block types , decoding them on first access.
+         * 
+         * @return
+         * @throws IOException
+         */
+        public int[] getBlockTypes() throws IOException 
         {
-            final int bytesLeft = dataBuffer.length - payloadLength;
-            if ( bytesLeft < minBytesFree ) 
+            if ( blockTypes == null ) 
             {
-                final int newSize = dataBuffer.length*2 + minBytesFree;
-                final byte[] tmp = new byte[ newSize ];
-                System.arraycopy( dataBuffer , 0 , tmp , 0 , payloadLength );
-                dataBuffer = tmp;
+                requireSection( SECTION_BLOCKS );
+                segment.seek( offsets[ SECTION_BLOCKS ] );
+                final int encoding = segment.readInt();
+                if ( encoding == BLOCKS_FULL ) {
+                    blockTypes = codec.decodeInts( segment.readByteArray() , World.BLOCKS_IN_CHUNK );
+                } 
+                else if ( encoding == BLOCKS_DIFF ) 
+                {
+                    final int diffCount = segment.readInt();
+                    final byte[] encodedDiffs = segment.readByteArray();
+                    blockTypes = applyDiffs( chunkKey , seed , diffCount == 0 ? new int[0] : codec.decodeInts( encodedDiffs , diffCount ) );
+                } else {
+                    throw new IOException("Unknown block encoding "+encoding+" in chunk "+chunkKey);
+                }
             }
+            return blockTypes;
         }
 
-        public void writeInt(int value) 
+        /**
+         * Returns the light levels , decoding them on first access.
+         * 
+         * @return
+         * @throws IOException
+         */
+        public byte[] getLightLevels() throws IOException 
         {
-            maybeGrowDataBuffer( 4 );
-            writeInt( value , dataBuffer ,payloadLength );
-            payloadLength+=4;
+            if ( lightLevels == null ) 
+            {
+                requireSection( SECTION_LIGHT );
+                segment.seek( offsets[ SECTION_LIGHT ] );
+                lightLevels = codec.decodeBytes( segment.readByteArray() , World.BLOCKS_IN_CHUNK );
+            }
+            return lightLevels;
         }
 
-        public void writeFloat(float value) 
+        private void requireSection(int section) throws IOException 
         {
-            maybeGrowDataBuffer( 4 );            
-            writeFloat( value , dataBuffer ,payloadLength );
-            payloadLength+=4;
-        }        
+            if ( ! contains( section ) ) {
+                throw new IOException("Chunk "+chunkKey+" has no section "+section);
+            }
+        }
 
-        public void writeVector3(Vector3 value) 
-        {
-            maybeGrowDataBuffer( 3*4 ); // 3x 32 bit float             
-            writeVector3( value , dataBuffer ,payloadLength );
-            payloadLength+=12;
-        } 
-        
-        public void writeByteArray(byte[] array) 
-        {
-            maybeGrowDataBuffer( 4 + array.length ); // int<array length> + 32 bit * array.len 
-            writeByteArray( array, dataBuffer ,payloadLength );
-            payloadLength+= 4+array.length;
-        }      
-        
-        public void writeByteArray(byte[] array,byte[] buffer,int offset) 
+        /**
+         * Creates a chunk from the block and light sections.
+         * 
+         * @return
+         * @throws IOException
+         */
+        public Chunk toChunk() throws IOException 
         {
-            writeInt( array.length , buffer ,offset );
-            System.arraycopy( array , 0 , buffer , offset+4 , array.length);
-        }          
+            final Chunk result = new Chunk( chunkKey , getBlockTypes() , getLightLevels() );
+            result.flags = flags;
+            result.setSeed( seed );
+            result.setLightStamp( lightStamp );
+            result.setEmitters( emitters );
+            return result;
+        }
 
-        public void writeIntArray(int[] array) 
-        {
-            maybeGrowDataBuffer( 4 + array.length*4 ); // int<array length> + 32 bit * array.len 
-            writeIntArray( array, dataBuffer ,payloadLength );
-            payloadLength+= 4+array.length*4;
-        }   
-        
-        public void writeIntArray(int[] array,byte[] buffer,int offset) 
+        /**
+         * Creates a halo chunk , only decoding the border section if it is present.
+         * 
+         * @return
+         * @throws IOException
+         */
+        public HaloChunk toHaloChunk() throws IOException 
         {
-            writeInt( array.length , buffer ,offset );
-            for ( int i = 0 , ptr = offset+4 , len = array.length ; i < len ; i++, ptr+=4 ) 
+            final HaloChunk result;
+            if ( blockTypes == null && contains( SECTION_BORDERS ) ) 
+            {
+                segment.seek( offsets[ SECTION_BORDERS ] );
+                final int[] types = codec.decodeInts( segment.readByteArray() , HaloChunk.BORDER_BLOCK_COUNT );
+                final byte[] light = codec.decodeBytes( segment.readByteArray() , HaloChunk.BORDER_BLOCK_COUNT );
+                result = new HaloChunk( chunkKey , types , light );
+            } 
+            else 
             {
-                writeInt( array[i] , buffer , ptr );
+                final Chunk chunk = new Chunk( chunkKey , getBlockTypes() , getLightLevels() );
+                result = HaloChunk.fromChunk( chunk );
             }
-        }        
-
-        private void writeInt(int value,byte[] buffer,int offset) 
-        {
-            buffer[offset  ] = (byte) ( (value & 0xff000000) >> 24 );
-            buffer[offset+1] = (byte) ( (value & 0x00ff0000) >> 16 );
-            buffer[offset+2] = (byte) ( (value & 0x0000ff00) >>  8 );
-            buffer[offset+3] = (byte) ( (value & 0x000000ff)       );
+            result.flags = flags & ~( Chunk.FLAG_NEEDS_SAVE | Chunk.FLAG_NEEDS_REBUILD );
+            return result;
         }
 
-        private void writeFloat(float value,byte[] buffer,int offset) {
-            writeInt( Float.floatToIntBits( value ) , buffer ,offset );
+        @Override
+        public String toString() {
+            return "Sections[ "+chunkKey+" , non-air blocks: "+nonAirBlockCount+" , emitters: "+emitters.length+" ]";
         }
+    }
 
-        private void writeVector3(Vector3 value,byte[] buffer,int offset) 
+    private static int countNonAirBlocks(int[] blockTypes) 
+    {
+        int count = 0;
+        for ( int i = 0 , len = blockTypes.length ; i < len ; i++ ) 
         {
-            writeFloat( value.x , buffer , offset );
-            writeFloat( value.y , buffer , offset+4 );
-            writeFloat( value.z , buffer , offset+8 );
-        }        
-
-        public void close() throws IOException {
-            out.close();
+            if ( blockTypes[i] != BlockType.AIR ) {
+                count++;
+            }
         }
+        return count;
     }
 
-    protected static final class SegmentReader implements Segment 
+    // applies diffs packed as ( blockIndex << 8 | blockType ) to a chunk's generated baseline
+    private static int[] applyDiffs(ChunkKey key,long seed,int[] diffs) throws IOException 
     {
-        private final byte[] headerBuffer = new byte[ HEADER_SIZE ];
-        private byte[] dataBuffer = new byte[ 64*1024 ];
-
-        private int dataReadOffset;
-        
-        private final InputStream in;
-
-        public SegmentReader(InputStream in) throws FileNotFoundException 
-        {
-            Validate.notNull(in, "input stream must not be NULL");
-            this.in = in;
+        final byte[] baseline = ChunkGenerator.getBaseline( key , seed );
+        final int[] blockTypes = new int[ World.BLOCKS_IN_CHUNK ];
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            blockTypes[i] = baseline[i];
         }
-
-        private void maybeGrowDataBuffer(int minSize) 
+        for ( int i = 0 ; i < diffs.length ; i++ ) 
+        {
+            final int blockIndex = diffs[i] >>> 8;
+            if ( blockIndex >= World.BLOCKS_IN_CHUNK ) {
+                throw new IOException("Invalid block index "+blockIndex+" in diff of chunk "+key);
+            }
+            blockTypes[ blockIndex ] = diffs[i] & 0xff;
+        }
+        return blockTypes;
+    }
+    
+    private static void writeChunk(SegmentWriter writer,Chunk chunk,ChunkCodec codec,boolean positionIndependent) throws IOException 
+    {
+        if ( chunk.chunkKey == null ) { // only sub-chunks do not have a ChunkKey set
+            throw new IllegalArgumentException("ChunkKey needs to be set ");
+        }
+        writer.setType( TYPE_CHUNK_SEGMENT );
+        if ( codec == ChunkCodec.NONE ) 
         {
-            if ( dataBuffer.length < minSize ) {
-                dataBuffer = new byte[ minSize ];
+            // uncompressed chunks keep using version 1 since it allows loading just the borders without decoding everything
+            writer.setVersion( VERSION_CHUNK );
+            setPayload( writer , chunk );
+        } 
+        else 
+        {
+            final int[] diffs = STORE_DIFFS ? diff( chunk ) : null;
+            writer.setCodec( codec.id );
+            if ( STORE_SECTIONED ) 
+            {
+                writer.setVersion( VERSION_CHUNK_SECTIONED );
+                setSectionedPayload( writer , chunk , diffs , codec , positionIndependent );
+            }
+            else if ( diffs != null ) 
+            {
+                writer.setVersion( VERSION_CHUNK_DIFF );
+                setDiffPayload( writer , chunk , diffs , codec );
+            } else {
+                writer.setVersion( VERSION_CHUNK_COMPRESSED );
+                setCompressedPayload( writer , chunk , codec );
             }
         }
+        writer.writeSegment();
+    }
 
-        public void visit(LoadVisitor visitor) throws IOException 
+    /**
+     * Returns the blocks that differ from the chunk's generated baseline.
+     * 
+     * @param chunk
+     * @return changed blocks packed as <code>( blockIndex << 8 | blockType )</code> or <code>null</code> if 
+     * the chunk has too many changes to be stored as a diff.
+     */
+    private static int[] diff(Chunk chunk) 
+    {
+        final byte[] baseline = ChunkGenerator.getBaseline( chunk.chunkKey , chunk.getSeed() );
+        final int[] blockTypes = chunk.blockTypes;
+        int[] result = new int[ 64 ];
+        int count = 0;
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) 
         {
-            int offset = 0;
-            while( true ) 
+            final int type = blockTypes[i];
+            if ( type != baseline[i] ) 
             {
-                int read = in.read( headerBuffer , 0, HEADER_SIZE );
-                if ( read == -1 ) 
-                {
-                    visitor.endVisit();
-                    return;
+                if ( count == MAX_DIFF_BLOCKS || ( type & ~0xff ) != 0 ) {
+                    return null;
                 }
-                if ( read != HEADER_SIZE ) {
-                    throw new IOException("(offset "+offset+") Failed to segment header, expected "+HEADER_SIZE+" bytes but got only "+read);
+                if ( count == result.length ) {
+                    result = Arrays.copyOf( result , result.length*2 );
                 }
-                offset += HEADER_SIZE;
-                final int payloadLen = payloadLength();
-                if ( payloadLen > 0 ) 
-                {
-                    maybeGrowDataBuffer( payloadLen );
-                    read = in.read( dataBuffer , 0 , payloadLen );
-                    if ( read != payloadLen ) {
-                        throw new IOException("(offset "+offset+") Failed to read "+payloadLen+" bytes of segment "+type()+", only "+read+" bytes available");
-                    }
-                    offset += read;
-                }
-                visitor.visit( this );
+                result[ count++ ] = i << 8 | type;
             }
         }
+        return Arrays.copyOf( result , count );
+    }
 
-        @Override
-        public int readInt() {
-            int result = readInt( dataBuffer , dataReadOffset );
-            dataReadOffset+=4;
-            return result;
+    private static void setSectionedPayload(SegmentWriter writer,Chunk chunk,int[] diffs,ChunkCodec codec,boolean positionIndependent) throws IOException 
+    {
+        // diffs are relative to the baseline at the position the chunk is loaded from
+        final boolean omitKey = positionIndependent;
+        writer.writeInt( SECTION_COUNT );
+        final int table = writer.position();
+        for ( int i = 0 ; i < SECTION_COUNT ; i++ ) {
+            writer.writeInt( i );
+            writer.writeInt( 0 );
+            writer.writeInt( 0 );
         }
-        
-        private int readInt(byte[] buffer,int offset) 
+
+        int start = writer.position();
+        final int[] blockTypes = chunk.blockTypes;
+        writer.writeInt( World.CHUNK_SIZE );
+        writer.writeFloat( World.BLOCK_SIZE );
+        writer.writeInt( chunk.flags & ~Chunk.FLAG_NEEDS_SAVE );
+        writer.writeInt( omitKey ? NO_POSITION : chunk.chunkKey.x );
+        writer.writeInt( omitKey ? NO_POSITION : chunk.chunkKey.y );
+        writer.writeInt( omitKey ? NO_POSITION : chunk.chunkKey.z );
+        // the seed only matters for diffs
+        final long seed = omitKey && diffs == null ? 0 : chunk.getSeed();
+        writer.writeInt( (int) ( seed >>> 32 ) );
+        writer.writeInt( (int) seed );
+        writer.writeInt( countNonAirBlocks( blockTypes ) );
+        writer.writeIntArray( chunk.getEmitters() );
+        endSection( writer , table , SECTION_METADATA , start );
+
+        start = writer.position();
+        if ( diffs != null ) 
+        {
+            writer.writeInt( BLOCKS_DIFF );
+            writer.writeInt( diffs.length );
+            writer.writeByteArray( diffs.length == 0 ? new byte[0] : codec.encodeInts( diffs ) );
+        } else {
+            writer.writeInt( BLOCKS_FULL );
+            writer.writeByteArray( codec.encodeInts( blockTypes ) );
+        }
+        endSection( writer , table , SECTION_BLOCKS , start );
+
+        start = writer.position();
+        writer.writeByteArray( codec.encodeBytes( chunk.lightLevels ) );
+        endSection( writer , table , SECTION_LIGHT , start );
+
+        start = writer.position();
+        final int[] borderTypes = new int[ HaloChunk.BORDER_BLOCK_COUNT ];
+        final byte[] borderLight = new byte[ HaloChunk.BORDER_BLOCK_COUNT ];
+        for ( int i = 0 ; i < HaloChunk.BORDER_BLOCK_COUNT ; i++ ) 
+        {
+            final int blockIndex = HaloChunk.blockIndexOfBorderIndex( i );
+            borderTypes[i] = blockTypes[ blockIndex ];
+            borderLight[i] = chunk.lightLevels[ blockIndex ];
+        }
+        writer.writeByteArray( codec.encodeInts( borderTypes ) );
+        writer.writeByteArray( codec.encodeBytes( borderLight ) );
+        endSection( writer , table , SECTION_BORDERS , start );
+
+        start = writer.position();
+        writer.writeInt( (int) ( chunk.getLightStamp() >>> 32 ) );
+        writer.writeInt( (int) chunk.getLightStamp() );
+        endSection( writer , table , SECTION_LIGHT_STAMP , start );
+    }
+
+    private static void endSection(SegmentWriter writer,int table,int section,int start) 
+    {
+        writer.putInt( table + section * SECTION_ENTRY_SIZE + 4 , start );
+        writer.putInt( table + section * SECTION_ENTRY_SIZE + 8 , writer.position() - start );
+    }
+
+    private static void setPayload(SegmentWriter writer,Chunk chunk) throws IOException {
+        writer.writeInt( World.CHUNK_SIZE );
+        writer.writeFloat( World.BLOCK_SIZE );
+        writer.writeInt( chunk.flags & ~Chunk.FLAG_NEEDS_SAVE );
+        writer.writeIntArray( chunk.blockTypes );
+        writer.writeByteArray( chunk.lightLevels );
+        writer.writeInt( chunk.chunkKey.x );
+        writer.writeInt( chunk.chunkKey.y );
+        writer.writeInt( chunk.chunkKey.z );
+    }    
+
+    private static void setCompressedPayload(SegmentWriter writer,Chunk chunk,ChunkCodec codec) throws IOException {
+        writer.writeInt( World.CHUNK_SIZE );
+        writer.writeFloat( World.BLOCK_SIZE );
+        writer.writeInt( chunk.flags & ~Chunk.FLAG_NEEDS_SAVE );
+        writer.writeInt( chunk.chunkKey.x );
+        writer.writeInt( chunk.chunkKey.y );
+        writer.writeInt( chunk.chunkKey.z );
+        writer.writeByteArray( codec.encodeInts( chunk.blockTypes ) );
+        writer.writeByteArray( codec.encodeBytes( chunk.lightLevels ) );
+    }    
+
+    // per-thread I/O buffers , initially sized for an uncompressed chunk segment
+    private static final int INITIAL_BUFFER_SIZE = HEADER_SIZE + 5*World.BLOCKS_IN_CHUNK + 64;
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial( () -> ByteBuffer.allocate( INITIAL_BUFFER_SIZE ) );
+
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = ThreadLocal.withInitial( () -> ByteBuffer.allocate( INITIAL_BUFFER_SIZE ) );
+
+    /**
+     * Returns the calling thread's buffer from a given thread-local, growing it if necessary.
+     * 
+     * <p>The buffer's contents are only retained when the buffer needs to grow if <code>retainBytes</code> is greater than zero.</p>
+     * 
+     * @param local
+     * @param minCapacity
+     * @param retainBytes number of bytes from the start of the current buffer to copy when growing it
+     * @return buffer , position and limit are undefined
+     */
+    private static ByteBuffer buffer(ThreadLocal<ByteBuffer> local,int minCapacity,int retainBytes) 
+    {
+        final ByteBuffer existing = local.get();
+        if ( existing.capacity() >= minCapacity ) {
+            return existing;
+        }
+        final ByteBuffer result = ByteBuffer.allocate( Math.max( minCapacity , existing.capacity()*2 ) );
+        if ( retainBytes > 0 ) {
+            System.arraycopy( existing.array() , 0 , result.array() , 0 , retainBytes );
+        }
+        local.set( result );
+        return result;
+    }
+
+    /**
+     * Reads as many bytes as requested unless the end of the stream is reached.
+     * 
+     * @param in
+     * @param buffer
+     * @param offset
+     * @param len
+     * @return number of bytes read , less than <code>len</code> only if the end of the stream has been reached
+     * @throws IOException
+     */
+    private static int readFully(InputStream in,byte[] buffer,int offset,int len) throws IOException 
+    {
+        int total = 0;
+        while ( total < len ) 
+        {
+            final int read = in.read( buffer , offset + total , len - total );
+            if ( read == -1 ) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Writes segments to an output stream.
+     * 
+     * <p>The payload is assembled in the calling thread's write buffer, with room for the
+     * segment header in front of it so that each segment is handed to the output stream with a single write.
+     * Arrays are encoded using bulk transfers from {@link IntBuffer} views.</p>
+     * 
+     * <p>Since the write buffer is shared by all writers of the same thread, a thread must not use more than one writer at a time.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class SegmentWriter implements AutoCloseable {
+
+        private ByteBuffer buffer;
+
+        private int type;
+        private int version;
+        private int codec;
+
+        private final OutputStream out;
+
+        public SegmentWriter(OutputStream out) throws FileNotFoundException  
+        {
+            Validate.notNull(out, "output stream must not be NULL");
+            this.out = out;
+            this.buffer = buffer( WRITE_BUFFER , INITIAL_BUFFER_SIZE , 0 );
+            this.buffer.clear().position( HEADER_SIZE );
+        }
+
+        public void setType(int type) {
+            this.type = type;
+        }
+
+        public void setVersion(int version) {
+            this.version = version;
+        }
+
+        public void setCodec(int codec) {
+            this.codec = codec;
+        }
+
+        public void setPayload(byte[] data) 
+        {
+            buffer.position( HEADER_SIZE );
+            ensureCapacity( data.length );
+            buffer.put( data );
+        }
+
+        public void writeSegment() throws IOException 
         {
-            return ( (buffer[offset  ] & 0xff) << 24 ) |
-                    ( (buffer[offset+1] & 0xff) << 16 ) |
-                    ( (buffer[offset+2] & 0xff) <<  8 ) |
-                    ( (buffer[offset+3] & 0xff)       ) ;
+            if ( type == -1 || version == -1 ) {
+                throw new IllegalStateException("write() called although writer not properly populated");
+            }
+            final int segmentLength = buffer.position();
+            buffer.putInt( 0 , type );
+            buffer.putInt( 4 , version | codec << 16 );
+            buffer.putInt( 8 , segmentLength - HEADER_SIZE );
+
+            out.write( buffer.array() , 0 , segmentLength );
+
+            type = version = -1;
+            codec = 0;
+            buffer.clear().position( HEADER_SIZE );
+        }
+
+        private void ensureCapacity(int bytes) 
+        {
+            if ( buffer.remaining() < bytes ) 
+            {
+                final int position = buffer.position();
+                buffer = buffer( WRITE_BUFFER , position + bytes , position );
+                buffer.clear().position( position );
+            }
+        }
+
+        public void writeInt(int value) 
+        {
+            ensureCapacity( 4 );
+            buffer.putInt( value );
+        }
+
+        /**
+         * Returns the number of payload bytes written so far.
+         * 
+         * @return
+         */
+        public int position() {
+            return buffer.position() - HEADER_SIZE;
+        }
+
+        /**
+         * Overwrites an int that has already been written.
+         * 
+         * @param offset payload offset
+         * @param value
+         */
+        public void putInt(int offset,int value) 
+        {
+            Validate.isTrue( offset >= 0 && offset + 4 <= position() , "offset out of range: "+offset);
+            buffer.putInt( HEADER_SIZE + offset , value );
+        }
+
+        public void writeFloat(float value) 
+        {
+            ensureCapacity( 4 );            
+            buffer.putFloat( value );
         }        
-        
-        private byte readByte() 
+
+        public void writeVector3(Vector3 value) 
         {
-            byte result = dataBuffer[ dataReadOffset ];
-            dataReadOffset++;
-            return result;
+            ensureCapacity( 3*4 ); // 3x 32 bit float             
+            buffer.putFloat( value.x ).putFloat( value.y ).putFloat( value.z );
+        } 
+
+        public void writeByteArray(byte[] array) 
+        {
+            ensureCapacity( 4 + array.length ); // int<array length> + 8 bit * array.len 
+            buffer.putInt( array.length ).put( array );
+        }      
+
+        public void writeIntArray(int[] array) 
+        {
+            ensureCapacity( 4 + array.length*4 ); // int<array length> + 32 bit * array.len 
+            buffer.putInt( array.length );
+            final int position = buffer.position();
+            buffer.asIntBuffer().put( array );
+            buffer.position( position + array.length*4 );
+        }   
+
+        public void close() throws IOException {
+            out.close();
         }
+    }
 
-        @Override
-        public float readFloat() 
+    /**
+     * Segment backed by a {@link ByteBuffer}.
+     * 
+     * <p>Arrays are decoded using bulk transfers from {@link IntBuffer} / {@link ByteBuffer} views
+     * of the underlying buffer.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static abstract class AbstractBufferSegment implements Segment 
+    {
+        protected ByteBuffer buffer;
+
+        protected int type;
+        protected int version;
+        protected int codec;
+        protected int payloadLength;
+        protected int payloadStart;
+
+        /**
+         * Parses the segment header at the buffer's current position.
+         * 
+         * @param offset offset used in error messages
+         * @throws IOException
+         */
+        protected final void readHeader(long offset) throws IOException 
         {
-            int result = readInt();
-            return Float.intBitsToFloat( result );
+            type = buffer.getInt();
+            final int versionAndCodec = buffer.getInt();
+            version = versionAndCodec & 0xffff;
+            codec = versionAndCodec >>> 16;
+            payloadLength = buffer.getInt();
+            if ( payloadLength < 0 ) {
+                throw new IOException("(offset "+offset+") Segment "+type+" has invalid payload length "+payloadLength);
+            }
+            payloadStart = buffer.position();
+        }
+
+        @Override
+        public int type() {
+            return type;
+        }
+
+        @Override
+        public int version() {
+            return version;
+        }
+
+        @Override
+        public int codec() {
+            return codec;
+        }
+
+        @Override
+        public int payloadLength() {
+            return payloadLength;
+        }
+
+        @Override
+        public byte getByte(int offset) {
+            return buffer.get( payloadStart + offset );
+        }
+
+        @Override
+        public int getInt(int offset) {
+            return buffer.getInt( payloadStart + offset );
+        }
+
+        @Override
+        public int readInt() {
+            return buffer.getInt();
+        }
+
+        @Override
+        public float readFloat() {
+            return buffer.getFloat();
         }
 
         @Override
@@ -405,46 +1132,127 @@ public class ChunkFile
             final float z = readFloat();
             return new Vector3( x,y,z);
         }
-        
+
         @Override
-        public byte[] readByteArray() {
+        public int[] readIntArray() 
+        {
             final int len = readInt();
-            final byte[] result = new byte[len];
-            for ( int i=0 ; i < len ; i++ ) {
-                result[i] = readByte();
-            }
+            final int[] result = new int[len];
+            final int position = buffer.position();
+            buffer.asIntBuffer().get( result );
+            buffer.position( position + len*4 );
             return result;
         }
 
         @Override
-        public int[] readIntArray() 
+        public byte[] readByteArray() 
         {
             final int len = readInt();
-            final int[] result = new int[len];
-            for ( int i=0 ; i < len ; i++ ) {
-                result[i] = readInt();
-            }
+            final byte[] result = new byte[len];
+            buffer.get( result );
             return result;
         }
 
         @Override
-        public int type() {
-            return readInt( headerBuffer , 0 );
+        public void seek(int offset) {
+            buffer.position( payloadStart + offset );
         }
 
         @Override
-        public int version() {
-            return readInt( headerBuffer , 4 );
+        public Segment copy() throws IOException 
+        {
+            final ByteBuffer copy = ByteBuffer.allocate( HEADER_SIZE + payloadLength );
+            copy.putInt( type ).putInt( version | codec << 16 ).putInt( payloadLength );
+            final ByteBuffer payload = buffer.duplicate();
+            payload.limit( payloadStart + payloadLength ).position( payloadStart );
+            copy.put( payload ).flip();
+
+            final BufferSegmentReader result = new BufferSegmentReader( copy );
+            result.readHeader( 0 );
+            return result;
         }
+    }
 
-        @Override
-        public int payloadLength() {
-            return readInt( headerBuffer , 8 );
+    /**
+     * Reads segments from an input stream.
+     * 
+     * <p>Each segment is read completely into the calling thread's read buffer before it gets decoded, 
+     * short reads are retried until the requested number of bytes is available or the stream ends.</p>
+     * 
+     * <p>Since the read buffer is shared by all readers of the same thread, a thread must not use more than one reader at a time.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class SegmentReader extends AbstractBufferSegment 
+    {
+        private final InputStream in;
+
+        public SegmentReader(InputStream in) throws FileNotFoundException 
+        {
+            Validate.notNull(in, "input stream must not be NULL");
+            this.in = in;
         }
 
-        @Override
-        public byte[] payload() {
-            return dataBuffer;
+        public void visit(LoadVisitor visitor) throws IOException 
+        {
+            long offset = 0;
+            while( true ) 
+            {
+                buffer = buffer( READ_BUFFER , HEADER_SIZE , 0 );
+                int read = readFully( in , buffer.array() , 0 , HEADER_SIZE );
+                if ( read == 0 ) 
+                {
+                    visitor.endVisit();
+                    return;
+                }
+                if ( read != HEADER_SIZE ) {
+                    throw new IOException("(offset "+offset+") Failed to read segment header, expected "+HEADER_SIZE+" bytes but got only "+read);
+                }
+                buffer.clear();
+                readHeader( offset );
+                offset += HEADER_SIZE;
+                
+                buffer = buffer( READ_BUFFER , HEADER_SIZE + payloadLength , HEADER_SIZE );
+                read = readFully( in , buffer.array() , HEADER_SIZE , payloadLength );
+                if ( read != payloadLength ) {
+                    throw new IOException("(offset "+offset+") Failed to read "+payloadLength+" bytes of segment "+type+", only "+read+" bytes available");
+                }
+                offset += read;
+                buffer.limit( HEADER_SIZE + payloadLength ).position( HEADER_SIZE );
+                visitor.visit( this );
+            }
+        }
+    }
+
+    /**
+     * Reads segments from a {@link ByteBuffer}, for example a memory-mapped file.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class BufferSegmentReader extends AbstractBufferSegment 
+    {
+        public BufferSegmentReader(ByteBuffer buffer) 
+        {
+            Validate.notNull(buffer, "buffer must not be NULL");
+            this.buffer = buffer.duplicate().order( ByteOrder.BIG_ENDIAN );
+        }
+
+        public void visit(LoadVisitor visitor) throws IOException 
+        {
+            while( buffer.hasRemaining() ) 
+            {
+                final int offset = buffer.position();
+                if ( buffer.remaining() < HEADER_SIZE ) {
+                    throw new IOException("(offset "+offset+") Failed to read segment header, expected "+HEADER_SIZE+" bytes but got only "+buffer.remaining());
+                }
+                readHeader( offset );
+                if ( payloadLength > buffer.remaining() ) {
+                    throw new IOException("(offset "+offset+") Failed to read "+payloadLength+" bytes of segment "+type+", only "+buffer.remaining()+" bytes available");
+                }
+                visitor.visit( this );
+                buffer.position( payloadStart + payloadLength );
+            }
+            visitor.endVisit();
         }
     }
 
@@ -473,9 +1281,7 @@ public class ChunkFile
      */
     public Chunk load() throws IOException 
     {
-        try ( FileInputStream in = new FileInputStream(file) ) {
-            return load( in );
-        }
+        return load( read() );
     }
 
     /**
@@ -492,6 +1298,177 @@ public class ChunkFile
         return visitor.getChunk();
     }
 
+    /**
+     * Load chunk associated with this file by memory-mapping the file.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public Chunk loadMapped() throws IOException 
+    {
+        return load( map() );
+    }
+
+    /**
+     * Load chunk from a buffer.
+     * 
+     * @param data buffer holding the chunk file , the buffer's position is not modified
+     * @return
+     * @throws IOException
+     */
+    public static Chunk load(ByteBuffer data) throws IOException 
+    {
+        return load( data , null );
+    }
+
+    /**
+     * Load chunk from a buffer that may hold position-independent data.
+     * 
+     * @param data buffer holding the chunk file , the buffer's position is not modified
+     * @param key key of the chunk to load
+     * @return
+     * @throws IOException
+     * @see #store(Chunk, OutputStream, ChunkCodec, boolean)
+     */
+    public static Chunk load(ByteBuffer data,ChunkKey key) throws IOException 
+    {
+        final LoadVisitor visitor = new LoadVisitor( false , false , key );        
+        new BufferSegmentReader( data ).visit( visitor );
+        return visitor.getChunk();
+    }
+
+    /**
+     * Reads this file into the calling thread's read buffer.
+     * 
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer read() throws IOException 
+    {
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ ) ) 
+        {
+            final long size = channel.size();
+            if ( size > Integer.MAX_VALUE ) {
+                throw new IOException("File "+file.getAbsolutePath()+" is too large: "+size+" bytes");
+            }
+            final ByteBuffer buffer = buffer( READ_BUFFER , (int) size , 0 );
+            buffer.clear().limit( (int) size );
+            while ( buffer.hasRemaining() ) 
+            {
+                if ( channel.read( buffer ) == -1 ) {
+                    throw new IOException("Premature end of file "+file.getAbsolutePath()+" at offset "+buffer.position());
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private ByteBuffer map() throws IOException 
+    {
+        // the mapping stays valid after the channel has been closed
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ ) ) {
+            return channel.map( MapMode.READ_ONLY , 0 , channel.size() );
+        }
+    }
+
+    /**
+     * Load the chunk associated with this file , only decoding its metadata.
+     * 
+     * @return
+     * @throws IOException
+     * @see Sections
+     */
+    public Sections loadSections() throws IOException 
+    {
+        return loadSections( read() );
+    }
+
+    /**
+     * Load a chunk from a buffer , only decoding its metadata.
+     * 
+     * <p>The returned object does not reference the buffer.</p>
+     * 
+     * @param data buffer holding the chunk file , the buffer's position is not modified
+     * @return
+     * @throws IOException
+     * @see Sections
+     */
+    public static Sections loadSections(ByteBuffer data) throws IOException 
+    {
+        final LoadVisitor visitor = new LoadVisitor( false , true , null );        
+        new BufferSegmentReader( data ).visit( visitor );
+        return visitor.getSections();
+    }
+
+    /**
+     * Load only the border slices of the chunk associated with this file.
+     * 
+     * @return
+     * @throws IOException
+     * @see HaloChunk
+     */
+    public HaloChunk loadBorders() throws IOException 
+    {
+        return loadBorders( read() );
+    }
+    
+    /**
+     * Load only the border slices of a chunk from an input stream.
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     * @see HaloChunk
+     */
+    public static HaloChunk loadBorders(InputStream in) throws IOException 
+    {
+        final LoadVisitor visitor = new LoadVisitor( true );        
+        new SegmentReader( in ).visit( visitor );
+        return (HaloChunk) visitor.getChunk();
+    }
+
+    /**
+     * Load only the border slices of the chunk associated with this file by memory-mapping the file.
+     * 
+     * @return
+     * @throws IOException
+     * @see HaloChunk
+     */
+    public HaloChunk loadBordersMapped() throws IOException 
+    {
+        return loadBorders( map() );
+    }
+
+    /**
+     * Load only the border slices of a chunk from a buffer.
+     * 
+     * @param data buffer holding the chunk file , the buffer's position is not modified
+     * @return
+     * @throws IOException
+     * @see HaloChunk
+     */
+    public static HaloChunk loadBorders(ByteBuffer data) throws IOException 
+    {
+        return loadBorders( data , null );
+    }
+
+    /**
+     * Load only the border slices of a chunk from a buffer that may hold position-independent data.
+     * 
+     * @param data buffer holding the chunk file , the buffer's position is not modified
+     * @param key key of the chunk to load
+     * @return
+     * @throws IOException
+     * @see #store(Chunk, OutputStream, ChunkCodec, boolean)
+     */
+    public static HaloChunk loadBorders(ByteBuffer data,ChunkKey key) throws IOException 
+    {
+        final LoadVisitor visitor = new LoadVisitor( true , false , key );        
+        new BufferSegmentReader( data ).visit( visitor );
+        return (HaloChunk) visitor.getChunk();
+    }
+
     /**
      * Store chunk to associated file.
      * 
@@ -499,13 +1476,96 @@ public class ChunkFile
      * @throws IOException
      */
     public void store(Chunk chunk) throws IOException {
-        try ( OutputStream out = new FileOutputStream(file) ) 
+        store( chunk , false );
+    }
+    
+    /**
+     * Store chunk to associated file.
+     * 
+     * <p>The chunk is written to a temporary file first that then atomically replaces 
+     * the associated file, so a crash while writing never leaves a truncated file behind.
+     * The temporary file is always forced to the storage device before the rename, otherwise the rename 
+     * could reach the disk before the data does.</p>
+     * 
+     * @param chunk
+     * @param sync whether to also force the rename (the directory entry) to the storage device before returning
+     * @throws IOException
+     */
+    public void store(Chunk chunk,boolean sync) throws IOException 
+    {
+        final File tmpFile = new File( file.getParentFile() , file.getName()+".tmp" );
+        final FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try ( OutputStream out = new FilterOutputStream( fileOut ) 
+        {
+            private boolean closed;
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                fileOut.write( b , off , len );
+            }
+            
+            @Override
+            public void close() throws IOException 
+            {
+                if ( closed ) {
+                    return;
+                }
+                closed = true;
+                try {
+                    fileOut.getFD().sync();
+                } finally {
+                    fileOut.close();
+                }
+            }
+        } ) 
         {
             store( chunk , out );
-            chunk.clearFlags( Chunk.FLAG_NEEDS_SAVE );    
         }
+        catch(IOException | RuntimeException e) 
+        {
+            chunk.setFlags( Chunk.FLAG_NEEDS_SAVE );
+            tmpFile.delete();
+            throw e;
+        }
+        Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+        if ( sync ) {
+            syncDirectory( file.getParentFile() );
+        }
+        chunk.clearFlags( Chunk.FLAG_NEEDS_SAVE );    
     }
 
+    /**
+     * Forces directory entries (like file renames) to the storage device.
+     * 
+     * <p>Not all platforms support this, errors are ignored.</p>
+     * 
+     * @param dir
+     */
+    static void syncDirectory(File dir) 
+    {
+        try ( FileChannel channel = FileChannel.open( dir.toPath() , StandardOpenOption.READ ) ) {
+            channel.force( true );
+        } 
+        catch(IOException e) {
+            LOG.debug("syncDirectory(): Failed to sync "+dir.getAbsolutePath()+": "+e.getMessage());
+        }
+    }
+
+    // writes a VERSION_CHUNK_DIFF payload holding only the blocks that differ from the generated baseline
+    private static void setDiffPayload(SegmentWriter writer,Chunk chunk,int[] diffs,ChunkCodec codec) throws IOException {
+        writer.writeInt( World.CHUNK_SIZE );
+        writer.writeFloat( World.BLOCK_SIZE );
+        writer.writeInt( chunk.flags & ~Chunk.FLAG_NEEDS_SAVE );
+        writer.writeInt( chunk.chunkKey.x );
+        writer.writeInt( chunk.chunkKey.y );
+        writer.writeInt( chunk.chunkKey.z );
+        writer.writeInt( (int) ( chunk.getSeed() >>> 32 ) );
+        writer.writeInt( (int) chunk.getSeed() );
+        writer.writeInt( diffs.length );
+        writer.writeByteArray( diffs.length == 0 ? new byte[0] : codec.encodeInts( diffs ) );
+        writer.writeByteArray( codec.encodeBytes( chunk.lightLevels ) );
+    }    
+
     /**
      * Write chunk to output stream.
      * 
@@ -514,6 +1574,34 @@ public class ChunkFile
      * @throws IOException
      */
     public static void store(Chunk chunk,OutputStream out) throws IOException 
+    {
+        store( chunk , out , DEFAULT_CODEC );
+    }
+
+    /**
+     * Write chunk to output stream.
+     * 
+     * @param chunk
+     * @param out
+     * @param codec codec to use for compressing block types and light levels
+     * @throws IOException
+     */
+    public static void store(Chunk chunk,OutputStream out,ChunkCodec codec) throws IOException 
+    {
+        store( chunk , out , codec , false );
+    }
+
+    /**
+     * Write chunk to output stream.
+     * 
+     * @param chunk
+     * @param out
+     * @param codec codec to use for compressing block types and light levels
+     * @param positionIndependent whether to omit the chunk's key if possible so that chunks with identical contents yield identical bytes , 
+     * such data can only be loaded using {@link #load(ByteBuffer, ChunkKey)} / {@link #loadBorders(ByteBuffer, ChunkKey)}
+     * @throws IOException
+     */
+    public static void store(Chunk chunk,OutputStream out,ChunkCodec codec,boolean positionIndependent) throws IOException 
     {
         try ( final SegmentWriter writer = new SegmentWriter( out ) ) 
         {
@@ -522,7 +1610,7 @@ public class ChunkFile
             writer.setPayload( FILE_HEADER_MAGIC );
             writer.writeSegment();
 
-            writeChunk( writer , chunk );
+            writeChunk( writer , chunk , codec , positionIndependent );
         }
         chunk.clearFlags( Chunk.FLAG_NEEDS_SAVE );
     }
@@ -0,0 +1,176 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.lang3.Validate;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+
+/**
+ * Chunk storage that keeps each chunk in a separate {@link ChunkFile}.
+ *
+ * <p>The chunk directory is listed once, after that the IDs of all chunks stored on disk
+ * are kept in memory so that looking up chunks that do not exist does no file system I/O.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see RegionFileStorage
+ */
+public class ChunkFileStorage implements IChunkStorage
+{
+    public static final String FILE_SUFFIX = ".chunk";
+
+    private final File chunkDir;
+
+    private final boolean memoryMapped;
+
+    // files written since the last sync() , their data has already been forced to disk but the renames may not have been
+    private final Set<File> unsyncedFiles = new HashSet<>();
+
+    // IDs of all chunks stored on disk , NULL until the chunk directory has been listed
+    private Set<Long> existingChunks;
+
+    public ChunkFileStorage(File chunkDir)
+    {
+        this( chunkDir , false );
+    }
+
+    /**
+     * Create storage.
+     *
+     * @param chunkDir
+     * @param memoryMapped whether to memory-map chunk files when loading
+     */
+    public ChunkFileStorage(File chunkDir,boolean memoryMapped)
+    {
+        Validate.notNull(chunkDir, "chunkDir must not be NULL");
+        this.chunkDir = chunkDir;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Returns the file a chunk is stored in.
+     *
+     * @param key
+     * @return
+     */
+    public File getFile(ChunkKey key) {
+        return new File( chunkDir , key.x+"_"+key.y+"_"+key.z+FILE_SUFFIX );
+    }
+
+    /**
+     * Returns the key of the chunk stored in a file.
+     *
+     * @param file
+     * @return chunk key or <code>null</code> if this is not a chunk file
+     */
+    public static ChunkKey getChunkKey(File file)
+    {
+        final String name = file.getName();
+        if ( ! name.endsWith( FILE_SUFFIX ) ) {
+            return null;
+        }
+        final String[] parts = name.substring( 0 , name.length() - FILE_SUFFIX.length() ).split("_");
+        if ( parts.length != 3 ) {
+            return null;
+        }
+        try {
+            return new ChunkKey( Integer.parseInt( parts[0] ) , Integer.parseInt( parts[1] ) , Integer.parseInt( parts[2] ) );
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether a chunk is stored on disk.
+     *
+     * @param key
+     * @return
+     */
+    public boolean contains(ChunkKey key)
+    {
+        synchronized( unsyncedFiles )
+        {
+            if ( existingChunks == null )
+            {
+                existingChunks = new HashSet<>();
+                final File[] files = chunkDir.listFiles();
+                if ( files != null )
+                {
+                    for ( File file : files )
+                    {
+                        final ChunkKey fileKey = getChunkKey( file );
+                        if ( fileKey != null ) {
+                            existingChunks.add( fileKey.toID() );
+                        }
+                    }
+                }
+            }
+            return existingChunks.contains( key.toID() );
+        }
+    }
+
+    @Override
+    public Chunk load(ChunkKey key) throws IOException
+    {
+        if ( ! contains( key ) ) {
+            return null;
+        }
+        final File file = getFile( key );
+        return memoryMapped ? new ChunkFile( file ).loadMapped() : new ChunkFile( file ).load();
+    }
+
+    @Override
+    public HaloChunk loadBorders(ChunkKey key) throws IOException
+    {
+        if ( ! contains( key ) ) {
+            return null;
+        }
+        final File file = getFile( key );
+        return memoryMapped ? new ChunkFile( file ).loadBordersMapped() : new ChunkFile( file ).loadBorders();
+    }
+
+    @Override
+    public void store(Chunk chunk, boolean sync) throws IOException 
+    {
+        final File file = getFile( chunk.chunkKey );
+        new ChunkFile( file ).store( chunk , sync );
+        synchronized( unsyncedFiles ) 
+        {
+            if ( existingChunks != null ) {
+                existingChunks.add( chunk.chunkKey.toID() );
+            }
+            if ( ! sync ) {
+                unsyncedFiles.add( file );
+            }
+        }
+    }
+
+    @Override
+    public void sync() throws IOException 
+    {
+        synchronized( unsyncedFiles ) 
+        {
+            if ( unsyncedFiles.isEmpty() ) {
+                return;
+            }
+            unsyncedFiles.clear();
+        }
+        // ChunkFile#store() forces each file's data before renaming it , only the renames are left
+        ChunkFile.syncDirectory( chunkDir );
+    }
+
+    @Override
+    public void close() throws IOException {
+        // nothing to do
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkFileStorage[ "+chunkDir.getAbsolutePath()+( memoryMapped ? " , memory-mapped" : "" )+" ]";
+    }
+}
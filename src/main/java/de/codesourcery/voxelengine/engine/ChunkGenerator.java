@@ -0,0 +1,319 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.math.Vector3;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+
+/**
+ * Procedural terrain generation.
+ *
+ * <p>Generation is deterministic, the same chunk key and world seed always yield the same blocks.
+ * This is what allows {@link ChunkFile} to only store the blocks of a chunk that differ from its generated baseline,
+ * chunks that have never been edited do not need to be stored at all.</p>
+ *
+ * <p>Worlds with a {@link #usesHashNoise(long) tagged seed} sample a single {@link HashNoise} instance shared by all threads,
+ * older worlds re-seed a thread-local {@link SimplexNoise} for every chunk.</p>
+ *
+ * <p>Since baselines are needed both when loading and when saving an edited chunk, the block types
+ * of the most recently generated chunks are kept in a small LRU cache.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ChunkGenerator
+{
+    private static final Logger LOG = Logger.getLogger(ChunkGenerator.class);
+
+    /**
+     * Seed used by worlds created before world seeds existed, yields the same terrain as before.
+     */
+    public static final long LEGACY_SEED = 0;
+
+    /**
+     * Tag in the upper 32 bits of world seeds whose terrain is generated from {@link HashNoise}.
+     *
+     * <p>Older worlds keep generating their terrain from per-chunk seeded {@link SimplexNoise} since their stored chunks
+     * only hold the differences to it. New worlds get tagged seeds , see {@link #createSeed(Random)}.</p>
+     */
+    public static final long HASH_NOISE_TAG = 0x4841534800000000L;
+
+    private static final long TAG_MASK = 0xffffffff00000000L;
+
+    /**
+     * Distance (in blocks) of the lattice points {@link HashNoise} gets sampled at , the noise
+     * for all other blocks is interpolated. Must divide {@link World#CHUNK_SIZE}.
+     *
+     * <p>Changing this changes the terrain of all worlds using {@link #usesHashNoise(long) hash noise}. Stored chunks
+     * only hold the differences to the generated terrain so these worlds would get corrupted.</p>
+     */
+    public static final int NOISE_LATTICE_STEP = 4;
+
+    /**
+     * Max. number of chunk baselines to cache.
+     */
+    public static final int BASELINE_CACHE_SIZE = 512;
+
+    protected static final class Baseline
+    {
+        public final long seed;
+        public final byte[] blockTypes;
+
+        public Baseline(long seed, byte[] blockTypes)
+        {
+            this.seed = seed;
+            this.blockTypes = blockTypes;
+        }
+    }
+
+    // baselines by chunk ID , in LRU order
+    private static final LinkedHashMap<Long,Baseline> BASELINES = new LinkedHashMap<Long,Baseline>( 16 , 0.75f , true )
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long,Baseline> eldest) {
+            return size() > BASELINE_CACHE_SIZE;
+        }
+    };
+
+    private static final class NoiseHelper {
+
+        public final Vector3 point=new Vector3();
+        public final float[] data = new float[ World.CHUNK_SIZE*World.CHUNK_SIZE*World.CHUNK_SIZE];
+        public final SimplexNoise noise = new SimplexNoise();
+    }
+
+    private static final ThreadLocal<NoiseHelper> noise = new ThreadLocal<NoiseHelper>()
+    {
+        protected NoiseHelper initialValue()
+        {
+            return new NoiseHelper();
+        }
+    };
+
+    // shared by all threads , replaced when a different world seed is used
+    private static volatile HashNoise hashNoise = new HashNoise( HASH_NOISE_TAG );
+
+    private ChunkGenerator() {
+    }
+
+    /**
+     * Creates a random seed for a new world.
+     *
+     * @param rnd
+     * @return seed tagged to generate terrain from {@link HashNoise}
+     */
+    public static long createSeed(Random rnd)
+    {
+        return HASH_NOISE_TAG | ( rnd.nextInt() & 0xffffffffL );
+    }
+
+    /**
+     * Returns whether terrain for a given world seed gets generated from {@link HashNoise}.
+     *
+     * @param seed
+     * @return
+     */
+    public static boolean usesHashNoise(long seed) {
+        return ( seed & TAG_MASK ) == HASH_NOISE_TAG;
+    }
+
+    private static HashNoise hashNoise(long seed)
+    {
+        HashNoise result = hashNoise;
+        if ( result.getSeed() != seed ) {
+            result = new HashNoise( seed );
+            hashNoise = result;
+        }
+        return result;
+    }
+
+    /**
+     * Generates a chunk.
+     *
+     * <p>Freshly generated chunks are not marked as {@link Chunk#needsSave() needing to be saved}
+     * since they can always be re-generated.</p>
+     *
+     * @param key
+     * @param seed world seed
+     * @return
+     */
+    public static Chunk generate(ChunkKey key,long seed)
+    {
+        final Chunk chunk = doGenerate( key , seed );
+        cacheBaseline( chunk );
+        return chunk;
+    }
+
+    private static Chunk doGenerate(ChunkKey key,long seed)
+    {
+        final Chunk chunk;
+        if ( key.y <= 0 )
+        {
+            if ( key.y <= -3 ) {
+                chunk = generateSolidChunk(key);
+            } else {
+                chunk = generateChunkFromNoise(key,seed);
+            }
+        } else {
+            chunk = generateEmptyChunk(key);
+        }
+        chunk.setSeed( seed );
+        // build the emitter index while still on the loader thread so lighting does not need to scan the chunk
+        chunk.getEmitters();
+        if ( LOG.isDebugEnabled() ) {
+            LOG.debug("generate(): Generated "+chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns the block types of a generated chunk.
+     *
+     * @param key
+     * @param seed
+     * @return block types as bytes , the returned array must not be modified
+     */
+    static byte[] getBaseline(ChunkKey key,long seed)
+    {
+        synchronized( BASELINES )
+        {
+            final Baseline existing = BASELINES.get( key.toID() );
+            if ( existing != null && existing.seed == seed ) {
+                return existing.blockTypes;
+            }
+        }
+        // generating a chunk is expensive , do it outside of the lock
+        return cacheBaseline( doGenerate( key , seed ) );
+    }
+
+    /**
+     * Returns the number of bytes held by cached baselines.
+     *
+     * @return
+     */
+    public static long getBaselineCacheSizeInBytes()
+    {
+        synchronized( BASELINES ) {
+            return BASELINES.size() * (long) World.BLOCKS_IN_CHUNK;
+        }
+    }
+
+    private static byte[] cacheBaseline(Chunk chunk)
+    {
+        final byte[] types = new byte[ World.BLOCKS_IN_CHUNK ];
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            types[i] = (byte) chunk.blockTypes[i];
+        }
+        synchronized( BASELINES ) {
+            BASELINES.put( chunk.chunkKey.toID() , new Baseline( chunk.getSeed() , types ) );
+        }
+        return types;
+    }
+
+    private static Chunk generateEmptyChunk(ChunkKey key) {
+        final Chunk chunk = new Chunk(key);
+        chunk.setFlags(Chunk.FLAG_EMPTY);
+        return chunk;
+    }
+
+    private static Chunk generateSolidChunk(ChunkKey key)
+    {
+        final Chunk chunk = new Chunk(key);
+        for ( int i = 0 ; i < World.CHUNK_SIZE*World.CHUNK_SIZE*World.CHUNK_SIZE ; i++) {
+            chunk.blockTypes[i] = BlockType.SOLID_1;
+        }
+        chunk.updateIsEmptyFlag();
+        return chunk;
+    }
+
+    static Chunk generateSimpleChunk(ChunkKey key) {
+
+        final Chunk chunk = new Chunk(key);
+
+        if ( key.y == 0 ) // create ground plane
+        {
+            final int middle = World.CHUNK_SIZE/2;
+            for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ )
+            {
+                for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ )
+                {
+                    chunk.setBlockType( x ,middle , z , BlockType.SOLID_2 );
+                }
+            }
+            chunk.updateIsEmptyFlag();
+        } else {
+            chunk.setFlags( Chunk.FLAG_EMPTY );
+        }
+        return chunk;
+    }
+
+    static Chunk generateChunkFromNoise(ChunkKey key,long seed)
+    {
+        return generateChunkFromNoise( key , seed , NOISE_LATTICE_STEP );
+    }
+
+    static Chunk generateChunkFromNoise(ChunkKey key,long seed,int latticeStep)
+    {
+        final NoiseHelper helper = noise.get();
+        final float tileSize = 0.75f;
+        final int octaveCount = 2;
+        final float persistance = 32f;
+        if ( usesHashNoise( seed ) )
+        {
+            // same noise frequency as below , sampled in world block coordinates
+            hashNoise( seed ).createNoise3D( key.x * World.CHUNK_SIZE , key.y * World.CHUNK_SIZE , key.z * World.CHUNK_SIZE ,
+                    World.CHUNK_SIZE , tileSize / World.CHUNK_SIZE , octaveCount , persistance , latticeStep , helper.data );
+        }
+        else
+        {
+            // the legacy seed yields the same noise as before world seeds existed , always sampled for every block
+            helper.noise.setSeed( key.toID() ^ ( seed * 0x9e3779b97f4a7c15L ) );
+
+            ChunkKey.getChunkCenter( key , helper.point );
+            helper.point.sub( World.CHUNK_HALF_WIDTH,World.CHUNK_HALF_WIDTH,World.CHUNK_HALF_WIDTH);
+            helper.noise.createNoise3D( helper.point.x*tileSize  , helper.point.y*tileSize, helper.point.z*tileSize , World.CHUNK_SIZE,tileSize,octaveCount,persistance, helper.data );
+        }
+
+        final Chunk chunk = new Chunk(key);
+
+        // iterate in memory order , block index == noise index
+        int blockType;
+        int ptr = 0;
+        for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ )
+        {
+            for ( int y = 0 ; y < World.CHUNK_SIZE ; y++ )
+            {
+                for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ , ptr++ )
+                {
+                    final float value;
+                    if ( key.y == 0 ) {
+                        value = helper.data[ ptr ] / (y*0.20f+0.1f);
+                    } else {
+                        value = helper.data[ ptr ] *1.5f;
+                    }
+                    if ( value > 0.8f )
+                    {
+                        if ( key.y <= -1 )
+                        {
+                            blockType = key.y < -1 || (key.y == -1 && y <= 5) ? BlockType.SOLID_1 : BlockType.SOLID_2;
+                        } else {
+                            blockType = BlockType.SOLID_2;
+                        }
+                        chunk.setBlockType(ptr,blockType);
+                    }
+                }
+            }
+        }
+        chunk.updateIsEmptyFlag();
+        return chunk;
+    }
+}
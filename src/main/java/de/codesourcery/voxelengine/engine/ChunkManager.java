@@ -1,28 +1,41 @@
 package de.codesourcery.voxelengine.engine;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.log4j.Logger;
 
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.utils.LongMap;
-import com.badlogic.gdx.utils.LongMap.Values;
 
 import de.codesourcery.voxelengine.engine.TaskScheduler.Task;
 import de.codesourcery.voxelengine.model.BlockType;
 import de.codesourcery.voxelengine.model.Chunk;
 import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
 import de.codesourcery.voxelengine.model.World;
+import de.codesourcery.voxelengine.utils.ConcurrentLongMap;
 
 /**
  * Responsible of loading and unloading (=saving) of chunks.
@@ -31,8 +44,11 @@ import de.codesourcery.voxelengine.model.World;
  * load/unload chunk data. Loading chunks runs as {@link TaskScheduler.Prio high-priority tasks}
  * while unloading (saving chunks) is a low-priority one.</p>
  * 
- * <p>TODO: The current implementation operates on individual chunks, it might be
- * more efficient to group chunks into regions and operate on multiple chunks at once.</p>
+ * <p>Chunk data is persisted through an {@link IChunkStorage}, by default chunks
+ * are grouped into {@link RegionFileStorage region files}.</p>
+ * 
+ * <p>Block edits are additionally recorded in a {@link BlockJournal} that gets replayed when chunks are
+ * loaded and is periodically compacted into chunk storage by a low-priority task.</p>
  *  
  * @author tobias.gierke@code-sourcery.de
  */
@@ -42,23 +58,90 @@ public class ChunkManager implements Disposable
 
     public static final boolean CLEAR_CHUNK_DIR_ON_STARTUP = false;
 
-    private final File chunkDir;
+    /**
+     * Whether to store chunks in region files or one file per chunk.
+     */
+    public static final boolean USE_REGION_FILES = true;
+
+    /**
+     * Whether to append chunks to a log instead of using region/chunk files, see {@link LogStructuredStorage}.
+     */
+    public static final boolean USE_LOG_STORAGE = false;
+
+    /**
+     * Whether to decode chunks straight from memory-mapped files instead of reading them through streams.
+     */
+    public static final boolean MEMORY_MAPPED_IO = true;
+
+    /**
+     * When the write-behind queue forces written chunks to disk.
+     */
+    public static final WriteBehindSaver.FsyncPolicy FSYNC_POLICY = WriteBehindSaver.FsyncPolicy.BATCH;
+
+    /**
+     * Whether to record block edits in a journal.
+     */
+    public static final boolean JOURNAL_BLOCK_EDITS = true;
+
+    /**
+     * Number of journaled block edits after which the journal gets compacted.
+     */
+    public static final int JOURNAL_COMPACTION_THRESHOLD = 4096;
+
+    // all chunks get written asynchronously through this queue
+    private final WriteBehindSaver storage;
 
-    private final LongMap<Chunk> chunks = new LongMap<>(1000);
+    // may be NULL if block edits are not journaled
+    private final BlockJournal journal;
+
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    // compaction may run on the low-priority worker and in dispose()
+    private final Object compactionLock = new Object();
+
+    // accessed concurrently by the rendering thread and the loader threads
+    private final ConcurrentLongMap<Chunk> chunks = new ConcurrentLongMap<>(1000);
     
     private static final int CLEAN_FREQUENCY = 60;
     
+    /**
+     * Default max. time (in milliseconds) {@link #dispose()} waits for dirty chunks to be saved.
+     */
+    public static final long DEFAULT_FLUSH_TIMEOUT_MILLIS = 30*1000;
+    
     private int cleanCount = CLEAN_FREQUENCY;
 
     // scheduler used for asynchronous loading/unloading of chunks
     private final TaskScheduler scheduler;
+
+    /**
+     * Name of the file inside the chunk directory that holds world properties like the world seed.
+     */
+    public static final String WORLD_PROPERTIES_FILE = "world.properties";
+
+    private static final String PROP_SEED = "seed";
+
+    // seed used to procedurally generate chunks
+    private final long seed;
+    
+    private long flushTimeoutMillis = DEFAULT_FLUSH_TIMEOUT_MILLIS;
+    
+    /**
+     * Receives progress notifications while {@link ChunkManager#flush(long, FlushListener) flushing} chunks.
+     * 
+     * <p>Note that this listener is invoked by the {@link WriteBehindSaver}'s writer thread.</p>
+     */
+    @FunctionalInterface
+    public interface FlushListener 
+    {
+        public void progress(int savedChunks,int totalChunks);
+    }
     
     public ChunkManager(File chunkDir,TaskScheduler scheduler) 
     {
         Validate.notNull(chunkDir, "chunkDir must not be NULL");
         Validate.notNull(scheduler, "scheduler must not be NULL");
         this.scheduler = scheduler;
-        this.chunkDir = chunkDir;
 
         if ( CLEAR_CHUNK_DIR_ON_STARTUP ) {
             LOG.warn("ChunkManager(): Deleting chunk directory "+chunkDir.getAbsolutePath());
@@ -72,6 +155,127 @@ public class ChunkManager implements Disposable
                 throw new RuntimeException("Failed to create chunk dir "+chunkDir.getAbsolutePath());
             }
         }
+
+        try {
+            this.seed = loadOrCreateSeed( chunkDir );
+        } 
+        catch (IOException e) 
+        {
+            LOG.error("ChunkManager(): Failed to read world seed from "+chunkDir.getAbsolutePath(),e);
+            throw new RuntimeException("Failed to read world seed from "+chunkDir.getAbsolutePath(),e);
+        }
+        LOG.info("ChunkManager(): World seed is "+seed);
+
+        if ( USE_LOG_STORAGE ) 
+        {
+            this.storage = new WriteBehindSaver( new LogStructuredStorage( chunkDir ) , FSYNC_POLICY );
+        }
+        else if ( USE_REGION_FILES ) 
+        {
+            if ( RegionFileMigrator.hasChunkFiles( chunkDir ) ) 
+            {
+                LOG.warn("ChunkManager(): Migrating chunk files in "+chunkDir.getAbsolutePath()+" to region files");
+                try {
+                    RegionFileMigrator.migrate( chunkDir , true );
+                } 
+                catch (IOException e) {
+                    LOG.error("ChunkManager(): Failed to migrate chunk files in "+chunkDir.getAbsolutePath(),e);
+                }
+            }
+            this.storage = new WriteBehindSaver( new RegionFileStorage( chunkDir , MEMORY_MAPPED_IO ) , FSYNC_POLICY );
+        } else {
+            this.storage = new WriteBehindSaver( new ChunkFileStorage( chunkDir , MEMORY_MAPPED_IO ) , FSYNC_POLICY );
+        }
+
+        if ( JOURNAL_BLOCK_EDITS ) 
+        {
+            try {
+                this.journal = new BlockJournal( chunkDir );
+            } 
+            catch (IOException e) 
+            {
+                LOG.error("ChunkManager(): Failed to open block journal in "+chunkDir.getAbsolutePath(),e);
+                throw new RuntimeException("Failed to open block journal in "+chunkDir.getAbsolutePath(),e);
+            }
+            scheduleJournalCompaction( 1 );
+        } else {
+            this.journal = null;
+        }
+    }
+
+    public ChunkManager(IChunkStorage storage,TaskScheduler scheduler) 
+    {
+        this( storage , null , scheduler );
+    }
+
+    /**
+     * Create chunk manager.
+     * 
+     * @param storage
+     * @param journal block journal to use, may be <code>null</code>
+     * @param scheduler
+     */
+    public ChunkManager(IChunkStorage storage,BlockJournal journal,TaskScheduler scheduler) 
+    {
+        Validate.notNull(storage, "storage must not be NULL");
+        Validate.notNull(scheduler, "scheduler must not be NULL");
+        this.storage = new WriteBehindSaver( storage , FSYNC_POLICY );
+        this.journal = journal;
+        this.scheduler = scheduler;
+        this.seed = ChunkGenerator.LEGACY_SEED;
+        if ( journal != null ) {
+            scheduleJournalCompaction( 1 );
+        }
+    }
+
+    /**
+     * Reads the world seed from the chunk directory.
+     * 
+     * <p>If no seed has been stored yet, directories that already contain chunk data get the {@link ChunkGenerator#LEGACY_SEED legacy seed}
+     * (so their terrain does not change) while new worlds get a random seed from {@link ChunkGenerator#createSeed(Random)}.</p>
+     *  
+     * @param chunkDir
+     * @return
+     * @throws IOException
+     */
+    static long loadOrCreateSeed(File chunkDir) throws IOException 
+    {
+        final File file = new File( chunkDir , WORLD_PROPERTIES_FILE );
+        final Properties props = new Properties();
+        if ( file.exists() ) 
+        {
+            try ( InputStream in = new FileInputStream( file ) ) {
+                props.load( in );
+            }
+            final String value = props.getProperty( PROP_SEED );
+            if ( value == null ) {
+                throw new IOException("No '"+PROP_SEED+"' property in "+file.getAbsolutePath());
+            }
+            try {
+                return Long.parseLong( value.trim() );
+            } catch(NumberFormatException e) {
+                throw new IOException("Invalid seed '"+value+"' in "+file.getAbsolutePath(),e);
+            }
+        }
+
+        final String[] existing = chunkDir.list();
+        final long result = existing != null && existing.length > 0 ? ChunkGenerator.LEGACY_SEED : ChunkGenerator.createSeed( new Random() );
+        props.setProperty( PROP_SEED , Long.toString( result ) );
+        final File tmpFile = new File( chunkDir , WORLD_PROPERTIES_FILE+".tmp" );
+        try ( OutputStream out = new FileOutputStream( tmpFile ) ) {
+            props.store( out , "World properties" );
+        }
+        Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+        return result;
+    }
+
+    /**
+     * Returns the seed used to procedurally generate chunks.
+     * 
+     * @return
+     */
+    public long getSeed() {
+        return seed;
     }
 
     public static void recursiveDelete(File file) 
@@ -114,6 +318,11 @@ public class ChunkManager implements Disposable
                 while ( ! result.isDisposed() );
                 continue;
             }
+            if ( result.isHalo() ) // replace with full chunk
+            {
+                result = loadOrCreateChunk( ChunkKey.fromID( chunkID ) );
+                addChunks( Arrays.asList((result) ) );
+            }
             result.setIsInUse( true );
             removeDisposedChunks();            
             return result; 
@@ -125,38 +334,46 @@ public class ChunkManager implements Disposable
         if ( --cleanCount < 0 ) 
         {
             final boolean debug = LOG.isDebugEnabled();
-            List<Chunk> toRemove = null;
-            final Values<Chunk> values = chunks.values();
-            while( values.hasNext )
+            chunks.visit( (key,chunk) -> 
             {
-                // hint: cannot remove chunks directly in this loop
-                // since will make the Values<> iterator fail
-                final Chunk chunk = values.next();
                 if ( chunk.isDisposed() ) 
                 {
-                    if ( toRemove == null ) 
-                    {
-                        toRemove = new ArrayList<>( 100 );
-                    }
-                    toRemove.add( chunk );
-                }
-            }
-            if ( toRemove != null ) 
-            {
-                for ( int i = 0 ; i < toRemove.size() ; i++ ) 
-                {
-                    final Chunk chunk = toRemove.get(i);
                     if ( debug ) {
                         LOG.info("removeDisposedChunks(): Removing disposed chunk: "+chunk);
                     }                    
                     removeChunk(chunk);
                 }
-            }
+            });
             cleanCount = CLEAN_FREQUENCY;
         }
     }
 
+    /**
+     * Returns chunks, loading them if necessary.
+     * 
+     * @param toLoad IDs of chunks to return
+     * @return
+     */
     public List<Chunk> getChunks(Collection<Long> toLoad) 
+    {
+        return getChunks( toLoad , false );
+    }
+    
+    /**
+     * Returns chunks that will only be used to look at their border blocks.
+     * 
+     * <p>Chunks that are already loaded will be returned as-is, missing chunks
+     * will be loaded as {@link HaloChunk}s.</p>
+     *  
+     * @param toLoad IDs of chunks to return
+     * @return
+     */
+    public List<Chunk> getHaloChunks(Collection<Long> toLoad) 
+    {
+        return getChunks( toLoad , true );
+    }
+    
+    private List<Chunk> getChunks(Collection<Long> toLoad,boolean haloOnly) 
     {
         final Set<Long> missingChunks = new HashSet<>();
         final List<Chunk> result = new ArrayList<>();
@@ -165,7 +382,7 @@ public class ChunkManager implements Disposable
             while( true )
             {
                 final Chunk existing = chunks.get( key );
-                if ( existing == null || existing.isDisposed() ) {
+                if ( existing == null || existing.isDisposed() || ( existing.isHalo() && ! haloOnly && ! existing.isMarkedForUnloading() ) ) {
                     missingChunks.add(key);
                 } 
                 else 
@@ -186,7 +403,7 @@ public class ChunkManager implements Disposable
             final List<Chunk> loaded = new ArrayList<>();
             final CountDownLatch latch = new CountDownLatch( missingChunks.size() );
             for ( final Long key : missingChunks ) {
-                scheduler.add( new ChunkLoader( ChunkKey.fromID( key ) , loaded, latch ) ); 
+                scheduler.add( new ChunkLoader( ChunkKey.fromID( key ) , loaded, latch , haloOnly ) ); 
             }
             while( true ) 
             {
@@ -217,13 +434,15 @@ public class ChunkManager implements Disposable
         private final ChunkKey toLoad;
         private final List<Chunk> chunkList;
         private final CountDownLatch latch;
+        private final boolean haloOnly;
 
-        public ChunkLoader(ChunkKey toLoad,List<Chunk> chunkList,CountDownLatch latch) 
+        public ChunkLoader(ChunkKey toLoad,List<Chunk> chunkList,CountDownLatch latch,boolean haloOnly) 
         {
             super(TaskScheduler.Prio.HI);
             this.toLoad = toLoad;
             this.chunkList = chunkList;
             this.latch = latch;
+            this.haloOnly = haloOnly;
         }
 
         @Override
@@ -231,7 +450,7 @@ public class ChunkManager implements Disposable
         {
             try 
             {
-                final Chunk chunk = loadOrCreateChunk( toLoad );
+                final Chunk chunk = haloOnly ? loadOrCreateHaloChunk( toLoad ) : loadOrCreateChunk( toLoad );
                 synchronized( chunkList ) 
                 {
                     chunkList.add( chunk );
@@ -333,20 +552,171 @@ public class ChunkManager implements Disposable
         }      
     }    
 
+    private Chunk loadOrCreateHaloChunk(ChunkKey key) 
+    {
+        if ( journal != null && journal.hasEdits( key.toID() ) ) 
+        {
+            // journaled edits can only be applied to the full chunk
+            return HaloChunk.fromChunk( loadOrCreateChunk( key ) );
+        }
+        Chunk result = loadChunk(key,true);
+        if ( result == null ) 
+        {
+            // generation is deterministic so there's no need to save the generated chunk here
+            result = HaloChunk.fromChunk( ChunkGenerator.generate( key , seed ) );
+        }
+        return result;
+    }
+    
     private Chunk loadOrCreateChunk(ChunkKey key) 
     {
-        Chunk result = loadChunk(key);
+        Chunk result = loadChunk(key,false);
         if ( key.equals( -4 , 0 , -1 ) ) { // TODO: Remove debug code !!!
             System.out.println("Loaded watched chunk: "+result);
         }
         if ( result == null ) 
         {
-            result = generateChunk( key );
+            result = ChunkGenerator.generate( key , seed );
         }
+        if ( journal != null && journal.replay( result ) ) 
+        {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug("loadOrCreateChunk(): Replayed journaled block edits on "+result);
+            }
+            result.setNeedsSave( true );
+        }
+        // light levels loaded from disk are kept as long as they are still valid , see WorldRenderer#REUSE_VALID_LIGHT
         result.setFlags( Chunk.FLAG_NEEDS_REBUILD );
         return result;
     }
 
+    /**
+     * Records a block change in the block journal.
+     * 
+     * <p>Must be called for every block that got changed by the player, use {@link #commitBlockChanges()}
+     * to make recorded changes durable.</p>
+     *  
+     * @param chunk
+     * @param blockIndex
+     * @param oldType
+     * @param newType
+     */
+    public void blockChanged(Chunk chunk,int blockIndex,int oldType,int newType) 
+    {
+        if ( journal == null || oldType == newType ) {
+            return;
+        }
+        try 
+        {
+            journal.append( chunk.chunkKey.toID() , blockIndex , oldType , newType );
+        } 
+        catch (IOException e) 
+        {
+            // the change will still be persisted when the chunk gets saved
+            LOG.error("blockChanged(): Failed to journal change of block "+blockIndex+" in "+chunk,e);
+            return;
+        }
+        if ( journal.size() >= JOURNAL_COMPACTION_THRESHOLD ) {
+            scheduleJournalCompaction( JOURNAL_COMPACTION_THRESHOLD );
+        }
+    }
+
+    /**
+     * Asynchronously forces all block changes recorded via {@link #blockChanged(Chunk, int, int, int)} to disk.
+     */
+    public void commitBlockChanges() 
+    {
+        if ( journal == null ) {
+            return;
+        }
+        scheduler.add( new TaskScheduler.Task( TaskScheduler.Prio.HI ) 
+        {
+            @Override
+            public boolean perform() 
+            {
+                try {
+                    journal.sync();
+                } 
+                catch (IOException e) {
+                    LOG.error("commitBlockChanges(): Failed to sync "+journal,e);
+                }
+                return true;
+            }
+        });
+    }
+
+    private void scheduleJournalCompaction(int minRecords) 
+    {
+        if ( ( journal.size() >= minRecords || journal.isCompacting() ) && compactionScheduled.compareAndSet( false , true ) ) {
+            scheduler.add( new JournalCompactor() );
+        }
+    }
+
+    /**
+     * Task that writes journaled block edits to chunk storage so the journal can be truncated.
+     * 
+     * <p>Runs on the low-priority worker so that it's ordered with respect to chunk unloading.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class JournalCompactor extends TaskScheduler.Task
+    {
+        public JournalCompactor() 
+        {
+            super(TaskScheduler.Prio.LO);
+        }
+
+        @Override
+        public boolean perform() 
+        {
+            try {
+                compactJournal();
+            } 
+            catch (Exception e) {
+                LOG.error("perform(): Failed to compact "+journal,e);
+            } 
+            finally {
+                compactionScheduled.set( false );
+            }
+            return true;
+        }
+    }
+
+    private void compactJournal() throws IOException 
+    {
+        synchronized( compactionLock ) 
+        {
+            doCompactJournal();
+        }
+    }
+
+    private void doCompactJournal() throws IOException 
+    {
+        final long start = System.currentTimeMillis();
+        final LongMap<IntArray> edits = journal.beginCompaction();
+        int written = 0;
+        for ( LongMap.Entry<IntArray> entry : new LongMap.Entries<IntArray>( edits ) ) 
+        {
+            final ChunkKey key = ChunkKey.fromID( entry.key );
+            Chunk chunk = storage.load( key );
+            if ( chunk == null ) {
+                chunk = ChunkGenerator.generate( key , seed );
+            } else {
+                chunk.setSeed( seed );
+            }
+            // chunks that were saved after being edited already contain the changes
+            if ( BlockJournal.apply( chunk , entry.value ) ) 
+            {
+                chunk.updateIsEmptyFlag();
+                storage.store( chunk , false );
+                written++;
+            }
+        }
+        storage.flush( WriteBehindSaver.SYNC_TIMEOUT_MILLIS );
+        journal.endCompaction();
+        LOG.info("compactJournal(): Wrote "+written+" of "+edits.size+" journaled chunks in "+(System.currentTimeMillis()-start)+" ms");
+    }
+
     /**
      * Asynchronously unloads a list of chunks.
      * 
@@ -433,188 +803,280 @@ public class ChunkManager implements Disposable
 
     private void saveChunk(Chunk chunk) 
     {
-        final File file = getFile( chunk.chunkKey );
         if ( LOG.isDebugEnabled() ) {
-            LOG.debug("saveChunk(): Saving chunk to "+file.getAbsolutePath()+": "+chunk);
+            LOG.debug("saveChunk(): Saving chunk to "+storage+": "+chunk);
         }
         try 
         {
-            // clear flag BEFORE saving chunk, otherwise flag gets saved as well
-            new ChunkFile( file ).store( chunk );
+            storage.store( chunk , false );
         } 
         catch (IOException e) 
         {
-            LOG.error("saveChunk(): Failed to save chunk to "+file.getAbsolutePath()+": "+chunk,e);
+            LOG.error("saveChunk(): Failed to save chunk to "+storage+": "+chunk,e);
         }
     }
 
-    private File getFile(ChunkKey key) {
-        return new File( chunkDir , key.x+"_"+key.y+"_"+key.z+".chunk" );
-    }
-
-    private Chunk loadChunk(ChunkKey key) 
+    private Chunk loadChunk(ChunkKey key,boolean bordersOnly) 
     {
-        final File file = getFile(key);
-        if ( ! file.exists() ) {
-            LOG.debug("loadChunk(): Failed to load chunk "+key+" from "+file.getAbsolutePath()+" , file does not exist");
-            return null;
-        }
         if ( LOG.isDebugEnabled() ) {
-            LOG.debug("loadChunk(): Loading chunk "+key+" from "+file.getAbsolutePath());
+            LOG.debug("loadChunk(): Loading chunk "+key+" from "+storage);
         }
         try 
         {
-            final Chunk result = new ChunkFile( file ).load();
+            final Chunk result = bordersOnly ? storage.loadBorders( key ) : storage.load( key );
+            if ( result == null ) {
+                LOG.debug("loadChunk(): Failed to load chunk "+key+" from "+storage+" , chunk does not exist");
+                return null;
+            }
             if ( LOG.isDebugEnabled() ) {
                 LOG.debug("loadChunk(): Loaded from disk: "+result);
             }            
             if ( ! result.chunkKey.equals( key ) ) {
-                LOG.error("loadChunk(): Trying to load chunk "+key+" from "+file.getAbsolutePath()+" yielded different chunk: "+result);
-                throw new RuntimeException("Trying to load chunk "+key+" from "+file.getAbsolutePath()+" yielded different chunk: "+result);
+                LOG.error("loadChunk(): Trying to load chunk "+key+" from "+storage+" yielded different chunk: "+result);
+                throw new RuntimeException("Trying to load chunk "+key+" from "+storage+" yielded different chunk: "+result);
             }
+            // store future changes relative to this world's baseline
+            result.setSeed( seed );
             return result;
         } 
         catch (Exception e) 
         {
-            LOG.error("loadChunk(): Failed to load chunk "+key+" from "+file.getAbsolutePath(),e);
+            LOG.error("loadChunk(): Failed to load chunk "+key+" from "+storage,e);
             return null;
         }
     }
 
-    public int getLoadedChunkCount() {
-        return chunks.size;
+    /**
+     * Returns the number of bytes held by chunk data that is not part of any loaded chunk: 
+     * {@link ChunkGenerator#getBaselineCacheSizeInBytes() cached baselines} and 
+     * {@link WriteBehindSaver#getQueuedBytes() snapshots waiting to be written}.
+     * 
+     * @return
+     */
+    public long getCacheSizeInBytes() {
+        return ChunkGenerator.getBaselineCacheSizeInBytes() + storage.getQueuedBytes();
     }
     
-    static Chunk generateChunk(ChunkKey key) 
-    {
-        if ( key.y <= 0 ) 
-        {
-            if ( key.y <= -3 ) {
-                return generateSolidChunk(key);
-            }
-            return generateChunkFromNoise(key);
-        }
-        return generateEmptyChunk(key);
+    /**
+     * Returns statistics about chunk writes.
+     * 
+     * @return
+     */
+    public WriteBehindSaver.Statistics getWriteStatistics() {
+        return storage.getStatistics();
     }
 
-    private static Chunk generateEmptyChunk(ChunkKey key) {
-        final Chunk chunk = new Chunk(key);
-        chunk.setNeedsSave( true );
-        chunk.setFlags(Chunk.FLAG_EMPTY);
-        return chunk;
+    /**
+     * Registers a listener that gets notified about chunks that have been written to disk.
+     * 
+     * @param listener
+     * @see WriteBehindSaver#addWriteListener(WriteBehindSaver.WriteListener)
+     */
+    public void addWriteListener(WriteBehindSaver.WriteListener listener) {
+        storage.addWriteListener( listener );
     }
-    
-    private static Chunk generateSolidChunk(ChunkKey key) 
-    {
-        final Chunk chunk = new Chunk(key);
-        chunk.setNeedsSave( true );
-        for ( int i = 0 ; i < World.CHUNK_SIZE*World.CHUNK_SIZE*World.CHUNK_SIZE ; i++) {
-            chunk.blockTypes[i] = BlockType.SOLID_1;
-        }
-        chunk.updateIsEmptyFlag();
-        return chunk;
-    }    
 
-    static Chunk generateSimpleChunk(ChunkKey key) {
-
-        final Chunk chunk = new Chunk(key);
-        chunk.setNeedsSave( true );
+    public void removeWriteListener(WriteBehindSaver.WriteListener listener) {
+        storage.removeWriteListener( listener );
+    }
+    
+    /**
+     * Sets the max. number of chunks that get written (and synced) together.
+     * 
+     * @param maxBatchSize
+     * @see WriteBehindSaver#setMaxBatchSize(int)
+     */
+    public void setMaxWriteBatchSize(int maxBatchSize) {
+        storage.setMaxBatchSize( maxBatchSize );
+    }
 
-        if ( key.y == 0 ) // create ground plane 
+    public int getLoadedChunkCount() {
+        return chunks.size();
+    }
+    
+    /**
+     * Adds all loaded chunks that have unsaved changes to a list.
+     * 
+     * <p>Chunks that are already marked for unloading are skipped since
+     * they will be saved as part of the unloading process.</p>
+     * 
+     * @param result
+     * @return number of chunks added to the list
+     */
+    public int getDirtyChunks(List<Chunk> result) 
+    {
+        final int sizeBefore = result.size();
+        chunks.visit( (key,chunk) -> 
         {
-            final int middle = World.CHUNK_SIZE/2;
-            for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ ) 
+            if ( chunk.needsSave() && ! chunk.isMarkedForUnloading() && ! chunk.isDisposed() ) 
             {
-                for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ ) 
-                {
-                    chunk.setBlockType( x ,middle , z , BlockType.SOLID_2 );
-                }
+                result.add( chunk );
             }
-            chunk.updateIsEmptyFlag();
-        } else {
-            chunk.setFlags( Chunk.FLAG_EMPTY );
-        }
-        if ( LOG.isDebugEnabled() ) {
-            LOG.debug("generateChunk(): Generated "+chunk);
+        });
+        return result.size() - sizeBefore;
+    }
+    
+    /**
+     * Queues a chunk for saving.
+     * 
+     * <p>Callers must make sure that the chunk is not modified concurrently. Queued chunks are written
+     * asynchronously and failed writes are retried by the {@link WriteBehindSaver} , use 
+     * {@link #addWriteListener(WriteBehindSaver.WriteListener)} to find out when a chunk actually got written.</p>
+     * 
+     * @param chunk
+     * @return <code>false</code> if the chunk could neither be queued nor written
+     */
+    boolean queueSave(Chunk chunk) 
+    {
+        try 
+        {
+            storage.store( chunk , false );
+            return true;
+        } 
+        catch (IOException e) 
+        {
+            LOG.error("queueSave(): Failed to save chunk to "+storage+": "+chunk,e);
+            return false;
         }
-        return chunk;
+    }
+
+    static Chunk generateChunk(ChunkKey key) 
+    {
+        return ChunkGenerator.generate( key , ChunkGenerator.LEGACY_SEED );
     }
     
-    private static class NoiseHelper {
-        
-        public final Vector3 point=new Vector3();
-        public final float[] data = new float[ World.CHUNK_SIZE*World.CHUNK_SIZE*World.CHUNK_SIZE];
-        public final SimplexNoise noise = new SimplexNoise();
+    /**
+     * Sets the max. time {@link #dispose()} waits for dirty chunks to be saved.
+     * 
+     * @param flushTimeoutMillis
+     * @see #flush(long, FlushListener)
+     */
+    public void setFlushTimeoutMillis(long flushTimeoutMillis) 
+    {
+        Validate.isTrue( flushTimeoutMillis >= 0 , "flush timeout must be >= 0" );
+        this.flushTimeoutMillis = flushTimeoutMillis;
     }
     
-    private static final ThreadLocal<NoiseHelper> noise = new ThreadLocal<NoiseHelper>() 
+    /**
+     * Durably saves all loaded chunks that have unsaved changes.
+     * 
+     * <p>This method first waits for all pending {@link ChunkUnloader unload tasks} to finish,
+     * then queues all dirty chunks with the {@link WriteBehindSaver} and waits for them to be written
+     * and synced to disk in as few batches as possible (group commit).</p>
+     * <p>All writes go through the saver's single writer thread instead of being spread across multiple threads , 
+     * batching them with a single sync per batch is what makes flushing fast. Progress is reported 
+     * after each batch that got written.</p>
+     * <p>Chunks that are still queued when the timeout expires stay queued , failed writes are retried by the saver
+     * and {@link WriteBehindSaver#close()} waits for all of them.</p>
+     * 
+     * @param timeoutMillis max. number of milliseconds to wait 
+     * @param listener listener that gets notified about progress
+     * @return <code>true</code> if all chunks were saved before the timeout expired, otherwise <code>false</code>
+     */
+    public boolean flush(long timeoutMillis,FlushListener listener) 
     {
-        protected NoiseHelper initialValue() 
+        Validate.notNull(listener, "listener must not be NULL");
+        
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try 
         {
-            return new NoiseHelper();
+            if ( ! scheduler.awaitIdle( TaskScheduler.Prio.LO , timeoutMillis ) ) {
+                LOG.warn("flush(): Timeout while waiting for pending chunk unloads");
+            }
+        } 
+        catch (InterruptedException e) 
+        {
+            LOG.error("flush(): Interrupted while waiting for pending chunk unloads",e);
+            Thread.currentThread().interrupt();
         }
-    };
-
-    static Chunk generateChunkFromNoise(ChunkKey key) 
-    {
-        final NoiseHelper helper = noise.get();
-        helper.noise.setSeed( key.toID()  );
         
-        ChunkKey.getChunkCenter( key , helper.point );
-        helper.point.sub( World.CHUNK_HALF_WIDTH,World.CHUNK_HALF_WIDTH,World.CHUNK_HALF_WIDTH);
-        final float tileSize = 0.75f;
-        final int octaveCount = 2;
-        final float persistance = 32f;
-        helper.noise.createNoise3D( helper.point.x*tileSize  , helper.point.y*tileSize, helper.point.z*tileSize , World.CHUNK_SIZE,tileSize,octaveCount,persistance, helper.data );
+        final List<Chunk> dirty = new ArrayList<>();
+        getDirtyChunks( dirty );
         
-        final Chunk chunk = new Chunk(key);
-        chunk.setNeedsSave( true );
+        final int total = dirty.size();
+        LOG.info("flush(): Saving "+total+" chunks");
+        if ( total == 0 ) {
+            return true;
+        }
         
-        int blockType;
-        for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ ) 
+        final Set<Long> remaining = ConcurrentHashMap.newKeySet();
+        for ( Chunk chunk : dirty ) {
+            remaining.add( chunk.chunkKey.toID() );
+        }
+        final AtomicInteger saved = new AtomicInteger();
+        final WriteBehindSaver.WriteListener progress = keys -> 
         {
-            for ( int y = 0 ; y < World.CHUNK_SIZE ; y++ ) 
+            int count = 0;
+            for ( ChunkKey key : keys ) 
             {
-                for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ ) 
-                {
-                    final float value;
-                    if ( key.y == 0 ) {
-                        value = helper.data[ x + y * World.CHUNK_SIZE + z*World.CHUNK_SIZE*World.CHUNK_SIZE] / (y*0.20f+0.1f);
-                    } else {
-                        value = helper.data[ x + y * World.CHUNK_SIZE + z*World.CHUNK_SIZE*World.CHUNK_SIZE] *1.5f;
-                    }
-                    if ( value > 0.8f ) 
-                    {
-                        if ( key.y <= -1 ) 
-                        {
-                            blockType = key.y < -1 || (key.y == -1 && y <= 5) ? BlockType.SOLID_1 : BlockType.SOLID_2;
-                        } else {
-                            blockType = BlockType.SOLID_2;
-                        }
-                        chunk.setBlockType(x,y,z,blockType);
-                    } 
+                if ( remaining.remove( key.toID() ) ) {
+                    count++;
                 }
             }
-        }
-        chunk.updateIsEmptyFlag();
-        return chunk;
+            if ( count > 0 ) {
+                listener.progress( saved.addAndGet( count ) , total );
+            }
+        };
         
+        storage.addWriteListener( progress );
+        try 
+        {
+            for ( Chunk chunk : dirty ) {
+                saveChunk( chunk );
+            }
+            storage.flush( Math.max( 0 , deadline - System.currentTimeMillis() ) );
+        } 
+        catch (IOException e) 
+        {
+            LOG.warn("flush(): "+remaining.size()+" chunks have not been written within "+timeoutMillis+" ms, leaving them queued: "+e.getMessage());
+            return false;
+        } 
+        finally {
+            storage.removeWriteListener( progress );
+        }
+        LOG.info("flush(): Saved "+total+" chunks");
+        return true;
     }
+    
     @Override
     public void dispose() 
     {
-        for ( Chunk chunk : chunks.values() ) 
+        final AtomicInteger lastLogged = new AtomicInteger();
+        flush( flushTimeoutMillis , (savedChunks,totalChunks) -> 
         {
-            if ( chunk.needsSave() ) 
+            // progress is reported per batch , log roughly every 10%
+            if ( savedChunks - lastLogged.get() >= Math.max( 1 , totalChunks / 10 ) || savedChunks == totalChunks ) 
             {
-                try {
-                    saveChunk( chunk );
-                } catch(Exception e) {
-                    LOG.error("dispose(): Failed to save chunk "+chunk,e);
-                } finally {
-                    chunk.dispose();
-                }
+                lastLogged.set( savedChunks );
+                LOG.info("dispose(): Saved "+savedChunks+" of "+totalChunks+" chunks");
             }
+        });
+        chunks.visit( (key,chunk) -> 
+        {
+            if ( ! chunk.isDisposed() ) {
+                chunk.dispose();
+            }
+        });
+        if ( journal != null ) 
+        {
+            try {
+                compactJournal();
+            } 
+            catch (IOException e) {
+                LOG.error("dispose(): Failed to compact "+journal,e);
+            }
+            try {
+                journal.close();
+            } 
+            catch (IOException e) {
+                LOG.error("dispose(): Failed to close "+journal,e);
+            }
+        }
+        try {
+            storage.close();
+        } 
+        catch (IOException e) {
+            LOG.error("dispose(): Failed to close "+storage,e);
         }
     }
 }
\ No newline at end of file
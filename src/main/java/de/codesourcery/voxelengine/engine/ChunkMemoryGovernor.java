@@ -0,0 +1,198 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.LongMap.Values;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+
+/**
+ * Keeps the memory used by resident chunks below a configurable budget.
+ *
+ * <p>The governor tracks the (estimated) number of bytes held by chunk data, chunk meshes and
+ * caches (see {@link ChunkManager#getCacheSizeInBytes()}). Caches cannot be shrunk by the governor but still count towards the budget. Whenever usage crosses the high watermark, meshes of the farthest non-visible chunks are discarded
+ * first and if that is not sufficient, the farthest non-visible chunks get evicted altogether until usage drops
+ * below the low watermark. In addition the effective render distance is reduced by one chunk,
+ * it will be increased again once usage is low enough to accommodate the larger number of chunks.</p>
+ *
+ * <p>Chunks that are adjacent to a visible chunk are never evicted since their blocks are needed
+ * when meshing/lighting the visible chunk.</p>
+ *
+ * <p>This class is not thread-safe and must only be used from the rendering thread.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ChunkMemoryGovernor
+{
+    private static final Logger LOG = Logger.getLogger(ChunkMemoryGovernor.class);
+
+    // rough estimate of the memory used by a Chunk instance itself (object headers, bounding box, vectors,...)
+    private static final int CHUNK_OVERHEAD_BYTES = 512;
+
+    private final long lowWatermark;
+    private final long highWatermark;
+    private final int minRenderDistance;
+    private final int maxRenderDistance;
+
+    private int renderDistance;
+    private long usedBytes;
+
+    private final List<Chunk> candidates = new ArrayList<>();
+
+    private ChunkKey center;
+
+    // sorts chunks by descending distance to the center chunk
+    private final Comparator<Chunk> farthestFirst = (a,b) -> Float.compare( center.dst2( b.chunkKey ) , center.dst2( a.chunkKey ) );
+
+    /**
+     * Create instance.
+     *
+     * @param lowWatermark usage (in bytes) the governor tries to get below once the high watermark has been exceeded
+     * @param highWatermark usage (in bytes) that triggers eviction
+     * @param minRenderDistance minimum render distance (in chunks)
+     * @param maxRenderDistance maximum render distance (in chunks)
+     */
+    public ChunkMemoryGovernor(long lowWatermark,long highWatermark,int minRenderDistance,int maxRenderDistance)
+    {
+        Validate.isTrue( lowWatermark > 0 && lowWatermark <= highWatermark , "Watermarks must satisfy 0 < low <= high");
+        Validate.isTrue( minRenderDistance > 0 && minRenderDistance <= maxRenderDistance , "Render distances must satisfy 0 < min <= max");
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.minRenderDistance = minRenderDistance;
+        this.maxRenderDistance = maxRenderDistance;
+        this.renderDistance = maxRenderDistance;
+    }
+
+    /**
+     * Creates a governor with watermarks derived from the max. heap size of the JVM.
+     *
+     * @param maxRenderDistance
+     * @return
+     */
+    public static ChunkMemoryGovernor createDefault(int maxRenderDistance)
+    {
+        final long maxMemory = Runtime.getRuntime().maxMemory();
+        return new ChunkMemoryGovernor( (long) (maxMemory*0.5) , (long) (maxMemory*0.6) , 1 , maxRenderDistance );
+    }
+
+    /**
+     * Returns the estimated number of bytes held by a chunk, including its mesh.
+     *
+     * @param chunk
+     * @return
+     */
+    public static long estimateSizeInBytes(Chunk chunk)
+    {
+        final long result = CHUNK_OVERHEAD_BYTES + chunk.getDataSizeInBytes();
+        final ChunkRenderer renderer = chunk.renderer;
+        return renderer == null ? result : result + renderer.getMeshSizeInBytes();
+    }
+
+    /**
+     * Checks memory usage and discards meshes/evicts chunks if necessary.
+     *
+     * @param center the chunk the camera is currently in
+     * @param loadedChunks all chunks currently loaded
+     * @param visibleChunks IDs of all chunks that intersect the view frustum
+     * @param cacheBytes number of bytes held by caches , vertex buffers and chunk data that does not belong to a loaded chunk (generator baselines , queued writes)
+     * @param toEvict list that receives chunks that should be unloaded
+     * @return the effective render distance (in chunks) to use
+     */
+    public int update(ChunkKey center,LongMap<Chunk> loadedChunks,LongMap<Chunk> visibleChunks,long cacheBytes,List<Chunk> toEvict)
+    {
+        long used = cacheBytes;
+        Values<Chunk> values = loadedChunks.values();
+        while ( values.hasNext ) {
+            used += estimateSizeInBytes( values.next() );
+        }
+
+        if ( used > highWatermark )
+        {
+            final long before = used;
+            this.center = center;
+            candidates.clear();
+            values = loadedChunks.values();
+            while ( values.hasNext )
+            {
+                final Chunk chunk = values.next();
+                if ( ! visibleChunks.containsKey( chunk.chunkKey.toID() ) && ! isAdjacentToVisibleChunk( chunk.chunkKey , visibleChunks ) ) {
+                    candidates.add( chunk );
+                }
+            }
+            candidates.sort( farthestFirst );
+
+            // discard meshes first, these are cheap to rebuild
+            for ( int i = 0 , len = candidates.size() ; i < len && used > lowWatermark ; i++ )
+            {
+                final Chunk chunk = candidates.get(i);
+                if ( chunk.renderer != null )
+                {
+                    used -= chunk.renderer.getMeshSizeInBytes();
+                    chunk.disposeVBO();
+                    chunk.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+                }
+            }
+
+            for ( int i = 0 , len = candidates.size() ; i < len && used > lowWatermark ; i++ )
+            {
+                final Chunk chunk = candidates.get(i);
+                used -= estimateSizeInBytes( chunk );
+                toEvict.add( chunk );
+            }
+            candidates.clear();
+
+            if ( renderDistance > minRenderDistance ) {
+                renderDistance--;
+            }
+            LOG.warn("update(): Memory usage "+toMegabytes(before)+" MB exceeded high watermark of "+toMegabytes(highWatermark)+" MB , evicted "+toEvict.size()+" chunks, now using "+toMegabytes(used)+" MB , render distance: "+renderDistance);
+        }
+        else if ( used < lowWatermark && renderDistance < maxRenderDistance )
+        {
+            // estimate usage at the next-larger render distance
+            final double ratio = (2*renderDistance+3) / (double) (2*renderDistance+1);
+            if ( used * ratio*ratio*ratio < lowWatermark )
+            {
+                renderDistance++;
+                LOG.info("update(): Memory usage "+toMegabytes(used)+" MB , increasing render distance to "+renderDistance);
+            }
+        }
+        this.usedBytes = used;
+        return renderDistance;
+    }
+
+    private static boolean isAdjacentToVisibleChunk(ChunkKey key,LongMap<Chunk> visibleChunks)
+    {
+        return visibleChunks.containsKey( key.leftNeighbour() ) || visibleChunks.containsKey( key.rightNeighbour() ) ||
+               visibleChunks.containsKey( key.topNeighbour() ) || visibleChunks.containsKey( key.bottomNeighbour() ) ||
+               visibleChunks.containsKey( key.frontNeighbour() ) || visibleChunks.containsKey( key.backNeighbour() );
+    }
+
+    private static long toMegabytes(long bytes) {
+        return bytes / (1024*1024);
+    }
+
+    /**
+     * Returns the estimated number of bytes used as of the last {@link #update(ChunkKey, LongMap, LongMap, long, List)}.
+     *
+     * @return
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the effective render distance (in chunks).
+     *
+     * @return
+     */
+    public int getRenderDistance() {
+        return renderDistance;
+    }
+}
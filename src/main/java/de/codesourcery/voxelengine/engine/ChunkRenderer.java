@@ -28,12 +28,14 @@ public class ChunkRenderer implements Disposable
 
     private static final VertexAttribute ATTR_POSITION = new VertexAttribute( Usage.Position , 3 , "v_position" ); 
     private static final VertexAttribute ATTR_NORMAL = new VertexAttribute( Usage.Normal , 3 , "v_normal" );
-    private static final VertexAttribute ATTR_LIGHTLEVEL = new VertexAttribute( Usage.Generic , 1 , "v_lightLevel" );
+    // sky light gets scaled by the time of day in the shader , see Chunk#CHANNEL_SKY
+    private static final VertexAttribute ATTR_SKYLIGHT = new VertexAttribute( Usage.Generic , 1 , "v_skyLight" );
+    private static final VertexAttribute ATTR_BLOCKLIGHT = new VertexAttribute( Usage.Generic , 1 , "v_blockLight" );
     private static final VertexAttribute ATTR_TEXTURE_COORDS = new VertexAttribute( Usage.TextureCoordinates, 2 , "v_texCoords" );
 
-    public static final int VERTEX_FLOAT_SIZE = 3 + 3 + 1 + 2;
+    public static final int VERTEX_FLOAT_SIZE = 3 + 3 + 2 + 2;
     
-    private static final VertexAttributes VERTEX_ATTRIBUTES = new VertexAttributes( ATTR_POSITION,ATTR_NORMAL,ATTR_LIGHTLEVEL , ATTR_TEXTURE_COORDS );    
+    private static final VertexAttributes VERTEX_ATTRIBUTES = new VertexAttributes( ATTR_POSITION,ATTR_NORMAL,ATTR_SKYLIGHT,ATTR_BLOCKLIGHT , ATTR_TEXTURE_COORDS );    
 
     private static final Vector3 NORMAL_BACK    = new Vector3( 0, 0,-1);
     private static final Vector3 NORMAL_FRONT   = new Vector3( 0, 0, 1);
@@ -63,9 +65,10 @@ public class ChunkRenderer implements Disposable
         public float centerX,centerY,centerZ;
         public BlockSide side;
         public int blockIndex;
-        public float lightLevel;
+        public float skyLight;
+        public float blockLight;
 
-        public void set(int blockIndex,float centerX,float centerY,float centerZ,BlockSide side,float lightLevel,int blockType) 
+        public void set(int blockIndex,float centerX,float centerY,float centerZ,BlockSide side,float skyLight,float blockLight,int blockType) 
         {
             this.blockType = blockType;
             this.centerX = centerX;
@@ -73,7 +76,8 @@ public class ChunkRenderer implements Disposable
             this.centerZ = centerZ;
             this.blockIndex = blockIndex;
             this.side = side;
-            this.lightLevel = lightLevel;
+            this.skyLight = skyLight;
+            this.blockLight = blockLight;
         }        
     }
 
@@ -81,16 +85,23 @@ public class ChunkRenderer implements Disposable
         this.chunk = chunk;
     }
     
-    private void addQuad(int blockIndex,float cx , float cy , float cz,BlockSide side, float halfBlockSize,float lightLevel,int blockType) 
+    // adds a quad lit by the light level of the adjacent block
+    private void addQuad(int blockIndex,float cx , float cy , float cz,BlockSide side, float halfBlockSize,byte lightLevel,int blockType) 
+    {
+        addQuad( blockIndex , cx , cy , cz , side , halfBlockSize , Chunk.getChannel( lightLevel , Chunk.CHANNEL_SKY ) , 
+                Chunk.getChannel( lightLevel , Chunk.CHANNEL_BLOCK ) , blockType );
+    }
+
+    private void addQuad(int blockIndex,float cx , float cy , float cz,BlockSide side, float halfBlockSize,float skyLight,float blockLight,int blockType) 
     {
         switch( side ) 
         {
-            case SIDE_TOP:    tmpQuad.set( blockIndex, cx , cy + halfBlockSize , cz , side , lightLevel,blockType); break;
-            case SIDE_BOTTOM: tmpQuad.set( blockIndex, cx , cy - halfBlockSize , cz , side , lightLevel,blockType); break;
-            case SIDE_LEFT:   tmpQuad.set( blockIndex, cx - halfBlockSize , cy , cz , side , lightLevel,blockType); break;
-            case SIDE_RIGHT:  tmpQuad.set( blockIndex, cx + halfBlockSize , cy , cz , side , lightLevel,blockType); break;
-            case SIDE_FRONT:  tmpQuad.set( blockIndex, cx , cy , cz + halfBlockSize , side , lightLevel,blockType); break;
-            case SIDE_BACK:   tmpQuad.set( blockIndex, cx , cy , cz - halfBlockSize , side , lightLevel,blockType); break;
+            case SIDE_TOP:    tmpQuad.set( blockIndex, cx , cy + halfBlockSize , cz , side , skyLight , blockLight , blockType); break;
+            case SIDE_BOTTOM: tmpQuad.set( blockIndex, cx , cy - halfBlockSize , cz , side , skyLight , blockLight , blockType); break;
+            case SIDE_LEFT:   tmpQuad.set( blockIndex, cx - halfBlockSize , cy , cz , side , skyLight , blockLight , blockType); break;
+            case SIDE_RIGHT:  tmpQuad.set( blockIndex, cx + halfBlockSize , cy , cz , side , skyLight , blockLight , blockType); break;
+            case SIDE_FRONT:  tmpQuad.set( blockIndex, cx , cy , cz + halfBlockSize , side , skyLight , blockLight , blockType); break;
+            case SIDE_BACK:   tmpQuad.set( blockIndex, cx , cy , cz - halfBlockSize , side , skyLight , blockLight , blockType); break;
             default:
                 throw new IllegalArgumentException("Unknown side: "+side);
         }
@@ -122,7 +133,6 @@ public class ChunkRenderer implements Disposable
                     final int bt = chunk.getBlockType( blockIndex );
                     if ( BlockType.isSolidBlock( bt ) ) // only render non-empty blocks
                     {
-                        float lightLevel;
                         final boolean isEmittingLight = BlockType.emitsLight( bt );
                         
                         // TODO: Dirty hack... adding LIGHTLEVEL_MAX if the block itself is emitting light... this is a hint
@@ -131,56 +141,50 @@ public class ChunkRenderer implements Disposable
                         if ( hasNoBackNeighbour( x , y , z ) ) 
                         {
                             if ( isEmittingLight ) {
-                                lightLevel = emittedLightLevel;
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_BACK , halfBlockSize , 0 , emittedLightLevel , bt );
                             } else {
-                                lightLevel = z == 0 ? chunk.backNeighbour.getLightLevel( x , y , World.CHUNK_SIZE-1 ) : chunk.getLightLevel( x , y , z-1 );
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_BACK , halfBlockSize , z == 0 ? chunk.backNeighbour.getLightLevel( x , y , World.CHUNK_SIZE-1 ) : chunk.getLightLevel( x , y , z-1 ) , bt );
                             }
-                            addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_BACK , halfBlockSize , lightLevel , bt );
                         }
                         if ( hasNoFrontNeighbour( x , y , z ) ) 
                         {
                             if ( isEmittingLight ) {
-                                lightLevel = emittedLightLevel;
-                            } else {                            
-                                lightLevel = z == World.CHUNK_SIZE-1 ? chunk.frontNeighbour.getLightLevel( x , y , 0 ) : chunk.getLightLevel( x , y , z+1 );
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_FRONT , halfBlockSize , 0 , emittedLightLevel , bt );
+                            } else {
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_FRONT , halfBlockSize , z == World.CHUNK_SIZE-1 ? chunk.frontNeighbour.getLightLevel( x , y , 0 ) : chunk.getLightLevel( x , y , z+1 ) , bt );
                             }
-                            addQuad( blockIndex ,bx , by , bz , BlockSide.SIDE_FRONT , halfBlockSize , lightLevel, bt );
                         }
                         if ( hasNoLeftNeighbour( x , y , z ) ) 
                         {
                             if ( isEmittingLight ) {
-                                lightLevel = 1+emittedLightLevel;
-                            } else {                            
-                                lightLevel = x == 0 ? chunk.leftNeighbour.getLightLevel( World.CHUNK_SIZE-1  , y , z ) : chunk.getLightLevel( x-1 , y , z );
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_LEFT , halfBlockSize , 0 , 1+emittedLightLevel , bt );
+                            } else {
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_LEFT , halfBlockSize , x == 0 ? chunk.leftNeighbour.getLightLevel( World.CHUNK_SIZE-1  , y , z ) : chunk.getLightLevel( x-1 , y , z ) , bt );
                             }
-                            addQuad( blockIndex ,bx , by , bz , BlockSide.SIDE_LEFT , halfBlockSize , lightLevel, bt);
                         }
                         if ( hasNoRightNeighbour( x , y , z ) ) 
                         {
                             if ( isEmittingLight ) {
-                                lightLevel = emittedLightLevel;
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_RIGHT , halfBlockSize , 0 , emittedLightLevel , bt );
                             } else {
-                                lightLevel = x == World.CHUNK_SIZE-1 ? chunk.rightNeighbour.getLightLevel( 0  , y , z ) : chunk.getLightLevel( x+1 , y , z );
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_RIGHT , halfBlockSize , x == World.CHUNK_SIZE-1 ? chunk.rightNeighbour.getLightLevel( 0  , y , z ) : chunk.getLightLevel( x+1 , y , z ) , bt );
                             }
-                            addQuad( blockIndex ,bx , by , bz , BlockSide.SIDE_RIGHT , halfBlockSize , lightLevel, bt );
                         }
                         if ( hasNoTopNeighbour( x , y , z ) ) 
                         {
                             if ( isEmittingLight ) {
-                                lightLevel = emittedLightLevel;
-                            } else {                            
-                                lightLevel = y == World.CHUNK_SIZE-1 ? chunk.topNeighbour.getLightLevel( x  , 0 , z ) : chunk.getLightLevel( x , y+1 , z );
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_TOP , halfBlockSize , 0 , emittedLightLevel , bt );
+                            } else {
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_TOP , halfBlockSize , y == World.CHUNK_SIZE-1 ? chunk.topNeighbour.getLightLevel( x  , 0 , z ) : chunk.getLightLevel( x , y+1 , z ) , bt );
                             }
-                            addQuad( blockIndex ,bx , by , bz , BlockSide.SIDE_TOP , halfBlockSize , lightLevel , bt);
                         }
                         if ( hasNoBottomNeighbour( x , y , z ) ) 
                         {
                             if ( isEmittingLight ) {
-                                lightLevel = emittedLightLevel;
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_BOTTOM , halfBlockSize , 0 , emittedLightLevel , bt );
                             } else {
-                                lightLevel = y == 0 ? chunk.bottomNeighbour.getLightLevel( x  , World.CHUNK_SIZE-1 , z ) : chunk.getLightLevel( x , y-1 , z );
+                                addQuad( blockIndex , bx , by , bz , BlockSide.SIDE_BOTTOM , halfBlockSize , y == 0 ? chunk.bottomNeighbour.getLightLevel( x  , World.CHUNK_SIZE-1 , z ) : chunk.getLightLevel( x , y-1 , z ) , bt );
                             }
-                            addQuad( blockIndex ,bx , by , bz , BlockSide.SIDE_BOTTOM , halfBlockSize , lightLevel , bt);
                         }
                     }
                 }
@@ -295,11 +299,11 @@ public class ChunkRenderer implements Disposable
             default:
                 throw new IllegalArgumentException("Unhandled side: "+quad.side);
         }
-        addTopLeftTriangle( p0 , p2 , p1 , normal , quad.lightLevel, uvMin , uvMax);
-        addBottomRightTriangle( p0 , p3 , p2 , normal , quad.lightLevel, uvMin , uvMax);        
+        addTopLeftTriangle( p0 , p2 , p1 , normal , quad.skyLight , quad.blockLight , uvMin , uvMax);
+        addBottomRightTriangle( p0 , p3 , p2 , normal , quad.skyLight , quad.blockLight , uvMin , uvMax);        
     }   
 
-    private void addTopLeftTriangle(Vector3 p0,Vector3 p1,Vector3 p2,Vector3 normal,float lightLevel,Vector2 uv0,Vector2 uv1) 
+    private void addTopLeftTriangle(Vector3 p0,Vector3 p1,Vector3 p2,Vector3 normal,float skyLight,float blockLight,Vector2 uv0,Vector2 uv1) 
     {
         final int maxSize = buffer.vertexData.length;
         final int bytesAvailable = maxSize - buffer.vertexPtr;
@@ -309,12 +313,12 @@ public class ChunkRenderer implements Disposable
             buffer.vertexData = tmp;
         }
         
-        addVertex( p0 , normal , lightLevel , uv0.x , uv1.y );
-        addVertex( p1 , normal , lightLevel , uv1.x , uv0.y );
-        addVertex( p2 , normal , lightLevel , uv0.x , uv0.y );
+        addVertex( p0 , normal , skyLight , blockLight , uv0.x , uv1.y );
+        addVertex( p1 , normal , skyLight , blockLight , uv1.x , uv0.y );
+        addVertex( p2 , normal , skyLight , blockLight , uv0.x , uv0.y );
     }    
     
-    private void addBottomRightTriangle(Vector3 p0,Vector3 p1,Vector3 p2,Vector3 normal,float lightLevel,Vector2 uv0,Vector2 uv1) 
+    private void addBottomRightTriangle(Vector3 p0,Vector3 p1,Vector3 p2,Vector3 normal,float skyLight,float blockLight,Vector2 uv0,Vector2 uv1) 
     {
         final int maxSize = buffer.vertexData.length;
         final int bytesAvailable = maxSize - buffer.vertexPtr;
@@ -323,12 +327,12 @@ public class ChunkRenderer implements Disposable
             System.arraycopy( buffer.vertexData , 0 , tmp , 0 , buffer.vertexPtr );
             buffer.vertexData = tmp;
         }
-        addVertex( p0 , normal , lightLevel , uv0.x , uv1.y);
-        addVertex( p1 , normal , lightLevel , uv1.x , uv1.y);
-        addVertex( p2 , normal , lightLevel , uv1.x , uv0.y);
+        addVertex( p0 , normal , skyLight , blockLight , uv0.x , uv1.y);
+        addVertex( p1 , normal , skyLight , blockLight , uv1.x , uv1.y);
+        addVertex( p2 , normal , skyLight , blockLight , uv1.x , uv0.y);
     }    
 
-    private void addVertex(Vector3 p,Vector3 normal,float lightLevel,float u,float v) 
+    private void addVertex(Vector3 p,Vector3 normal,float skyLight,float blockLight,float u,float v) 
     {
         final float[] vertexData = buffer.vertexData;
         int vertexPtr = buffer.vertexPtr;
@@ -341,10 +345,11 @@ public class ChunkRenderer implements Disposable
         vertexData[ vertexPtr+4 ] = normal.y;
         vertexData[ vertexPtr+5 ] = normal.z;
         
-        vertexData[ vertexPtr+6 ] = lightLevel;
+        vertexData[ vertexPtr+6 ] = skyLight;
+        vertexData[ vertexPtr+7 ] = blockLight;
         
-        vertexData[ vertexPtr+7 ] = u;
-        vertexData[ vertexPtr+8 ] = v;
+        vertexData[ vertexPtr+8 ] = u;
+        vertexData[ vertexPtr+9 ] = v;
 
         buffer.vertexPtr += VERTEX_FLOAT_SIZE;
     }
@@ -422,6 +427,17 @@ public class ChunkRenderer implements Disposable
         return vertexCount/3;
     }
 
+    /**
+     * Returns the number of bytes allocated for this chunk's mesh.
+     * 
+     * <p>Note that libgdx keeps a (direct) copy of the vertex data in addition to the GPU buffer.</p>
+     * @return
+     */
+    public int getMeshSizeInBytes() 
+    {
+        return vbo == null ? 0 : vbo.getNumMaxVertices() * VERTEX_FLOAT_SIZE * 4;
+    }
+    
     @Override
     public void dispose() 
     {
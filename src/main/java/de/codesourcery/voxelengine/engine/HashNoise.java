@@ -0,0 +1,245 @@
+package de.codesourcery.voxelengine.engine;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Seedable 3D gradient noise that picks the gradient of each lattice point by hashing its coordinates together with the seed.
+ *
+ * <p>Unlike {@link SimplexNoise} there is no permutation table that needs to be rebuilt (and shuffled) when the seed changes.
+ * Instances are immutable and thus thread-safe, all threads generating chunks can share the instance for the world seed.
+ * Since noise values only depend on the seed and the (world) coordinates, terrain generated from it is continuous across chunk borders.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class HashNoise
+{
+    private final long seed;
+    private final int seedHash;
+
+    public HashNoise(long seed)
+    {
+        this.seed = seed;
+        this.seedHash = mix( (int) seed ^ (int) ( seed >>> 32 ) );
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    // This method is a *lot* faster than using (int)Math.floor(x)
+    private static int fastfloor(double x) {
+        return x >= 0 ? (int) x : (int) x - 1;
+    }
+
+    // quintic fade curve , makes the noise continuous in its second derivative
+    private static double fade(double t) {
+        return t * t * t * ( t * ( t * 6 - 15 ) + 10 );
+    }
+
+    private static double lerp(double t,double a,double b) {
+        return a + t * ( b - a );
+    }
+
+    private static float lerp(float t,float a,float b) {
+        return a + t * ( b - a );
+    }
+
+    // murmur3 finalizer
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private int hash(int x,int y,int z) {
+        return mix( seedHash ^ x * 0x27d4eb2d ^ y * 0x165667b1 ^ z * 0x9e3779b1 );
+    }
+
+    // the 12 gradients pointing to the edges of a cube , padded to 16 so they can be picked by the lower 4 bits of a hash
+    private static final double[] GRAD_X = {1,-1, 1,-1, 1,-1, 1,-1, 0, 0, 0, 0, 1, 0,-1, 0};
+    private static final double[] GRAD_Y = {1, 1,-1,-1, 0, 0, 0, 0, 1,-1, 1,-1, 1,-1, 1,-1};
+    private static final double[] GRAD_Z = {0, 0, 0, 0, 1, 1,-1,-1, 1, 1,-1,-1, 0, 1, 0,-1};
+
+    // table lookup instead of branching on the hash , hashes are random so branches would be mispredicted half of the time
+    private static double grad(int hash,double x,double y,double z)
+    {
+        final int h = hash & 15;
+        return GRAD_X[h] * x + GRAD_Y[h] * y + GRAD_Z[h] * z;
+    }
+
+    /**
+     * Returns the noise value at a given point.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return noise value , roughly -1...1
+     */
+    public double noise3(double x,double y,double z)
+    {
+        final int x0 = fastfloor( x );
+        final int y0 = fastfloor( y );
+        final int z0 = fastfloor( z );
+        final double fx = x - x0;
+        final double fy = y - y0;
+        final double fz = z - z0;
+        final double u = fade( fx );
+        final double v = fade( fy );
+        final double w = fade( fz );
+
+        final double n000 = grad( hash( x0   , y0   , z0   ) , fx   , fy   , fz   );
+        final double n100 = grad( hash( x0+1 , y0   , z0   ) , fx-1 , fy   , fz   );
+        final double n010 = grad( hash( x0   , y0+1 , z0   ) , fx   , fy-1 , fz   );
+        final double n110 = grad( hash( x0+1 , y0+1 , z0   ) , fx-1 , fy-1 , fz   );
+        final double n001 = grad( hash( x0   , y0   , z0+1 ) , fx   , fy   , fz-1 );
+        final double n101 = grad( hash( x0+1 , y0   , z0+1 ) , fx-1 , fy   , fz-1 );
+        final double n011 = grad( hash( x0   , y0+1 , z0+1 ) , fx   , fy-1 , fz-1 );
+        final double n111 = grad( hash( x0+1 , y0+1 , z0+1 ) , fx-1 , fy-1 , fz-1 );
+
+        return lerp( w , lerp( v , lerp( u , n000 , n100 ) , lerp( u , n010 , n110 ) ) ,
+                         lerp( v , lerp( u , n001 , n101 ) , lerp( u , n011 , n111 ) ) );
+    }
+
+    /**
+     * Samples multi-octave noise for a cube of blocks.
+     *
+     * <p>Same octave scheme as {@link SimplexNoise#createNoise3D(float, float, float, int, float, int, float, float[])} but
+     * values are not re-scaled to the minimum/maximum found within the cube (that would make them depend on the cube's position),
+     * so cubes sampled next to each other fit together seamlessly.</p>
+     *
+     * @param originX block x-coordinate of the cube's corner
+     * @param originY block y-coordinate of the cube's corner
+     * @param originZ block z-coordinate of the cube's corner
+     * @param size number of blocks along each axis
+     * @param scale noise coordinates per block (before applying the octave frequency)
+     * @param octaveCount
+     * @param persistance
+     * @param result receives noise values (0...1) indexed by <code>x + y * size + z * size * size</code>
+     */
+    public void createNoise3D(int originX,int originY,int originZ,int size,float scale,int octaveCount,float persistance,float[] result)
+    {
+        final double totalAmplitude = totalAmplitude( octaveCount , persistance );
+        int ptr = 0;
+        for ( int z = 0 ; z < size ; z++ )
+        {
+            final double nz = (double) ( originZ + z ) * scale;
+            for ( int y = 0 ; y < size ; y++ )
+            {
+                final double ny = (double) ( originY + y ) * scale;
+                for ( int x = 0 ; x < size ; x++ )
+                {
+                    final double nx = (double) ( originX + x ) * scale;
+                    result[ ptr++ ] = sample( nx , ny , nz , octaveCount , persistance , totalAmplitude );
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples multi-octave noise on a coarse lattice and trilinearly interpolates it for a cube of blocks.
+     *
+     * <p>Only <code>(size/latticeStep+1)^3</code> instead of <code>size^3</code> noise samples are taken , at the cost of
+     * smoothing out features smaller than the lattice step. Lattice points sit at multiples of the step relative to the origin,
+     * so cubes whose origins are multiples of <code>size</code> share the lattice points on their common faces and still fit together seamlessly.</p>
+     *
+     * @param originX block x-coordinate of the cube's corner
+     * @param originY block y-coordinate of the cube's corner
+     * @param originZ block z-coordinate of the cube's corner
+     * @param size number of blocks along each axis , must be a multiple of the lattice step
+     * @param scale noise coordinates per block (before applying the octave frequency)
+     * @param octaveCount
+     * @param persistance
+     * @param latticeStep distance of lattice points in blocks , 1 samples every block
+     * @param result receives noise values (0...1) indexed by <code>x + y * size + z * size * size</code>
+     * @see #createNoise3D(int, int, int, int, float, int, float, float[])
+     */
+    public void createNoise3D(int originX,int originY,int originZ,int size,float scale,int octaveCount,float persistance,int latticeStep,float[] result)
+    {
+        Validate.isTrue( latticeStep > 0 && size % latticeStep == 0 , "size must be a multiple of the lattice step" );
+        if ( latticeStep == 1 ) {
+            createNoise3D( originX , originY , originZ , size , scale , octaveCount , persistance , result );
+            return;
+        }
+
+        final double totalAmplitude = totalAmplitude( octaveCount , persistance );
+        final int points = size / latticeStep + 1;
+        final int pointsSquared = points * points;
+        final float[] lattice = new float[ points * pointsSquared ];
+        int ptr = 0;
+        for ( int z = 0 ; z < points ; z++ )
+        {
+            final double nz = (double) ( originZ + z * latticeStep ) * scale;
+            for ( int y = 0 ; y < points ; y++ )
+            {
+                final double ny = (double) ( originY + y * latticeStep ) * scale;
+                for ( int x = 0 ; x < points ; x++ )
+                {
+                    final double nx = (double) ( originX + x * latticeStep ) * scale;
+                    lattice[ ptr++ ] = sample( nx , ny , nz , octaveCount , persistance , totalAmplitude );
+                }
+            }
+        }
+
+        // interpolate along y and z at the lattice columns of each row , then step along x
+        final float invStep = 1f / latticeStep;
+        final int cells = points - 1;
+        final float[] row = new float[ points ];
+        ptr = 0;
+        for ( int z = 0 ; z < size ; z++ )
+        {
+            final int cz = z / latticeStep;
+            final float fz = ( z - cz * latticeStep ) * invStep;
+            for ( int y = 0 ; y < size ; y++ )
+            {
+                final int cy = y / latticeStep;
+                final float fy = ( y - cy * latticeStep ) * invStep;
+                final int i00 = cy * points + cz * pointsSquared;
+                final int i10 = i00 + points;
+                final int i01 = i00 + pointsSquared;
+                final int i11 = i01 + points;
+                for ( int cx = 0 ; cx < points ; cx++ ) {
+                    row[ cx ] = lerp( fz , lerp( fy , lattice[ i00 + cx ] , lattice[ i10 + cx ] ) , lerp( fy , lattice[ i01 + cx ] , lattice[ i11 + cx ] ) );
+                }
+                for ( int cx = 0 ; cx < cells ; cx++ )
+                {
+                    final float start = row[ cx ];
+                    final float delta = ( row[ cx + 1 ] - start ) * invStep;
+                    for ( int i = 0 ; i < latticeStep ; i++ ) {
+                        result[ ptr++ ] = start + i * delta;
+                    }
+                }
+            }
+        }
+    }
+
+    private static double totalAmplitude(int octaveCount,float persistance)
+    {
+        float amplitude = 1.0f;
+        double totalAmplitude = 0;
+        for (int octave = octaveCount - 1; octave >= 0; octave--)
+        {
+            amplitude *= persistance;
+            totalAmplitude += amplitude;
+        }
+        return totalAmplitude;
+    }
+
+    private float sample(double nx,double ny,double nz,int octaveCount,float persistance,double totalAmplitude)
+    {
+        double sum = 0;
+        float amplitude = 1.0f;
+        int frequency = 1 << octaveCount;
+        for (int octave = octaveCount - 1; octave >= 0; octave--)
+        {
+            amplitude *= persistance;
+            final double value = noise3( nx*frequency , ny*frequency , nz*frequency ); // range -1...1
+            sum += ( value + 1 ) / 2.0 * amplitude;
+            frequency = frequency >> 1;
+        }
+        return (float) ( sum / totalAmplitude );
+    }
+}
@@ -0,0 +1,249 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.Validate;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+
+/**
+ * Keeps track of the highest non-empty block of each x/z column across all loaded chunks.
+ *
+ * <p>Heightmaps are kept per chunk column (all chunks sharing the same x/z chunk coordinates) and allow
+ * seeding sky light without looking at the light levels of the chunks above, see {@link LightingEngine}.
+ * Chunks that are not loaded are treated as being empty, as are {@link Chunk#isHalo() halo chunks} since only their borders are known.</p>
+ *
+ * <p>Heightmaps are updated incrementally when chunks get loaded/unloaded and when blocks change. All
+ * updates need to happen on the rendering thread, lighting jobs read heightmaps concurrently and may see
+ * stale heights, any chunks affected by such an update get re-lit afterwards anyway.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class Heightmaps
+{
+    /**
+     * Height reported for columns without any non-empty blocks.
+     */
+    public static final int NO_BLOCKS = Integer.MIN_VALUE;
+
+    protected static final class Column
+    {
+        // world y-coordinate of the highest non-empty block , indexed by ( x + z * CHUNK_SIZE )
+        public final int[] heights = new int[ World.CHUNK_SIZE * World.CHUNK_SIZE ];
+
+        // all loaded chunks of this column by chunk y-coordinate , only accessed by the rendering thread
+        public final TreeMap<Integer,Chunk> chunks = new TreeMap<>();
+
+        public Column()
+        {
+            Arrays.fill( heights , NO_BLOCKS );
+        }
+    }
+
+    // columns by ( chunk x , 0 , chunk z ) ID
+    private final LongMap<Column> columns = new LongMap<>();
+
+    private static long columnID(int chunkX,int chunkZ) {
+        return ChunkKey.toID( chunkX , 0 , chunkZ );
+    }
+
+    private static int columnIndex(int x,int z) {
+        return x + z * World.CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the heights of a chunk column.
+     *
+     * @param chunkX
+     * @param chunkZ
+     * @return world y-coordinate of the highest non-empty block indexed by ( x + z * CHUNK_SIZE ) or <code>null</code> if
+     * no chunk of this column is loaded. The returned array must not be modified.
+     */
+    public int[] getHeights(int chunkX,int chunkZ)
+    {
+        synchronized( columns )
+        {
+            final Column column = columns.get( columnID( chunkX , chunkZ ) );
+            return column == null ? null : column.heights;
+        }
+    }
+
+    /**
+     * Returns the world y-coordinate of the highest non-empty block in a given column.
+     *
+     * @param chunkX
+     * @param chunkZ
+     * @param x block x-coordinate within the chunk
+     * @param z block z-coordinate within the chunk
+     * @return height or {@link #NO_BLOCKS}
+     */
+    public int getHeight(int chunkX,int chunkZ,int x,int z)
+    {
+        final int[] heights = getHeights( chunkX , chunkZ );
+        return heights == null ? NO_BLOCKS : heights[ columnIndex( x , z ) ];
+    }
+
+    /**
+     * Adds a chunk that has just been loaded.
+     *
+     * @param chunk
+     */
+    public void chunkLoaded(Chunk chunk)
+    {
+        Validate.notNull(chunk, "chunk must not be NULL");
+        if ( chunk.isHalo() ) {
+            return;
+        }
+        final ChunkKey key = chunk.chunkKey;
+        final long columnID = columnID( key.x , key.z );
+        Column column;
+        synchronized( columns ) {
+            column = columns.get( columnID );
+        }
+        if ( column != null )
+        {
+            final Chunk previous = column.chunks.get( key.y );
+            if ( previous == chunk ) {
+                return;
+            }
+            if ( previous != null ) {
+                // chunk got re-loaded
+                chunkUnloaded( previous );
+            }
+        }
+        synchronized( columns )
+        {
+            column = columns.get( columnID );
+            if ( column == null ) {
+                column = new Column();
+                columns.put( columnID , column );
+            }
+        }
+        column.chunks.put( key.y , chunk );
+        if ( chunk.isEmpty() ) {
+            return;
+        }
+        final int baseY = key.y * World.CHUNK_SIZE;
+        for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ )
+        {
+            for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ )
+            {
+                final int top = highestBlock( chunk , x , World.CHUNK_SIZE-1 , z );
+                final int index = columnIndex( x , z );
+                if ( top != -1 && baseY + top > column.heights[ index ] ) {
+                    column.heights[ index ] = baseY + top;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a chunk that got unloaded.
+     *
+     * @param chunk
+     */
+    public void chunkUnloaded(Chunk chunk)
+    {
+        Validate.notNull(chunk, "chunk must not be NULL");
+        if ( chunk.isHalo() ) {
+            return;
+        }
+        final ChunkKey key = chunk.chunkKey;
+        final long columnID = columnID( key.x , key.z );
+        final Column column;
+        synchronized( columns ) {
+            column = columns.get( columnID );
+        }
+        if ( column == null || column.chunks.get( key.y ) != chunk ) {
+            return;
+        }
+        column.chunks.remove( key.y );
+        if ( column.chunks.isEmpty() )
+        {
+            synchronized( columns ) {
+                columns.remove( columnID );
+            }
+            return;
+        }
+        final int baseY = key.y * World.CHUNK_SIZE;
+        for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ )
+        {
+            for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ )
+            {
+                final int index = columnIndex( x , z );
+                final int height = column.heights[ index ];
+                if ( height >= baseY && height < baseY + World.CHUNK_SIZE ) {
+                    column.heights[ index ] = findHeight( column , x , z , height );
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the heightmap after a block changed.
+     *
+     * @param chunk
+     * @param blockIndex
+     */
+    public void blockChanged(Chunk chunk,int blockIndex)
+    {
+        if ( chunk.isHalo() ) {
+            return;
+        }
+        final ChunkKey key = chunk.chunkKey;
+        final Column column;
+        synchronized( columns ) {
+            column = columns.get( columnID( key.x , key.z ) );
+        }
+        if ( column == null || column.chunks.get( key.y ) != chunk ) {
+            return;
+        }
+        final int x = Chunk.blockIndexX( blockIndex );
+        final int z = Chunk.blockIndexZ( blockIndex );
+        final int index = columnIndex( x , z );
+        final int worldY = key.y * World.CHUNK_SIZE + Chunk.blockIndexY( blockIndex );
+        if ( chunk.isBlockNotEmpty( blockIndex ) )
+        {
+            if ( worldY > column.heights[ index ] ) {
+                column.heights[ index ] = worldY;
+            }
+        }
+        else if ( worldY == column.heights[ index ] )
+        {
+            column.heights[ index ] = findHeight( column , x , z , worldY - 1 );
+        }
+    }
+
+    // returns the highest non-empty block at or below a given world y-coordinate
+    private static int findHeight(Column column,int x,int z,int fromWorldY)
+    {
+        final int fromChunkY = Math.floorDiv( fromWorldY , World.CHUNK_SIZE );
+        for ( Map.Entry<Integer,Chunk> entry : column.chunks.headMap( fromChunkY , true ).descendingMap().entrySet() )
+        {
+            final int baseY = entry.getKey() * World.CHUNK_SIZE;
+            final int top = highestBlock( entry.getValue() , x , Math.min( World.CHUNK_SIZE - 1 , fromWorldY - baseY ) , z );
+            if ( top != -1 ) {
+                return baseY + top;
+            }
+        }
+        return NO_BLOCKS;
+    }
+
+    // returns the y-coordinate of the highest non-empty block at or below y , -1 if there is none
+    private static int highestBlock(Chunk chunk,int x,int y,int z)
+    {
+        for ( ; y >= 0 ; y-- )
+        {
+            if ( chunk.isBlockNotEmpty( Chunk.blockIndex( x , y , z ) ) ) {
+                return y;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,62 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+
+/**
+ * Persistent storage for chunk data.
+ *
+ * <p>Implementations need to be thread-safe as chunks get loaded and saved by multiple worker threads at the same time.
+ * Implementations never operate on the same chunk concurrently though.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public interface IChunkStorage extends Closeable
+{
+    /**
+     * Loads a chunk.
+     *
+     * @param key
+     * @return chunk or <code>null</code> if the chunk has never been stored
+     * @throws IOException
+     */
+    public Chunk load(ChunkKey key) throws IOException;
+
+    /**
+     * Loads only the border slices of a chunk.
+     *
+     * @param key
+     * @return chunk or <code>null</code> if the chunk has never been stored
+     * @throws IOException
+     * @see HaloChunk
+     */
+    public HaloChunk loadBorders(ChunkKey key) throws IOException;
+
+    /**
+     * Stores a chunk and clears its {@link Chunk#FLAG_NEEDS_SAVE} flag on success.
+     *
+     * @param chunk
+     * @param sync whether to force all data to the storage device before returning
+     * @throws IOException
+     */
+    public void store(Chunk chunk,boolean sync) throws IOException;
+
+    /**
+     * Forces all data stored so far to the storage device.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Releases all file handles held by this storage.
+     *
+     * <p>The storage may still be used afterwards, files will be re-opened as necessary.</p>
+     */
+    @Override
+    public void close() throws IOException;
+}
@@ -0,0 +1,788 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.Validate;
+
+import com.badlogic.gdx.utils.LongArray;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.Queue;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+import de.codesourcery.voxelengine.model.World;
+import de.codesourcery.voxelengine.utils.IntQueue;
+
+/**
+ * Calculates light levels by flood-filling sun light and light emitted by blocks.
+ *
+ * <p>Sun light and light emitted by blocks are propagated separately and stored in different {@link Chunk#CHANNEL_SKY channels}
+ * of each light level , so that rendering can scale sky light according to the time of day.</p>
+ *
+ * <p>Chunks are never modified, all light levels are calculated on private copies that are returned as a {@link Result}
+ * and need to be {@link Result#publish() published} by the caller. This allows lighting to run on any thread
+ * while the rendering thread keeps using the current light levels.</p>
+ *
+ * <p>Light spreading from a chunk may reach all of its 26 neighbours (but no further since light levels are smaller than the chunk size),
+ * so two calculations can safely run in parallel as long as their chunks are more than two chunks apart in every direction.</p>
+ *
+ * <p>When a single block changes , {@link #blockChanged(Chunk, int, Set)} updates light levels incrementally
+ * by only visiting the blocks whose light levels are affected by the change.</p>
+ *
+ * <p>{@link #getLightStamp(Chunk)} identifies everything the light levels of a chunk depend on , chunks whose stamp did not change
+ * since their light levels were calculated need not be lit again.</p>
+ *
+ * <p>Instances of this class are NOT thread-safe, each thread needs to use its own instance.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class LightingEngine
+{
+    // incremental updates use two queues (one for blocks and one for the chunk the block is in)
+    // instead of a single queue and something like a "QueueEntry" class to get around the
+    // need to do a massive number of object allocations (and thus generate a lot of GC pressure)
+    private final Queue<Chunk> lightChunkQueue = new Queue<Chunk>( 1024 );
+    private final IntQueue lightBlockQueue = new IntQueue( 1024 );
+
+    // blocks to darken when incrementally removing light , entries are ( blockIndex | previousLightLevel << 16 )
+    private final Queue<Chunk> darkChunkQueue = new Queue<Chunk>( 1024 );
+    private final IntQueue darkBlockQueue = new IntQueue( 1024 );
+
+    // neighbour directions used by incremental updates
+    private static final int DIR_TOP = 0;
+    private static final int DIR_BOTTOM = 1;
+    private static final int DIR_LEFT = 2;
+    private static final int DIR_RIGHT = 3;
+    private static final int DIR_FRONT = 4;
+    private static final int DIR_BACK = 5;
+
+    private static final int[] DX = { 0 ,  0 , -1 , 1 , 0 ,  0 };
+    private static final int[] DY = { 1 , -1 ,  0 , 0 , 0 ,  0 };
+    private static final int[] DZ = { 0 ,  0 ,  0 , 0 , 1 , -1 };
+
+    // block index layout is x + y * CHUNK_SIZE + z * CHUNK_SIZE * CHUNK_SIZE , chunk size is a power of two
+    private static final int MASK = World.CHUNK_SIZE - 1;
+    private static final int SHIFT_Y = Integer.numberOfTrailingZeros( World.CHUNK_SIZE );
+    private static final int SHIFT_Z = 2 * SHIFT_Y;
+    private static final int STEP_Y = 1 << SHIFT_Y;
+    private static final int STEP_Z = 1 << SHIFT_Z;
+
+    // changed whenever the meaning of (persisted) light levels changes so that old light levels get re-calculated
+    private static final long STAMP_LIGHT_FORMAT = 2;
+
+    // light stamp contributions of chunks that are not loaded / of halo chunks
+    private static final long STAMP_MISSING = 0x9e3779b97f4a7c15L;
+    private static final long STAMP_HALO = 0xc2b2ae3d27d4eb4fL;
+
+    // neighbour slot that has not been looked up yet / chunk that is not loaded
+    private static final int SLOT_UNRESOLVED = -1;
+    private static final int SLOT_NONE = -2;
+
+    private final Heightmaps heightmaps;
+
+    /*
+     * Full calculations refer to chunks by slot number, the light queue stores ( slot << 32 | blockIndex ) in one long
+     * per block and uses one bucket per light channel and level. Buckets are processed from the brightest level downwards (Dial's algorithm),
+     * so every block is lit with its final level the first time it is reached and never gets enqueued twice. The light level
+     * of a queued block is implied by its bucket and need not be read again.
+     */
+    private final LongArray[][] buckets = new LongArray[ 2 ][ Chunk.LIGHTLEVEL_MAX + 1 ];
+
+    // slot numbers by chunk
+    private final ObjectIntMap<Chunk> slots = new ObjectIntMap<>();
+
+    // chunks the slots refer to
+    private Chunk[] slotOriginals = new Chunk[ 64 ];
+
+    // copy of each slot's chunk if its light levels changed during the current calculation , otherwise the chunk itself
+    private Chunk[] slotChunks = new Chunk[ 64 ];
+
+    // slots of each slot's neighbour chunks , indexed by ( slot * 6 + DIR_* )
+    private int[] slotNeighbours = new int[ 64 * 6 ];
+
+    private int slotCount;
+
+    public LightingEngine(Heightmaps heightmaps)
+    {
+        Validate.notNull(heightmaps, "heightmaps must not be NULL");
+        this.heightmaps = heightmaps;
+        for ( LongArray[] channelBuckets : buckets )
+        {
+            for ( int i = 0 ; i < channelBuckets.length ; i++ ) {
+                channelBuckets[i] = new LongArray( 1024 );
+            }
+        }
+    }
+
+    /**
+     * Light levels calculated by {@link LightingEngine#calculateLighting(List)}.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Result
+    {
+        /**
+         * Chunks whose light levels were calculated , including neighbours that light spilled into.
+         */
+        public final Chunk[] chunks;
+
+        /**
+         * New light levels for each chunk.
+         */
+        public final byte[][] lightLevels;
+
+        protected Result(Chunk[] chunks,byte[][] lightLevels)
+        {
+            this.chunks = chunks;
+            this.lightLevels = lightLevels;
+        }
+
+        /**
+         * Copies the new light levels into a chunk.
+         *
+         * @param index
+         */
+        public void publish(int index)
+        {
+            final byte[] src = lightLevels[index];
+            System.arraycopy( src , 0 , chunks[index].lightLevels , 0 , src.length );
+        }
+
+        /**
+         * Copies the new light levels into all chunks.
+         *
+         * <p>Must only be called while no other thread is accessing the chunks' light levels.</p>
+         */
+        public void publish()
+        {
+            for ( int i = 0 ; i < chunks.length ; i++ ) {
+                publish( i );
+            }
+        }
+    }
+
+    /**
+     * Calculates light levels on each (empty) block by performing
+     * a flood-fill starting at each light source.
+     *
+     * @param chunks chunks to calculate light levels for , sun light is seeded from the {@link Heightmaps} so chunks
+     * do not depend on the light levels of the chunks above them
+     * @return
+     */
+    public Result calculateLighting(List<Chunk> chunks)
+    {
+        return calculateLighting( chunks , Collections.emptyList() );
+    }
+
+    /**
+     * Calculates light levels on each (empty) block by performing
+     * a flood-fill starting at each light source and at the borders of neighbouring chunks.
+     *
+     * @param chunks chunks to calculate light levels for , sun light is seeded from the {@link Heightmaps} so chunks
+     * do not depend on the light levels of the chunks above them
+     * @param neighbours chunks next to the ones being lit whose light levels are up-to-date and thus may flow into the chunks
+     * being lit. Light from neighbours that are not given here only reaches the chunks if it is emitted within one chunk distance.
+     * @return
+     */
+    public Result calculateLighting(List<Chunk> chunks,List<Chunk> neighbours)
+    {
+        try
+        {
+            // apply top-down sunlight to all chunks
+            // and enqueue all light-emitting blocks as well
+            for (int i = 0 , len = chunks.size() ; i < len ; i++)
+            {
+                final int slot = slot( chunks.get(i) );
+                final Chunk chunk = writable( slot );
+                applySunlight( slot , chunk );
+
+                // enqueue light-emitting (glowing) blocks , the writable copy has no emitter index of its own
+                for ( int blockIndex : slotOriginals[slot].getEmitters() )
+                {
+                    final byte level = BlockType.getEmittedLightLevel( chunk.getBlockType( blockIndex ) );
+                    setLight( chunk , blockIndex , Chunk.CHANNEL_BLOCK , level );
+                    enqueue( Chunk.CHANNEL_BLOCK , slot , blockIndex , level );
+                }
+            }
+
+            for (int i = 0 , len = neighbours.size() ; i < len ; i++) {
+                seedFromBorders( neighbours.get(i) );
+            }
+
+            floodFill( Chunk.CHANNEL_SKY );
+            floodFill( Chunk.CHANNEL_BLOCK );
+
+            int count = 0;
+            for ( int slot = 0 ; slot < slotCount ; slot++ ) {
+                count += slotChunks[slot] != slotOriginals[slot] ? 1 : 0;
+            }
+            final Chunk[] resultChunks = new Chunk[ count ];
+            final byte[][] resultLevels = new byte[ count ][];
+            int i = 0;
+            for ( int slot = 0 ; slot < slotCount ; slot++ )
+            {
+                if ( slotChunks[slot] != slotOriginals[slot] )
+                {
+                    resultChunks[i] = slotOriginals[slot];
+                    resultLevels[i++] = slotChunks[slot].lightLevels;
+                }
+            }
+            return new Result( resultChunks , resultLevels );
+        }
+        finally
+        {
+            // do not hold on to chunks that may get unloaded
+            for ( LongArray[] channelBuckets : buckets )
+            {
+                for ( LongArray bucket : channelBuckets ) {
+                    bucket.clear();
+                }
+            }
+            Arrays.fill( slotOriginals , 0 , slotCount , null );
+            Arrays.fill( slotChunks , 0 , slotCount , null );
+            slots.clear();
+            slotCount = 0;
+        }
+    }
+
+    /**
+     * Incrementally updates light levels after the type of a single block changed.
+     *
+     * <p>Light that is no longer there (because an emitter was removed or light got blocked) is removed by first darkening
+     * all blocks that may have received light through the changed block and then re-filling the darkened area from the
+     * light sources bordering it. New light is flood-filled starting at the changed block only.</p>
+     *
+     * <p>The chunk's {@link Heightmaps heightmap} gets updated as well.</p>
+     *
+     * <p>Unlike {@link #calculateLighting(List)} this method directly modifies the light levels of the chunks (and their neighbours),
+     * so it must only be called on the rendering thread and only when no lighting calculation is running for any of the chunks
+     * that may be affected.</p>
+     *
+     * @param chunk chunk that holds the block , the block's type must have already been changed
+     * @param blockIndex
+     * @param changedChunks receives all chunks that need to be re-meshed because light levels of (or next to) their blocks changed
+     */
+    public void blockChanged(Chunk chunk,int blockIndex,Set<Chunk> changedChunks)
+    {
+        lightBlockQueue.clear();
+        lightChunkQueue.clear();
+        darkBlockQueue.clear();
+        darkChunkQueue.clear();
+        try
+        {
+            heightmaps.blockChanged( chunk , blockIndex );
+            blockChanged( chunk , blockIndex , Chunk.CHANNEL_SKY , changedChunks );
+            blockChanged( chunk , blockIndex , Chunk.CHANNEL_BLOCK , changedChunks );
+        }
+        finally
+        {
+            lightChunkQueue.clear();
+            darkChunkQueue.clear();
+        }
+    }
+
+    private void blockChanged(Chunk chunk,int blockIndex,int channel,Set<Chunk> changedChunks)
+    {
+        final int newType = chunk.getBlockType( blockIndex );
+        final int oldLevel = light( chunk , blockIndex , channel );
+        if ( oldLevel > 0 )
+        {
+            setLight( chunk , blockIndex , channel , 0 , changedChunks );
+            darkChunkQueue.addLast( chunk );
+            darkBlockQueue.push( blockIndex | oldLevel << 16 );
+            removeLight( channel , changedChunks );
+        }
+
+        if ( BlockType.emitsLight( newType ) )
+        {
+            if ( channel == Chunk.CHANNEL_BLOCK )
+            {
+                setLight( chunk , blockIndex , channel , BlockType.getEmittedLightLevel( newType ) , changedChunks );
+                lightChunkQueue.addLast( chunk );
+                lightBlockQueue.push( blockIndex );
+            }
+        }
+        else if ( chunk.isBlockEmpty( blockIndex ) )
+        {
+            final int x = Chunk.blockIndexX( blockIndex );
+            final int y = Chunk.blockIndexY( blockIndex );
+            final int z = Chunk.blockIndexZ( blockIndex );
+            if ( channel == Chunk.CHANNEL_SKY && chunk.chunkKey.y * World.CHUNK_SIZE + y > heightmaps.getHeight( chunk.chunkKey.x , chunk.chunkKey.z , x , z ) )
+            {
+                // open to the sky
+                setLight( chunk , blockIndex , channel , Chunk.LIGHTLEVEL_SUNLIGHT , changedChunks );
+                lightChunkQueue.addLast( chunk );
+                lightBlockQueue.push( blockIndex );
+            }
+            // light flows into the block from all lit neighbours
+            for ( int dir = 0 ; dir < 6 ; dir++ )
+            {
+                final Chunk neighbour = neighbour( chunk , x , y , z , dir );
+                if ( neighbour != null )
+                {
+                    final int neighbourIndex = neighbourIndex( x , y , z , dir );
+                    if ( light( neighbour , neighbourIndex , channel ) > 0 )
+                    {
+                        lightChunkQueue.addLast( neighbour );
+                        lightBlockQueue.push( neighbourIndex );
+                    }
+                }
+            }
+        }
+        addLight( channel , changedChunks );
+    }
+
+    // first phase of removing light: darkens all blocks that may have been lit through the blocks in the dark queue,
+    // enqueuing blocks lit by other sources for re-filling the darkened area
+    private void removeLight(int channel,Set<Chunk> changedChunks)
+    {
+        while ( darkBlockQueue.isNotEmpty() )
+        {
+            final Chunk chunk = darkChunkQueue.removeFirst();
+            final int entry = darkBlockQueue.pop();
+            final int blockIndex = entry & 0xffff;
+            final int level = entry >>> 16;
+
+            final int x = Chunk.blockIndexX( blockIndex );
+            final int y = Chunk.blockIndexY( blockIndex );
+            final int z = Chunk.blockIndexZ( blockIndex );
+            for ( int dir = 0 ; dir < 6 ; dir++ )
+            {
+                final Chunk neighbour = neighbour( chunk , x , y , z , dir );
+                if ( neighbour == null ) {
+                    continue;
+                }
+                final int neighbourIndex = neighbourIndex( x , y , z , dir );
+                final int neighbourLevel = light( neighbour , neighbourIndex , channel );
+                if ( neighbourLevel == 0 ) {
+                    continue;
+                }
+                // sun light travels downwards without getting weaker
+                final boolean sunlightBelow = channel == Chunk.CHANNEL_SKY && dir == DIR_BOTTOM &&
+                        level == Chunk.LIGHTLEVEL_SUNLIGHT && neighbourLevel == Chunk.LIGHTLEVEL_SUNLIGHT;
+                if ( ! neighbour.emitsLight( neighbourIndex ) && ( neighbourLevel < level || sunlightBelow ) )
+                {
+                    setLight( neighbour , neighbourIndex , channel , 0 , changedChunks );
+                    darkChunkQueue.addLast( neighbour );
+                    darkBlockQueue.push( neighbourIndex | neighbourLevel << 16 );
+                }
+                else
+                {
+                    lightChunkQueue.addLast( neighbour );
+                    lightBlockQueue.push( neighbourIndex );
+                }
+            }
+        }
+    }
+
+    // flood-fills light starting at the blocks in the light queue
+    private void addLight(int channel,Set<Chunk> changedChunks)
+    {
+        while ( lightBlockQueue.isNotEmpty() )
+        {
+            final Chunk chunk = lightChunkQueue.removeFirst();
+            final int blockIndex = lightBlockQueue.pop();
+            final int currentLevel = light( chunk , blockIndex , channel );
+
+            final int x = Chunk.blockIndexX( blockIndex );
+            final int y = Chunk.blockIndexY( blockIndex );
+            final int z = Chunk.blockIndexZ( blockIndex );
+            for ( int dir = 0 ; dir < 6 ; dir++ )
+            {
+                final Chunk neighbour = neighbour( chunk , x , y , z , dir );
+                if ( neighbour == null ) {
+                    continue;
+                }
+                final int neighbourIndex = neighbourIndex( x , y , z , dir );
+                if ( ! neighbour.isBlockEmpty( neighbourIndex ) ) {
+                    continue;
+                }
+                final int neighbourLevel = light( neighbour , neighbourIndex , channel );
+                if ( channel == Chunk.CHANNEL_SKY && dir == DIR_BOTTOM && currentLevel == Chunk.LIGHTLEVEL_SUNLIGHT )
+                {
+                    // sun light travels downwards without getting weaker
+                    if ( neighbourLevel < Chunk.LIGHTLEVEL_SUNLIGHT )
+                    {
+                        setLight( neighbour , neighbourIndex , channel , Chunk.LIGHTLEVEL_SUNLIGHT , changedChunks );
+                        lightChunkQueue.addLast( neighbour );
+                        lightBlockQueue.push( neighbourIndex );
+                    }
+                    continue;
+                }
+                // same rule as used by floodFill()
+                final int newLevel = currentLevel - 1;
+                if ( neighbourLevel < newLevel-1 )
+                {
+                    setLight( neighbour , neighbourIndex , channel , newLevel , changedChunks );
+                    if ( newLevel > 1 )
+                    {
+                        lightChunkQueue.addLast( neighbour );
+                        lightBlockQueue.push( neighbourIndex );
+                    }
+                }
+            }
+        }
+    }
+
+    private static int light(Chunk chunk,int blockIndex,int channel)
+    {
+        return Chunk.getChannel( chunk.getLightLevel( blockIndex ) , channel );
+    }
+
+    private static void setLight(Chunk chunk,int blockIndex,int channel,int level)
+    {
+        chunk.setLightLevel( blockIndex , Chunk.setChannel( chunk.getLightLevel( blockIndex ) , channel , level ) );
+    }
+
+    private static void setLight(Chunk chunk,int blockIndex,int channel,int level,Set<Chunk> changedChunks)
+    {
+        setLight( chunk , blockIndex , channel , level );
+        changedChunks.add( chunk );
+
+        // faces of blocks in adjacent chunks are lit using this block's light level as well
+        final int x = Chunk.blockIndexX( blockIndex );
+        final int y = Chunk.blockIndexY( blockIndex );
+        final int z = Chunk.blockIndexZ( blockIndex );
+        addIfNotNull( x == 0 ? chunk.leftNeighbour : x == World.CHUNK_SIZE-1 ? chunk.rightNeighbour : null , changedChunks );
+        addIfNotNull( y == 0 ? chunk.bottomNeighbour : y == World.CHUNK_SIZE-1 ? chunk.topNeighbour : null , changedChunks );
+        addIfNotNull( z == 0 ? chunk.backNeighbour : z == World.CHUNK_SIZE-1 ? chunk.frontNeighbour : null , changedChunks );
+    }
+
+    private static void addIfNotNull(Chunk chunk,Set<Chunk> changedChunks)
+    {
+        if ( chunk != null ) {
+            changedChunks.add( chunk );
+        }
+    }
+
+    // returns the chunk holding the adjacent block in a given direction , NULL if that chunk is not loaded
+    private static Chunk neighbour(Chunk chunk,int x,int y,int z,int dir)
+    {
+        final int nx = x + DX[dir];
+        final int ny = y + DY[dir];
+        final int nz = z + DZ[dir];
+        if ( nx >= 0 && nx < World.CHUNK_SIZE && ny >= 0 && ny < World.CHUNK_SIZE && nz >= 0 && nz < World.CHUNK_SIZE ) {
+            return chunk;
+        }
+        switch( dir )
+        {
+            case DIR_TOP:    return chunk.topNeighbour;
+            case DIR_BOTTOM: return chunk.bottomNeighbour;
+            case DIR_LEFT:   return chunk.leftNeighbour;
+            case DIR_RIGHT:  return chunk.rightNeighbour;
+            case DIR_FRONT:  return chunk.frontNeighbour;
+            case DIR_BACK:   return chunk.backNeighbour;
+            default:
+                throw new IllegalArgumentException("Unhandled direction: "+dir);
+        }
+    }
+
+    // returns the block index of the adjacent block in a given direction , wrapping around into the neighbouring chunk
+    private static int neighbourIndex(int x,int y,int z,int dir)
+    {
+        final int mask = World.CHUNK_SIZE-1;
+        return Chunk.blockIndex( ( x + DX[dir] ) & mask , ( y + DY[dir] ) & mask , ( z + DZ[dir] ) & mask );
+    }
+
+    // enqueues the border blocks of a neighbouring chunk that face any of the chunks being lit
+    private void seedFromBorders(Chunk neighbour)
+    {
+        final int slot = slot( neighbour );
+        for ( int dir = 0 ; dir < 6 ; dir++ )
+        {
+            final int adjacent = neighbourSlot( slot , dir );
+            // only chunks being lit have been made writable at this point
+            if ( adjacent < 0 || slotChunks[ adjacent ] == slotOriginals[ adjacent ] ) {
+                continue;
+            }
+            for ( int v = 0 ; v < World.CHUNK_SIZE ; v++ )
+            {
+                for ( int u = 0 ; u < World.CHUNK_SIZE ; u++ )
+                {
+                    final int blockIndex;
+                    switch( dir )
+                    {
+                        case DIR_TOP:    blockIndex = Chunk.blockIndex( u , MASK , v ); break;
+                        case DIR_BOTTOM: blockIndex = Chunk.blockIndex( u , 0 , v ); break;
+                        case DIR_LEFT:   blockIndex = Chunk.blockIndex( 0 , u , v ); break;
+                        case DIR_RIGHT:  blockIndex = Chunk.blockIndex( MASK , u , v ); break;
+                        case DIR_FRONT:  blockIndex = Chunk.blockIndex( u , v , MASK ); break;
+                        case DIR_BACK:   blockIndex = Chunk.blockIndex( u , v , 0 ); break;
+                        default:
+                            throw new IllegalArgumentException("Unhandled direction: "+dir);
+                    }
+                    final byte level = neighbour.getLightLevel( blockIndex );
+                    enqueue( Chunk.CHANNEL_SKY , slot , blockIndex , Chunk.getChannel( level , Chunk.CHANNEL_SKY ) );
+                    enqueue( Chunk.CHANNEL_BLOCK , slot , blockIndex , Chunk.getChannel( level , Chunk.CHANNEL_BLOCK ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a stamp identifying everything the light levels of a chunk depend on.
+     *
+     * <p>Light never travels further than one chunk , so light levels only depend on the blocks of the chunk and its 26 neighbours
+     * and on the heights of the surrounding 3x3 columns within that range. Heights are taken relative to the chunk so that chunks with
+     * identical surroundings get identical stamps no matter where they are.</p>
+     *
+     * <p>Must only be called on the rendering thread.</p>
+     *
+     * @param chunk
+     * @return stamp , never {@link Chunk#NO_LIGHT_STAMP}
+     * @see Chunk#getLightStamp()
+     */
+    public long getLightStamp(Chunk chunk)
+    {
+        long hash = ( 0xcbf29ce484222325L ^ STAMP_LIGHT_FORMAT ) * 0x100000001b3L;
+        for ( int dx = -1 ; dx <= 1 ; dx++ )
+        {
+            for ( int dy = -1 ; dy <= 1 ; dy++ )
+            {
+                for ( int dz = -1 ; dz <= 1 ; dz++ )
+                {
+                    final Chunk neighbour = chunkAt( chunk , dx , dy , dz );
+                    final long value = neighbour == null ? STAMP_MISSING : neighbour.isHalo() ? STAMP_HALO ^ neighbour.getBlockHash() : neighbour.getBlockHash();
+                    hash = ( hash ^ value ) * 0x100000001b3L;
+                }
+            }
+        }
+        final ChunkKey key = chunk.chunkKey;
+        final long baseY = key.y * World.CHUNK_SIZE;
+        for ( int dx = -1 ; dx <= 1 ; dx++ )
+        {
+            for ( int dz = -1 ; dz <= 1 ; dz++ )
+            {
+                final int[] heights = heightmaps.getHeights( key.x + dx , key.z + dz );
+                if ( heights == null )
+                {
+                    hash = ( hash ^ STAMP_MISSING ) * 0x100000001b3L;
+                    continue;
+                }
+                for ( int i = 0 ; i < heights.length ; i++ )
+                {
+                    // heights outside of the neighbourhood's y range all have the same effect
+                    final long height = Math.max( -World.CHUNK_SIZE - 1 , Math.min( 2 * World.CHUNK_SIZE - 1 , heights[i] - baseY ) );
+                    hash = ( hash ^ height ) * 0x100000001b3L;
+                }
+            }
+        }
+        hash ^= hash >>> 33;
+        return hash == Chunk.NO_LIGHT_STAMP ? 1 : hash;
+    }
+
+    // returns the chunk at a given offset (-1...1 along each axis) , NULL if that chunk cannot be reached through loaded chunks
+    private static Chunk chunkAt(Chunk chunk,int dx,int dy,int dz)
+    {
+        if ( chunk == null || ( dx == 0 && dy == 0 && dz == 0 ) ) {
+            return chunk;
+        }
+        Chunk result = null;
+        if ( dx != 0 ) {
+            result = chunkAt( dx < 0 ? chunk.leftNeighbour : chunk.rightNeighbour , 0 , dy , dz );
+        }
+        if ( result == null && dy != 0 ) {
+            result = chunkAt( dy < 0 ? chunk.bottomNeighbour : chunk.topNeighbour , dx , 0 , dz );
+        }
+        if ( result == null && dz != 0 ) {
+            result = chunkAt( dz < 0 ? chunk.backNeighbour : chunk.frontNeighbour , dx , dy , 0 );
+        }
+        return result;
+    }
+
+    // returns the slot of a chunk , assigning a new one if necessary
+    private int slot(Chunk chunk)
+    {
+        int slot = slots.get( chunk , SLOT_UNRESOLVED );
+        if ( slot != SLOT_UNRESOLVED ) {
+            return slot;
+        }
+        slot = slotCount++;
+        if ( slot == slotChunks.length )
+        {
+            slotOriginals = Arrays.copyOf( slotOriginals , slot * 2 );
+            slotChunks = Arrays.copyOf( slotChunks , slot * 2 );
+            slotNeighbours = Arrays.copyOf( slotNeighbours , slot * 2 * 6 );
+        }
+        slotOriginals[slot] = chunk;
+        slotChunks[slot] = chunk;
+        Arrays.fill( slotNeighbours , slot * 6 , slot * 6 + 6 , SLOT_UNRESOLVED );
+        slots.put( chunk , slot );
+        return slot;
+    }
+
+    // returns the slot of a neighbouring chunk , SLOT_NONE if that chunk is not loaded
+    private int neighbourSlot(int slot,int dir)
+    {
+        final int index = slot * 6 + dir;
+        int result = slotNeighbours[ index ];
+        if ( result == SLOT_UNRESOLVED )
+        {
+            final Chunk chunk = slotOriginals[ slot ];
+            final Chunk neighbour;
+            switch( dir )
+            {
+                case DIR_TOP:    neighbour = chunk.topNeighbour; break;
+                case DIR_BOTTOM: neighbour = chunk.bottomNeighbour; break;
+                case DIR_LEFT:   neighbour = chunk.leftNeighbour; break;
+                case DIR_RIGHT:  neighbour = chunk.rightNeighbour; break;
+                case DIR_FRONT:  neighbour = chunk.frontNeighbour; break;
+                case DIR_BACK:   neighbour = chunk.backNeighbour; break;
+                default:
+                    throw new IllegalArgumentException("Unhandled direction: "+dir);
+            }
+            result = neighbour == null ? SLOT_NONE : slot( neighbour );
+            slotNeighbours[ index ] = result;
+        }
+        return result;
+    }
+
+    // returns the copy of a slot's chunk , creating it if necessary
+    private Chunk writable(int slot)
+    {
+        final Chunk chunk = slotOriginals[ slot ];
+        Chunk copy = slotChunks[ slot ];
+        if ( copy == chunk )
+        {
+            if ( chunk.isHalo() ) {
+                copy = new HaloChunk( chunk.chunkKey , chunk.blockTypes , chunk.lightLevels.clone() );
+            } else {
+                copy = new Chunk( chunk.chunkKey , chunk.blockTypes , chunk.lightLevels.clone() );
+            }
+            slotChunks[ slot ] = copy;
+        }
+        return copy;
+    }
+
+    private void enqueue(int channel,int slot,int blockIndex,int level)
+    {
+        // blocks with light level 1 do not light any neighbours
+        if ( level > 1 ) {
+            buckets[ channel ][ level ].add( (long) slot << 32 | blockIndex );
+        }
+    }
+
+    private void applySunlight(int slot,Chunk chunk)
+    {
+        chunk.setLightLevel( (byte) 0 );
+
+        final ChunkKey key = chunk.chunkKey;
+        final int baseY = key.y * World.CHUNK_SIZE;
+        final int[] heights = heightmaps.getHeights( key.x , key.z );
+        final int[] leftHeights = heightmaps.getHeights( key.x - 1 , key.z );
+        final int[] rightHeights = heightmaps.getHeights( key.x + 1 , key.z );
+        final int[] backHeights = heightmaps.getHeights( key.x , key.z - 1 );
+        final int[] frontHeights = heightmaps.getHeights( key.x , key.z + 1 );
+
+        // set light level to "sunlight" on all blocks above the highest non-empty block of each column, only
+        // enqueuing blocks for flood-filling that are next to a column that is not exposed to the sky at the same height
+        for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ )
+        {
+            for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ )
+            {
+                final int height = heights == null ? Heightmaps.NO_BLOCKS : heights[ x + z * World.CHUNK_SIZE ];
+                final long firstSkyBlock = Math.max( 0 , (long) height - baseY + 1 );
+                if ( firstSkyBlock >= World.CHUNK_SIZE ) {
+                    continue;
+                }
+                int neighbourHeight = x > 0 ? height( heights , x-1 , z ) : height( leftHeights , World.CHUNK_SIZE-1 , z );
+                neighbourHeight = Math.max( neighbourHeight , x < World.CHUNK_SIZE-1 ? height( heights , x+1 , z ) : height( rightHeights , 0 , z ) );
+                neighbourHeight = Math.max( neighbourHeight , z > 0 ? height( heights , x , z-1 ) : height( backHeights , x , World.CHUNK_SIZE-1 ) );
+                neighbourHeight = Math.max( neighbourHeight , z < World.CHUNK_SIZE-1 ? height( heights , x , z+1 ) : height( frontHeights , x , 0 ) );
+                final long lastSeedBlock = Math.min( World.CHUNK_SIZE-1 , (long) neighbourHeight - baseY );
+
+                for ( int y = (int) firstSkyBlock ; y < World.CHUNK_SIZE ; y++ )
+                {
+                    final int blockIndex = Chunk.blockIndex( x , y , z );
+                    setLight( chunk , blockIndex , Chunk.CHANNEL_SKY , Chunk.LIGHTLEVEL_SUNLIGHT );
+                    if ( y <= lastSeedBlock ) {
+                        enqueue( Chunk.CHANNEL_SKY , slot , blockIndex , Chunk.LIGHTLEVEL_SUNLIGHT );
+                    }
+                }
+            }
+        }
+    }
+
+    // returns the height of a column , neighbouring columns that are not loaded are treated as being covered
+    // since they may still contain halo chunks that light spills into
+    private static int height(int[] heights,int x,int z)
+    {
+        return heights == null ? Integer.MAX_VALUE : heights[ x + z * World.CHUNK_SIZE ];
+    }
+
+    // visits the neighbours of all blocks enqueued for a light channel , brightest blocks first ,
+    // until the light level reaches 0
+    private void floodFill(int channel)
+    {
+        for ( int level = Chunk.LIGHTLEVEL_MAX ; level > 1 ; level-- )
+        {
+            // blocks only ever get enqueued into the next-darker bucket , so this one does not grow while being processed
+            final LongArray bucket = buckets[ channel ][ level ];
+            final long[] entries = bucket.items;
+            final int newLevel = level - 1;
+            for ( int i = 0 , len = bucket.size ; i < len ; i++ )
+            {
+                final long entry = entries[i];
+                final int slot = (int) ( entry >>> 32 );
+                final int blockIndex = (int) entry;
+
+                final int x = blockIndex & MASK;
+                final int y = ( blockIndex >>> SHIFT_Y ) & MASK;
+                final int z = blockIndex >>> SHIFT_Z;
+
+                if ( y < MASK ) {
+                    spread( channel , slot , blockIndex + STEP_Y , newLevel );
+                } else {
+                    spread( channel , neighbourSlot( slot , DIR_TOP ) , blockIndex - MASK * STEP_Y , newLevel );
+                }
+                if ( y > 0 ) {
+                    spread( channel , slot , blockIndex - STEP_Y , newLevel );
+                } else {
+                    spread( channel , neighbourSlot( slot , DIR_BOTTOM ) , blockIndex + MASK * STEP_Y , newLevel );
+                }
+                if ( x > 0 ) {
+                    spread( channel , slot , blockIndex - 1 , newLevel );
+                } else {
+                    spread( channel , neighbourSlot( slot , DIR_LEFT ) , blockIndex + MASK , newLevel );
+                }
+                if ( x < MASK ) {
+                    spread( channel , slot , blockIndex + 1 , newLevel );
+                } else {
+                    spread( channel , neighbourSlot( slot , DIR_RIGHT ) , blockIndex - MASK , newLevel );
+                }
+                if ( z < MASK ) {
+                    spread( channel , slot , blockIndex + STEP_Z , newLevel );
+                } else {
+                    spread( channel , neighbourSlot( slot , DIR_FRONT ) , blockIndex - MASK * STEP_Z , newLevel );
+                }
+                if ( z > 0 ) {
+                    spread( channel , slot , blockIndex - STEP_Z , newLevel );
+                } else {
+                    spread( channel , neighbourSlot( slot , DIR_BACK ) , blockIndex + MASK * STEP_Z , newLevel );
+                }
+            }
+            bucket.clear();
+        }
+    }
+
+    private void spread(int channel,int slot,int blockIndex,int newLevel)
+    {
+        if ( slot < 0 ) {
+            return;
+        }
+        final Chunk chunk = slotChunks[ slot ];
+        // blocks reached from the brightest bucket first already receive their final light level and will not be enqueued again.
+        // Only blocks seeded from neighbouring chunks may get brighter after being enqueued , spreading from their stale
+        // entries then has no effect
+        if ( chunk.isBlockEmpty( blockIndex ) && light( chunk , blockIndex , channel ) < newLevel-1 )
+        {
+            setLight( writable( slot ) , blockIndex , channel , newLevel );
+            enqueue( channel , slot , blockIndex , newLevel );
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+
+/**
+ * Append-only chunk storage.
+ *
+ * <p>Every write appends a record holding the chunk's {@link ChunkFile} representation to the current segment file,
+ * turning the random writes of region files into sequential I/O. Once a segment reaches {@link #DEFAULT_MAX_SEGMENT_SIZE}
+ * bytes, a new segment is started. Records have the following layout:</p>
+ * <pre>
+ * int magic
+ * int data length
+ * long chunk ID
+ * int CRC32 of chunk ID and data
+ * byte[] data
+ * </pre>
+ *
+ * <p>The location of the most recent record of each chunk is kept in an in-memory index that is
+ * periodically written to {@link #INDEX_FILE} (checkpointed) together with the log position it covers.
+ * On startup the checkpoint is loaded and only records appended after it are scanned, torn records at the end
+ * of the log are discarded.</p>
+ *
+ * <p>A background thread compacts segments that mostly hold superseded records by copying the remaining live records
+ * to the end of the log. Compacted segments are only deleted after the index has been checkpointed, so the checkpoint never refers
+ * to a deleted segment.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class LogStructuredStorage implements IChunkStorage
+{
+    private static final Logger LOG = Logger.getLogger(LogStructuredStorage.class);
+
+    public static final String SEGMENT_PREFIX = "chunks-";
+
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    public static final String INDEX_FILE = "chunks.index";
+
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64*1024*1024;
+
+    /**
+     * Number of records appended since the last checkpoint that trigger writing a new one on {@link #sync()}.
+     */
+    public static final int CHECKPOINT_INTERVAL = 1024;
+
+    /**
+     * Segments with less than this fraction of live data get compacted.
+     */
+    public static final double COMPACTION_THRESHOLD = 0.5;
+
+    public static final long COMPACTION_INTERVAL_MILLIS = 10*1000;
+
+    protected static final int RECORD_MAGIC = 0x10c5e9ed;
+
+    protected static final int RECORD_HEADER_SIZE = 4+4+8+4;
+
+    protected static final int INDEX_MAGIC = 0x10c51dec;
+
+    protected static final int INDEX_VERSION = 1;
+
+    // per-thread buffers for reading records
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial( () -> ByteBuffer.allocate( 64*1024 ) );
+
+    // per-thread serialization buffers , sized for an uncompressed chunk
+    private static final ThreadLocal<RegionFileStorage.Buffer> WRITE_BUFFER = ThreadLocal.withInitial( () -> new RegionFileStorage.Buffer( 160*1024 ) );
+
+    private final File dir;
+    private final long maxSegmentSize;
+
+    // location of the latest record of each chunk , by chunk ID
+    private final LongMap<Location> index = new LongMap<>();
+
+    // all segments , by segment number
+    private final TreeMap<Integer,Segment> segments = new TreeMap<>();
+
+    private final CRC32 crc = new CRC32();
+
+    private Segment activeSegment;
+    private boolean opened;
+    private int recordsSinceCheckpoint;
+
+    private Thread compactorThread;
+    private boolean terminate;
+
+    protected static final class Location
+    {
+        public final int segment;
+        public final long offset;
+        // record length including header
+        public final int length;
+
+        public Location(int segment, long offset, int length)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    protected static final class Segment
+    {
+        public final int number;
+        public final File file;
+        public long size;
+        public long liveBytes;
+        public boolean dirty;
+        private FileChannel channel;
+
+        public Segment(int number,File file)
+        {
+            this.number = number;
+            this.file = file;
+        }
+
+        public FileChannel channel() throws IOException
+        {
+            if ( channel == null ) {
+                channel = FileChannel.open( file.toPath() , StandardOpenOption.CREATE , StandardOpenOption.READ , StandardOpenOption.WRITE );
+            }
+            return channel;
+        }
+
+        public void sync() throws IOException
+        {
+            if ( dirty && channel != null ) {
+                channel.force( false );
+            }
+            dirty = false;
+        }
+
+        public void close() throws IOException
+        {
+            if ( channel != null )
+            {
+                try {
+                    sync();
+                } finally {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file.getName()+" ( "+size+" bytes , "+liveBytes+" live )";
+        }
+    }
+
+    public LogStructuredStorage(File dir)
+    {
+        this( dir , DEFAULT_MAX_SEGMENT_SIZE );
+    }
+
+    /**
+     * Create storage.
+     *
+     * @param dir directory holding the segment and index files
+     * @param maxSegmentSize size (in bytes) at which a new segment is started
+     */
+    public LogStructuredStorage(File dir,long maxSegmentSize)
+    {
+        Validate.notNull(dir, "dir must not be NULL");
+        Validate.isTrue( maxSegmentSize > 0 , "maxSegmentSize must be > 0");
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    @Override
+    public Chunk load(ChunkKey key) throws IOException
+    {
+        final ByteBuffer data = read( key );
+        return data == null ? null : ChunkFile.load( data );
+    }
+
+    @Override
+    public HaloChunk loadBorders(ChunkKey key) throws IOException
+    {
+        final ByteBuffer data = read( key );
+        return data == null ? null : ChunkFile.loadBorders( data );
+    }
+
+    // reads the latest record of a chunk into the calling thread's read buffer
+    private ByteBuffer read(ChunkKey key) throws IOException
+    {
+        final long chunkID = key.toID();
+        synchronized( this )
+        {
+            open();
+            final Location location = index.get( chunkID );
+            if ( location == null ) {
+                return null;
+            }
+            ByteBuffer buffer = READ_BUFFER.get();
+            if ( buffer.capacity() < location.length )
+            {
+                buffer = ByteBuffer.allocate( Math.max( location.length , buffer.capacity()*2 ) );
+                READ_BUFFER.set( buffer );
+            }
+            buffer.clear().limit( location.length );
+            final Segment segment = segments.get( location.segment );
+            readFully( segment , buffer , location.offset );
+            buffer.flip();
+            if ( readRecordHeader( buffer , segment , location.offset ) != chunkID ) {
+                throw new IOException("Index refers to record of a different chunk at offset "+location.offset+" in "+segment.file.getAbsolutePath());
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Validates the record at the buffer's current position.
+     *
+     * @return ID of the chunk the record belongs to , the buffer is positioned at the start of the record's data with the limit set to its end
+     */
+    private long readRecordHeader(ByteBuffer buffer,Segment segment,long offset) throws IOException
+    {
+        final int start = buffer.position();
+        final int magic = buffer.getInt();
+        final int length = buffer.getInt();
+        final long chunkID = buffer.getLong();
+        final int checksum = buffer.getInt();
+        if ( magic != RECORD_MAGIC || length < 0 || length > buffer.remaining() ) {
+            throw new IOException("Corrupted record header at offset "+offset+" in "+segment.file.getAbsolutePath());
+        }
+        if ( checksum != recordChecksum( buffer.array() , start , length ) ) {
+            throw new IOException("Checksum mismatch for record at offset "+offset+" in "+segment.file.getAbsolutePath());
+        }
+        buffer.limit( buffer.position() + length );
+        return chunkID;
+    }
+
+    // CRC32 of a record's chunk ID and data
+    private int recordChecksum(byte[] record,int offset,int dataLength)
+    {
+        synchronized( crc )
+        {
+            crc.reset();
+            crc.update( record , offset + 8 , 8 );
+            crc.update( record , offset + RECORD_HEADER_SIZE , dataLength );
+            return (int) crc.getValue();
+        }
+    }
+
+    private int checksum(byte[] data,int offset,int length)
+    {
+        synchronized( crc )
+        {
+            crc.reset();
+            crc.update( data , offset , length );
+            return (int) crc.getValue();
+        }
+    }
+
+    @Override
+    public void store(Chunk chunk, boolean sync) throws IOException
+    {
+        final RegionFileStorage.Buffer buffer = WRITE_BUFFER.get();
+        buffer.reset();
+        // reserve room for the record header
+        buffer.write( new byte[ RECORD_HEADER_SIZE ] );
+        // ChunkFile.store() clears the NEEDS_SAVE flag , restore it if appending the record fails
+        ChunkFile.store( chunk , buffer );
+
+        final ByteBuffer record = ByteBuffer.wrap( buffer.array() , 0 , buffer.size() );
+        final long chunkID = chunk.chunkKey.toID();
+        record.putInt( RECORD_MAGIC ).putInt( buffer.size() - RECORD_HEADER_SIZE ).putLong( chunkID );
+        record.putInt( recordChecksum( buffer.array() , 0 , buffer.size() - RECORD_HEADER_SIZE ) );
+        record.rewind();
+        try
+        {
+            synchronized( this )
+            {
+                open();
+                append( chunkID , record );
+                if ( sync ) {
+                    activeSegment.sync();
+                }
+            }
+            startCompactor();
+        }
+        catch(IOException | RuntimeException e)
+        {
+            chunk.setNeedsSave( true );
+            throw e;
+        }
+    }
+
+    // appends a complete record to the log and updates the index
+    private void append(long chunkID,ByteBuffer record) throws IOException
+    {
+        final int length = record.remaining();
+        if ( activeSegment == null || ( activeSegment.size > 0 && activeSegment.size + length > maxSegmentSize ) ) {
+            activeSegment = createSegment( activeSegment == null ? 1 : activeSegment.number + 1 );
+        }
+        final long offset = activeSegment.size;
+        writeFully( activeSegment.channel() , record , offset );
+        activeSegment.size += length;
+        activeSegment.dirty = true;
+        updateIndex( chunkID , new Location( activeSegment.number , offset , length ) );
+        recordsSinceCheckpoint++;
+    }
+
+    private Segment createSegment(int number)
+    {
+        final Segment result = new Segment( number , new File( dir , String.format( SEGMENT_PREFIX+"%08d"+SEGMENT_SUFFIX , number ) ) );
+        segments.put( number , result );
+        return result;
+    }
+
+    private void updateIndex(long chunkID,Location location)
+    {
+        final Location previous = index.put( chunkID , location );
+        if ( previous != null )
+        {
+            final Segment segment = segments.get( previous.segment );
+            if ( segment != null ) {
+                segment.liveBytes -= previous.length;
+            }
+        }
+        segments.get( location.segment ).liveBytes += location.length;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException
+    {
+        if ( ! opened ) {
+            return;
+        }
+        for ( Segment segment : segments.values() ) {
+            segment.sync();
+        }
+        if ( recordsSinceCheckpoint >= CHECKPOINT_INTERVAL ) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes the index to disk.
+     *
+     * <p>All segments are synced first so that the checkpoint never refers to data that might get lost in a crash.</p>
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException
+    {
+        open();
+        for ( Segment segment : segments.values() ) {
+            segment.sync();
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( 4+4+4+8+4 + index.size * (8+4+8+4) + 4 );
+        buffer.putInt( INDEX_MAGIC ).putInt( INDEX_VERSION );
+        buffer.putInt( activeSegment == null ? 0 : activeSegment.number );
+        buffer.putLong( activeSegment == null ? 0 : activeSegment.size );
+        buffer.putInt( index.size );
+        for ( LongMap.Entry<Location> entry : index.entries() )
+        {
+            buffer.putLong( entry.key );
+            buffer.putInt( entry.value.segment ).putLong( entry.value.offset ).putInt( entry.value.length );
+        }
+        buffer.putInt( checksum( buffer.array() , 0 , buffer.position() ) );
+        buffer.flip();
+
+        final File file = new File( dir , INDEX_FILE );
+        final File tmpFile = new File( dir , INDEX_FILE+".tmp" );
+        try ( FileChannel out = FileChannel.open( tmpFile.toPath() , StandardOpenOption.CREATE , StandardOpenOption.TRUNCATE_EXISTING , StandardOpenOption.WRITE ) )
+        {
+            writeFully( out , buffer , 0 );
+            out.force( true );
+        }
+        Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+        ChunkFile.syncDirectory( dir );
+        recordsSinceCheckpoint = 0;
+    }
+
+    private void open() throws IOException
+    {
+        if ( opened ) {
+            return;
+        }
+        final File[] files = dir.listFiles( (d,name) -> name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) );
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                final String number = file.getName().substring( SEGMENT_PREFIX.length() , file.getName().length() - SEGMENT_SUFFIX.length() );
+                try {
+                    final Segment segment = createSegment( Integer.parseInt( number ) );
+                    segment.size = file.length();
+                } catch(NumberFormatException e) {
+                    LOG.warn("open(): Ignoring file "+file.getAbsolutePath());
+                }
+            }
+        }
+
+        int replaySegment = segments.isEmpty() ? 0 : segments.firstKey();
+        long replayOffset = 0;
+        final File indexFile = new File( dir , INDEX_FILE );
+        if ( indexFile.exists() )
+        {
+            final ByteBuffer buffer = ByteBuffer.wrap( Files.readAllBytes( indexFile.toPath() ) );
+            final int magic = buffer.getInt();
+            final int version = buffer.getInt();
+            if ( magic != INDEX_MAGIC || version != INDEX_VERSION ) {
+                throw new IOException("Index "+indexFile.getAbsolutePath()+" has unsupported magic/version: 0x"+Integer.toHexString( magic )+" / "+version);
+            }
+            if ( buffer.getInt( buffer.limit() - 4 ) != checksum( buffer.array() , 0 , buffer.limit() - 4 ) ) {
+                throw new IOException("Checksum mismatch in index "+indexFile.getAbsolutePath());
+            }
+            replaySegment = buffer.getInt();
+            replayOffset = buffer.getLong();
+            final int count = buffer.getInt();
+            for ( int i = 0 ; i < count ; i++ )
+            {
+                final long chunkID = buffer.getLong();
+                final Location location = new Location( buffer.getInt() , buffer.getLong() , buffer.getInt() );
+                if ( ! segments.containsKey( location.segment ) ) {
+                    throw new IOException("Index "+indexFile.getAbsolutePath()+" refers to missing segment "+location.segment);
+                }
+                updateIndex( chunkID , location );
+            }
+            LOG.info("open(): Loaded "+count+" chunk locations from "+indexFile.getAbsolutePath());
+        }
+
+        // scan records appended after the checkpoint
+        int replayed = 0;
+        for ( Segment segment : new ArrayList<>( segments.tailMap( replaySegment , true ).values() ) )
+        {
+            replayed += replay( segment , segment.number == replaySegment ? replayOffset : 0 );
+        }
+        if ( replayed > 0 ) {
+            LOG.info("open(): Replayed "+replayed+" records appended after the last checkpoint in "+dir.getAbsolutePath());
+        }
+        activeSegment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        recordsSinceCheckpoint = replayed;
+        opened = true;
+    }
+
+    private int replay(Segment segment,long offset) throws IOException
+    {
+        int count = 0;
+        final ByteBuffer header = ByteBuffer.allocate( RECORD_HEADER_SIZE );
+        ByteBuffer record = ByteBuffer.allocate( 64*1024 );
+        while ( offset + RECORD_HEADER_SIZE <= segment.size )
+        {
+            header.clear();
+            readFully( segment , header , offset );
+            header.flip();
+            final int magic = header.getInt();
+            final int length = header.getInt();
+            if ( magic != RECORD_MAGIC || length < 0 || offset + RECORD_HEADER_SIZE + length > segment.size ) {
+                break;
+            }
+            if ( record.capacity() < RECORD_HEADER_SIZE + length ) {
+                record = ByteBuffer.allocate( RECORD_HEADER_SIZE + length );
+            }
+            record.clear().limit( RECORD_HEADER_SIZE + length );
+            readFully( segment , record , offset );
+            record.flip();
+            final long chunkID;
+            try {
+                chunkID = readRecordHeader( record , segment , offset );
+            } catch(IOException e) {
+                break;
+            }
+            updateIndex( chunkID , new Location( segment.number , offset , RECORD_HEADER_SIZE + length ) );
+            offset += RECORD_HEADER_SIZE + length;
+            count++;
+        }
+        if ( offset < segment.size )
+        {
+            LOG.warn("replay(): Discarding "+(segment.size - offset)+" bytes of torn/corrupted records at offset "+offset+" in "+segment.file.getAbsolutePath());
+            segment.channel().truncate( offset );
+            segment.size = offset;
+        }
+        return count;
+    }
+
+    /**
+     * Compacts all segments whose fraction of live data is below {@link #COMPACTION_THRESHOLD}.
+     *
+     * <p>Live records are copied to the end of the log one at a time so that other threads are never blocked for long.</p>
+     *
+     * @return number of segments that got deleted
+     * @throws IOException
+     */
+    public int compact() throws IOException
+    {
+        final List<Segment> candidates = new ArrayList<>();
+        synchronized( this )
+        {
+            open();
+            for ( Segment segment : segments.values() )
+            {
+                if ( segment != activeSegment && segment.liveBytes < segment.size * COMPACTION_THRESHOLD ) {
+                    candidates.add( segment );
+                }
+            }
+        }
+        if ( candidates.isEmpty() ) {
+            return 0;
+        }
+
+        for ( Segment segment : candidates )
+        {
+            final long[] chunkIDs;
+            synchronized( this )
+            {
+                final LongMap.Keys keys = index.keys();
+                final List<Long> live = new ArrayList<>();
+                while ( keys.hasNext )
+                {
+                    final long chunkID = keys.next();
+                    if ( index.get( chunkID ).segment == segment.number ) {
+                        live.add( chunkID );
+                    }
+                }
+                chunkIDs = live.stream().mapToLong( Long::longValue ).toArray();
+            }
+            for ( long chunkID : chunkIDs )
+            {
+                synchronized( this )
+                {
+                    final Location location = index.get( chunkID );
+                    // chunk might have been written again in the meantime
+                    if ( location != null && location.segment == segment.number )
+                    {
+                        final ByteBuffer record = ByteBuffer.allocate( location.length );
+                        readFully( segment , record , location.offset );
+                        record.flip();
+                        append( chunkID , record );
+                    }
+                }
+            }
+        }
+
+        synchronized( this )
+        {
+            // the checkpoint must no longer refer to the segments before they can be deleted
+            checkpoint();
+            long reclaimed = 0;
+            for ( Segment segment : candidates )
+            {
+                if ( segment.liveBytes != 0 ) {
+                    throw new IllegalStateException("Segment "+segment+" still holds live records after compaction");
+                }
+                reclaimed += segment.size;
+                segment.close();
+                segments.remove( segment.number );
+                Files.deleteIfExists( segment.file.toPath() );
+            }
+            LOG.info("compact(): Deleted "+candidates.size()+" segments, reclaimed "+(reclaimed/1024)+" KB in "+dir.getAbsolutePath());
+        }
+        return candidates.size();
+    }
+
+    private synchronized void startCompactor()
+    {
+        if ( compactorThread == null )
+        {
+            terminate = false;
+            compactorThread = new Thread( this::compactorLoop , "chunk-log-compactor" );
+            compactorThread.setDaemon( true );
+            compactorThread.start();
+        }
+    }
+
+    private void compactorLoop()
+    {
+        while ( true )
+        {
+            synchronized( this )
+            {
+                final long deadline = System.currentTimeMillis() + COMPACTION_INTERVAL_MILLIS;
+                long remaining;
+                while ( ! terminate && ( remaining = deadline - System.currentTimeMillis() ) > 0 )
+                {
+                    try {
+                        wait( remaining );
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if ( terminate ) {
+                    return;
+                }
+            }
+            try {
+                compact();
+            } catch(Exception e) {
+                LOG.error("compactorLoop(): Compacting "+dir.getAbsolutePath()+" failed",e);
+            }
+        }
+    }
+
+    private void readFully(Segment segment,ByteBuffer buffer,long position) throws IOException
+    {
+        final FileChannel channel = segment.channel();
+        while ( buffer.hasRemaining() )
+        {
+            final int read = channel.read( buffer , position );
+            if ( read == -1 ) {
+                throw new IOException("Premature end of file "+segment.file.getAbsolutePath()+" at offset "+position);
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException
+    {
+        while ( buffer.hasRemaining() ) {
+            position += channel.write( buffer , position );
+        }
+    }
+
+    /**
+     * Stops the compactor, checkpoints the index and closes all segment files.
+     *
+     * <p>The storage may still be used afterwards.</p>
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final Thread thread;
+        synchronized( this )
+        {
+            terminate = true;
+            notifyAll();
+            thread = compactorThread;
+            compactorThread = null;
+        }
+        if ( thread != null )
+        {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized( this )
+        {
+            if ( ! opened ) {
+                return;
+            }
+            if ( recordsSinceCheckpoint > 0 ) {
+                checkpoint();
+            }
+            for ( Segment segment : segments.values() ) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of all segments in bytes.
+     *
+     * @return
+     */
+    public synchronized long getSize()
+    {
+        long result = 0;
+        for ( Segment segment : segments.values() ) {
+            result += segment.size;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes held by records that have not been superseded.
+     *
+     * @return
+     */
+    public synchronized long getLiveBytes()
+    {
+        long result = 0;
+        for ( Segment segment : segments.values() ) {
+            result += segment.liveBytes;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "LogStructuredStorage[ "+dir.getAbsolutePath()+" ]";
+    }
+}
@@ -0,0 +1,806 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.utils.IntIntMap;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.ChunkKey;
+
+/**
+ * A file holding the data of up to {@link #CHUNKS_PER_REGION} chunks.
+ *
+ * <p>A region covers a cube of {@link #REGION_SIZE}<sup>3</sup> chunks. The file is divided into sectors of {@link #SECTOR_SIZE} bytes,
+ * the first {@link #HEADER_SECTORS} sectors hold the file header:</p>
+ * <pre>
+ * int magic
+ * int version
+ * int[CHUNKS_PER_REGION*2] (first sector, length in bytes) of each chunk, first sector is 0 if the chunk is not stored
+ * int[CHUNKS_PER_REGION] uniform chunk table (since version 2)
+ * </pre>
+ * <p>Chunks whose blocks all have the same type and light level (all-air or all-solid chunks) occupy no sectors at all,
+ * they are only recorded in the uniform chunk table, see {@link #writeUniform(int, int, byte, boolean)}.</p>
+ *
+ * <p>If {@link #SHARE_IDENTICAL_DATA} is enabled, chunks whose data is byte-identical to data already stored in this region
+ * share the same sectors (content addressing by hash). Since the header is the only place that refers to sectors, reference counts
+ * are recomputed from it whenever the file is opened and sectors are released as soon as no header entry refers to them anymore.</p>
+ *
+ * <p>Chunks are indexed by the Morton code (Z-order curve) of their position inside the region, so spatially adjacent chunks
+ * get adjacent header entries and {@link #compact()} lays them out next to each other on disk.</p>
+ *
+ * <p>Writes never overwrite the sectors currently used by a chunk. The new data is written to free sectors first and only
+ * then the header entry is updated, so a crash while writing leaves the previous version of the chunk intact.
+ * Sectors released by a write without <code>sync</code> are only handed out again after the next {@link #sync()}: until then the
+ * header on disk may still refer to them and reusing them earlier could leave it pointing at some other chunk's data after a crash.</p>
+ *
+ * <p>Chunks can either be read into a byte array or decoded directly from a memory-mapping of the file,
+ * see {@link #readMapped(int, IDecoder)}.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RegionFile implements Closeable
+{
+    private static final Logger LOG = Logger.getLogger(RegionFile.class);
+
+    /**
+     * Size of a region along each axis (in chunks).
+     */
+    public static final int REGION_SIZE = 8;
+
+    public static final int CHUNKS_PER_REGION = REGION_SIZE*REGION_SIZE*REGION_SIZE;
+
+    public static final int SECTOR_SIZE = 4096;
+
+    /**
+     * Whether chunks with identical data should share sectors.
+     */
+    public static final boolean SHARE_IDENTICAL_DATA = true;
+
+    protected static final int MAGIC = 0xdeadbeef;
+
+    protected static final int VERSION = 2;
+
+    // version 1 files have no uniform chunk table , since the header is padded with zeros to a full sector they can be read just the same
+    protected static final int VERSION_NO_UNIFORM_TABLE = 1;
+
+    // magic + version + table + uniform chunk table
+    protected static final int HEADER_SIZE = 4 + 4 + CHUNKS_PER_REGION*2*4 + CHUNKS_PER_REGION*4;
+
+    private static final int UNIFORM_TABLE_OFFSET = 4 + 4 + CHUNKS_PER_REGION*2*4;
+
+    // marks a uniform chunk table entry as being in use
+    private static final int UNIFORM_FLAG = 1<<31;
+
+    public static final int HEADER_SECTORS = (HEADER_SIZE + SECTOR_SIZE - 1 ) / SECTOR_SIZE;
+
+    private static final int LOCAL_MASK = REGION_SIZE-1;
+
+    // per-thread buffers used by read(int,IDecoder)
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial( () -> ByteBuffer.allocate( 64*1024 ) );
+
+    private final File file;
+
+    private final int[] sectorOffsets = new int[ CHUNKS_PER_REGION ];
+    private final int[] lengths = new int[ CHUNKS_PER_REGION ];
+    private final int[] uniformChunks = new int[ CHUNKS_PER_REGION ];
+
+    private final BitSet usedSectors = new BitSet();
+
+    // released sectors that stay marked as used until the header no longer referring to them has been forced to disk
+    private final BitSet pendingFree = new BitSet();
+
+    // runs of sectors referred to by header entries , by first sector
+    private final IntMap<Run> runs = new IntMap<>();
+
+    // runs by content hash , only built when needed since it requires reading all chunks
+    private LongMap<Run> runsByHash;
+
+    private FileChannel channel;
+    private boolean headerLoaded;
+    private int version = VERSION;
+
+    // set when the file was found not to exist , only this instance ever creates it so there is no need to check again
+    private boolean knownMissing;
+
+    // whether data has been written since the last sync
+    private boolean dirty;
+
+    // read-only mapping of the whole file, discarded whenever the file gets written
+    private MappedByteBuffer mapping;
+
+    protected static final class Run
+    {
+        public final int sector;
+        public final int length;
+        public int references;
+        public long hash;
+
+        public Run(int sector,int length)
+        {
+            this.sector = sector;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Space usage of a region file.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Usage
+    {
+        /**
+         * Number of chunks stored in sectors.
+         */
+        public final int chunks;
+        public final int uniformChunks;
+        /**
+         * Number of chunks whose data is shared with some other chunk.
+         */
+        public final int sharedChunks;
+        /**
+         * Total data size of all chunks stored in sectors.
+         */
+        public final long referencedBytes;
+        /**
+         * Data size actually stored , excluding shared data.
+         */
+        public final long storedBytes;
+        public final long fileSize;
+
+        protected Usage(int chunks, int uniformChunks, int sharedChunks, long referencedBytes, long storedBytes, long fileSize)
+        {
+            this.chunks = chunks;
+            this.uniformChunks = uniformChunks;
+            this.sharedChunks = sharedChunks;
+            this.referencedBytes = referencedBytes;
+            this.storedBytes = storedBytes;
+            this.fileSize = fileSize;
+        }
+    }
+
+    /**
+     * Decodes chunk data.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface IDecoder<T>
+    {
+        public T decode(ByteBuffer data) throws IOException;
+    }
+
+    public RegionFile(File file)
+    {
+        Validate.notNull(file, "file must not be NULL");
+        this.file = file;
+    }
+
+    /**
+     * Returns the Morton code of a chunk position inside a region.
+     *
+     * @param localX
+     * @param localY
+     * @param localZ
+     * @return
+     */
+    public static int mortonIndex(int localX,int localY,int localZ)
+    {
+        return spreadBits( localX ) | spreadBits( localY ) << 1 | spreadBits( localZ ) << 2;
+    }
+
+    private static int spreadBits(int value)
+    {
+        // 3 bits -> bit positions 0,3,6
+        return ( value & 1 ) | ( value & 2 ) << 2 | ( value & 4 ) << 4;
+    }
+
+    /**
+     * Returns the index of a chunk inside its region.
+     *
+     * @param key
+     * @return
+     */
+    public static int localIndex(ChunkKey key)
+    {
+        return mortonIndex( key.x & LOCAL_MASK , key.y & LOCAL_MASK , key.z & LOCAL_MASK );
+    }
+
+    /**
+     * Returns the coordinate of the region that contains a given chunk coordinate.
+     *
+     * @param chunkCoordinate
+     * @return
+     */
+    public static int regionCoordinate(int chunkCoordinate) {
+        return Math.floorDiv( chunkCoordinate , REGION_SIZE );
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the data of a chunk.
+     *
+     * @param localIndex
+     * @return chunk data or <code>null</code> if the chunk is not stored in this region
+     * @throws IOException
+     * @see #localIndex(ChunkKey)
+     */
+    public synchronized byte[] read(int localIndex) throws IOException
+    {
+        if ( ! open( false ) ) {
+            return null;
+        }
+        final int sector = sectorOffsets[ localIndex ];
+        if ( sector == 0 ) {
+            return null;
+        }
+        final byte[] result = new byte[ lengths[ localIndex ] ];
+        readFully( ByteBuffer.wrap( result ) , (long) sector * SECTOR_SIZE );
+        return result;
+    }
+
+    /**
+     * Reads the data of a chunk into a per-thread buffer and decodes it.
+     *
+     * <p>Unlike {@link #readMapped(int, IDecoder)} the decoder is invoked without holding this region's lock.
+     * The buffer passed to the decoder is only valid until the calling thread reads the next chunk.</p>
+     *
+     * @param localIndex
+     * @param decoder
+     * @return decoder result or <code>null</code> if the chunk is not stored in this region
+     * @throws IOException
+     * @see #localIndex(ChunkKey)
+     */
+    public <T> T read(int localIndex,IDecoder<T> decoder) throws IOException
+    {
+        ByteBuffer buffer;
+        synchronized( this )
+        {
+            if ( ! open( false ) ) {
+                return null;
+            }
+            final int sector = sectorOffsets[ localIndex ];
+            if ( sector == 0 ) {
+                return null;
+            }
+            final int length = lengths[ localIndex ];
+            buffer = READ_BUFFER.get();
+            if ( buffer.capacity() < length )
+            {
+                buffer = ByteBuffer.allocate( Math.max( length , buffer.capacity()*2 ) );
+                READ_BUFFER.set( buffer );
+            }
+            buffer.clear().limit( length );
+            readFully( buffer , (long) sector * SECTOR_SIZE );
+            buffer.flip();
+        }
+        return decoder.decode( buffer );
+    }
+
+    /**
+     * Decodes the data of a chunk straight from a memory-mapping of this file.
+     *
+     * <p>The decoder is invoked while holding this region's lock since the buffer
+     * becomes invalid as soon as the chunk gets rewritten.</p>
+     *
+     * @param localIndex
+     * @param decoder
+     * @return decoder result or <code>null</code> if the chunk is not stored in this region
+     * @throws IOException
+     * @see #localIndex(ChunkKey)
+     */
+    public synchronized <T> T readMapped(int localIndex,IDecoder<T> decoder) throws IOException
+    {
+        if ( ! open( false ) ) {
+            return null;
+        }
+        final int sector = sectorOffsets[ localIndex ];
+        if ( sector == 0 ) {
+            return null;
+        }
+        final int start = sector * SECTOR_SIZE;
+        final int end = start + lengths[ localIndex ];
+        if ( mapping == null || mapping.capacity() < end ) {
+            mapping = channel.map( MapMode.READ_ONLY , 0 , channel.size() );
+        }
+        final ByteBuffer data = mapping.duplicate();
+        data.limit( end ).position( start );
+        return decoder.decode( data.slice() );
+    }
+
+    /**
+     * Returns whether a chunk is stored in this region.
+     *
+     * @param localIndex
+     * @return
+     * @throws IOException
+     */
+    public synchronized boolean contains(int localIndex) throws IOException
+    {
+        return open( false ) && ( sectorOffsets[ localIndex ] != 0 || uniformChunks[ localIndex ] != 0 );
+    }
+
+    /**
+     * Returns the block type and light level of a uniform chunk.
+     *
+     * <p>Uniform chunks are answered from the header that is loaded once when the file is opened,
+     * no I/O is done.</p>
+     *
+     * @param localIndex
+     * @return -1 if the chunk is not stored as a uniform chunk, otherwise the block type in the lower 16 bits
+     * and the light level in the next 8 bits, see {@link #uniformBlockType(int)} and {@link #uniformLightLevel(int)}
+     * @throws IOException
+     * @see #writeUniform(int, int, byte, boolean)
+     */
+    public synchronized int readUniform(int localIndex) throws IOException
+    {
+        if ( ! open( false ) ) {
+            return -1;
+        }
+        final int entry = uniformChunks[ localIndex ];
+        return entry == 0 ? -1 : entry & ~UNIFORM_FLAG;
+    }
+
+    public static int uniformBlockType(int uniform) {
+        return uniform & 0xffff;
+    }
+
+    public static byte uniformLightLevel(int uniform) {
+        return (byte) ( uniform >>> 16 );
+    }
+
+    /**
+     * Records a chunk whose blocks all have the same type and light level.
+     *
+     * <p>Sectors previously used by the chunk are released.</p>
+     *
+     * @param localIndex
+     * @param blockType
+     * @param lightLevel
+     * @param sync whether to force all data to the storage device before returning
+     * @throws IOException
+     */
+    public synchronized void writeUniform(int localIndex,int blockType,byte lightLevel,boolean sync) throws IOException
+    {
+        Validate.isTrue( blockType >= 0 && blockType <= 0xffff , "block type out of range: "+blockType);
+        open( true );
+        mapping = null;
+
+        // uniform entries take precedence over sector entries , so setting it first makes the change atomic
+        writeUniformEntry( localIndex , UNIFORM_FLAG | ( lightLevel & 0xff ) << 16 | blockType );
+        final int oldSector = sectorOffsets[ localIndex ];
+        if ( oldSector != 0 )
+        {
+            writeHeaderEntry( localIndex , 0 , 0 );
+            release( oldSector );
+        }
+        if ( sync ) {
+            forced();
+        }
+        dirty = ! sync;
+    }
+
+    /**
+     * Writes the data of a chunk.
+     *
+     * @param localIndex
+     * @param data
+     * @param length number of bytes to write
+     * @param sync whether to force all data to the storage device before returning
+     * @throws IOException
+     * @see #localIndex(ChunkKey)
+     */
+    public synchronized void write(int localIndex,byte[] data,int length,boolean sync) throws IOException
+    {
+        Validate.isTrue( length > 0 , "length must be > 0");
+        open( true );
+        // changes made through the channel are not guaranteed to be visible through the mapping
+        mapping = null;
+
+        final long hash = SHARE_IDENTICAL_DATA ? hash( data , length ) : 0;
+        Run run = SHARE_IDENTICAL_DATA ? findIdentical( hash , data , length ) : null;
+        if ( run == null )
+        {
+            run = new Run( allocate( sectorCount( length ) ) , length );
+            run.hash = hash;
+            writeFully( ByteBuffer.wrap( data , 0 , length ) , (long) run.sector * SECTOR_SIZE );
+            if ( sync ) {
+                channel.force( false );
+            }
+            runs.put( run.sector , run );
+            if ( runsByHash != null ) {
+                runsByHash.put( hash , run );
+            }
+        }
+        run.references++;
+
+        final int oldSector = sectorOffsets[ localIndex ];
+        writeHeaderEntry( localIndex , run.sector , length );
+        if ( sync ) {
+            channel.force( false );
+        }
+        if ( oldSector != 0 ) {
+            release( oldSector );
+        }
+        if ( uniformChunks[ localIndex ] != 0 ) {
+            writeUniformEntry( localIndex , 0 );
+        }
+        if ( sync ) {
+            forced();
+        }
+        dirty = ! sync;
+    }
+
+    // forces all changes to disk , sectors released so far are no longer referred to by the header on disk
+    private void forced() throws IOException
+    {
+        channel.force( false );
+        usedSectors.andNot( pendingFree );
+        pendingFree.clear();
+    }
+
+    // drops a reference to a sector run , its sectors become free after the next sync once it is no longer referenced
+    private void release(int sector)
+    {
+        final Run run = runs.get( sector );
+        if ( run != null && --run.references <= 0 )
+        {
+            runs.remove( sector );
+            pendingFree.set( sector , sector + sectorCount( run.length ) );
+            if ( runsByHash != null && runsByHash.get( run.hash ) == run ) {
+                runsByHash.remove( run.hash );
+            }
+        }
+    }
+
+    // returns a stored sector run holding exactly the given data
+    private Run findIdentical(long hash,byte[] data,int length) throws IOException
+    {
+        if ( runsByHash == null )
+        {
+            runsByHash = new LongMap<>();
+            for ( Run run : runs.values() )
+            {
+                final ByteBuffer buffer = ByteBuffer.allocate( run.length );
+                readFully( buffer , (long) run.sector * SECTOR_SIZE );
+                run.hash = hash( buffer.array() , run.length );
+                runsByHash.put( run.hash , run );
+            }
+        }
+        final Run run = runsByHash.get( hash );
+        if ( run == null || run.length != length ) {
+            return null;
+        }
+        // rule out hash collisions
+        final ByteBuffer buffer = ByteBuffer.allocate( length );
+        readFully( buffer , (long) run.sector * SECTOR_SIZE );
+        final byte[] existing = buffer.array();
+        for ( int i = 0 ; i < length ; i++ )
+        {
+            if ( existing[i] != data[i] ) {
+                return null;
+            }
+        }
+        return run;
+    }
+
+    // 64-bit FNV-1a
+    private static long hash(byte[] data,int length)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for ( int i = 0 ; i < length ; i++ )
+        {
+            hash ^= data[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the space usage of this region.
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized Usage getUsage() throws IOException
+    {
+        if ( ! open( false ) ) {
+            return new Usage( 0 , 0 , 0 , 0 , 0 , 0 );
+        }
+        int chunks = 0;
+        int uniform = 0;
+        int shared = 0;
+        long referencedBytes = 0;
+        for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ )
+        {
+            if ( uniformChunks[i] != 0 ) {
+                uniform++;
+            }
+            else if ( sectorOffsets[i] != 0 )
+            {
+                chunks++;
+                referencedBytes += lengths[i];
+                if ( runs.get( sectorOffsets[i] ).references > 1 ) {
+                    shared++;
+                }
+            }
+        }
+        long storedBytes = 0;
+        for ( Run run : runs.values() ) {
+            storedBytes += run.length;
+        }
+        return new Usage( chunks , uniform , shared , referencedBytes , storedBytes , channel.size() );
+    }
+
+    /**
+     * Forces all data written so far to the storage device.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException
+    {
+        if ( dirty && channel != null ) {
+            forced();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Rewrites this region so that chunks are stored back-to-back in Morton order.
+     *
+     * <p>This gets rid of unused sectors and restores on-disk locality after chunks got rewritten many times.</p>
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException
+    {
+        if ( ! open( false ) ) {
+            return;
+        }
+        final File tmpFile = new File( file.getParentFile() , file.getName()+".tmp" );
+        final int[] newOffsets = new int[ CHUNKS_PER_REGION ];
+        try ( RandomAccessFile out = new RandomAccessFile( tmpFile , "rw" ) ; FileChannel outChannel = out.getChannel() )
+        {
+            // shared sector runs are copied only once
+            final IntIntMap copied = new IntIntMap();
+            int nextSector = HEADER_SECTORS;
+            for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ )
+            {
+                if ( sectorOffsets[i] != 0 )
+                {
+                    newOffsets[i] = copied.get( sectorOffsets[i] , 0 );
+                    if ( newOffsets[i] == 0 )
+                    {
+                        final ByteBuffer buffer = ByteBuffer.allocate( lengths[i] );
+                        readFully( buffer , (long) sectorOffsets[i] * SECTOR_SIZE );
+                        buffer.flip();
+                        writeFully( outChannel , buffer , (long) nextSector * SECTOR_SIZE );
+                        copied.put( sectorOffsets[i] , nextSector );
+                        newOffsets[i] = nextSector;
+                        nextSector += sectorCount( lengths[i] );
+                    }
+                }
+            }
+            writeFully( outChannel , createHeader( newOffsets , lengths , uniformChunks ) , 0 );
+            outChannel.force( true );
+        }
+        close();
+        mapping = null;
+        Files.move( tmpFile.toPath() , file.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+        headerLoaded = false;
+    }
+
+    private static int sectorCount(int length) {
+        return ( length + SECTOR_SIZE - 1 ) / SECTOR_SIZE;
+    }
+
+    // first-fit allocation of a run of free sectors
+    private int allocate(int sectorCount)
+    {
+        int start = usedSectors.nextClearBit( HEADER_SECTORS );
+        while ( true )
+        {
+            final int nextUsed = usedSectors.nextSetBit( start );
+            if ( nextUsed == -1 || nextUsed - start >= sectorCount )
+            {
+                usedSectors.set( start , start + sectorCount );
+                return start;
+            }
+            start = usedSectors.nextClearBit( nextUsed );
+        }
+    }
+
+    // returns false if the file does not exist and create is false
+    private boolean open(boolean create) throws IOException
+    {
+        if ( channel != null ) {
+            return true;
+        }
+        if ( knownMissing && ! create ) {
+            return false;
+        }
+        final boolean exists = ! knownMissing && file.exists();
+        if ( ! exists && ! create )
+        {
+            knownMissing = true;
+            return false;
+        }
+        knownMissing = false;
+        channel = new RandomAccessFile( file , "rw" ).getChannel();
+        if ( ! exists || channel.size() == 0 )
+        {
+            for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ ) {
+                sectorOffsets[i] = lengths[i] = uniformChunks[i] = 0;
+            }
+            version = VERSION;
+            writeFully( createHeader( sectorOffsets , lengths , uniformChunks ) , 0 );
+        }
+        else if ( ! headerLoaded )
+        {
+            readHeader();
+        }
+        headerLoaded = true;
+        usedSectors.clear();
+        usedSectors.set( 0 , HEADER_SECTORS );
+        pendingFree.clear();
+        runs.clear();
+        runsByHash = null;
+        for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ )
+        {
+            if ( sectorOffsets[i] != 0 )
+            {
+                usedSectors.set( sectorOffsets[i] , sectorOffsets[i] + sectorCount( lengths[i] ) );
+                Run run = runs.get( sectorOffsets[i] );
+                if ( run == null )
+                {
+                    run = new Run( sectorOffsets[i] , lengths[i] );
+                    runs.put( run.sector , run );
+                }
+                run.references++;
+            }
+        }
+        return true;
+    }
+
+    private void readHeader() throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        readFully( header , 0 );
+        header.flip();
+        final int magic = header.getInt();
+        if ( magic != MAGIC ) {
+            throw new IOException("Not a region file (bad magic 0x"+Integer.toHexString( magic )+"): "+file.getAbsolutePath());
+        }
+        version = header.getInt();
+        if ( version != VERSION && version != VERSION_NO_UNIFORM_TABLE ) {
+            throw new IOException("Unsupported region file version "+version+": "+file.getAbsolutePath());
+        }
+        final long maxSector = channel.size() / SECTOR_SIZE + 1;
+        for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ )
+        {
+            sectorOffsets[i] = header.getInt();
+            lengths[i] = header.getInt();
+            if ( sectorOffsets[i] != 0 && ( sectorOffsets[i] < HEADER_SECTORS || sectorOffsets[i] > maxSector || lengths[i] <= 0 ) )
+            {
+                LOG.error("readHeader(): Ignoring corrupted entry #"+i+" ( sector "+sectorOffsets[i]+", length "+lengths[i]+") in "+file.getAbsolutePath());
+                sectorOffsets[i] = lengths[i] = 0;
+            }
+        }
+        for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ ) {
+            uniformChunks[i] = header.getInt();
+        }
+    }
+
+    private static ByteBuffer createHeader(int[] offsets,int[] lengths,int[] uniformChunks)
+    {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SECTORS * SECTOR_SIZE );
+        header.putInt( MAGIC ).putInt( VERSION );
+        for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ ) {
+            header.putInt( offsets[i] ).putInt( lengths[i] );
+        }
+        for ( int i = 0 ; i < CHUNKS_PER_REGION ; i++ ) {
+            header.putInt( uniformChunks[i] );
+        }
+        header.clear();
+        return header;
+    }
+
+    private void writeHeaderEntry(int localIndex,int sector,int length) throws IOException
+    {
+        final ByteBuffer entry = ByteBuffer.allocate( 8 );
+        entry.putInt( sector ).putInt( length ).flip();
+        writeFully( entry , 8 + localIndex * 8 );
+        sectorOffsets[ localIndex ] = sector;
+        lengths[ localIndex ] = length;
+    }
+
+    private void writeUniformEntry(int localIndex,int entry) throws IOException
+    {
+        if ( version != VERSION )
+        {
+            final ByteBuffer versionField = ByteBuffer.allocate( 4 );
+            versionField.putInt( VERSION ).flip();
+            writeFully( versionField , 4 );
+            version = VERSION;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate( 4 );
+        buffer.putInt( entry ).flip();
+        writeFully( buffer , UNIFORM_TABLE_OFFSET + localIndex * 4 );
+        uniformChunks[ localIndex ] = entry;
+    }
+
+    private void readFully(ByteBuffer buffer,long position) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            final int read = channel.read( buffer , position );
+            if ( read == -1 ) {
+                throw new IOException("Premature end of file "+file.getAbsolutePath()+" at offset "+position);
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer,long position) throws IOException {
+        writeFully( channel , buffer , position );
+    }
+
+    private static void writeFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException
+    {
+        while ( buffer.hasRemaining() ) {
+            position += channel.write( buffer , position );
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        mapping = null;
+        if ( channel != null )
+        {
+            try {
+                // sync() can no longer reach this data once the channel is gone
+                sync();
+            } finally {
+                closeChannel();
+            }
+        }
+    }
+
+    private void closeChannel() throws IOException
+    {
+        if ( channel != null )
+        {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RegionFile[ "+file.getAbsolutePath()+" ]";
+    }
+}
@@ -0,0 +1,173 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import de.codesourcery.voxelengine.model.ChunkKey;
+
+/**
+ * Moves chunks from per-chunk files ({@link ChunkFileStorage}) into region files ({@link RegionFileStorage}).
+ *
+ * <p>Chunk files are copied as-is without decoding them. Chunks that are already present in a region file are skipped
+ * since the region file holds the more recent data. After migration each affected region file gets {@link RegionFile#compact() compacted}
+ * so that chunks are laid out in Morton order.</p>
+ *
+ * <p>Files that cannot be migrated (unreadable , not holding the chunk their name says , or holding different data than
+ * the region file already does) are logged and skipped. They are never deleted , so no data is lost if it needs to be recovered by hand.</p>
+ *
+ * <p>Usage: <code>RegionFileMigrator [--keep] &lt;chunk directory&gt;</code></p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RegionFileMigrator
+{
+    private static final Logger LOG = Logger.getLogger(RegionFileMigrator.class);
+
+    public static void main(String[] args) throws IOException
+    {
+        boolean keep = false;
+        File dir = null;
+        for ( String arg : args )
+        {
+            if ( "--keep".equals( arg ) ) {
+                keep = true;
+            } else if ( dir == null ) {
+                dir = new File( arg );
+            } else {
+                dir = null;
+                break;
+            }
+        }
+        if ( dir == null || ! dir.isDirectory() )
+        {
+            System.err.println("Usage: [--keep] <chunk directory>\n\n--keep : do not delete chunk files after migrating them");
+            System.exit(1);
+            return;
+        }
+        final int count = migrate( dir , ! keep );
+        System.out.println("Migrated "+count+" chunks.");
+    }
+
+    /**
+     * Returns whether a directory contains per-chunk files.
+     *
+     * @param chunkDir
+     * @return
+     */
+    public static boolean hasChunkFiles(File chunkDir)
+    {
+        final File[] files = chunkDir.listFiles( (dir,name) -> name.endsWith( ChunkFileStorage.FILE_SUFFIX ) );
+        return files != null && files.length > 0;
+    }
+
+    /**
+     * Migrates all per-chunk files in a directory to region files.
+     *
+     * @param chunkDir
+     * @param deleteChunkFiles whether to delete chunk files after they've been migrated
+     * @return number of migrated chunks
+     * @throws IOException if region files could not be written
+     */
+    public static int migrate(File chunkDir,boolean deleteChunkFiles) throws IOException
+    {
+        Validate.notNull(chunkDir, "chunkDir must not be NULL");
+
+        final List<ChunkKey> keys = new ArrayList<>();
+        final File[] files = chunkDir.listFiles( (dir,name) -> name.endsWith( ChunkFileStorage.FILE_SUFFIX ) );
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                final ChunkKey key = ChunkFileStorage.getChunkKey( file );
+                if ( key != null ) {
+                    keys.add( key );
+                } else {
+                    LOG.warn("migrate(): Skipping file with unexpected name: "+file.getAbsolutePath());
+                }
+            }
+        }
+
+        // write chunks region by region , in the same order they'll end up on disk
+        keys.sort( Comparator.comparingInt( (ChunkKey k) -> RegionFile.regionCoordinate( k.x ) )
+                .thenComparingInt( k -> RegionFile.regionCoordinate( k.y ) )
+                .thenComparingInt( k -> RegionFile.regionCoordinate( k.z ) )
+                .thenComparingInt( RegionFile::localIndex ) );
+
+        final ChunkFileStorage source = new ChunkFileStorage( chunkDir );
+        final RegionFileStorage target = new RegionFileStorage( chunkDir );
+        final Set<RegionFile> touched = new LinkedHashSet<>();
+        // chunks whose files now have their data in a region file
+        final List<ChunkKey> migrated = new ArrayList<>();
+        int count = 0;
+        int failed = 0;
+        try
+        {
+            for ( ChunkKey key : keys )
+            {
+                final File file = source.getFile( key );
+                final RegionFile region = target.getRegion( key );
+                final int localIndex = RegionFile.localIndex( key );
+                try
+                {
+                    final byte[] data = Files.readAllBytes( file.toPath() );
+                    if ( region.contains( localIndex ) )
+                    {
+                        if ( Arrays.equals( data , region.read( localIndex ) ) ) {
+                            LOG.info("migrate(): Region file already contains chunk "+key+", skipping "+file.getAbsolutePath());
+                            migrated.add( key );
+                        } else {
+                            LOG.warn("migrate(): Region file already contains a different version of chunk "+key+", keeping "+file.getAbsolutePath());
+                            failed++;
+                        }
+                        continue;
+                    }
+                    // make sure the file can actually be read
+                    if ( ! key.equals( source.load( key ).chunkKey ) ) {
+                        throw new IOException("File "+file.getAbsolutePath()+" does not contain chunk "+key);
+                    }
+                    region.write( localIndex , data , data.length , false );
+                    touched.add( region );
+                    migrated.add( key );
+                    count++;
+                }
+                catch(IOException | RuntimeException e)
+                {
+                    LOG.error("migrate(): Failed to migrate "+file.getAbsolutePath()+", keeping it",e);
+                    failed++;
+                }
+            }
+            for ( RegionFile region : touched ) {
+                region.compact();
+            }
+        }
+        finally {
+            target.close();
+        }
+
+        if ( deleteChunkFiles )
+        {
+            for ( ChunkKey key : migrated )
+            {
+                final File file = source.getFile( key );
+                if ( ! file.delete() ) {
+                    LOG.warn("migrate(): Failed to delete "+file.getAbsolutePath());
+                }
+            }
+        }
+        if ( failed > 0 ) {
+            LOG.error("migrate(): Failed to migrate "+failed+" chunk files in "+chunkDir.getAbsolutePath()+", these have been kept");
+        }
+        LOG.info("migrate(): Migrated "+count+" chunks into "+touched.size()+" region files in "+chunkDir.getAbsolutePath());
+        return count;
+    }
+}
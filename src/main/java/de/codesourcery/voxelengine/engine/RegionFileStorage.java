@@ -0,0 +1,273 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+import de.codesourcery.voxelengine.model.World;
+
+/**
+ * Chunk storage that groups chunks into {@link RegionFile region files}.
+ *
+ * <p>Each chunk is stored using the {@link ChunkFile} format inside the region file
+ * that covers it. At most {@link #MAX_OPEN_FILES} region files are kept open at any time.</p>
+ *
+ * <p>Region headers double as an index of the chunks that exist on disk: once a region's header has been loaded,
+ * lookups of chunks that were never stored or that are {@link #STORE_UNIFORM_CHUNKS uniform} do no file system I/O.</p>
+ *
+ * <p>Chunks are stored position-independent so that {@link RegionFile#SHARE_IDENTICAL_DATA identical chunks} share their data,
+ * see {@link StorageReport} for the space this saves.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RegionFileStorage implements IChunkStorage
+{
+    private static final Logger LOG = Logger.getLogger(RegionFileStorage.class);
+
+    public static final String FILE_SUFFIX = ".region";
+
+    /**
+     * Max. number of region files kept open at the same time.
+     */
+    public static final int MAX_OPEN_FILES = 64;
+
+    /**
+     * Whether chunks whose blocks all have the same type and light level should only be recorded
+     * in the region header instead of storing their data.
+     */
+    public static final boolean STORE_UNIFORM_CHUNKS = true;
+
+    private final File chunkDir;
+
+    // all regions ever accessed, there must never be more than one RegionFile instance per file
+    private final LongMap<RegionFile> regions = new LongMap<>();
+
+    // regions that (probably) have an open file handle, in LRU order
+    private final LinkedHashMap<Long,RegionFile> openRegions = new LinkedHashMap<>( 16 , 0.75f , true );
+
+    // per-thread serialization buffers , sized for an uncompressed chunk
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial( () -> new Buffer( 160*1024 ) );
+
+    protected static final class Buffer extends ByteArrayOutputStream
+    {
+        public Buffer(int size) {
+            super(size);
+        }
+
+        public byte[] array() {
+            return buf;
+        }
+    }
+
+    private final boolean memoryMapped;
+
+    public RegionFileStorage(File chunkDir)
+    {
+        this( chunkDir , false );
+    }
+
+    /**
+     * Create storage.
+     *
+     * @param chunkDir
+     * @param memoryMapped whether to decode chunks straight from memory-mapped region files
+     */
+    public RegionFileStorage(File chunkDir,boolean memoryMapped)
+    {
+        Validate.notNull(chunkDir, "chunkDir must not be NULL");
+        this.chunkDir = chunkDir;
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Returns the region file that covers a given chunk.
+     *
+     * @param key
+     * @return
+     */
+    public RegionFile getRegion(ChunkKey key)
+    {
+        final int regionX = RegionFile.regionCoordinate( key.x );
+        final int regionY = RegionFile.regionCoordinate( key.y );
+        final int regionZ = RegionFile.regionCoordinate( key.z );
+        final long regionID = ChunkKey.toID( regionX , regionY , regionZ );
+
+        final RegionFile result;
+        List<RegionFile> toClose = null;
+        synchronized( regions )
+        {
+            RegionFile existing = regions.get( regionID );
+            if ( existing == null ) {
+                existing = new RegionFile( new File( chunkDir , regionX+"_"+regionY+"_"+regionZ+FILE_SUFFIX ) );
+                regions.put( regionID , existing );
+            }
+            result = existing;
+            openRegions.put( regionID , result );
+            if ( openRegions.size() > MAX_OPEN_FILES )
+            {
+                toClose = new ArrayList<>();
+                for ( Iterator<RegionFile> it = openRegions.values().iterator() ; it.hasNext() && openRegions.size() > MAX_OPEN_FILES ; )
+                {
+                    toClose.add( it.next() );
+                    it.remove();
+                }
+            }
+        }
+        if ( toClose != null ) {
+            // regions are closed outside of the lock, RegionFile re-opens its file if it is still in use by some other thread
+            for ( RegionFile region : toClose ) {
+                closeQuietly( region );
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Chunk load(ChunkKey key) throws IOException
+    {
+        final RegionFile region = getRegion( key );
+        final int localIndex = RegionFile.localIndex( key );
+        final int uniform = region.readUniform( localIndex );
+        if ( uniform != -1 )
+        {
+            final int[] types = new int[ World.BLOCKS_IN_CHUNK ];
+            final byte[] light = new byte[ World.BLOCKS_IN_CHUNK ];
+            Arrays.fill( types , RegionFile.uniformBlockType( uniform ) );
+            Arrays.fill( light , RegionFile.uniformLightLevel( uniform ) );
+            return new Chunk( key , types , light );
+        }
+        if ( memoryMapped ) {
+            return region.readMapped( localIndex , data -> ChunkFile.load( data , key ) );
+        }
+        return region.read( localIndex , data -> ChunkFile.load( data , key ) );
+    }
+
+    @Override
+    public HaloChunk loadBorders(ChunkKey key) throws IOException
+    {
+        final RegionFile region = getRegion( key );
+        final int localIndex = RegionFile.localIndex( key );
+        final int uniform = region.readUniform( localIndex );
+        if ( uniform != -1 )
+        {
+            final int[] types = new int[ HaloChunk.BORDER_BLOCK_COUNT ];
+            final byte[] light = new byte[ HaloChunk.BORDER_BLOCK_COUNT ];
+            Arrays.fill( types , RegionFile.uniformBlockType( uniform ) );
+            Arrays.fill( light , RegionFile.uniformLightLevel( uniform ) );
+            return new HaloChunk( key , types , light );
+        }
+        if ( memoryMapped ) {
+            return region.readMapped( localIndex , data -> ChunkFile.loadBorders( data , key ) );
+        }
+        return region.read( localIndex , data -> ChunkFile.loadBorders( data , key ) );
+    }
+
+    @Override
+    public void store(Chunk chunk, boolean sync) throws IOException
+    {
+        if ( STORE_UNIFORM_CHUNKS && isUniform( chunk ) )
+        {
+            try {
+                getRegion( chunk.chunkKey ).writeUniform( RegionFile.localIndex( chunk.chunkKey ) , chunk.blockTypes[0] , chunk.lightLevels[0] , sync );
+            }
+            catch(IOException | RuntimeException e)
+            {
+                chunk.setNeedsSave( true );
+                throw e;
+            }
+            chunk.setNeedsSave( false );
+            return;
+        }
+        final Buffer buffer = buffers.get();
+        buffer.reset();
+        // ChunkFile.store() clears the NEEDS_SAVE flag , restore it if writing the region fails.
+        // Chunk data is stored without the chunk's position so that identical chunks can share sectors.
+        ChunkFile.store( chunk , buffer , ChunkFile.DEFAULT_CODEC , RegionFile.SHARE_IDENTICAL_DATA );
+        try {
+            getRegion( chunk.chunkKey ).write( RegionFile.localIndex( chunk.chunkKey ) , buffer.array() , buffer.size() , sync );
+        }
+        catch(IOException | RuntimeException e)
+        {
+            chunk.setNeedsSave( true );
+            throw e;
+        }
+    }
+
+    // returns whether all blocks of a chunk have the same type and light level
+    private static boolean isUniform(Chunk chunk)
+    {
+        final int[] types = chunk.blockTypes;
+        final byte[] light = chunk.lightLevels;
+        final int type = types[0];
+        final byte level = light[0];
+        if ( type < 0 || type > 0xffff ) {
+            return false;
+        }
+        for ( int i = 1 , len = types.length ; i < len ; i++ )
+        {
+            if ( types[i] != type || light[i] != level ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void sync() throws IOException
+    {
+        final List<RegionFile> toSync = new ArrayList<>();
+        synchronized( regions )
+        {
+            for ( RegionFile region : regions.values() ) {
+                toSync.add( region );
+            }
+        }
+        for ( RegionFile region : toSync ) {
+            region.sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // regions evicted from openRegions may have been re-opened by RegionFile itself
+        final List<RegionFile> toClose = new ArrayList<>();
+        synchronized( regions )
+        {
+            for ( RegionFile region : regions.values() ) {
+                toClose.add( region );
+            }
+            openRegions.clear();
+        }
+        for ( RegionFile region : toClose ) {
+            closeQuietly( region );
+        }
+    }
+
+    private static void closeQuietly(RegionFile region)
+    {
+        try {
+            region.close();
+        } catch (IOException e) {
+            LOG.error("closeQuietly(): Failed to close "+region,e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RegionFileStorage[ "+chunkDir.getAbsolutePath()+( memoryMapped ? " , memory-mapped" : "" )+" ]";
+    }
+}
@@ -0,0 +1,109 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Prints how much space the region files of a world use and how much is saved by
+ * {@link RegionFile#SHARE_IDENTICAL_DATA sharing identical chunk data} and by {@link RegionFileStorage#STORE_UNIFORM_CHUNKS uniform chunks}.
+ *
+ * <p>Uniform chunks are counted as saving one sector each since that's the least a stored chunk occupies.</p>
+ *
+ * <p>Usage: <code>StorageReport &lt;chunk directory&gt;</code></p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class StorageReport
+{
+    public int regions;
+    public int chunks;
+    public int uniformChunks;
+    public int sharedChunks;
+    public long referencedBytes;
+    public long storedBytes;
+    public long fileSize;
+
+    public static void main(String[] args) throws IOException
+    {
+        final File dir = args.length == 1 ? new File( args[0] ) : null;
+        if ( dir == null || ! dir.isDirectory() )
+        {
+            System.err.println("Usage: <chunk directory>");
+            System.exit(1);
+            return;
+        }
+        System.out.println( create( dir ) );
+    }
+
+    /**
+     * Gathers space usage of all region files in a directory.
+     *
+     * @param chunkDir
+     * @return
+     * @throws IOException
+     */
+    public static StorageReport create(File chunkDir) throws IOException
+    {
+        Validate.notNull(chunkDir, "chunkDir must not be NULL");
+        final StorageReport report = new StorageReport();
+        final File[] files = chunkDir.listFiles( (dir,name) -> name.endsWith( RegionFileStorage.FILE_SUFFIX ) );
+        if ( files == null ) {
+            return report;
+        }
+        for ( File file : files )
+        {
+            final RegionFile region = new RegionFile( file );
+            try
+            {
+                final RegionFile.Usage usage = region.getUsage();
+                report.regions++;
+                report.chunks += usage.chunks;
+                report.uniformChunks += usage.uniformChunks;
+                report.sharedChunks += usage.sharedChunks;
+                report.referencedBytes += usage.referencedBytes;
+                report.storedBytes += usage.storedBytes;
+                report.fileSize += usage.fileSize;
+            } finally {
+                region.close();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Returns the number of bytes saved by sharing identical chunk data.
+     *
+     * @return
+     */
+    public long getSharedBytesSaved() {
+        return referencedBytes - storedBytes;
+    }
+
+    /**
+     * Returns the (minimum) number of bytes saved by not storing data of uniform chunks.
+     *
+     * @return
+     */
+    public long getUniformBytesSaved() {
+        return (long) uniformChunks * RegionFile.SECTOR_SIZE;
+    }
+
+    private static String kb(long bytes) {
+        return ( bytes / 1024 )+" KB";
+    }
+
+    @Override
+    public String toString()
+    {
+        final long saved = getSharedBytesSaved() + getUniformBytesSaved();
+        final long total = fileSize + saved;
+        return "Region files     : "+regions+" ( "+kb( fileSize )+" )\n"+
+               "Chunks           : "+( chunks + uniformChunks )+" ( "+uniformChunks+" uniform , "+sharedChunks+" sharing data )\n"+
+               "Chunk data       : "+kb( referencedBytes )+" referenced , "+kb( storedBytes )+" stored\n"+
+               "Saved by sharing : "+kb( getSharedBytesSaved() )+"\n"+
+               "Saved by uniform : "+kb( getUniformBytesSaved() )+"\n"+
+               "Total saved      : "+kb( saved )+( total > 0 ? String.format( " ( %.1f %% )" , 100d * saved / total ) : "" );
+    }
+}
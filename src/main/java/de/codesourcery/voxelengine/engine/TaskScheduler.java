@@ -1,7 +1,6 @@
 package de.codesourcery.voxelengine.engine;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -16,6 +15,11 @@ public class TaskScheduler implements Disposable
 {
     private static final Logger LOG = Logger.getLogger(TaskScheduler.class);
 
+    /**
+     * Number of threads executing high-priority tasks (loading chunks, calculating light levels).
+     */
+    public static final int HI_PRIO_WORKER_COUNT = Math.max( 2 , Runtime.getRuntime().availableProcessors() - 2 );
+
     private final Object RENDER_QUEUE_LOCK = new Object();
     private LinkedBlockingQueue<Task> renderQueue=new LinkedBlockingQueue<>();
 
@@ -58,10 +62,17 @@ public class TaskScheduler implements Disposable
         private final LinkedList<Task> queue;
         public volatile boolean terminate;
         private final CountDownLatch stopLatch = new CountDownLatch(1);
+        
+        // whether this thread should process all remaining tasks before terminating
+        private final boolean drainOnTerminate;
+        
+        // task currently being executed by this thread (guarded by QUEUE_LOCK)
+        private Task currentTask;
 
-        public WorkerThread(LinkedList<Task> queue , ThreadGroup group, String name) {
+        public WorkerThread(LinkedList<Task> queue , ThreadGroup group, String name,boolean drainOnTerminate) {
             super(group, name);
             this.queue = queue;
+            this.drainOnTerminate = drainOnTerminate;
             setDaemon(true);
         }
 
@@ -83,12 +94,16 @@ public class TaskScheduler implements Disposable
             LOG.info("run(): Thread started");
             try 
             {
-                while ( ! terminate ) 
+                while ( true ) 
                 {
                     Task task;
                     synchronized( QUEUE_LOCK ) 
                     {
+                        if ( terminate && ( ! drainOnTerminate || queue.isEmpty() ) ) {
+                            break;
+                        }
                         task = queue.poll();
+                        currentTask = task;
                         if ( task == null ) {
                             try {
                                 QUEUE_LOCK.wait();
@@ -107,12 +122,14 @@ public class TaskScheduler implements Disposable
                     } 
                     finally 
                     {
-                        if ( remove ) 
+                        synchronized( QUEUE_LOCK ) 
                         {
-                            synchronized( QUEUE_LOCK ) 
+                            if ( remove ) 
                             {
                                 queue.remove( task );
                             }
+                            currentTask = null;
+                            QUEUE_LOCK.notifyAll(); // wake up threads blocked in awaitIdle()
                         }
                     }
                 }
@@ -128,11 +145,10 @@ public class TaskScheduler implements Disposable
     public TaskScheduler() 
     {
         final ThreadGroup group = new ThreadGroup( Thread.currentThread().getThreadGroup() , "queue-workers" );
-        workerThreads.addAll( Arrays.asList( 
-                new WorkerThread(hiPrioQueue , group,"queue-worker-hi-1"), 
-                new WorkerThread(hiPrioQueue , group,"queue-worker-hi-2"),
-                new WorkerThread(loPrioQueue , group,"queue-worker-lo-1") 
-                ));
+        for ( int i = 1 ; i <= HI_PRIO_WORKER_COUNT ; i++ ) {
+            workerThreads.add( new WorkerThread(hiPrioQueue , group,"queue-worker-hi-"+i, false ) );
+        }
+        workerThreads.add( new WorkerThread(loPrioQueue , group,"queue-worker-lo-1", true ) ); // low-prio tasks (saving chunks) must never get lost 
 
         workerThreads.forEach( Thread::start );
     }
@@ -164,6 +180,58 @@ public class TaskScheduler implements Disposable
         }
     }
 
+    /**
+     * Blocks until all queued tasks of a given priority have been executed.
+     * 
+     * <p>Note that tasks that are submitted by other threads while this method
+     * is waiting will also be waited for.</p>
+     * 
+     * @param prio priority of the queue to wait for, must not be {@link Prio#RENDER}
+     * @param timeoutMillis max. number of milliseconds to wait
+     * @return <code>true</code> if the queue is idle, <code>false</code> if the timeout expired
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(Prio prio,long timeoutMillis) throws InterruptedException 
+    {
+        final LinkedList<Task> queue;
+        switch( prio ) 
+        {
+            case HI: queue = hiPrioQueue; break;
+            case LO: queue = loPrioQueue; break;
+            default:
+                throw new IllegalArgumentException("Unsupported priority: "+prio);
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized( QUEUE_LOCK ) 
+        {
+            while ( ! isIdle( queue ) ) 
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) {
+                    return false;
+                }
+                QUEUE_LOCK.wait( remaining );
+            }
+        }
+        return true;
+    }
+    
+    // needs to be called while holding QUEUE_LOCK
+    private boolean isIdle(LinkedList<Task> queue) 
+    {
+        if ( ! queue.isEmpty() ) {
+            return false;
+        }
+        for ( int i = 0 , len = workerThreads.size() ; i < len ; i++ ) 
+        {
+            final WorkerThread t = workerThreads.get(i);
+            if ( t.queue == queue && t.currentTask != null ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 //    public void add(List<Task> tasks) 
 //    {
 //        final int len = tasks.size();
@@ -213,7 +281,7 @@ public class TaskScheduler implements Disposable
                 for ( Iterator<Task> it = renderQueue.iterator() ; it.hasNext() ; ) 
                 {
                     final Task task = it.next();
-                    if ( ! task.perform() ) 
+                    if ( task.perform() ) 
                     {
                         it.remove();
                     }
@@ -222,6 +290,13 @@ public class TaskScheduler implements Disposable
         }
     }
 
+    /**
+     * Stops all worker threads.
+     * 
+     * <p>Pending high-priority tasks are discarded while all
+     * low-priority tasks (saving chunks) are guaranteed to have
+     * been executed when this method returns.</p>
+     */
     @Override
     public void dispose() 
     {
@@ -1,9 +1,9 @@
 package de.codesourcery.voxelengine.engine;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.log4j.Logger;
@@ -18,14 +18,11 @@ import com.badlogic.gdx.math.Plane;
 import com.badlogic.gdx.utils.Disposable;
 import com.badlogic.gdx.utils.LongMap;
 import com.badlogic.gdx.utils.LongMap.Entries;
-import com.badlogic.gdx.utils.Queue;
 
-import de.codesourcery.voxelengine.model.BlockType;
 import de.codesourcery.voxelengine.model.Chunk;
 import de.codesourcery.voxelengine.model.ChunkKey;
 import de.codesourcery.voxelengine.model.Player;
 import de.codesourcery.voxelengine.model.World;
-import de.codesourcery.voxelengine.utils.IntQueue;
 
 /**
  * Responsible for rendering the game world.
@@ -44,6 +41,25 @@ public class WorldRenderer implements Disposable
 
     public static final boolean DEPTH_BUFFER = true;    
     
+    /**
+     * Whether to calculate light levels on {@link TaskScheduler} worker threads instead of the rendering thread.
+     * 
+     * @see LightingEngine
+     */
+    public static final boolean ASYNC_LIGHTING = true;
+    
+    /**
+     * Whether chunks that need to be rebuilt keep their current light levels as long as their 
+     * {@link Chunk#getLightStamp() light stamp} is still valid , only re-building their mesh.
+     */
+    public static final boolean REUSE_VALID_LIGHT = true;
+    
+    /**
+     * Whether to load the outermost ring of chunks (that are only needed because meshing 
+     * requires looking at neighbouring chunks) as {@link de.codesourcery.voxelengine.model.HaloChunk}s.
+     */
+    public static final boolean HALO_CHUNKS = true;
+    
     public static final float[] HIGHLIGHT_COLOR = new float[] {1,0,0,1};
     public static final float[] SELECTION_COLOR = new float[] {1,1,1,1};
 
@@ -63,19 +79,21 @@ public class WorldRenderer implements Disposable
     private Chunk[] visibleChunkList = new Chunk[ MAX_CHUNKS_TO_LOAD ];
     public int visibleChunkCount=0; 
 
-    private final Queue<Chunk> lightChunkQueue = new Queue<Chunk>( 65535 );
-    private final IntQueue lightBlockQueue = new IntQueue( World.BLOCKS_IN_CHUNK );
+    // used for calculating light levels when ASYNC_LIGHTING is disabled
+    private final LightingEngine lightingEngine;
 
-    // Comparator used to sort chunks in top->down (+y -> -y ) order for
-    // properly calculating the influence of sun light
-    private static final Comparator<Chunk> Y_COMPARATOR = new Comparator<Chunk>() {
+    // lighting engines used by worker threads
+    private final ThreadLocal<LightingEngine> lightingEngines;
+    
+    // highest non-empty block of each column , used for seeding sun light
+    private final Heightmaps heightmaps = new Heightmaps();
 
-        @Override
-        public int compare(Chunk o1, Chunk o2) 
-        {
-            return Integer.compare( o2.chunkKey.y , o1.chunkKey.y ); 
-        }
-    }; 
+    // IDs of all chunks that may be touched by lighting jobs currently in progress ,
+    // mapped to the job. Only accessed by the rendering thread.
+    private final LongMap<LightingJob> lockedChunks = new LongMap<>();
+    
+    // chunks affected by incrementally updating light levels
+    private final Set<Chunk> changedChunks = new HashSet<>();
 
     // shader to use for rendering chunks
     private final ShaderProgram chunkShader;
@@ -91,13 +109,83 @@ public class WorldRenderer implements Disposable
     private final SkyBox skyBox;
 
     private final Texture blocksTexture;
+    
+    // keeps memory used by loaded chunks within budget by adjusting the effective render distance
+    private final ChunkMemoryGovernor memoryGovernor = ChunkMemoryGovernor.createDefault( RENDER_DISTANCE_CHUNKS );
+    
+    // effective render distance in chunks, never larger than RENDER_DISTANCE_CHUNKS
+    private int renderDistance = RENDER_DISTANCE_CHUNKS;
+    
+    private final List<Chunk> chunksToEvict = new ArrayList<>();
+    
+    // factor (0...1) applied to sky light when rendering , see Chunk#CHANNEL_SKY
+    private float daylight = 1f;
+    
+    private final TaskScheduler scheduler;
+    
+    /**
+     * Calculates light levels for a group of chunks on a worker thread and
+     * publishes the results on the rendering thread.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class LightingJob extends TaskScheduler.Task 
+    {
+        private final List<Chunk> chunks;
+        
+        // light stamps of the chunks at the time the job was submitted
+        private final long[] lightStamps;
+        
+        // neighbours with valid light levels that light flows in from
+        private final List<Chunk> neighbours;
+        
+        // IDs of all chunks this job may touch
+        private final long[] lockedChunkIDs;
+        
+        public LightingJob(List<Chunk> chunks,long[] lightStamps,List<Chunk> neighbours,long[] lockedChunkIDs) 
+        {
+            super( TaskScheduler.Prio.HI );
+            this.chunks = chunks;
+            this.lightStamps = lightStamps;
+            this.neighbours = neighbours;
+            this.lockedChunkIDs = lockedChunkIDs;
+        }
+        
+        @Override
+        public boolean perform() 
+        {
+            LightingEngine.Result result = null;
+            try {
+                result = lightingEngines.get().calculateLighting( chunks , neighbours );
+            } 
+            finally 
+            {
+                // always publish so that the chunks get unlocked again
+                final LightingEngine.Result finalResult = result;
+                scheduler.add( new TaskScheduler.Task( TaskScheduler.Prio.RENDER ) 
+                {
+                    @Override
+                    public boolean perform() 
+                    {
+                        publishLighting( LightingJob.this , finalResult );
+                        return true;
+                    }
+                });
+            }
+            return true;
+        }
+    }
 
-    public WorldRenderer(World world,ShaderManager shaderManager,TextureManager textureManager) 
+    public WorldRenderer(World world,ShaderManager shaderManager,TextureManager textureManager,TaskScheduler scheduler) 
     {
         Validate.notNull(world, "world must not be NULL");
         Validate.notNull(shaderManager,"shaderManager must not be NULL");
         Validate.notNull(textureManager,"textureManager must not be NULL");
+        Validate.notNull(scheduler,"scheduler must not be NULL");
         this.world = world;
+        this.scheduler = scheduler;
+        this.lightingEngine = new LightingEngine( heightmaps );
+        this.lightingEngines = ThreadLocal.withInitial( () -> new LightingEngine( heightmaps ) );
         this.player = world.player;
         this.chunkShader = shaderManager.getShader( RENDER_WIREFRAME ? ShaderManager.WIREFRAME_SHADER : ShaderManager.TEXTURED_SHADER );
         this.skyBox = new SkyBox( shaderManager );
@@ -113,6 +201,37 @@ public class WorldRenderer implements Disposable
     public int getLoadedChunkCount() {
         return loadedChunks.size;
     }
+    
+    /**
+     * Returns the effective render distance (in chunks).
+     * 
+     * @return
+     * @see ChunkMemoryGovernor
+     */
+    public int getRenderDistance() {
+        return renderDistance;
+    }
+    
+    public ChunkMemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+    
+    /**
+     * Sets how bright sky light currently is.
+     * 
+     * <p>Sky light is scaled by the chunk shader , so changing the time of day neither requires re-lighting nor re-meshing chunks.</p>
+     * 
+     * @param daylight 0 (night) ... 1 (full daylight)
+     */
+    public void setDaylight(float daylight) 
+    {
+        Validate.isTrue( daylight >= 0 && daylight <= 1 , "daylight must be within 0...1: "+daylight );
+        this.daylight = daylight;
+    }
+    
+    public float getDaylight() {
+        return daylight;
+    }
 
     /**
      * Render the world.
@@ -133,7 +252,7 @@ public class WorldRenderer implements Disposable
         {
             centerChunk = ChunkKey.fromID( centerChunkID );
 
-            final int distanceInChunksSquared = 3*(RENDER_DISTANCE_CHUNKS)*(RENDER_DISTANCE_CHUNKS);// dx*dx+dy*dy+dz*dz with dx == dy == dz
+            final int distanceInChunksSquared = 3*(renderDistance)*(renderDistance);// dx*dx+dy*dy+dz*dz with dx == dy == dz
 
             /* Determine chunks that intersect with the view frustum.
              * 
@@ -143,17 +262,20 @@ public class WorldRenderer implements Disposable
              * If we'd just load all the chunks that are within the rendering distance
              * the outer chunks wouldn't have their neighbours loaded and a NPE would
              * happen during mesh building when trying to access the neighbour.
+             * When HALO_CHUNKS is enabled, chunks in this outer ring are only loaded 
+             * as border slices.
              */            
             final List<Long> toLoad = new ArrayList<>( MAX_CHUNKS_TO_LOAD );
+            final List<Long> haloToLoad = new ArrayList<>( MAX_CHUNKS_TO_LOAD );
 
             final Frustum f = world.camera.frustum;
 
-            final int xmin = centerChunk.x - RENDER_DISTANCE_CHUNKS;
-            final int xmax = centerChunk.x + RENDER_DISTANCE_CHUNKS;
-            final int ymin = centerChunk.y - RENDER_DISTANCE_CHUNKS;
-            final int ymax = centerChunk.y + RENDER_DISTANCE_CHUNKS;
-            final int zmin = centerChunk.z - RENDER_DISTANCE_CHUNKS;
-            final int zmax = centerChunk.z + RENDER_DISTANCE_CHUNKS;
+            final int xmin = centerChunk.x - renderDistance;
+            final int xmax = centerChunk.x + renderDistance;
+            final int ymin = centerChunk.y - renderDistance;
+            final int ymax = centerChunk.y + renderDistance;
+            final int zmin = centerChunk.z - renderDistance;
+            final int zmax = centerChunk.z + renderDistance;
 
             for ( int x = xmin ; x <= xmax ; x++ ) 
             {
@@ -166,13 +288,23 @@ public class WorldRenderer implements Disposable
                     for ( int z = zmin ; z <= zmax ; z++ ) 
                     {
                         final long chunkID = ChunkKey.toID( x , y , z );
-                        final Chunk loaded = loadedChunks.get( chunkID ); 
+                        final boolean borderZ = ( z == zmin ) || (z == zmax);
+                        final boolean isBorder = borderX || borderY || borderZ;
+                        Chunk loaded = loadedChunks.get( chunkID ); 
                         if ( loaded == null ) 
+                        {
+                            if ( HALO_CHUNKS && isBorder ) {
+                                haloToLoad.add( chunkID );
+                            } else {
+                                toLoad.add( chunkID );
+                            }
+                        } 
+                        else if ( loaded.isHalo() && ! isBorder ) // chunk moved from outer ring to inside, load full chunk
                         {
                             toLoad.add( chunkID );
-                        }                     
-                        final boolean borderZ = ( z == zmin ) || (z == zmax);
-                        if ( ! ( borderX || borderY || borderZ ) ) 
+                            loaded = null;
+                        }
+                        if ( ! isBorder ) 
                         {
                             final float pz = z * World.CHUNK_WIDTH;
                             // TODO: Culling against enclosing sphere selects way more chunks than necessary...maybe use AABB instead ?
@@ -201,6 +333,7 @@ public class WorldRenderer implements Disposable
                     chunk.setIsInUse( false ); // crucial otherwise chunk unloading will fail because sanity check triggers
                     chunk.disposeVBO();
                     toUnload.add( chunk );
+                    heightmaps.chunkUnloaded( chunk );
                 }
             }
 
@@ -211,33 +344,33 @@ public class WorldRenderer implements Disposable
             }
 
             // bulk-load missing chunks
-            if ( ! toLoad.isEmpty() ) 
+            visibleChunkCount = loadChunks( toLoad , visibleChunkCount );
+            if ( ! haloToLoad.isEmpty() ) 
             {
-                System.out.println("*** Loading "+toLoad.size()+" chunks");
-                for ( Chunk chunk : world.chunkManager.getChunks( toLoad ) ) 
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug("render(): Loading "+haloToLoad.size()+" halo chunks");
+                }
+                for ( Chunk chunk : world.chunkManager.getHaloChunks( haloToLoad ) ) 
                 {
-                    final long chunkID = chunk.chunkKey.toID();
-                    loadedChunks.put( chunkID , chunk );
-                    if ( visibleChunks.containsKey( chunkID ) ) {
-                        visibleChunks.put( chunkID , chunk );
-                        visibleChunkList[visibleChunkCount++]=chunk;
-                    }
+                    loadedChunks.put( chunk.chunkKey.toID() , chunk );
                 }
-            }       
+            }
             previousChunkID = centerChunkID;
         } 
         else 
         {
             // camera is still within the same chunk, just determine the visible chunks
-            // since all chunks within view distance have already been loaded
+            // since all chunks within view distance have already been loaded (unless
+            // they have been evicted by the memory governor)
             final Frustum f = world.camera.frustum;
+            List<Long> toLoad = null;
 
-            final int xmin = centerChunk.x - RENDER_DISTANCE_CHUNKS;
-            final int xmax = centerChunk.x + RENDER_DISTANCE_CHUNKS;
-            final int ymin = centerChunk.y - RENDER_DISTANCE_CHUNKS;
-            final int ymax = centerChunk.y + RENDER_DISTANCE_CHUNKS;
-            final int zmin = centerChunk.z - RENDER_DISTANCE_CHUNKS;
-            final int zmax = centerChunk.z + RENDER_DISTANCE_CHUNKS;
+            final int xmin = centerChunk.x - renderDistance;
+            final int xmax = centerChunk.x + renderDistance;
+            final int ymin = centerChunk.y - renderDistance;
+            final int ymax = centerChunk.y + renderDistance;
+            final int zmin = centerChunk.z - renderDistance;
+            final int zmax = centerChunk.z + renderDistance;
 
             for ( int x = xmin ; x <= xmax ; x++ ) 
             {
@@ -261,18 +394,40 @@ public class WorldRenderer implements Disposable
                                 visibleChunks.put( chunkID ,  chunk );
                                 if ( chunk != null ) {
                                     visibleChunkList[visibleChunkCount++]=chunk;
+                                } 
+                                else 
+                                {
+                                    if ( toLoad == null ) {
+                                        toLoad = new ArrayList<>();
+                                    }
+                                    toLoad.add( chunkID );
                                 }
                             }
                         }
                     }                 
                 }            
             }
+            
+            if ( toLoad != null ) 
+            {
+                // meshing also requires the neighbours of visible chunks to be loaded
+                final int len = toLoad.size();
+                for ( int i = 0 ; i < len ; i++ ) 
+                {
+                    final ChunkKey key = ChunkKey.fromID( toLoad.get(i) );
+                    addIfNotLoaded( key.leftNeighbour() , toLoad );
+                    addIfNotLoaded( key.rightNeighbour() , toLoad );
+                    addIfNotLoaded( key.topNeighbour() , toLoad );
+                    addIfNotLoaded( key.bottomNeighbour() , toLoad );
+                    addIfNotLoaded( key.frontNeighbour() , toLoad );
+                    addIfNotLoaded( key.backNeighbour() , toLoad );
+                }
+                visibleChunkCount = loadChunks( toLoad , visibleChunkCount );
+            }
         }
         this.visibleChunkCount = visibleChunkCount;
-
-        // sort chunks in descending Y-coordinate order
-        // in order to propagate sunlight from top -> bottom
-        Arrays.sort( visibleChunkList , 0 , visibleChunkCount , Y_COMPARATOR );
+        
+        enforceMemoryBudget();
 
         chunksToRebuild.clear();
         
@@ -282,27 +437,57 @@ public class WorldRenderer implements Disposable
             final Chunk chunk = visibleChunkList[i];
             if ( chunk.needsRebuild() ) 
             {
+                if ( lockedChunks.size > 0 && isLocked( chunk.chunkKey ) ) {
+                    // light levels around this chunk are still being calculated , try again on the next frame
+                    continue;
+                }
                 if ( chunk.isNotEmpty() ) 
                 {
-                    chunksToRebuild.add( chunk );
+                    if ( REUSE_VALID_LIGHT && chunk.getLightStamp() == lightingEngine.getLightStamp( chunk ) ) 
+                    {
+                        // light levels were calculated against the current surroundings (e.g. loaded from disk)
+                        buildMesh( chunk );
+                        chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD | Chunk.FLAG_NEEDS_REMESH );
+                    } else {
+                        chunksToRebuild.add( chunk );
+                    }
                 } else {
                     // set light levels even on empty chunks as well since
                     // (sun)light needs to be propagated to adjacent chunks 
                     chunk.setLightLevel( Chunk.LIGHTLEVEL_SUNLIGHT );
-                    chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD );
+                    chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD | Chunk.FLAG_NEEDS_REMESH );
+                }
+            } 
+            else if ( chunk.hasFlags( Chunk.FLAG_NEEDS_REMESH ) ) 
+            {
+                // light levels are up-to-date , just the mesh needs to be rebuilt
+                if ( chunk.isNotEmpty() ) {
+                    buildMesh( chunk );
                 }
+                chunk.clearFlags( Chunk.FLAG_NEEDS_REMESH );
             }
         }
         
         if ( ! chunksToRebuild.isEmpty() ) 
         {
-            calculateLighting( chunksToRebuild );
-            
-            for (int i = 0 , len = chunksToRebuild.size() ; i < len ; i++)
+            if ( ASYNC_LIGHTING ) 
             {
-                final Chunk chunk = chunksToRebuild.get(i);
-                buildMesh( chunk );
-                chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD );
+                submitLighting( chunksToRebuild );
+            } 
+            else 
+            {
+                final long[] stamps = new long[ chunksToRebuild.size() ];
+                for (int i = 0 , len = chunksToRebuild.size() ; i < len ; i++) {
+                    stamps[i] = lightingEngine.getLightStamp( chunksToRebuild.get(i) );
+                }
+                lightingEngine.calculateLighting( chunksToRebuild , findValidNeighbours( chunksToRebuild ) ).publish();
+                for (int i = 0 , len = chunksToRebuild.size() ; i < len ; i++)
+                {
+                    final Chunk chunk = chunksToRebuild.get(i);
+                    chunk.setLightStamp( stamps[i] );
+                    buildMesh( chunk );
+                    chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD | Chunk.FLAG_NEEDS_REMESH );
+                }
             }
         }
 
@@ -333,6 +518,7 @@ public class WorldRenderer implements Disposable
         if ( ! WorldRenderer.RENDER_WIREFRAME ) {
             //            chunkShader.setUniformMatrix("u_modelView", camera.view );
             //            chunkShader.setUniformMatrix("u_normalMatrix", player.normalMatrix() );
+            chunkShader.setUniformf("u_daylight", daylight );
         }
         chunkShader.setUniformMatrix("u_modelViewProjection", camera.combined );
 
@@ -340,7 +526,7 @@ public class WorldRenderer implements Disposable
         for ( int i = 0 ; i < visibleChunkCount ; i++ ) 
         {
             final Chunk chunk = visibleChunkList[i];
-            if ( chunk.isNotEmpty() ) 
+            if ( hasMesh( chunk ) ) 
             {
                 totalTriangles += chunk.renderer.render( chunkShader , false );
             }
@@ -353,193 +539,293 @@ public class WorldRenderer implements Disposable
         Gdx.gl30.glDisable( GL20.GL_BLEND);
     }
 
-    private void applySunlight(Chunk chunk) 
+    /**
+     * Returns whether a chunk has a mesh that can be rendered.
+     * 
+     * <p>When using {@link #ASYNC_LIGHTING} , non-empty chunks that were just loaded have no mesh
+     * until their light levels have been calculated.</p>
+     * 
+     * @param chunk
+     * @return
+     */
+    static boolean hasMesh(Chunk chunk) 
     {
-        chunk.setLightLevel( (byte) 0 );
-
-        // set light level to "sunlight" on all empty blocks in columns starting from top -> bottom
-        // enqueuing all those blocks for flood-filling 
-        for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ ) 
+        return chunk.isNotEmpty() && chunk.renderer != null;
+    }
+    
+    private void addIfNotLoaded(long chunkID,List<Long> toLoad) 
+    {
+        if ( ! loadedChunks.containsKey( chunkID ) && ! toLoad.contains( chunkID ) ) {
+            toLoad.add( chunkID );
+        }
+    }
+    
+    /**
+     * Loads chunks, adding all loaded chunks that are visible to the list of visible chunks.
+     * 
+     * @param toLoad
+     * @param visibleChunkCount current number of visible chunks
+     * @return new number of visible chunks
+     */
+    private int loadChunks(List<Long> toLoad,int visibleChunkCount) 
+    {
+        if ( ! toLoad.isEmpty() ) 
         {
-            for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ ) 
+            System.out.println("*** Loading "+toLoad.size()+" chunks");
+            for ( Chunk chunk : world.chunkManager.getChunks( toLoad ) ) 
             {
-                if ( chunk.isBlockEmpty(x,World.CHUNK_SIZE-1,z) ) 
-                {
-                    final byte lightLevel = chunk.topNeighbour == null ? Chunk.LIGHTLEVEL_SUNLIGHT : chunk.topNeighbour.getLightLevel(x,0,z);
-                    chunk.setLightLevel( x , World.CHUNK_SIZE-1 , z , lightLevel );
-                    lightBlockQueue.push( Chunk.blockIndex( x , World.CHUNK_SIZE-1 , z ) );
-                    lightChunkQueue.addLast( chunk );
-                    for ( int y = World.CHUNK_SIZE-2 ; y >= 0 ; y --) 
-                    {
-                        final int blockIndex = Chunk.blockIndex( x , y , z );
-                        if ( chunk.isBlockNotEmpty( blockIndex ) ) 
-                        {
-                            break;
-                        }
-                        chunk.setLightLevel( blockIndex , lightLevel );
-                        lightBlockQueue.push( blockIndex );
-                        lightChunkQueue.addLast( chunk );
-                    }       
+                final long chunkID = chunk.chunkKey.toID();
+                loadedChunks.put( chunkID , chunk );
+                heightmaps.chunkLoaded( chunk );
+                if ( visibleChunks.containsKey( chunkID ) ) {
+                    visibleChunks.put( chunkID , chunk );
+                    visibleChunkList[visibleChunkCount++]=chunk;
                 }
-            }                        
-        }        
+            }
+        }
+        return visibleChunkCount;
+    }
+    
+    private void enforceMemoryBudget() 
+    {
+        chunksToEvict.clear();
+        final long cacheBytes = vertexBuffer.vertexData.length*4L + world.chunkManager.getCacheSizeInBytes();
+        final int newRenderDistance = memoryGovernor.update( centerChunk , loadedChunks , visibleChunks , cacheBytes , chunksToEvict );
+        if ( ! chunksToEvict.isEmpty() ) 
+        {
+            for ( int i = 0 , len = chunksToEvict.size() ; i < len ; i++ ) 
+            {
+                final Chunk chunk = chunksToEvict.get(i);
+                loadedChunks.remove( chunk.chunkKey.toID() );
+                heightmaps.chunkUnloaded( chunk );
+                chunk.setIsInUse( false ); // crucial otherwise chunk unloading will fail because sanity check triggers
+                chunk.disposeVBO();
+            }
+            world.chunkManager.unloadChunks( chunksToEvict );
+            chunksToEvict.clear();
+        }
+        if ( newRenderDistance != renderDistance ) 
+        {
+            renderDistance = newRenderDistance;
+            previousChunkID = ChunkKey.INVALID; // force re-calculation of chunks to load/unload on next frame
+        }
     }
 
     /**
-     * Calculates light levels on each (empty) block by performing
-     * a flood-fill starting at each light source.
+     * Incrementally updates light levels after the player changed a block.
      * 
-     * @param chunks
+     * <p>Must be called on the rendering thread after the block's type has been changed, chunks
+     * whose light levels changed get marked for re-meshing.</p>
+     * 
+     * @param chunk
+     * @param blockIndex
+     * @see LightingEngine#blockChanged(Chunk, int, java.util.Set)
      */
-    private void calculateLighting(List<Chunk> chunks) 
+    public void blockChanged(Chunk chunk,int blockIndex) 
     {
-        // algorithm uses two queues (one for blocks and one for the chunk the block is in) 
-        // instead of a single queue and something like a "QueueEntry" class to get around the 
-        // need to do a massive number of object allocations (and thus generate a lot of GC pressure)
-        lightBlockQueue.clear();
-        lightChunkQueue.clear();
-
-        // apply top-down sunlight to all chunks
-        // and enqueue all light-emitting blocks as well
-        for (int i = 0 , len = chunks.size() ; i < len ; i++) 
+        if ( lockedChunks.size > 0 && isLockedForUpdate( chunk.chunkKey ) ) 
         {
-            final Chunk chunk = chunks.get(i);
-            applySunlight( chunk );
-
-            // enqueue light-emitting (glowing) blocks
-            for ( int blockIndex = 0 ; blockIndex < World.BLOCKS_IN_CHUNK ; blockIndex++ ) 
+            // a lighting job is working with the current light levels , fall back to re-calculating everything once it's done
+            chunk.setFlags( Chunk.FLAG_NEEDS_REBUILD );
+            return;
+        }
+        changedChunks.clear();
+        lightingEngine.blockChanged( chunk , blockIndex , changedChunks );
+        for ( Chunk changed : changedChunks ) {
+            changed.setFlags( Chunk.FLAG_NEEDS_REMESH );
+        }
+        changedChunks.clear();
+    }
+    
+    // returns whether any chunk that may be affected by incrementally updating light levels in a given chunk
+    // is locked by a lighting job. Sun light may travel all the way down , so all loaded chunks below need to be checked as well
+    private boolean isLockedForUpdate(ChunkKey key) 
+    {
+        final int ymin = centerChunk == null ? key.y : Math.min( key.y , centerChunk.y - renderDistance );
+        for ( int dx = -1 ; dx <= 1 ; dx++ ) 
+        {
+            for ( int y = key.y + 1 ; y >= ymin - 1 ; y-- ) 
             {
-                final int bt = chunk.getBlockType( blockIndex );
-                if ( BlockType.emitsLight( bt ) ) {
-                    chunk.setLightLevel( blockIndex , BlockType.getEmittedLightLevel( bt ) ); 
-                    lightBlockQueue.push( blockIndex );
-                    lightChunkQueue.addLast( chunk );
+                for ( int dz = -1 ; dz <= 1 ; dz++ ) 
+                {
+                    if ( lockedChunks.containsKey( ChunkKey.toID( key.x+dx , y , key.z+dz ) ) ) {
+                        return true;
+                    }
                 }
             }
         }
+        return false;
+    }
 
-        // recursively visit adjacent blocks each enqueued block
-        // until the light level reaches 0
-        while ( lightBlockQueue.isNotEmpty() ) 
+    // returns whether any chunk within a chunk's 3x3x3 neighbourhood is locked by a lighting job
+    private boolean isLocked(ChunkKey key) 
+    {
+        for ( int dx = -1 ; dx <= 1 ; dx++ ) 
         {
-            final Chunk chunk = lightChunkQueue.removeFirst();
-            final int blockIndex = lightBlockQueue.pop();
-            
-            final int x = Chunk.blockIndexX( blockIndex );
-            final int y = Chunk.blockIndexY( blockIndex );
-            final int z = Chunk.blockIndexZ( blockIndex );
-
-            final byte currentLevel = chunk.getLightLevel( blockIndex );
-            final byte newLevel = (byte) (currentLevel - 1);
-
-            Chunk toCheck;
-            int blockIdx; 
-            boolean enqueue;
-            
-            // check top neighbour
-            if ( (y+1) == World.CHUNK_SIZE ) 
+            for ( int dy = -1 ; dy <= 1 ; dy++ ) 
             {
-                toCheck = chunk.topNeighbour;
-                blockIdx = Chunk.blockIndex(x,0,z);
-                enqueue = toCheck != null && toCheck.isBlockEmpty( blockIdx );
-            } else { // block to check is within current chunk
-                toCheck = chunk;
-                blockIdx = Chunk.blockIndex(x,y+1,z);
-                enqueue = chunk.isBlockEmpty( blockIdx );
+                for ( int dz = -1 ; dz <= 1 ; dz++ ) 
+                {
+                    if ( lockedChunks.containsKey( ChunkKey.toID( key.x+dx , key.y+dy , key.z+dz ) ) ) {
+                        return true;
+                    }
+                }
             }
-            if ( enqueue && toCheck.getLightLevel( blockIdx ) < newLevel-1 ) 
+        }
+        return false;
+    }
+    
+    /**
+     * Splits chunks into groups whose neighbourhoods do not overlap and
+     * submits a lighting job for each group so that groups get lit in parallel.
+     * 
+     * @param chunks
+     */
+    private void submitLighting(List<Chunk> chunks) 
+    {
+        final int len = chunks.size();
+        
+        // union-find over all chunks that are at most two chunks apart since light 
+        // from one chunk may reach all of its 26 neighbours
+        final int[] group = new int[ len ];
+        for ( int i = 0 ; i < len ; i++ ) 
+        {
+            group[i] = i;
+            final ChunkKey key1 = chunks.get(i).chunkKey;
+            for ( int j = 0 ; j < i ; j++ ) 
             {
-                doEnqueue(newLevel, toCheck, blockIdx);
+                final ChunkKey key2 = chunks.get(j).chunkKey;
+                if ( Math.abs( key1.x - key2.x ) <= 2 && Math.abs( key1.y - key2.y ) <= 2 && Math.abs( key1.z - key2.z ) <= 2 ) 
+                {
+                    final int root1 = findGroup( group , i );
+                    final int root2 = findGroup( group , j );
+                    group[ Math.max( root1 , root2 ) ] = Math.min( root1 , root2 );
+                }
             }
-            
-            // check bottom neighbour
-            if ( (y-1) < 0 ) 
-            {
-                toCheck = chunk.bottomNeighbour;
-                blockIdx = Chunk.blockIndex(x,World.CHUNK_SIZE-1,z);
-                enqueue = toCheck != null && toCheck.isBlockEmpty( blockIdx );
-            } else { // block to check is within current chunk
-                toCheck = chunk;
-                blockIdx = Chunk.blockIndex(x,y-1,z);
-                enqueue = chunk.isBlockEmpty( blockIdx );
+        }
+        
+        for ( int i = 0 ; i < len ; i++ ) 
+        {
+            if ( findGroup( group , i ) != i ) {
+                continue;
             }
-            if ( enqueue && toCheck.getLightLevel( blockIdx ) < newLevel-1 ) 
+            // chunk i is the first chunk of its group
+            final List<Chunk> members = new ArrayList<>();
+            final LongMap<Boolean> neighbourhood = new LongMap<>();
+            for ( int j = i ; j < len ; j++ ) 
             {
-                doEnqueue(newLevel, toCheck, blockIdx);
-            }            
-            
-            // check left neighbour
-            if ( (x-1) < 0 ) 
-            {
-                toCheck = chunk.leftNeighbour;
-                blockIdx = Chunk.blockIndex(World.CHUNK_SIZE-1,y,z);
-                enqueue = toCheck != null && toCheck.isBlockEmpty( blockIdx );
-            } else { // block to check is within current chunk
-                toCheck = chunk;
-                blockIdx = Chunk.blockIndex(x-1,y,z);
-                enqueue = chunk.isBlockEmpty( blockIdx );
+                if ( findGroup( group , j ) == i ) 
+                {
+                    final Chunk chunk = chunks.get(j);
+                    members.add( chunk );
+                    chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD | Chunk.FLAG_NEEDS_REMESH );
+                    final ChunkKey key = chunk.chunkKey;
+                    for ( int dx = -1 ; dx <= 1 ; dx++ ) 
+                    {
+                        for ( int dy = -1 ; dy <= 1 ; dy++ ) 
+                        {
+                            for ( int dz = -1 ; dz <= 1 ; dz++ ) {
+                                neighbourhood.put( ChunkKey.toID( key.x+dx , key.y+dy , key.z+dz ) , Boolean.TRUE );
+                            }
+                        }
+                    }
+                }
             }
-            if ( enqueue && toCheck.getLightLevel( blockIdx ) < newLevel-1 ) 
-            {
-                doEnqueue(newLevel, toCheck, blockIdx);
-            }  
-            
-            // check right neighbour
-            if ( (x+1) == World.CHUNK_SIZE ) 
-            {
-                toCheck = chunk.rightNeighbour;
-                blockIdx = Chunk.blockIndex(0,y,z);
-                enqueue = toCheck != null && toCheck.isBlockEmpty( blockIdx );
-            } else { // block to check is within current chunk
-                toCheck = chunk;
-                blockIdx = Chunk.blockIndex(x+1,y,z);
-                enqueue = chunk.isBlockEmpty( blockIdx );
+            final long[] lockedIDs = neighbourhood.keys().toArray().toArray();
+            final long[] stamps = new long[ members.size() ];
+            for ( int j = 0 ; j < stamps.length ; j++ ) {
+                stamps[j] = lightingEngine.getLightStamp( members.get(j) );
             }
-            if ( enqueue && toCheck.getLightLevel( blockIdx ) < newLevel-1 ) 
-            {
-                doEnqueue(newLevel, toCheck, blockIdx);
-            }  
-            
-            // check front neighbour
-            if ( (z+1) == World.CHUNK_SIZE ) 
-            {
-                toCheck = chunk.frontNeighbour;
-                blockIdx = Chunk.blockIndex(x,y,0);
-                enqueue = toCheck != null && toCheck.isBlockEmpty( blockIdx );
-            } else { // block to check is within current chunk
-                toCheck = chunk;
-                blockIdx = Chunk.blockIndex(x,y,z+1);
-                enqueue = chunk.isBlockEmpty( blockIdx );
+            final LightingJob job = new LightingJob( members , stamps , findValidNeighbours( members ) , lockedIDs );
+            for ( long chunkID : lockedIDs ) {
+                lockedChunks.put( chunkID , job );
             }
-            if ( enqueue && toCheck.getLightLevel( blockIdx ) < newLevel-1 ) 
-            {
-                doEnqueue(newLevel, toCheck, blockIdx);
-            }             
-            
-            // check back neighbour
-            if ( (z-1) < 0 ) 
-            {
-                toCheck = chunk.backNeighbour;
-                blockIdx = Chunk.blockIndex(x,y,World.CHUNK_SIZE-1);
-                enqueue = toCheck != null && toCheck.isBlockEmpty( blockIdx );
-            } else { // block to check is within current chunk
-                toCheck = chunk;
-                blockIdx = Chunk.blockIndex(x,y,z-1);
-                enqueue = chunk.isBlockEmpty( blockIdx );
+            scheduler.add( job );
+        }
+    }
+    
+    // returns all loaded chunks next to the given ones whose light levels are still valid
+    private List<Chunk> findValidNeighbours(List<Chunk> chunks) 
+    {
+        final List<Chunk> result = new ArrayList<>();
+        if ( ! REUSE_VALID_LIGHT ) {
+            return result;
+        }
+        final Set<Chunk> candidates = new HashSet<>();
+        for ( int i = 0 , len = chunks.size() ; i < len ; i++ ) 
+        {
+            final Chunk chunk = chunks.get(i);
+            addIfNotNull( chunk.leftNeighbour , candidates );
+            addIfNotNull( chunk.rightNeighbour , candidates );
+            addIfNotNull( chunk.topNeighbour , candidates );
+            addIfNotNull( chunk.bottomNeighbour , candidates );
+            addIfNotNull( chunk.frontNeighbour , candidates );
+            addIfNotNull( chunk.backNeighbour , candidates );
+        }
+        candidates.removeAll( chunks );
+        for ( Chunk candidate : candidates ) 
+        {
+            if ( ! candidate.isHalo() && candidate.getLightStamp() == lightingEngine.getLightStamp( candidate ) ) {
+                result.add( candidate );
             }
-            if ( enqueue && toCheck.getLightLevel( blockIdx ) < newLevel-1 ) 
-            {
-                doEnqueue(newLevel, toCheck, blockIdx);
-            }             
         }
+        return result;
     }
-
-    private void doEnqueue(final byte newLevel, Chunk toCheck, int blockIdx) 
+    
+    private static void addIfNotNull(Chunk chunk,Set<Chunk> set) 
+    {
+        if ( chunk != null ) {
+            set.add( chunk );
+        }
+    }
+    
+    private static int findGroup(int[] group,int i) 
+    {
+        while ( group[i] != i ) 
+        {
+            group[i] = group[ group[i] ];
+            i = group[i];
+        }
+        return i;
+    }
+    
+    /**
+     * Invoked on the rendering thread when a lighting job has finished.
+     * 
+     * @param job
+     * @param result light levels calculated by the job , <code>null</code> if the job failed
+     */
+    private void publishLighting(LightingJob job,LightingEngine.Result result) 
     {
-        toCheck.setLightLevel( blockIdx , newLevel );
-        if ( newLevel > 1 ) {
-            lightBlockQueue.push( blockIdx );
-            lightChunkQueue.addLast( toCheck );
+        for ( long chunkID : job.lockedChunkIDs ) {
+            lockedChunks.remove( chunkID );
+        }
+        if ( result != null ) 
+        {
+            for ( int i = 0 , len = result.chunks.length ; i < len ; i++ ) 
+            {
+                // chunks may have been unloaded (or replaced by full chunks in case of halo chunks) in the meantime
+                final Chunk chunk = result.chunks[i];
+                if ( loadedChunks.get( chunk.chunkKey.toID() ) == chunk ) 
+                {
+                    result.publish( i );
+                    if ( ! job.chunks.contains( chunk ) ) {
+                        // light spilled into a neighbour
+                        chunk.setFlags( Chunk.FLAG_NEEDS_REMESH );
+                    }
+                }
+            }
+        }
+        for ( int i = 0 , len = job.chunks.size() ; i < len ; i++ ) 
+        {
+            final Chunk chunk = job.chunks.get(i);
+            if ( loadedChunks.get( chunk.chunkKey.toID() ) == chunk ) 
+            {
+                if ( result != null ) {
+                    chunk.setLightStamp( job.lightStamps[i] );
+                }
+                buildMesh( chunk );
+            }
         }
     }
 
@@ -0,0 +1,614 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang3.Validate;
+import org.apache.log4j.Logger;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+
+/**
+ * Write-behind queue in front of some other {@link IChunkStorage}.
+ *
+ * <p>{@link #store(Chunk, boolean)} only takes a snapshot of the chunk and queues it, the actual writing is done by a single background thread.
+ * Repeated saves of the same chunk that happen before the chunk got written are coalesced into a single write. The writer thread
+ * picks up to {@link #setMaxBatchSize(int) max. batch size} chunks at once, waiting up to {@link #setMaxDelayMillis(long) max. delay}
+ * for a batch to fill up, and - depending on the {@link FsyncPolicy} - forces all of them to disk with a single sync (group commit).</p>
+ *
+ * <p>Loading a chunk that is still queued returns the queued data.</p>
+ *
+ * <p>Failed writes are retried unless a newer version of the chunk has been queued in the meantime. {@link WriteListener}s get
+ * told which chunks actually made it to disk.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class WriteBehindSaver implements IChunkStorage
+{
+    private static final Logger LOG = Logger.getLogger(WriteBehindSaver.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 200;
+
+    /**
+     * Max. time (in milliseconds) {@link #store(Chunk, boolean)} waits for a synchronous write to complete.
+     */
+    public static final long SYNC_TIMEOUT_MILLIS = 60*1000;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    // weight of the most recent batch when calculating the average latency
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    /**
+     * When to force written data to the storage device.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static enum FsyncPolicy
+    {
+        /**
+         * Only sync when explicitly requested via {@link WriteBehindSaver#store(Chunk, boolean)} or {@link WriteBehindSaver#sync()}.
+         */
+        NEVER,
+        /**
+         * Sync once after each batch of writes.
+         */
+        BATCH,
+        /**
+         * Sync after every single write.
+         */
+        EVERY_WRITE
+    }
+
+    /**
+     * Snapshot of write statistics.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Statistics
+    {
+        /**
+         * Number of chunks waiting to be written.
+         */
+        public final int queueLength;
+        public final long chunksWritten;
+        public final long batchesWritten;
+        public final long syncs;
+        /**
+         * Number of saves that got merged with a save still waiting in the queue.
+         */
+        public final long coalescedWrites;
+        public final long failedWrites;
+        /**
+         * Smoothed time (in milliseconds) between queueing a chunk and it being written.
+         */
+        public final double avgLatencyMillis;
+        public final double maxLatencyMillis;
+        /**
+         * Chunks written per second of time the writer thread spent writing.
+         */
+        public final double chunksPerSecond;
+
+        protected Statistics(int queueLength, long chunksWritten, long batchesWritten, long syncs, long coalescedWrites,
+                long failedWrites, double avgLatencyMillis, double maxLatencyMillis, double chunksPerSecond)
+        {
+            this.queueLength = queueLength;
+            this.chunksWritten = chunksWritten;
+            this.batchesWritten = batchesWritten;
+            this.syncs = syncs;
+            this.coalescedWrites = coalescedWrites;
+            this.failedWrites = failedWrites;
+            this.avgLatencyMillis = avgLatencyMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+            this.chunksPerSecond = chunksPerSecond;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("queued: %d , written: %d in %d batches , syncs: %d , coalesced: %d , failed: %d , latency avg/max: %.1f / %.1f ms , %.1f chunks/s",
+                    queueLength , chunksWritten , batchesWritten , syncs , coalescedWrites , failedWrites , avgLatencyMillis , maxLatencyMillis , chunksPerSecond );
+        }
+    }
+
+    /**
+     * Gets notified about chunks that have been written.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    @FunctionalInterface
+    public interface WriteListener
+    {
+        /**
+         * Invoked by the writer thread after a batch of chunks has been written (and synced, if the
+         * {@link FsyncPolicy} asks for it).
+         *
+         * <p>Only chunks whose most recently queued version got written are reported, failed writes are
+         * reported once a retry succeeds. {@link WriteBehindSaver#flush(long)} does not return before
+         * all listeners have been notified about the chunks it waited for.</p>
+         *
+         * @param keys
+         */
+        public void written(List<ChunkKey> keys);
+    }
+
+    protected static final class Entry
+    {
+        public final Chunk chunk;
+        // time the oldest coalesced save of this chunk was queued
+        public final long queuedNanos;
+
+        public Entry(Chunk chunk, long queuedNanos)
+        {
+            this.chunk = chunk;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private final IChunkStorage delegate;
+
+    private final Object LOCK = new Object();
+
+    // chunks waiting to be written, in queue order
+    private final LinkedHashMap<Long,Entry> pending = new LinkedHashMap<>();
+
+    // chunks currently being written by the writer thread
+    private final LongMap<Entry> inFlight = new LongMap<>();
+
+    private final Thread writerThread;
+
+    private final List<WriteListener> listeners = new CopyOnWriteArrayList<>();
+
+    private boolean syncRequested;
+    private boolean terminate;
+    private boolean terminated;
+
+    private volatile FsyncPolicy fsyncPolicy;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+
+    // statistics, guarded by LOCK
+    private long chunksWritten;
+    private long batchesWritten;
+    private long syncs;
+    private long coalescedWrites;
+    private long failedWrites;
+    private double avgLatencyMillis;
+    private double maxLatencyMillis;
+    private long busyNanos;
+
+    public WriteBehindSaver(IChunkStorage delegate,FsyncPolicy fsyncPolicy)
+    {
+        Validate.notNull(delegate, "delegate must not be NULL");
+        Validate.notNull(fsyncPolicy, "fsyncPolicy must not be NULL");
+        this.delegate = delegate;
+        this.fsyncPolicy = fsyncPolicy;
+        this.writerThread = new Thread( this::writerLoop , "chunk-writer" );
+        this.writerThread.setDaemon( true );
+        this.writerThread.start();
+    }
+
+    @Override
+    public Chunk load(ChunkKey key) throws IOException
+    {
+        final Chunk queued = getQueuedCopy( key );
+        return queued != null ? queued : delegate.load( key );
+    }
+
+    @Override
+    public HaloChunk loadBorders(ChunkKey key) throws IOException
+    {
+        final Chunk queued = getQueuedCopy( key );
+        return queued != null ? HaloChunk.fromChunk( queued ) : delegate.loadBorders( key );
+    }
+
+    private Chunk getQueuedCopy(ChunkKey key)
+    {
+        final long id = key.toID();
+        synchronized( LOCK )
+        {
+            Entry entry = pending.get( id );
+            if ( entry == null ) {
+                entry = inFlight.get( id );
+            }
+            if ( entry == null ) {
+                return null;
+            }
+            final Chunk result = entry.chunk.createSnapshot();
+            result.clearFlags( Chunk.FLAG_NEEDS_SAVE );
+            return result;
+        }
+    }
+
+    /**
+     * Queues a chunk for writing.
+     *
+     * @param chunk
+     * @param sync if <code>true</code>, waits until this chunk (and all other queued chunks) have been written and synced to disk
+     */
+    @Override
+    public void store(Chunk chunk,boolean sync) throws IOException
+    {
+        final Chunk snapshot = chunk.createSnapshot();
+        final long id = chunk.chunkKey.toID();
+        final boolean writtenSynchronously;
+        synchronized( LOCK )
+        {
+            writtenSynchronously = terminated;
+            if ( terminated )
+            {
+                // writer thread is gone, write synchronously
+                delegate.store( chunk , sync );
+            }
+            else 
+            {
+                final Entry existing = pending.remove( id );
+                if ( existing != null ) {
+                    coalescedWrites++;
+                }
+                pending.put( id , new Entry( snapshot , existing != null ? existing.queuedNanos : System.nanoTime() ) );
+                chunk.clearFlags( Chunk.FLAG_NEEDS_SAVE );
+                LOCK.notifyAll();
+            }
+        }
+        if ( writtenSynchronously ) 
+        {
+            if ( ! listeners.isEmpty() ) {
+                fireWritten( Collections.singletonList( chunk.chunkKey ) );
+            }
+            return;
+        }
+        if ( sync )
+        {
+            try {
+                flush( SYNC_TIMEOUT_MILLIS );
+            }
+            catch(IOException e)
+            {
+                chunk.setNeedsSave( true );
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits until all queued chunks have been written and synced to disk.
+     *
+     * @throws IOException if the timeout expired or the calling thread got interrupted
+     */
+    @Override
+    public void sync() throws IOException
+    {
+        flush( SYNC_TIMEOUT_MILLIS );
+    }
+
+    /**
+     * Waits until all queued chunks have been written and synced to disk.
+     *
+     * @param timeoutMillis
+     * @throws IOException if the timeout expired or the calling thread got interrupted
+     */
+    public void flush(long timeoutMillis) throws IOException
+    {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized( LOCK )
+        {
+            if ( terminated )
+            {
+                delegate.sync();
+                return;
+            }
+            syncRequested = true;
+            LOCK.notifyAll();
+            while ( ! pending.isEmpty() || inFlight.size > 0 || syncRequested )
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) {
+                    throw new IOException("Timed out after "+timeoutMillis+" ms while waiting for "+(pending.size()+inFlight.size)+" chunks to be written");
+                }
+                try {
+                    LOCK.wait( remaining );
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for chunks to be written");
+                }
+            }
+        }
+    }
+
+    private void writerLoop()
+    {
+        final List<Entry> batch = new ArrayList<>();
+        while ( true )
+        {
+            final boolean doSync;
+            synchronized( LOCK )
+            {
+                try
+                {
+                    while ( pending.isEmpty() && ! syncRequested && ! terminate ) {
+                        LOCK.wait();
+                    }
+                    // give the batch some time to fill up
+                    final long deadline = System.currentTimeMillis() + maxDelayMillis;
+                    while ( pending.size() < maxBatchSize && ! syncRequested && ! terminate )
+                    {
+                        final long remaining = deadline - System.currentTimeMillis();
+                        if ( remaining <= 0 ) {
+                            break;
+                        }
+                        LOCK.wait( remaining );
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    LOG.error("writerLoop(): Interrupted",e);
+                    terminate = true;
+                }
+                if ( terminate && pending.isEmpty() && ! syncRequested )
+                {
+                    terminated = true;
+                    LOCK.notifyAll();
+                    return;
+                }
+                final Iterator<Entry> it = pending.values().iterator();
+                while ( it.hasNext() && batch.size() < maxBatchSize )
+                {
+                    final Entry entry = it.next();
+                    it.remove();
+                    batch.add( entry );
+                    inFlight.put( entry.chunk.chunkKey.toID() , entry );
+                }
+                // sync requests need to cover everything queued so far
+                doSync = fsyncPolicy == FsyncPolicy.BATCH || ( syncRequested && pending.isEmpty() );
+                if ( syncRequested && pending.isEmpty() ) {
+                    syncRequested = false;
+                }
+            }
+            writeBatch( batch , doSync );
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Entry> batch,boolean doSync)
+    {
+        final long start = System.nanoTime();
+        final FsyncPolicy policy = fsyncPolicy;
+        final List<Entry> failed = new ArrayList<>();
+        int written = 0;
+        double latencySum = 0;
+        double maxLatency = 0;
+        for ( Entry entry : batch )
+        {
+            try
+            {
+                delegate.store( entry.chunk , policy == FsyncPolicy.EVERY_WRITE );
+                final double latency = ( System.nanoTime() - entry.queuedNanos ) / 1_000_000d;
+                latencySum += latency;
+                maxLatency = Math.max( maxLatency , latency );
+                written++;
+            }
+            catch(Exception e)
+            {
+                LOG.error("writeBatch(): Failed to write "+entry.chunk,e);
+                failed.add( entry );
+            }
+        }
+        boolean synced = false;
+        if ( doSync && ( written > 0 || batch.isEmpty() ) )
+        {
+            try {
+                delegate.sync();
+                synced = true;
+            }
+            catch(Exception e)
+            {
+                LOG.error("writeBatch(): Failed to sync "+delegate,e);
+                failed.clear();
+                failed.addAll( batch );
+            }
+        }
+
+        if ( ! listeners.isEmpty() && written > 0 ) {
+            notifyListeners( batch , failed );
+        }
+
+        synchronized( LOCK )
+        {
+            for ( Entry entry : failed )
+            {
+                final long id = entry.chunk.chunkKey.toID();
+                // retry unless a more recent version has been queued in the meantime
+                if ( ! pending.containsKey( id ) ) {
+                    pending.put( id , entry );
+                }
+            }
+            for ( Entry entry : batch ) {
+                inFlight.remove( entry.chunk.chunkKey.toID() );
+            }
+            if ( ! failed.isEmpty() && doSync ) {
+                // sync request is still pending
+                syncRequested = true;
+            }
+            failedWrites += failed.size();
+            chunksWritten += written;
+            if ( ! batch.isEmpty() ) {
+                batchesWritten++;
+            }
+            if ( synced ) {
+                syncs++;
+            }
+            if ( written > 0 )
+            {
+                final double batchAvg = latencySum / written;
+                avgLatencyMillis = batchesWritten == 1 ? batchAvg : avgLatencyMillis + LATENCY_SMOOTHING * ( batchAvg - avgLatencyMillis );
+                maxLatencyMillis = Math.max( maxLatencyMillis , maxLatency );
+            }
+            busyNanos += System.nanoTime() - start;
+            LOCK.notifyAll();
+        }
+
+        if ( ! failed.isEmpty() )
+        {
+            try {
+                Thread.sleep( RETRY_DELAY_MILLIS );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void notifyListeners(List<Entry> batch,List<Entry> failed)
+    {
+        final List<ChunkKey> keys = new ArrayList<>( batch.size() );
+        synchronized( LOCK )
+        {
+            for ( Entry entry : batch )
+            {
+                // a more recent version still needs to be written
+                if ( ! failed.contains( entry ) && ! pending.containsKey( entry.chunk.chunkKey.toID() ) ) {
+                    keys.add( entry.chunk.chunkKey );
+                }
+            }
+        }
+        if ( ! keys.isEmpty() ) {
+            fireWritten( keys );
+        }
+    }
+
+    private void fireWritten(List<ChunkKey> keys)
+    {
+        for ( WriteListener listener : listeners )
+        {
+            try {
+                listener.written( keys );
+            }
+            catch(Exception e) {
+                LOG.error("fireWritten(): Listener "+listener+" failed",e);
+            }
+        }
+    }
+
+    public void addWriteListener(WriteListener listener)
+    {
+        Validate.notNull(listener, "listener must not be NULL");
+        listeners.add( listener );
+    }
+
+    public void removeWriteListener(WriteListener listener)
+    {
+        Validate.notNull(listener, "listener must not be NULL");
+        listeners.remove( listener );
+    }
+
+    /**
+     * Returns write statistics.
+     *
+     * @return
+     */
+    public Statistics getStatistics()
+    {
+        synchronized( LOCK )
+        {
+            final double seconds = busyNanos / 1_000_000_000d;
+            return new Statistics( pending.size() + inFlight.size , chunksWritten , batchesWritten , syncs , coalescedWrites ,
+                    failedWrites , avgLatencyMillis , maxLatencyMillis , seconds > 0 ? chunksWritten / seconds : 0 );
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by chunk snapshots waiting to be written.
+     *
+     * @return
+     */
+    public long getQueuedBytes()
+    {
+        synchronized( LOCK )
+        {
+            long result = 0;
+            for ( Entry entry : pending.values() ) {
+                result += entry.chunk.getDataSizeInBytes();
+            }
+            for ( Entry entry : inFlight.values() ) {
+                result += entry.chunk.getDataSizeInBytes();
+            }
+            return result;
+        }
+    }
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy)
+    {
+        Validate.notNull(fsyncPolicy, "fsyncPolicy must not be NULL");
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        Validate.isTrue( maxBatchSize > 0 , "max. batch size must be > 0");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setMaxDelayMillis(long maxDelayMillis)
+    {
+        Validate.isTrue( maxDelayMillis >= 0 , "max. delay must be >= 0");
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Writes all queued chunks, stops the writer thread and closes the underlying storage.
+     *
+     * <p>Chunks stored after this method has been called are written synchronously.</p>
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        synchronized( LOCK )
+        {
+            terminate = true;
+            syncRequested = true;
+            LOCK.notifyAll();
+            while ( ! terminated )
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 ) 
+                {
+                    LOG.error("close(): Giving up after "+SYNC_TIMEOUT_MILLIS+" ms , "+(pending.size()+inFlight.size)+" chunks have not been written");
+                    break;
+                }
+                try {
+                    LOCK.wait( remaining );
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for chunks to be written");
+                }
+            }
+        }
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindSaver[ "+delegate+" ]";
+    }
+}
@@ -3,6 +3,7 @@ package de.codesourcery.voxelengine.model;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.lang3.Validate;
 import org.apache.log4j.Logger;
 
 import com.badlogic.gdx.math.Vector3;
@@ -39,9 +40,16 @@ public class Chunk implements Disposable
     
     /**
      * Flag: Chunk has been changed and mesh etc. needs to be rebuild.
+     * 
+     * <p>Light levels only get re-calculated if they are no longer valid , see {@link #getLightStamp()}.</p>
      */
     public static final int FLAG_NEEDS_REBUILD = 1<<1;
     
+    /**
+     * Flag: Light levels are up-to-date but the mesh needs to be rebuild.
+     */
+    public static final int FLAG_NEEDS_REMESH = 1<<2;
+    
     /**
      * Flag: In-memory state of chunk differs from on-disk state, chunk must be saved to disk.
      */
@@ -51,6 +59,24 @@ public class Chunk implements Disposable
     
     public static final byte LIGHTLEVEL_SUNLIGHT = 15;
     
+    /**
+     * Light channel holding sun light , stored in the lower 4 bits of each {@link #lightLevels light level}.
+     * 
+     * <p>Sky light is kept apart from light emitted by blocks so that the time of day only needs to scale it 
+     * when rendering instead of requiring all chunks to be re-lit.</p>
+     */
+    public static final int CHANNEL_SKY = 0;
+    
+    /**
+     * Light channel holding light emitted by blocks , stored in the upper 4 bits of each {@link #lightLevels light level}.
+     */
+    public static final int CHANNEL_BLOCK = 1;
+    
+    /**
+     * Light stamp of chunks whose light levels have not been calculated yet.
+     */
+    public static final long NO_LIGHT_STAMP = 0;
+    
     /**
      * Chunk key.
      */
@@ -105,8 +131,31 @@ public class Chunk implements Disposable
      */
     public final int[] blockTypes;
     
+    /**
+     * Light level of each voxel , holding both the {@link #CHANNEL_SKY sky light} and the {@link #CHANNEL_BLOCK block light}.
+     * 
+     * @see #getChannel(byte, int)
+     */
     public final byte[] lightLevels;
     
+    /**
+     * World seed of the procedurally generated baseline this chunk was derived from.
+     */
+    private long seed;
+    
+    /**
+     * Identifies the surroundings the current light levels were calculated against.
+     */
+    private long lightStamp = NO_LIGHT_STAMP;
+    
+    // hash of all non-air blocks , only valid if blockHashValid is set
+    private long blockHash;
+    private boolean blockHashValid;
+    
+    // indices of all light-emitting blocks in ascending order , NULL until first requested. 
+    // Arrays are never modified once published so lighting jobs may read them concurrently.
+    private volatile int[] emitters;
+    
     @Override
     public String toString() {
         return "Chunk ("+chunkKey+"): center="+center+", flags = "+flagsToString()+" , bounds = "+boundingBox;
@@ -153,6 +202,11 @@ public class Chunk implements Disposable
      * @param blockTypes array holding the type of each voxel in this chunk (number of array elements needs to be (chunkSize+2)^3 ) 
      */
     public Chunk(ChunkKey key,int[] blockTypes,byte[] lightLevels) 
+    {
+        this( key , blockTypes , lightLevels , true );
+    }
+    
+    protected Chunk(ChunkKey key,int[] blockTypes,byte[] lightLevels,boolean updateIsEmptyFlag) 
     {
         if ( center == null ) {
             throw new IllegalArgumentException("Chunk center must not be NULL");
@@ -166,7 +220,196 @@ public class Chunk implements Disposable
                 center.cpy().sub( World.CHUNK_HALF_WIDTH , World.CHUNK_HALF_WIDTH , World.CHUNK_HALF_WIDTH ) , 
                 center.cpy().add( World.CHUNK_HALF_WIDTH , World.CHUNK_HALF_WIDTH , World.CHUNK_HALF_WIDTH ) 
         ); 
-        updateIsEmptyFlag();
+        if ( updateIsEmptyFlag ) {
+            updateIsEmptyFlag();
+        }
+    }
+    
+    /**
+     * Returns whether this chunk only holds the blocks along its borders.
+     * 
+     * @return
+     * @see HaloChunk
+     */
+    public boolean isHalo() {
+        return false;
+    }
+    
+    /**
+     * Creates a copy of this chunk's block and light data.
+     * 
+     * <p>The returned chunk shares no mutable state with this one and
+     * thus can safely be handed to another thread (e.g. for saving it to disk).
+     * Neighbours, mesh and usage state are not copied.</p>
+     * 
+     * @return
+     */
+    public Chunk createSnapshot() 
+    {
+        final Chunk result = new Chunk( chunkKey , blockTypes.clone() , lightLevels.clone() , false );
+        result.flags = this.flags;
+        result.seed = this.seed;
+        result.lightStamp = this.lightStamp;
+        result.emitters = this.emitters;
+        return result;
+    }
+    
+    /**
+     * Returns the world seed of the procedurally generated baseline this chunk was derived from.
+     * 
+     * @return
+     */
+    public long getSeed() {
+        return seed;
+    }
+    
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+    
+    /**
+     * Returns a stamp identifying the surroundings (blocks of this chunk and its neighbours , column heights) 
+     * that this chunk's light levels were calculated against.
+     * 
+     * <p>Light levels need not be re-calculated as long as the stamp matches the current surroundings.</p>
+     * 
+     * @return stamp or {@link #NO_LIGHT_STAMP}
+     * @see de.codesourcery.voxelengine.engine.LightingEngine#getLightStamp(Chunk)
+     */
+    public long getLightStamp() {
+        return lightStamp;
+    }
+    
+    public void setLightStamp(long lightStamp) {
+        this.lightStamp = lightStamp;
+    }
+    
+    /**
+     * Returns a hash of this chunk's block types.
+     * 
+     * <p>The hash gets calculated on first access and is then kept up-to-date by {@link #setBlockType(int, int)}, 
+     * so block types must not be modified by writing to {@link #blockTypes} afterwards.</p>
+     * 
+     * @return
+     */
+    public long getBlockHash() 
+    {
+        if ( ! blockHashValid ) 
+        {
+            long hash = 0;
+            for ( int i = 0 , len = blockTypes.length ; i < len ; i++ ) 
+            {
+                if ( blockTypes[i] != BlockType.AIR ) {
+                    hash ^= blockHash( i , blockTypes[i] );
+                }
+            }
+            blockHash = hash;
+            blockHashValid = true;
+        }
+        return blockHash;
+    }
+    
+    // hash of a single non-air block , the block hash is the XOR of all of these so that it can be updated incrementally
+    private static long blockHash(int blockIndex,int blockType) 
+    {
+        long h = (long) blockType << 32 | blockIndex;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Returns the approximate number of bytes occupied by this chunk's block and light data.
+     * 
+     * @return
+     */
+    public int getDataSizeInBytes() {
+        return blockTypes.length*4 + lightLevels.length;
+    }
+    
+    /**
+     * Returns the indices of all light-emitting blocks in ascending order.
+     * 
+     * <p>The index gets built on first access and is then kept up-to-date by {@link #setBlockType(int, int)} , 
+     * so block types must not be modified by writing to {@link #blockTypes} afterwards. Generated and loaded chunks
+     * get their index before being handed to the rendering thread.</p>
+     * 
+     * @return block indices , the returned array must not be modified
+     */
+    public int[] getEmitters() 
+    {
+        int[] result = emitters;
+        if ( result == null ) 
+        {
+            synchronized( this ) 
+            {
+                result = emitters;
+                if ( result == null ) {
+                    result = findEmitters();
+                    emitters = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Sets the emitter index , used when loading chunks that got persisted along with their emitters.
+     * 
+     * @param emitters indices of all light-emitting blocks in ascending order , must match the block types of this chunk
+     * @see #getEmitters()
+     */
+    public void setEmitters(int[] emitters) 
+    {
+        Validate.notNull(emitters, "emitters must not be NULL");
+        this.emitters = emitters;
+    }
+    
+    protected int[] findEmitters() 
+    {
+        int[] result = new int[ 16 ];
+        int count = 0;
+        for ( int i = 0 , len = blockTypes.length ; i < len ; i++ ) 
+        {
+            if ( BlockType.emitsLight( blockTypes[i] ) ) 
+            {
+                if ( count == result.length ) {
+                    result = Arrays.copyOf( result , result.length*2 );
+                }
+                result[ count++ ] = i;
+            }
+        }
+        return Arrays.copyOf( result , count );
+    }
+    
+    // copy-on-write update of the emitter index , idempotent so that it does not matter whether 
+    // a concurrent getEmitters() saw the new block type or not
+    private synchronized void updateEmitters(int blockIndex,boolean emits) 
+    {
+        final int[] current = emitters;
+        if ( current == null ) {
+            return; // built on first access
+        }
+        final int pos = Arrays.binarySearch( current , blockIndex );
+        if ( emits && pos < 0 ) 
+        {
+            final int insert = -pos - 1;
+            final int[] result = new int[ current.length + 1 ];
+            System.arraycopy( current , 0 , result , 0 , insert );
+            result[ insert ] = blockIndex;
+            System.arraycopy( current , insert , result , insert + 1 , current.length - insert );
+            emitters = result;
+        } 
+        else if ( ! emits && pos >= 0 ) 
+        {
+            final int[] result = new int[ current.length - 1 ];
+            System.arraycopy( current , 0 , result , 0 , pos );
+            System.arraycopy( current , pos + 1 , result , pos , current.length - pos - 1 );
+            emitters = result;
+        }
     }
     
     public boolean emitsLight(int blockIndex) 
@@ -202,6 +445,39 @@ public class Chunk implements Disposable
         return lightLevels[ blockIndex ];
     }    
     
+    public int getSkyLight(int blockIndex) {
+        return getChannel( getLightLevel( blockIndex ) , CHANNEL_SKY );
+    }
+    
+    public int getBlockLight(int blockIndex) {
+        return getChannel( getLightLevel( blockIndex ) , CHANNEL_BLOCK );
+    }
+    
+    /**
+     * Returns the level of a single light channel.
+     * 
+     * @param lightLevel light level holding both channels
+     * @param channel {@link #CHANNEL_SKY} or {@link #CHANNEL_BLOCK}
+     * @return
+     */
+    public static int getChannel(byte lightLevel,int channel) {
+        return ( ( lightLevel & 0xff ) >>> ( channel << 2 ) ) & 0x0f;
+    }
+    
+    /**
+     * Changes the level of a single light channel.
+     * 
+     * @param lightLevel light level holding both channels
+     * @param channel {@link #CHANNEL_SKY} or {@link #CHANNEL_BLOCK}
+     * @param level new level of the channel , 0...{@link #LIGHTLEVEL_MAX}
+     * @return light level with the channel changed
+     */
+    public static byte setChannel(byte lightLevel,int channel,int level) 
+    {
+        final int shift = channel << 2;
+        return (byte) ( ( lightLevel & ~( 0x0f << shift ) ) | level << shift );
+    }
+    
     /**
      * Calculates the average light level of this block
      * based on the light level of its adjacent blocks.
@@ -426,31 +702,44 @@ public class Chunk implements Disposable
      */
     public void setBlockType(int x,int y,int z,int blockType) 
     {
-        blockTypes[ blockIndex(x,y,z) ] = blockType;
+        setBlockType( blockIndex(x,y,z) , blockType );
     }
     
     public void setBlockType(int blockIdx,int blockType) 
     {
+        final int oldType = blockTypes[ blockIdx ];
+        if ( blockHashValid ) 
+        {
+            if ( oldType != BlockType.AIR ) {
+                blockHash ^= blockHash( blockIdx , oldType );
+            }
+            if ( blockType != BlockType.AIR ) {
+                blockHash ^= blockHash( blockIdx , blockType );
+            }
+        }
         blockTypes[ blockIdx ] = blockType;
+        if ( emitters != null && blockType != oldType ) 
+        {
+            final boolean emits = BlockType.emitsLight( blockType );
+            if ( emits != BlockType.emitsLight( oldType ) ) {
+                updateEmitters( blockIdx , emits );
+            }
+        }
     }    
     
     /**
-     * Changes the type of a given block and if this block's 
-     * light level is different it will mark neighbouring chunks for
-     * re-meshing/re-building.
+     * Changes the type of a given block and marks this chunk for re-meshing.
+     * 
+     * <p>Light levels are not touched , callers need to incrementally update them 
+     * (see <code>LightingEngine#blockChanged()</code>) or mark the chunk for a full rebuild.</p>
      * 
      * @param blockIdx
      * @param newBlockType
      */
     public void setBlockTypeAndInvalidate(int blockIdx ,int newBlockType) 
     {
-        final int oldLightLevel = getLightLevel( blockIdx );
-        final int newLightLevel = BlockType.emitsLight( newBlockType ) ? BlockType.getEmittedLightLevel( newBlockType ) : 0;
         setBlockType( blockIdx  , newBlockType );
-        if ( oldLightLevel != newLightLevel ) 
-        {
-        	markNeighboursForRebuild();
-        }    	
+        setFlags( FLAG_NEEDS_REMESH );
     }
     
     /**
@@ -807,6 +1096,11 @@ public class Chunk implements Disposable
             if ( buffer.length() > 0 ) { buffer.append(" | "); }
             buffer.append("NEEDS_REBUILD");
         }   
+        if ( ( value & FLAG_NEEDS_REMESH) != 0 ) 
+        {
+            if ( buffer.length() > 0 ) { buffer.append(" | "); }
+            buffer.append("NEEDS_REMESH");
+        }   
         if ( isInUse() )
         {
             if ( buffer.length() > 0 ) { buffer.append(" | "); }
@@ -0,0 +1,238 @@
+package de.codesourcery.voxelengine.model;
+
+import java.util.Arrays;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A read-only chunk that only holds the block types and light levels of its six border slices.
+ *
+ * <p>Halo chunks are used for the outermost ring of loaded chunks. These chunks are never rendered
+ * themselves, they only need to be loaded because meshing/lighting a visible chunk requires looking at the boundary
+ * blocks of all its neighbours. Keeping just the borders needs roughly 1/5th of the memory of a full chunk.</p>
+ *
+ * <p>Border slices are stored back-to-back in the order left (x=0), right (x=max), bottom (y=0), top (y=max),
+ * back (z=0), front (z=max). Blocks along the edges of the chunk are part of multiple slices, all copies
+ * are kept in sync when setting light levels.</p>
+ *
+ * <p>Blocks that are not part of any border slice are reported as being solid, so that light propagation
+ * never enters the (unknown) interior of a halo chunk.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class HaloChunk extends Chunk
+{
+    public static final int SLICE_SIZE = World.CHUNK_SIZE*World.CHUNK_SIZE;
+
+    /**
+     * Total number of blocks (including duplicates at the edges) held by a halo chunk.
+     */
+    public static final int BORDER_BLOCK_COUNT = 6*SLICE_SIZE;
+
+    public static final int SLICE_LEFT   = 0;
+    public static final int SLICE_RIGHT  = 1;
+    public static final int SLICE_BOTTOM = 2;
+    public static final int SLICE_TOP    = 3;
+    public static final int SLICE_BACK   = 4;
+    public static final int SLICE_FRONT  = 5;
+
+    // block type reported for blocks that are not part of any border slice
+    private static final int INTERIOR_BLOCK_TYPE = BlockType.SOLID_1;
+
+    private static final int MAX = World.CHUNK_SIZE-1;
+
+    /**
+     * Create halo chunk.
+     *
+     * @param key
+     * @param borderBlockTypes block types of all border slices, see class comment for expected layout
+     * @param borderLightLevels light levels of all border slices, see class comment for expected layout
+     */
+    public HaloChunk(ChunkKey key,int[] borderBlockTypes,byte[] borderLightLevels)
+    {
+        super( key , borderBlockTypes , borderLightLevels , true );
+        Validate.isTrue( borderBlockTypes.length == BORDER_BLOCK_COUNT , "Expected "+BORDER_BLOCK_COUNT+" block types");
+        Validate.isTrue( borderLightLevels.length == BORDER_BLOCK_COUNT , "Expected "+BORDER_BLOCK_COUNT+" light levels");
+    }
+
+    /**
+     * Creates a halo chunk from the borders of a full chunk.
+     *
+     * @param chunk
+     * @return
+     */
+    public static HaloChunk fromChunk(Chunk chunk)
+    {
+        final int[] types = new int[ BORDER_BLOCK_COUNT ];
+        final byte[] light = new byte[ BORDER_BLOCK_COUNT ];
+        for ( int i = 0 ; i < BORDER_BLOCK_COUNT ; i++ )
+        {
+            final int blockIndex = blockIndexOfBorderIndex( i );
+            types[i] = chunk.getBlockType( blockIndex );
+            light[i] = chunk.getLightLevel( blockIndex );
+        }
+        final HaloChunk result = new HaloChunk( chunk.chunkKey , types , light );
+        result.flags = chunk.flags & ~( FLAG_NEEDS_SAVE | FLAG_NEEDS_REBUILD );
+        return result;
+    }
+
+    /**
+     * Maps an index into the border slice arrays to the corresponding block index of a full chunk.
+     *
+     * @param borderIndex
+     * @return
+     */
+    public static int blockIndexOfBorderIndex(int borderIndex)
+    {
+        final int slice = borderIndex / SLICE_SIZE;
+        final int u = borderIndex % World.CHUNK_SIZE;
+        final int v = ( borderIndex % SLICE_SIZE ) / World.CHUNK_SIZE;
+        switch( slice )
+        {
+            case SLICE_LEFT:   return blockIndex( 0   , u , v );
+            case SLICE_RIGHT:  return blockIndex( MAX , u , v );
+            case SLICE_BOTTOM: return blockIndex( u , 0   , v );
+            case SLICE_TOP:    return blockIndex( u , MAX , v );
+            case SLICE_BACK:   return blockIndex( u , v , 0   );
+            case SLICE_FRONT:  return blockIndex( u , v , MAX );
+            default:
+                throw new IllegalArgumentException("Border index out of range: "+borderIndex);
+        }
+    }
+
+    /**
+     * Returns the index into the border slice arrays for a given block or -1 if the block is not on the border.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public static int borderIndex(int x,int y,int z)
+    {
+        if ( x == 0 ) {
+            return SLICE_LEFT*SLICE_SIZE + y + z*World.CHUNK_SIZE;
+        }
+        if ( x == MAX ) {
+            return SLICE_RIGHT*SLICE_SIZE + y + z*World.CHUNK_SIZE;
+        }
+        if ( y == 0 ) {
+            return SLICE_BOTTOM*SLICE_SIZE + x + z*World.CHUNK_SIZE;
+        }
+        if ( y == MAX ) {
+            return SLICE_TOP*SLICE_SIZE + x + z*World.CHUNK_SIZE;
+        }
+        if ( z == 0 ) {
+            return SLICE_BACK*SLICE_SIZE + x + y*World.CHUNK_SIZE;
+        }
+        if ( z == MAX ) {
+            return SLICE_FRONT*SLICE_SIZE + x + y*World.CHUNK_SIZE;
+        }
+        return -1;
+    }
+
+    private static int borderIndex(int blockIndex) {
+        return borderIndex( blockIndexX( blockIndex ) , blockIndexY( blockIndex ) , blockIndexZ( blockIndex ) );
+    }
+
+    @Override
+    public boolean isHalo() {
+        return true;
+    }
+
+    @Override
+    public int getBlockType(int x, int y, int z)
+    {
+        final int idx = borderIndex(x,y,z);
+        return idx == -1 ? INTERIOR_BLOCK_TYPE : blockTypes[idx];
+    }
+
+    @Override
+    public int getBlockType(int blockIndex) {
+        final int idx = borderIndex(blockIndex);
+        return idx == -1 ? INTERIOR_BLOCK_TYPE : blockTypes[idx];
+    }
+
+    @Override
+    public boolean isBlockEmpty(int blockIndex) {
+        return getBlockType( blockIndex ) == BlockType.AIR;
+    }
+
+    @Override
+    public boolean emitsLight(int blockIndex) {
+        return BlockType.emitsLight( getBlockType( blockIndex ) );
+    }
+
+    @Override
+    protected int[] findEmitters()
+    {
+        // edge blocks are part of several slices , only look at the first one
+        final int[] result = new int[ BORDER_BLOCK_COUNT ];
+        int count = 0;
+        for ( int i = 0 ; i < BORDER_BLOCK_COUNT ; i++ )
+        {
+            final int blockIndex = blockIndexOfBorderIndex( i );
+            if ( BlockType.emitsLight( blockTypes[i] ) && borderIndex( blockIndex ) == i ) {
+                result[ count++ ] = blockIndex;
+            }
+        }
+        final int[] emitters = Arrays.copyOf( result , count );
+        Arrays.sort( emitters );
+        return emitters;
+    }
+
+    @Override
+    public byte getLightLevel(int x, int y, int z)
+    {
+        final int idx = borderIndex(x,y,z);
+        return idx == -1 ? 0 : lightLevels[idx];
+    }
+
+    @Override
+    public byte getLightLevel(int blockIndex)
+    {
+        final int idx = borderIndex(blockIndex);
+        return idx == -1 ? 0 : lightLevels[idx];
+    }
+
+    @Override
+    public void setLightLevel(int blockIndex, byte level) {
+        setLightLevel( blockIndexX( blockIndex ) , blockIndexY( blockIndex ) , blockIndexZ( blockIndex ) , level );
+    }
+
+    @Override
+    public void setLightLevel(int x, int y, int z, byte level)
+    {
+        // edge blocks are part of up to three slices
+        if ( x == 0 ) {
+            lightLevels[ SLICE_LEFT*SLICE_SIZE + y + z*World.CHUNK_SIZE ] = level;
+        } else if ( x == MAX ) {
+            lightLevels[ SLICE_RIGHT*SLICE_SIZE + y + z*World.CHUNK_SIZE ] = level;
+        }
+        if ( y == 0 ) {
+            lightLevels[ SLICE_BOTTOM*SLICE_SIZE + x + z*World.CHUNK_SIZE ] = level;
+        } else if ( y == MAX ) {
+            lightLevels[ SLICE_TOP*SLICE_SIZE + x + z*World.CHUNK_SIZE ] = level;
+        }
+        if ( z == 0 ) {
+            lightLevels[ SLICE_BACK*SLICE_SIZE + x + y*World.CHUNK_SIZE ] = level;
+        } else if ( z == MAX ) {
+            lightLevels[ SLICE_FRONT*SLICE_SIZE + x + y*World.CHUNK_SIZE ] = level;
+        }
+    }
+
+    @Override
+    public void setBlockType(int x, int y, int z, int blockType) {
+        throw new UnsupportedOperationException("Halo chunks are read-only: "+this);
+    }
+
+    @Override
+    public void setBlockType(int blockIdx, int blockType) {
+        throw new UnsupportedOperationException("Halo chunks are read-only: "+this);
+    }
+
+    @Override
+    public Chunk createSnapshot() {
+        throw new UnsupportedOperationException("Halo chunks cannot be saved: "+this);
+    }
+}
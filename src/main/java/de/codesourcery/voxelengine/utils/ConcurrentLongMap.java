@@ -0,0 +1,378 @@
+package de.codesourcery.voxelengine.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent hash map with primitive <code>long</code> keys.
+ *
+ * <p>The map uses open addressing with linear probing. Reads never block and never allocate. Writes
+ * are serialized per lock stripe (the stripe is picked by the key's hash), so writers working on different
+ * keys rarely contend with each other. Resizing acquires all stripe locks.</p>
+ *
+ * <p>Removing an entry only clears the value and keeps the key in its slot (tombstone), so lock-free readers
+ * never miss entries further down a probe sequence. Tombstones are dropped when the table gets rehashed.</p>
+ *
+ * <p>Key {@link #NO_KEY} is reserved, <code>null</code> values are not supported.</p>
+ *
+ * <p>Iteration via {@link #visit(Visitor)} is weakly consistent (entries added or removed while iterating
+ * may or may not be seen) and does not allocate.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @param <V> value type
+ */
+public final class ConcurrentLongMap<V>
+{
+    /**
+     * Reserved key used to mark empty slots.
+     */
+    public static final long NO_KEY = -1;
+
+    private static final int STRIPE_COUNT = 16; // must be a power of two
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[ STRIPE_COUNT ];
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile Table<V> table;
+
+    /**
+     * Receives map entries while iterating.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     * @param <V>
+     */
+    @FunctionalInterface
+    public interface Visitor<V>
+    {
+        public void visit(long key,V value);
+    }
+
+    private static final class Table<V>
+    {
+        public final AtomicLongArray keys;
+        public final AtomicReferenceArray<V> values;
+        public final int mask;
+        public final int threshold;
+
+        // number of slots holding a key (including tombstones)
+        public final AtomicInteger usedSlots = new AtomicInteger();
+
+        public Table(int capacity)
+        {
+            keys = new AtomicLongArray( capacity );
+            for ( int i = 0 ; i < capacity ; i++ ) {
+                keys.lazySet( i , NO_KEY );
+            }
+            values = new AtomicReferenceArray<>( capacity );
+            mask = capacity-1;
+            threshold = (int) ( capacity * LOAD_FACTOR );
+        }
+    }
+
+    public ConcurrentLongMap() {
+        this( MIN_CAPACITY );
+    }
+
+    /**
+     * Create map.
+     *
+     * @param expectedSize number of entries the map should be able to hold without resizing
+     */
+    public ConcurrentLongMap(int expectedSize)
+    {
+        for ( int i = 0 ; i < STRIPE_COUNT ; i++ ) {
+            stripes[i] = new ReentrantLock();
+        }
+        table = new Table<>( tableSizeFor( expectedSize ) );
+    }
+
+    private static int tableSizeFor(int expectedSize)
+    {
+        final int minCapacity = (int) ( Math.max( MIN_CAPACITY , expectedSize ) / LOAD_FACTOR );
+        int result = MIN_CAPACITY;
+        while ( result < minCapacity ) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    private static int hash(long key)
+    {
+        // MurmurHash3 finalizer, chunk IDs only differ in a few bits so these need to be spread out
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private ReentrantLock stripe(int hash) {
+        // use the upper bits so that keys in the same stripe do not end up in the same table neighbourhood
+        return stripes[ ( hash >>> 28 ) & (STRIPE_COUNT-1) ];
+    }
+
+    /**
+     * Returns the value for a key.
+     *
+     * @param key
+     * @return value or <code>null</code>
+     */
+    public V get(long key)
+    {
+        final Table<V> t = table;
+        final AtomicLongArray keys = t.keys;
+        for ( int i = hash( key ) & t.mask , probes = 0 ; probes <= t.mask ; i = (i+1) & t.mask , probes++ )
+        {
+            final long k = keys.get( i );
+            if ( k == key ) {
+                return t.values.get( i );
+            }
+            if ( k == NO_KEY ) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get( key ) != null;
+    }
+
+    /**
+     * Associates a value with a key.
+     *
+     * @param key
+     * @param value value, never <code>null</code>
+     * @return previous value or <code>null</code>
+     */
+    public V put(long key,V value)
+    {
+        if ( key == NO_KEY ) {
+            throw new IllegalArgumentException("Key "+NO_KEY+" is reserved");
+        }
+        if ( value == null ) {
+            throw new IllegalArgumentException("value must not be NULL");
+        }
+
+        final int hash = hash( key );
+        final ReentrantLock lock = stripe( hash );
+        while ( true )
+        {
+            final Table<V> t;
+            boolean inserted = false;
+            lock.lock();
+            try
+            {
+                t = table;
+                final AtomicLongArray keys = t.keys;
+                for ( int i = hash & t.mask , probes = 0 ; probes <= t.mask ; i = (i+1) & t.mask , probes++ )
+                {
+                    long k = keys.get( i );
+                    // writers holding other stripes may claim the same empty slot concurrently
+                    if ( k == NO_KEY && ! keys.compareAndSet( i , NO_KEY , key ) ) {
+                        k = keys.get( i );
+                    }
+                    if ( k == NO_KEY )
+                    {
+                        t.values.set( i , value );
+                        size.incrementAndGet();
+                        inserted = true;
+                        break;
+                    }
+                    if ( k == key )
+                    {
+                        final V previous = t.values.getAndSet( i , value );
+                        if ( previous == null ) {
+                            size.incrementAndGet();
+                        }
+                        return previous;
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+
+            if ( inserted )
+            {
+                if ( t.usedSlots.incrementAndGet() > t.threshold ) {
+                    rehash( t );
+                }
+                return null;
+            }
+            // no free slot left
+            rehash( t );
+        }
+    }
+
+    /**
+     * Removes the value for a key.
+     *
+     * @param key
+     * @return removed value or <code>null</code>
+     */
+    public V remove(long key)
+    {
+        final int hash = hash( key );
+        final ReentrantLock lock = stripe( hash );
+        lock.lock();
+        try
+        {
+            final Table<V> t = table;
+            final AtomicLongArray keys = t.keys;
+            for ( int i = hash & t.mask , probes = 0 ; probes <= t.mask ; i = (i+1) & t.mask , probes++ )
+            {
+                final long k = keys.get( i );
+                if ( k == key )
+                {
+                    final V previous = t.values.getAndSet( i , null );
+                    if ( previous != null ) {
+                        size.decrementAndGet();
+                    }
+                    return previous;
+                }
+                if ( k == NO_KEY ) {
+                    return null;
+                }
+            }
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        lockAll();
+        try
+        {
+            table = new Table<>( table.mask+1 );
+            size.set( 0 );
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Invokes a visitor for each entry.
+     *
+     * <p>The visitor may modify the map.</p>
+     *
+     * @param visitor
+     */
+    public void visit(Visitor<? super V> visitor)
+    {
+        final Table<V> t = table;
+        final AtomicLongArray keys = t.keys;
+        for ( int i = 0 , len = t.mask+1 ; i < len ; i++ )
+        {
+            final long k = keys.get( i );
+            if ( k != NO_KEY )
+            {
+                final V value = t.values.get( i );
+                if ( value != null ) {
+                    visitor.visit( k , value );
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds all values to a collection.
+     *
+     * @param result
+     * @return number of values added
+     */
+    public int values(Collection<? super V> result)
+    {
+        final Table<V> t = table;
+        int count = 0;
+        for ( int i = 0 , len = t.mask+1 ; i < len ; i++ )
+        {
+            final V value = t.values.get( i );
+            if ( value != null ) {
+                result.add( value );
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // rehashes all live entries into a new table unless some other thread already did so
+    private void rehash(Table<V> expected)
+    {
+        lockAll();
+        try
+        {
+            if ( table != expected ) {
+                return;
+            }
+            final Table<V> newTable = new Table<>( tableSizeFor( 2*size.get() ) );
+            final AtomicLongArray oldKeys = expected.keys;
+            int used = 0;
+            for ( int i = 0 , len = expected.mask+1 ; i < len ; i++ )
+            {
+                final V value = expected.values.get( i );
+                if ( value != null )
+                {
+                    final long key = oldKeys.get( i );
+                    int j = hash( key ) & newTable.mask;
+                    while ( newTable.keys.get( j ) != NO_KEY ) {
+                        j = (j+1) & newTable.mask;
+                    }
+                    newTable.keys.set( j , key );
+                    newTable.values.set( j , value );
+                    used++;
+                }
+            }
+            newTable.usedSlots.set( used );
+            table = newTable;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    private void lockAll()
+    {
+        // always acquire in the same order to avoid deadlocks
+        for ( int i = 0 ; i < STRIPE_COUNT ; i++ ) {
+            stripes[i].lock();
+        }
+    }
+
+    private void unlockAll()
+    {
+        for ( int i = STRIPE_COUNT-1 ; i >= 0 ; i-- ) {
+            stripes[i].unlock();
+        }
+    }
+}
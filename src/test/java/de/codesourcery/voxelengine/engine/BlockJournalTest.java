@@ -0,0 +1,102 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import junit.framework.TestCase;
+
+public class BlockJournalTest extends TestCase 
+{
+    private File tempDir;
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        tempDir = Files.createTempDirectory("journaltest").toFile();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception 
+    {
+        ChunkManager.recursiveDelete( tempDir );
+    }
+    
+    public void testReplayAfterReopen() throws IOException 
+    {
+        final ChunkKey key = new ChunkKey( -3 , 1 , 7 );
+        BlockJournal journal = new BlockJournal( tempDir );
+        journal.append( key.toID() , 10 , BlockType.AIR , BlockType.SOLID_1 );
+        journal.append( key.toID() , 11 , BlockType.AIR , BlockType.WOOD );
+        journal.append( key.toID() , 10 , BlockType.SOLID_1 , BlockType.GLOWSTONE );
+        journal.close();
+        
+        // simulate a torn write
+        final File file = new File( tempDir , BlockJournal.FILE_NAME );
+        try ( RandomAccessFile raf = new RandomAccessFile( file , "rw" ) ) {
+            raf.setLength( raf.length() + BlockJournal.RECORD_SIZE / 2 );
+        }
+        
+        journal = new BlockJournal( tempDir );
+        try 
+        {
+            assertEquals( 3 , journal.size() );
+            assertTrue( journal.hasEdits( key.toID() ) );
+            assertFalse( journal.hasEdits( new ChunkKey( 0 , 0 , 0 ).toID() ) );
+            
+            final Chunk chunk = new Chunk( key );
+            assertTrue( journal.replay( chunk ) );
+            assertEquals( BlockType.GLOWSTONE , chunk.getBlockType( 10 ) );
+            assertEquals( BlockType.WOOD , chunk.getBlockType( 11 ) );
+            assertFalse( chunk.isEmpty() );
+            // replay is idempotent
+            assertFalse( journal.replay( chunk ) );
+            
+            journal.append( key.toID() , 12 , BlockType.AIR , BlockType.SOLID_2 );
+        } finally {
+            journal.close();
+        }
+        assertEquals( BlockJournal.HEADER_SIZE + 4*BlockJournal.RECORD_SIZE , file.length() );
+    }
+    
+    public void testCompaction() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( 1 , 2 , 3 );
+        final ChunkKey key2 = new ChunkKey( 4 , 5 , 6 );
+        BlockJournal journal = new BlockJournal( tempDir );
+        journal.append( key1.toID() , 1 , BlockType.AIR , BlockType.SOLID_1 );
+        
+        final LongMap<IntArray> edits = journal.beginCompaction();
+        assertTrue( journal.isCompacting() );
+        assertEquals( 1 , edits.size );
+        assertEquals( 0 , journal.size() );
+        
+        journal.append( key2.toID() , 2 , BlockType.AIR , BlockType.SOLID_2 );
+        journal.close();
+        
+        // crash before compaction finished , both segments need to be replayed
+        journal = new BlockJournal( tempDir );
+        try 
+        {
+            assertTrue( journal.isCompacting() );
+            assertTrue( journal.hasEdits( key1.toID() ) );
+            assertTrue( journal.hasEdits( key2.toID() ) );
+            
+            // unfinished compaction is resumed
+            assertEquals( 1 , journal.beginCompaction().size );
+            journal.endCompaction();
+            assertFalse( journal.isCompacting() );
+            assertFalse( journal.hasEdits( key1.toID() ) );
+            assertTrue( journal.hasEdits( key2.toID() ) );
+        } finally {
+            journal.close();
+        }
+    }
+}
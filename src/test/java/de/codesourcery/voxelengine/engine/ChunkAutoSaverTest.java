@@ -0,0 +1,117 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import junit.framework.TestCase;
+
+public class ChunkAutoSaverTest extends TestCase 
+{
+    private TaskScheduler scheduler;
+    private ChunkManagerTest.BlockingStorage storage;
+    private ChunkManager manager;
+    private final List<Chunk> chunks = new ArrayList<>();
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        scheduler = new TaskScheduler();
+        // writes block until released
+        storage = new ChunkManagerTest.BlockingStorage();
+        manager = new ChunkManager( storage , scheduler );
+        for ( int i = 0 ; i < 5 ; i++ ) 
+        {
+            final Chunk chunk = manager.getChunk( new ChunkKey( i , 0 , 0 ) );
+            chunk.setNeedsSave( true );
+            chunks.add( chunk );
+        }
+    }
+    
+    @Override
+    protected void tearDown() throws Exception 
+    {
+        storage.release.countDown();
+        manager.dispose();
+        scheduler.dispose();
+    }
+    
+    // number of chunks that have been snapshotted for saving
+    private int snapshotCount() 
+    {
+        int result = 0;
+        for ( Chunk chunk : chunks ) 
+        {
+            if ( ! chunk.needsSave() ) {
+                result++;
+            }
+        }
+        return result;
+    }
+    
+    private static void awaitEmptyBacklog(ChunkAutoSaver saver) throws InterruptedException 
+    {
+        final long deadline = System.currentTimeMillis() + 10*1000;
+        while ( saver.getBacklogSize() > 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0 , saver.getBacklogSize() );
+    }
+    
+    private static ChunkAutoSaver createAutoSaver(ChunkManager manager,TaskScheduler scheduler) throws InterruptedException 
+    {
+        final ChunkAutoSaver saver = new ChunkAutoSaver( manager , scheduler );
+        saver.setIntervalMillis( 1 );
+        Thread.sleep( 10 ); // let the interval expire
+        return saver;
+    }
+    
+    public void testByteBudgetLimitsChunksPerTick() throws InterruptedException 
+    {
+        final ChunkAutoSaver saver = createAutoSaver( manager , scheduler );
+        // budget is exceeded by the first chunk
+        saver.setMaxBytesPerTick( 1 );
+        saver.setMaxNanosPerTick( Long.MAX_VALUE );
+        for ( int tick = 1 ; tick <= chunks.size() ; tick++ ) 
+        {
+            saver.tick();
+            assertEquals( tick , snapshotCount() );
+        }
+        storage.release.countDown();
+        awaitEmptyBacklog( saver );
+        assertEquals( chunks.size() , storage.stored.size() );
+    }
+    
+    public void testTimeBudgetLimitsChunksPerTick() throws InterruptedException 
+    {
+        final ChunkAutoSaver saver = createAutoSaver( manager , scheduler );
+        saver.setMaxBytesPerTick( Integer.MAX_VALUE );
+        // budget expires right away , at most one chunk gets snapshotted per tick
+        saver.setMaxNanosPerTick( 1 );
+        saver.tick();
+        assertTrue( snapshotCount() <= 1 );
+        
+        saver.setMaxNanosPerTick( Long.MAX_VALUE );
+        saver.tick();
+        assertEquals( chunks.size() , snapshotCount() );
+    }
+    
+    public void testBacklogIncludesQueuedWrites() throws InterruptedException 
+    {
+        final ChunkAutoSaver saver = createAutoSaver( manager , scheduler );
+        saver.setMaxBytesPerTick( Integer.MAX_VALUE );
+        saver.setMaxNanosPerTick( Long.MAX_VALUE );
+        saver.tick();
+        assertEquals( chunks.size() , snapshotCount() );
+        
+        // snapshots have been queued but none of them has been written yet
+        assertTrue( scheduler.awaitIdle( TaskScheduler.Prio.LO , 10*1000 ) );
+        assertEquals( chunks.size() , saver.getBacklogSize() );
+        assertTrue( storage.stored.isEmpty() );
+        
+        storage.release.countDown();
+        awaitEmptyBacklog( saver );
+        assertEquals( chunks.size() , storage.stored.size() );
+    }
+}
@@ -0,0 +1,99 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+
+/**
+ * Compares size and encode/decode speed of the available {@link ChunkCodec}s.
+ *
+ * <p>Uses a mix of generated chunks (empty, surface and solid chunks). Since generated chunks carry no light,
+ * a synthetic light field (sunlight plus a point light in the middle of each chunk) is applied.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ChunkCodecBenchmark 
+{
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws IOException 
+    {
+        final List<Chunk> chunks = new ArrayList<>();
+        for ( int x = -4 ; x < 4 ; x++ ) {
+            for ( int y = -4 ; y < 2 ; y++ ) {
+                for ( int z = -4 ; z < 4 ; z++ ) {
+                    final Chunk chunk = ChunkManager.generateChunk( new ChunkKey( x , y , z ) );
+                    applyLight( chunk );
+                    chunks.add( chunk );
+                }
+            }
+        }
+
+        for ( int pass = 0 ; pass < 2 ; pass++ ) 
+        {
+            System.out.println("=== Pass "+(pass+1)+" ("+chunks.size()+" chunks) ===");
+            for ( ChunkCodec codec : ChunkCodec.values() ) 
+            {
+                final List<byte[]> encoded = new ArrayList<>();
+                final long encodeStart = System.nanoTime();
+                for ( int round = 0 ; round < ROUNDS ; round++ ) 
+                {
+                    encoded.clear();
+                    for ( Chunk chunk : chunks ) 
+                    {
+                        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        ChunkFile.store( chunk , out , codec );
+                        encoded.add( out.toByteArray() );
+                    }
+                }
+                final long encodeNanos = System.nanoTime() - encodeStart;
+
+                long totalBytes = 0;
+                for ( byte[] data : encoded ) {
+                    totalBytes += data.length;
+                }
+
+                final long decodeStart = System.nanoTime();
+                for ( int round = 0 ; round < ROUNDS ; round++ ) {
+                    for ( byte[] data : encoded ) {
+                        ChunkFile.load( new ByteArrayInputStream( data ) );
+                    }
+                }
+                final long decodeNanos = System.nanoTime() - decodeStart;
+
+                final int count = chunks.size()*ROUNDS;
+                System.out.println( String.format("%-8s avg. size: %8d bytes , encode: %7.1f us/chunk , decode: %7.1f us/chunk" , 
+                        codec , totalBytes / chunks.size() , encodeNanos / 1000d / count , decodeNanos / 1000d / count ) );
+            }
+        }
+    }
+
+    private static void applyLight(Chunk chunk) 
+    {
+        final int center = World.CHUNK_SIZE/2;
+        for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ ) 
+        {
+            for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ ) 
+            {
+                boolean sunlight = true;
+                for ( int y = World.CHUNK_SIZE-1 ; y >= 0 ; y-- ) 
+                {
+                    if ( chunk.isBlockEmpty( Chunk.blockIndex( x , y , z ) ) ) 
+                    {
+                        final int distance = Math.abs( x - center ) + Math.abs( y - center ) + Math.abs( z - center );
+                        final int level = Math.max( sunlight ? Chunk.LIGHTLEVEL_SUNLIGHT : 0 , 14 - distance );
+                        chunk.setLightLevel( x , y , z , (byte) level );
+                    } else {
+                        sunlight = false;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package de.codesourcery.voxelengine.engine;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 
+import de.codesourcery.voxelengine.model.BlockType;
 import de.codesourcery.voxelengine.model.Chunk;
 import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+import de.codesourcery.voxelengine.model.World;
 import junit.framework.TestCase;
 
 public class ChunkFileTest extends TestCase 
@@ -45,4 +52,190 @@ public class ChunkFileTest extends TestCase
         
         assertEquals( chunk , loaded );
     }
-}
\ No newline at end of file
+    
+    public void testCodecs() throws IOException {
+
+        final ChunkKey key = new ChunkKey(-2,0,3 );
+        final Chunk chunk = ChunkManager.generateChunk( key );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            chunk.setLightLevel( i , (byte) ( (i/100) % 16) );
+        }
+        for ( ChunkCodec codec : ChunkCodec.values() ) 
+        {
+            try ( OutputStream out = new FileOutputStream( tempFile ) ) {
+                ChunkFile.store( chunk , out , codec );
+            }
+            final Chunk loaded;
+            try ( InputStream in = new FileInputStream( tempFile ) ) {
+                loaded = ChunkFile.load( in );
+            }
+            final Chunk mapped = new ChunkFile( tempFile ).loadMapped();
+            final HaloChunk borders = new ChunkFile( tempFile ).loadBorders();
+            assertEquals( key , loaded.chunkKey );
+            for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) 
+            {
+                assertEquals( codec.name() , chunk.getBlockType( i ) , loaded.getBlockType( i ) );
+                assertEquals( codec.name() , chunk.getLightLevel( i ) , loaded.getLightLevel( i ) );
+                assertEquals( codec.name() , chunk.getBlockType( i ) , mapped.getBlockType( i ) );
+                assertEquals( codec.name() , chunk.getLightLevel( i ) , mapped.getLightLevel( i ) );
+            }
+            assertEquals( codec.name() , chunk.getLightLevel( 0 , 31 , 17 ) , borders.getLightLevel( 0 , 31 , 17 ) );
+        }
+    }
+    
+    public void testShortReads() throws IOException {
+
+        final ChunkKey key = new ChunkKey(-2,0,3 );
+        final Chunk chunk = ChunkManager.generateChunk( key );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkFile.store( chunk , out , ChunkCodec.NONE );
+        
+        // stream that never returns more than a few bytes per read
+        final InputStream in = new FilterInputStream( new ByteArrayInputStream( out.toByteArray() ) ) 
+        {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read( b , off , Math.min( len , 7 ) );
+            }
+        };
+        final Chunk loaded = ChunkFile.load( in );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            assertEquals( chunk.getBlockType( i ) , loaded.getBlockType( i ) );
+        }
+    }
+    
+    public void testDiff() throws IOException {
+
+        final ChunkKey key = new ChunkKey(1,0,-2 );
+        final long seed = 0x1234567890L;
+        final Chunk chunk = ChunkGenerator.generate( key , seed );
+        assertFalse( chunk.needsSave() );
+        assertEquals( seed , chunk.getSeed() );
+        
+        chunk.setBlockType( 0 , BlockType.WOOD );
+        chunk.setBlockType( World.BLOCKS_IN_CHUNK-1 , BlockType.GLOWSTONE );
+        assertDiffRoundTrip( chunk );
+        final long diffSize = tempFile.length();
+        
+        // too many changes to be stored as a diff
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i += 2 ) {
+            chunk.setBlockType( i , chunk.getBlockType( i ) == BlockType.WOOD ? BlockType.SOLID_1 : BlockType.WOOD );
+        }
+        assertDiffRoundTrip( chunk );
+        assertTrue( diffSize < tempFile.length() );
+    }
+    
+    private void assertDiffRoundTrip(Chunk chunk) throws IOException 
+    {
+        try ( OutputStream out = new FileOutputStream( tempFile ) ) {
+            ChunkFile.store( chunk , out );
+        }
+        final Chunk loaded;
+        try ( InputStream in = new FileInputStream( tempFile ) ) {
+            loaded = ChunkFile.load( in );
+        }
+        final HaloChunk borders = new ChunkFile( tempFile ).loadBorders();
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            assertEquals( chunk.getBlockType( i ) , loaded.getBlockType( i ) );
+        }
+        assertEquals( chunk.getBlockType( 0 , 0 , 0 ) , borders.getBlockType( 0 , 0 , 0 ) );
+    }
+    
+    public void testSections() throws IOException {
+
+        final ChunkKey key = new ChunkKey(3,0,-1 );
+        final Chunk chunk = ChunkManager.generateChunk( key );
+        chunk.setBlockType( 1 , 2 , 3 , BlockType.GLOWSTONE );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            chunk.setLightLevel( i , (byte) (i % 16) );
+        }
+        chunk.setLightStamp( 0x1234567890abcdefL );
+        new ChunkFile( tempFile ).store( chunk );
+
+        final ChunkFile.Sections sections = new ChunkFile( tempFile ).loadSections();
+        assertEquals( key , sections.getChunkKey() );
+        assertEquals( 0x1234567890abcdefL , sections.getLightStamp() );
+        assertEquals( 0x1234567890abcdefL , sections.toChunk().getLightStamp() );
+        assertTrue( sections.contains( ChunkFile.SECTION_BORDERS ) );
+        assertEquals( 1 , sections.getEmitters().length );
+        assertEquals( Chunk.blockIndex( 1 , 2 , 3 ) , sections.getEmitters()[0] );
+        assertTrue( Arrays.equals( sections.getEmitters() , sections.toChunk().getEmitters() ) );
+        int nonAir = 0;
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            nonAir += chunk.getBlockType( i ) != BlockType.AIR ? 1 : 0;
+        }
+        assertEquals( nonAir , sections.getNonAirBlockCount() );
+
+        // borders are decoded without touching the block and light sections
+        final HaloChunk borders = sections.toHaloChunk();
+        final HaloChunk expected = HaloChunk.fromChunk( chunk );
+        for ( int i = 0 ; i < HaloChunk.BORDER_BLOCK_COUNT ; i++ ) 
+        {
+            assertEquals( expected.blockTypes[i] , borders.blockTypes[i] );
+            assertEquals( expected.lightLevels[i] , borders.lightLevels[i] );
+        }
+
+        final Chunk loaded = sections.toChunk();
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) 
+        {
+            assertEquals( chunk.getBlockType( i ) , loaded.getBlockType( i ) );
+            assertEquals( chunk.getLightLevel( i ) , loaded.getLightLevel( i ) );
+        }
+    }
+    
+    public void testLoadMapped() throws IOException {
+
+        final ChunkKey key = new ChunkKey(-2,0,3 );
+        final Chunk chunk = ChunkManager.generateChunk( key );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            chunk.setLightLevel( i , (byte) (i % 16) );
+        }
+        new ChunkFile( tempFile ).store( chunk );
+        
+        final Chunk loaded = new ChunkFile( tempFile ).loadMapped();
+        assertEquals( key , loaded.chunkKey );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) 
+        {
+            assertEquals( chunk.getBlockType( i ) , loaded.getBlockType( i ) );
+            assertEquals( chunk.getLightLevel( i ) , loaded.getLightLevel( i ) );
+        }
+        
+        final HaloChunk borders = new ChunkFile( tempFile ).loadBordersMapped();
+        assertEquals( chunk.getBlockType( 0 , 5 , 7 ) , borders.getBlockType( 0 , 5 , 7 ) );
+        assertEquals( chunk.getLightLevel( 31 , 5 , 7 ) , borders.getLightLevel( 31 , 5 , 7 ) );
+    }
+    
+    public void testLoadBorders() throws IOException {
+
+        final ChunkKey key = new ChunkKey(-2,0,3 );
+        final Chunk chunk = ChunkManager.generateChunk( key );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            chunk.setLightLevel( i , (byte) (i % 16) );
+        }
+        
+        try ( OutputStream out = new FileOutputStream( tempFile ) ) {
+            ChunkFile.store( chunk , out );
+        }
+        
+        final HaloChunk loaded;
+        try ( InputStream in = new FileInputStream( tempFile ) ) {
+            loaded = ChunkFile.loadBorders( in );
+        }
+        assertEquals( key , loaded.chunkKey );
+        
+        for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ ) 
+        {
+            for ( int y = 0 ; y < World.CHUNK_SIZE ; y++ ) 
+            {
+                for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ ) 
+                {
+                    if ( HaloChunk.borderIndex( x , y , z ) != -1 ) 
+                    {
+                        assertEquals( chunk.getBlockType( x , y , z ) , loaded.getBlockType( x , y , z ) );
+                        assertEquals( chunk.getLightLevel( x , y , z ) , loaded.getLightLevel( x , y , z ) );
+                    }
+                }
+            }
+        }
+    }
+}
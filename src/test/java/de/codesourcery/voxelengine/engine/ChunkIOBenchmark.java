@@ -0,0 +1,124 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+
+/**
+ * Compares chunk load throughput of the stream-based and the memory-mapped I/O path,
+ * for both per-chunk files and region files.
+ *
+ * <p>'Cold' loads use a fresh storage instance (no open files, no mappings) and - if the benchmark
+ * runs as root on Linux - an empty page cache. 'Warm' loads repeatedly read the same chunks
+ * through the same storage instance.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ChunkIOBenchmark 
+{
+    private static final int CHUNKS_PER_AXIS = 8; // one full region
+    private static final int WARM_ROUNDS = 5;
+
+    @FunctionalInterface
+    protected interface IStorageFactory 
+    {
+        public IChunkStorage create(File dir,boolean memoryMapped);
+    }
+
+    public static void main(String[] args) throws IOException 
+    {
+        final List<ChunkKey> keys = new ArrayList<>();
+        for ( int x = 0 ; x < CHUNKS_PER_AXIS ; x++ ) {
+            for ( int y = 0 ; y < CHUNKS_PER_AXIS ; y++ ) {
+                for ( int z = 0 ; z < CHUNKS_PER_AXIS ; z++ ) {
+                    keys.add( new ChunkKey( x , y-4 , z ) );
+                }
+            }
+        }
+
+        final File chunkFileDir = Files.createTempDirectory("chunkfiles").toFile();
+        final File regionFileDir = Files.createTempDirectory("regionfiles").toFile();
+        try 
+        {
+            final IChunkStorage chunkFiles = new ChunkFileStorage( chunkFileDir );
+            final IChunkStorage regionFiles = new RegionFileStorage( regionFileDir );
+            for ( ChunkKey key : keys ) 
+            {
+                final Chunk chunk = ChunkManager.generateChunk( key );
+                chunkFiles.store( chunk , false );
+                regionFiles.store( chunk , false );
+            }
+            regionFiles.close();
+
+            final boolean canDropCaches = dropCaches();
+            System.out.println("Loading "+keys.size()+" chunks, dropping page cache: "+( canDropCaches ? "yes" : "no (needs root on Linux)" ) );
+
+            for ( int round = 0 ; round < 2 ; round++ ) 
+            {
+                run( "chunk files  , stream" , chunkFileDir , ChunkFileStorage::new , false , keys );
+                run( "chunk files  , mmap  " , chunkFileDir , ChunkFileStorage::new , true , keys );
+                run( "region files , stream" , regionFileDir , RegionFileStorage::new , false , keys );
+                run( "region files , mmap  " , regionFileDir , RegionFileStorage::new , true , keys );
+            }
+        } 
+        finally 
+        {
+            ChunkManager.recursiveDelete( chunkFileDir );
+            ChunkManager.recursiveDelete( regionFileDir );
+        }
+    }
+
+    private static void run(String name,File dir,IStorageFactory factory,boolean memoryMapped,List<ChunkKey> keys) throws IOException 
+    {
+        dropCaches();
+        try ( IChunkStorage storage = factory.create( dir , memoryMapped ) ) 
+        {
+            long start = System.nanoTime();
+            loadAll( storage , keys );
+            final long coldNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for ( int i = 0 ; i < WARM_ROUNDS ; i++ ) {
+                loadAll( storage , keys );
+            }
+            final long warmNanos = ( System.nanoTime() - start ) / WARM_ROUNDS;
+            System.out.println( String.format( "%s: cold %8.1f chunks/s , warm %8.1f chunks/s" , name , chunksPerSecond( keys.size() , coldNanos ) , chunksPerSecond( keys.size() , warmNanos ) ) );
+        }
+    }
+
+    private static double chunksPerSecond(int count,long nanos) {
+        return count / ( nanos / 1_000_000_000d );
+    }
+
+    private static void loadAll(IChunkStorage storage,List<ChunkKey> keys) throws IOException 
+    {
+        for ( ChunkKey key : keys ) 
+        {
+            if ( storage.load( key ) == null ) {
+                throw new IOException("Failed to load "+key);
+            }
+        }
+    }
+
+    private static boolean dropCaches() 
+    {
+        final File file = new File("/proc/sys/vm/drop_caches");
+        if ( ! file.canWrite() ) {
+            return false;
+        }
+        try ( FileWriter writer = new FileWriter( file ) ) 
+        {
+            writer.write("1");
+            return true;
+        } 
+        catch(IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+import junit.framework.TestCase;
+
+public class ChunkManagerTest extends TestCase 
+{
+    private TaskScheduler scheduler;
+    
+    // storage whose writes block until released
+    protected static final class BlockingStorage implements IChunkStorage 
+    {
+        public final CountDownLatch release = new CountDownLatch(1);
+        public final Set<ChunkKey> stored = Collections.synchronizedSet( new HashSet<>() );
+        
+        @Override
+        public Chunk load(ChunkKey key) {
+            return null;
+        }
+
+        @Override
+        public HaloChunk loadBorders(ChunkKey key) {
+            return null;
+        }
+
+        @Override
+        public void store(Chunk chunk, boolean sync) throws IOException 
+        {
+            try {
+                if ( ! release.await( 30 , TimeUnit.SECONDS ) ) {
+                    throw new IOException("Not released");
+                }
+            } 
+            catch (InterruptedException e) 
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            stored.add( chunk.chunkKey );
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        scheduler = new TaskScheduler();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception 
+    {
+        scheduler.dispose();
+    }
+    
+    private static List<Chunk> loadDirtyChunks(ChunkManager manager,int count) 
+    {
+        final List<Chunk> result = new ArrayList<>();
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final Chunk chunk = manager.getChunk( new ChunkKey( i , 0 , 0 ) );
+            chunk.setNeedsSave( true );
+            result.add( chunk );
+        }
+        return result;
+    }
+    
+    public void testFlushSavesAllDirtyChunks() 
+    {
+        final BlockingStorage storage = new BlockingStorage();
+        storage.release.countDown();
+        final ChunkManager manager = new ChunkManager( storage , scheduler );
+        // one chunk per batch so progress gets reported after each chunk
+        manager.setMaxWriteBatchSize( 1 );
+        final List<Chunk> chunks = loadDirtyChunks( manager , 3 );
+        
+        final List<String> progress = Collections.synchronizedList( new ArrayList<>() );
+        assertTrue( manager.flush( 10*1000 , (saved,total) -> progress.add( saved+"/"+total ) ) );
+        assertEquals( Arrays.asList( "1/3" , "2/3" , "3/3" ) , progress );
+        for ( Chunk chunk : chunks ) 
+        {
+            assertFalse( chunk.needsSave() );
+            assertTrue( storage.stored.contains( chunk.chunkKey ) );
+        }
+        manager.dispose();
+    }
+    
+    public void testFlushTimeoutLeavesChunksQueued() 
+    {
+        final BlockingStorage storage = new BlockingStorage();
+        final ChunkManager manager = new ChunkManager( storage , scheduler );
+        final List<Chunk> chunks = loadDirtyChunks( manager , 3 );
+        
+        final long start = System.currentTimeMillis();
+        assertFalse( manager.flush( 200 , (saved,total) -> {} ) );
+        assertTrue( System.currentTimeMillis() - start < 10*1000 );
+        assertTrue( storage.stored.isEmpty() );
+        // still queued , they must neither get lost nor be saved a second time
+        assertEquals( 3 , manager.getWriteStatistics().queueLength );
+        for ( Chunk chunk : chunks ) {
+            assertFalse( chunk.needsSave() );
+        }
+        
+        // closing the storage waits for queued chunks
+        storage.release.countDown();
+        manager.dispose();
+        assertEquals( 3 , storage.stored.size() );
+    }
+}
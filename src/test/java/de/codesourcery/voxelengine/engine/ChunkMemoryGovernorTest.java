@@ -0,0 +1,86 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import junit.framework.TestCase;
+
+public class ChunkMemoryGovernorTest extends TestCase 
+{
+    private static final ChunkKey CENTER = new ChunkKey( 0 , 0 , 0 );
+    
+    private final LongMap<Chunk> loaded = new LongMap<>();
+    private final LongMap<Chunk> visible = new LongMap<>();
+    private final List<Chunk> toEvict = new ArrayList<>();
+    private long chunkSize;
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        // chunks in a row , only the center chunk is visible
+        for ( int x = 0 ; x < 10 ; x++ ) 
+        {
+            final Chunk chunk = new Chunk( new ChunkKey( x , 0 , 0 ) );
+            loaded.put( chunk.chunkKey.toID() , chunk );
+        }
+        visible.put( CENTER.toID() , loaded.get( CENTER.toID() ) );
+        chunkSize = ChunkMemoryGovernor.estimateSizeInBytes( loaded.get( CENTER.toID() ) );
+    }
+    
+    public void testNoEvictionAtHighWatermark() 
+    {
+        final ChunkMemoryGovernor governor = new ChunkMemoryGovernor( 5 * chunkSize , 10 * chunkSize , 1 , 8 );
+        assertEquals( 8 , governor.update( CENTER , loaded , visible , 0 , toEvict ) );
+        assertTrue( toEvict.isEmpty() );
+        assertEquals( 10 * chunkSize , governor.getUsedBytes() );
+    }
+    
+    public void testEvictsFarthestChunksDownToLowWatermark() 
+    {
+        final ChunkMemoryGovernor governor = new ChunkMemoryGovernor( 5 * chunkSize , 8 * chunkSize , 1 , 8 );
+        assertEquals( 7 , governor.update( CENTER , loaded , visible , 0 , toEvict ) );
+        
+        assertEquals( 5 , toEvict.size() );
+        for ( int i = 0 ; i < 5 ; i++ ) {
+            assertEquals( new ChunkKey( 9 - i , 0 , 0 ) , toEvict.get(i).chunkKey );
+        }
+        assertEquals( 5 * chunkSize , governor.getUsedBytes() );
+    }
+    
+    public void testCacheBytesCountTowardsBudget() 
+    {
+        final ChunkMemoryGovernor governor = new ChunkMemoryGovernor( 5 * chunkSize , 10 * chunkSize , 1 , 8 );
+        governor.update( CENTER , loaded , visible , 3 * chunkSize , toEvict );
+        
+        // caches cannot be evicted , chunks have to make up for them
+        assertEquals( 8 , toEvict.size() );
+        assertEquals( 5 * chunkSize , governor.getUsedBytes() );
+    }
+    
+    public void testNeverEvictsVisibleOrAdjacentChunks() 
+    {
+        final ChunkMemoryGovernor governor = new ChunkMemoryGovernor( chunkSize , chunkSize , 1 , 8 );
+        governor.update( CENTER , loaded , visible , 0 , toEvict );
+        
+        assertEquals( 8 , toEvict.size() );
+        for ( Chunk chunk : toEvict ) {
+            assertTrue( chunk.chunkKey.x > 1 );
+        }
+    }
+    
+    public void testRenderDistanceRecoversBelowLowWatermark() 
+    {
+        final ChunkMemoryGovernor governor = new ChunkMemoryGovernor( 5 * chunkSize , 8 * chunkSize , 1 , 8 );
+        assertEquals( 7 , governor.update( CENTER , loaded , visible , 0 , toEvict ) );
+        
+        final LongMap<Chunk> remaining = new LongMap<>();
+        remaining.put( CENTER.toID() , loaded.get( CENTER.toID() ) );
+        toEvict.clear();
+        assertEquals( 8 , governor.update( CENTER , remaining , visible , 0 , toEvict ) );
+        assertTrue( toEvict.isEmpty() );
+    }
+}
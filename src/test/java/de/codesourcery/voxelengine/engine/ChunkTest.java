@@ -1,10 +1,12 @@
 package de.codesourcery.voxelengine.engine;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import com.badlogic.gdx.math.Vector3;
 
 import de.codesourcery.voxelengine.model.BlockKey;
+import de.codesourcery.voxelengine.model.BlockType;
 import de.codesourcery.voxelengine.model.Chunk;
 import de.codesourcery.voxelengine.model.ChunkKey;
 import de.codesourcery.voxelengine.model.World;
@@ -46,6 +48,22 @@ public class ChunkTest extends TestCase {
         assertFalse( chunk.isEmpty() );
     }
 
+    public void testEmitterIndex() {
+
+        final Chunk chunk = new Chunk( new ChunkKey(0,0,0) );
+        chunk.setBlockType( 5 , 5 , 5 , BlockType.GLOWSTONE );
+        assertTrue( Arrays.equals( new int[] { Chunk.blockIndex( 5 , 5 , 5 ) } , chunk.getEmitters() ) );
+
+        // index is kept sorted while blocks change
+        chunk.setBlockType( 1 , 1 , 1 , BlockType.GLOWSTONE );
+        chunk.setBlockType( 9 , 9 , 9 , BlockType.GLOWSTONE );
+        chunk.setBlockType( 9 , 9 , 9 , BlockType.GLOWSTONE );
+        chunk.setBlockType( 5 , 5 , 5 , BlockType.SOLID_1 );
+        final int[] expected = { Chunk.blockIndex( 1 , 1 , 1 ) , Chunk.blockIndex( 9 , 9 , 9 ) };
+        assertTrue( Arrays.equals( expected , chunk.getEmitters() ) );
+        assertTrue( Arrays.equals( expected , chunk.createSnapshot().getEmitters() ) );
+    }
+
     public void testChunkBoundaries() 
     {
         final Chunk chunk = new Chunk( new ChunkKey(0,0,0) );
@@ -0,0 +1,88 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+import junit.framework.TestCase;
+
+public class HashNoiseTest extends TestCase
+{
+    public void testSameSeedYieldsSameNoise()
+    {
+        final float[] data1 = new float[ World.BLOCKS_IN_CHUNK ];
+        final float[] data2 = new float[ World.BLOCKS_IN_CHUNK ];
+        new HashNoise( 42 ).createNoise3D( -32 , 0 , 64 , World.CHUNK_SIZE , 0.75f/32 , 2 , 32f , data1 );
+        new HashNoise( 42 ).createNoise3D( -32 , 0 , 64 , World.CHUNK_SIZE , 0.75f/32 , 2 , 32f , data2 );
+        assertTrue( Arrays.equals( data1 , data2 ) );
+
+        new HashNoise( 43 ).createNoise3D( -32 , 0 , 64 , World.CHUNK_SIZE , 0.75f/32 , 2 , 32f , data2 );
+        assertFalse( Arrays.equals( data1 , data2 ) );
+    }
+
+    public void testNoiseRange()
+    {
+        final HashNoise noise = new HashNoise( 0xdeadbeef );
+        final Random rnd = new Random( 0xdeadbeef );
+        for ( int i = 0 ; i < 100000 ; i++ )
+        {
+            final double value = noise.noise3( rnd.nextDouble()*200-100 , rnd.nextDouble()*200-100 , rnd.nextDouble()*200-100 );
+            assertTrue( "Out of range: "+value , value >= -1.5 && value <= 1.5 );
+        }
+    }
+
+    public void testAdjacentChunksFitTogether()
+    {
+        final HashNoise noise = new HashNoise( 0xdeadbeef );
+        final int size = World.CHUNK_SIZE;
+        final float[] data = new float[ 2 * size * 2 * size * 2 * size ];
+        final float[] chunk = new float[ World.BLOCKS_IN_CHUNK ];
+        noise.createNoise3D( 0 , 0 , 0 , 2 * size , 0.75f/32 , 2 , 32f , data );
+        noise.createNoise3D( size , 0 , size , size , 0.75f/32 , 2 , 32f , chunk );
+        for ( int z = 0 ; z < size ; z++ ) {
+            for ( int y = 0 ; y < size ; y++ ) {
+                for ( int x = 0 ; x < size ; x++ )
+                {
+                    final int big = ( x + size ) + y * 2 * size + ( z + size ) * 4 * size * size;
+                    assertEquals( data[ big ] , chunk[ Chunk.blockIndex( x , y , z ) ] , 0f );
+                }
+            }
+        }
+    }
+
+    public void testLatticeMatchesAtLatticePoints()
+    {
+        final HashNoise noise = new HashNoise( 0xdeadbeef );
+        final float[] full = new float[ World.BLOCKS_IN_CHUNK ];
+        final float[] coarse = new float[ World.BLOCKS_IN_CHUNK ];
+        noise.createNoise3D( -32 , 0 , 64 , World.CHUNK_SIZE , 0.75f/32 , 2 , 32f , full );
+        noise.createNoise3D( -32 , 0 , 64 , World.CHUNK_SIZE , 0.75f/32 , 2 , 32f , 1 , coarse );
+        assertTrue( Arrays.equals( full , coarse ) );
+
+        noise.createNoise3D( -32 , 0 , 64 , World.CHUNK_SIZE , 0.75f/32 , 2 , 32f , 4 , coarse );
+        for ( int z = 0 ; z < World.CHUNK_SIZE ; z += 4 ) {
+            for ( int y = 0 ; y < World.CHUNK_SIZE ; y += 4 ) {
+                for ( int x = 0 ; x < World.CHUNK_SIZE ; x += 4 )
+                {
+                    final int index = Chunk.blockIndex( x , y , z );
+                    assertEquals( full[ index ] , coarse[ index ] , 1e-6f );
+                }
+            }
+        }
+    }
+
+    public void testNewWorldsUseHashNoise()
+    {
+        final long seed = ChunkGenerator.createSeed( new Random() );
+        assertTrue( ChunkGenerator.usesHashNoise( seed ) );
+        assertFalse( ChunkGenerator.usesHashNoise( ChunkGenerator.LEGACY_SEED ) );
+
+        final Chunk chunk1 = ChunkGenerator.generate( new ChunkKey( 1 , -1 , 2 ) , seed );
+        final Chunk chunk2 = ChunkGenerator.generate( new ChunkKey( 1 , -1 , 2 ) , seed );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            assertEquals( chunk1.getBlockType( i ) , chunk2.getBlockType( i ) );
+        }
+    }
+}
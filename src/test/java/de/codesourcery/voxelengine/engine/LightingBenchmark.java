@@ -0,0 +1,303 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.Queue;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+import de.codesourcery.voxelengine.utils.IntQueue;
+
+/**
+ * Compares the bucketed single-queue flood fill of {@link LightingEngine} against the previous implementation
+ * that used two parallel FIFO queues (one holding chunks , one holding block indices).
+ *
+ * <p>Lights a 7x7x7 neighbourhood of generated chunks with some glowstone scattered into empty blocks. Also reports
+ * blocks whose light levels differ: the FIFO order of the previous implementation may reach a block with a lower light level
+ * first and then refuses to raise it by one level , which cannot happen when processing the brightest blocks first.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class LightingBenchmark
+{
+    private static final int RADIUS = 3; // 7x7x7 chunks
+    private static final int EMITTERS_PER_CHUNK = 20;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args)
+    {
+        final LongMap<Chunk> chunksByID = new LongMap<>();
+        final List<Chunk> chunks = new ArrayList<>();
+        final Random rnd = new Random( 0xdeadbeef );
+        for ( int x = -RADIUS ; x <= RADIUS ; x++ ) {
+            for ( int y = -RADIUS ; y <= RADIUS ; y++ ) {
+                for ( int z = -RADIUS ; z <= RADIUS ; z++ )
+                {
+                    final Chunk chunk = ChunkManager.generateChunk( new ChunkKey( x , y , z ) );
+                    for ( int i = 0 ; i < EMITTERS_PER_CHUNK ; i++ )
+                    {
+                        final int blockIndex = rnd.nextInt( World.BLOCKS_IN_CHUNK );
+                        if ( chunk.isBlockEmpty( blockIndex ) ) {
+                            chunk.setBlockType( blockIndex , BlockType.GLOWSTONE );
+                        }
+                    }
+                    chunk.updateIsEmptyFlag();
+                    chunks.add( chunk );
+                    chunksByID.put( chunk.chunkKey.toID() , chunk );
+                }
+            }
+        }
+        final Heightmaps heightmaps = new Heightmaps();
+        for ( Chunk chunk : chunks )
+        {
+            final ChunkKey key = chunk.chunkKey;
+            chunk.leftNeighbour = chunksByID.get( ChunkKey.toID( key.x-1 , key.y , key.z ) );
+            chunk.rightNeighbour = chunksByID.get( ChunkKey.toID( key.x+1 , key.y , key.z ) );
+            chunk.bottomNeighbour = chunksByID.get( ChunkKey.toID( key.x , key.y-1 , key.z ) );
+            chunk.topNeighbour = chunksByID.get( ChunkKey.toID( key.x , key.y+1 , key.z ) );
+            chunk.backNeighbour = chunksByID.get( ChunkKey.toID( key.x , key.y , key.z-1 ) );
+            chunk.frontNeighbour = chunksByID.get( ChunkKey.toID( key.x , key.y , key.z+1 ) );
+            heightmaps.chunkLoaded( chunk );
+        }
+
+        final LightingEngine bucketed = new LightingEngine( heightmaps );
+        final TwoQueueLighting twoQueues = new TwoQueueLighting( heightmaps );
+
+        final LightingEngine.Result expected = twoQueues.calculateLighting( chunks );
+        final LightingEngine.Result actual = bucketed.calculateLighting( chunks );
+        final int[] differences = compare( expected , actual );
+        System.out.println("Chunks: "+chunks.size()+" , blocks lit brighter: "+differences[0]+" , darker: "+differences[1] );
+
+        for ( int pass = 0 ; pass < 3 ; pass++ )
+        {
+            System.out.println("=== Pass "+(pass+1)+" ===");
+            long start = System.nanoTime();
+            for ( int round = 0 ; round < ROUNDS ; round++ ) {
+                twoQueues.calculateLighting( chunks );
+            }
+            final long twoQueueNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for ( int round = 0 ; round < ROUNDS ; round++ ) {
+                bucketed.calculateLighting( chunks );
+            }
+            final long bucketedNanos = System.nanoTime() - start;
+
+            System.out.println( String.format("two queues: %8.2f ms , buckets: %8.2f ms , speed-up: %.2fx" ,
+                    twoQueueNanos / 1_000_000d / ROUNDS , bucketedNanos / 1_000_000d / ROUNDS , twoQueueNanos / (double) bucketedNanos ) );
+        }
+    }
+
+    // returns the number of blocks that got lit brighter/darker than expected
+    private static int[] compare(LightingEngine.Result expected,LightingEngine.Result actual)
+    {
+        final LongMap<byte[]> levels = new LongMap<>();
+        for ( int i = 0 ; i < actual.chunks.length ; i++ ) {
+            levels.put( actual.chunks[i].chunkKey.toID() , actual.lightLevels[i] );
+        }
+        final int[] differences = new int[2];
+        for ( int i = 0 ; i < expected.chunks.length ; i++ )
+        {
+            final byte[] expectedLevels = expected.lightLevels[i];
+            final byte[] actualLevels = levels.get( expected.chunks[i].chunkKey.toID() );
+            for ( int j = 0 ; j < expectedLevels.length ; j++ )
+            {
+                // the previous implementation did not keep sky and block light apart
+                final int actualLevel = actualLevels == null ? 0 :
+                    Math.max( Chunk.getChannel( actualLevels[j] , Chunk.CHANNEL_SKY ) , Chunk.getChannel( actualLevels[j] , Chunk.CHANNEL_BLOCK ) );
+                if ( actualLevel > expectedLevels[j] ) {
+                    differences[0]++;
+                } else if ( actualLevel < expectedLevels[j] ) {
+                    differences[1]++;
+                }
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * Previous flood fill implementation: FIFO order , chunk and block index kept in two parallel queues ,
+     * coordinates recovered using '%' and '/' and neighbour chunks looked up by chunk ID.
+     */
+    protected static final class TwoQueueLighting
+    {
+        private final Queue<Chunk> lightChunkQueue = new Queue<Chunk>( 65535 );
+        private final IntQueue lightBlockQueue = new IntQueue( World.BLOCKS_IN_CHUNK );
+
+        private final LongMap<Chunk> copies = new LongMap<>();
+        private final LongMap<Chunk> originals = new LongMap<>();
+
+        private final Heightmaps heightmaps;
+
+        public TwoQueueLighting(Heightmaps heightmaps) {
+            this.heightmaps = heightmaps;
+        }
+
+        public LightingEngine.Result calculateLighting(List<Chunk> chunks)
+        {
+            lightBlockQueue.clear();
+            lightChunkQueue.clear();
+            copies.clear();
+            originals.clear();
+            for (int i = 0 , len = chunks.size() ; i < len ; i++)
+            {
+                final Chunk chunk = writable( chunks.get(i) );
+                applySunlight( chunk );
+                for ( int blockIndex = 0 ; blockIndex < World.BLOCKS_IN_CHUNK ; blockIndex++ )
+                {
+                    final int bt = chunk.getBlockType( blockIndex );
+                    if ( BlockType.emitsLight( bt ) ) {
+                        chunk.setLightLevel( blockIndex , BlockType.getEmittedLightLevel( bt ) );
+                        lightBlockQueue.push( blockIndex );
+                        lightChunkQueue.addLast( chunk );
+                    }
+                }
+            }
+
+            floodFill();
+
+            final Chunk[] resultChunks = new Chunk[ copies.size ];
+            final byte[][] resultLevels = new byte[ copies.size ][];
+            int i = 0;
+            for ( LongMap.Entry<Chunk> entry : copies.entries() )
+            {
+                resultChunks[i] = originals.get( entry.key );
+                resultLevels[i++] = entry.value.lightLevels;
+            }
+            return new LightingEngine.Result( resultChunks , resultLevels );
+        }
+
+        private Chunk current(Chunk chunk)
+        {
+            if ( chunk == null ) {
+                return null;
+            }
+            final Chunk copy = copies.get( chunk.chunkKey.toID() );
+            return copy != null ? copy : chunk;
+        }
+
+        private Chunk writable(Chunk chunk)
+        {
+            final long chunkID = chunk.chunkKey.toID();
+            Chunk copy = copies.get( chunkID );
+            if ( copy == null )
+            {
+                copy = new Chunk( chunk.chunkKey , chunk.blockTypes , chunk.lightLevels.clone() );
+                copies.put( chunkID , copy );
+                originals.put( chunkID , chunk );
+            }
+            return copy;
+        }
+
+        private void applySunlight(Chunk chunk)
+        {
+            chunk.setLightLevel( (byte) 0 );
+
+            final ChunkKey key = chunk.chunkKey;
+            final int baseY = key.y * World.CHUNK_SIZE;
+            final int[] heights = heightmaps.getHeights( key.x , key.z );
+            final int[] leftHeights = heightmaps.getHeights( key.x - 1 , key.z );
+            final int[] rightHeights = heightmaps.getHeights( key.x + 1 , key.z );
+            final int[] backHeights = heightmaps.getHeights( key.x , key.z - 1 );
+            final int[] frontHeights = heightmaps.getHeights( key.x , key.z + 1 );
+
+            for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ )
+            {
+                for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ )
+                {
+                    final int height = heights == null ? Heightmaps.NO_BLOCKS : heights[ x + z * World.CHUNK_SIZE ];
+                    final long firstSkyBlock = Math.max( 0 , (long) height - baseY + 1 );
+                    if ( firstSkyBlock >= World.CHUNK_SIZE ) {
+                        continue;
+                    }
+                    int neighbourHeight = x > 0 ? height( heights , x-1 , z ) : height( leftHeights , World.CHUNK_SIZE-1 , z );
+                    neighbourHeight = Math.max( neighbourHeight , x < World.CHUNK_SIZE-1 ? height( heights , x+1 , z ) : height( rightHeights , 0 , z ) );
+                    neighbourHeight = Math.max( neighbourHeight , z > 0 ? height( heights , x , z-1 ) : height( backHeights , x , World.CHUNK_SIZE-1 ) );
+                    neighbourHeight = Math.max( neighbourHeight , z < World.CHUNK_SIZE-1 ? height( heights , x , z+1 ) : height( frontHeights , x , 0 ) );
+                    final long lastSeedBlock = Math.min( World.CHUNK_SIZE-1 , (long) neighbourHeight - baseY );
+
+                    for ( int y = (int) firstSkyBlock ; y < World.CHUNK_SIZE ; y++ )
+                    {
+                        final int blockIndex = Chunk.blockIndex( x , y , z );
+                        chunk.setLightLevel( blockIndex , Chunk.LIGHTLEVEL_SUNLIGHT );
+                        if ( y <= lastSeedBlock )
+                        {
+                            lightBlockQueue.push( blockIndex );
+                            lightChunkQueue.addLast( chunk );
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int height(int[] heights,int x,int z)
+        {
+            return heights == null ? Integer.MAX_VALUE : heights[ x + z * World.CHUNK_SIZE ];
+        }
+
+        private void floodFill()
+        {
+            while ( lightBlockQueue.isNotEmpty() )
+            {
+                final Chunk chunk = lightChunkQueue.removeFirst();
+                final int blockIndex = lightBlockQueue.pop();
+
+                final int x = Chunk.blockIndexX( blockIndex );
+                final int y = Chunk.blockIndexY( blockIndex );
+                final int z = Chunk.blockIndexZ( blockIndex );
+
+                final byte newLevel = (byte) ( chunk.getLightLevel( blockIndex ) - 1 );
+                final Chunk original = originals.get( chunk.chunkKey.toID() );
+
+                if ( y+1 == World.CHUNK_SIZE ) {
+                    visit( current( original.topNeighbour ) , Chunk.blockIndex( x , 0 , z ) , newLevel );
+                } else {
+                    visit( chunk , Chunk.blockIndex( x , y+1 , z ) , newLevel );
+                }
+                if ( y-1 < 0 ) {
+                    visit( current( original.bottomNeighbour ) , Chunk.blockIndex( x , World.CHUNK_SIZE-1 , z ) , newLevel );
+                } else {
+                    visit( chunk , Chunk.blockIndex( x , y-1 , z ) , newLevel );
+                }
+                if ( x-1 < 0 ) {
+                    visit( current( original.leftNeighbour ) , Chunk.blockIndex( World.CHUNK_SIZE-1 , y , z ) , newLevel );
+                } else {
+                    visit( chunk , Chunk.blockIndex( x-1 , y , z ) , newLevel );
+                }
+                if ( x+1 == World.CHUNK_SIZE ) {
+                    visit( current( original.rightNeighbour ) , Chunk.blockIndex( 0 , y , z ) , newLevel );
+                } else {
+                    visit( chunk , Chunk.blockIndex( x+1 , y , z ) , newLevel );
+                }
+                if ( z+1 == World.CHUNK_SIZE ) {
+                    visit( current( original.frontNeighbour ) , Chunk.blockIndex( x , y , 0 ) , newLevel );
+                } else {
+                    visit( chunk , Chunk.blockIndex( x , y , z+1 ) , newLevel );
+                }
+                if ( z-1 < 0 ) {
+                    visit( current( original.backNeighbour ) , Chunk.blockIndex( x , y , World.CHUNK_SIZE-1 ) , newLevel );
+                } else {
+                    visit( chunk , Chunk.blockIndex( x , y , z-1 ) , newLevel );
+                }
+            }
+        }
+
+        private void visit(Chunk chunk,int blockIndex,byte newLevel)
+        {
+            if ( chunk != null && chunk.isBlockEmpty( blockIndex ) && chunk.getLightLevel( blockIndex ) < newLevel-1 )
+            {
+                final Chunk toCheck = writable( chunk );
+                toCheck.setLightLevel( blockIndex , newLevel );
+                if ( newLevel > 1 ) {
+                    lightBlockQueue.push( blockIndex );
+                    lightChunkQueue.addLast( toCheck );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+import junit.framework.TestCase;
+
+public class LightingEngineTest extends TestCase
+{
+    private static Chunk createCoveredChunk(ChunkKey key)
+    {
+        // solid top layer keeps out sun light
+        final Chunk chunk = new Chunk( key );
+        for ( int x = 0 ; x < World.CHUNK_SIZE ; x++ )
+        {
+            for ( int z = 0 ; z < World.CHUNK_SIZE ; z++ ) {
+                chunk.setBlockType( x , World.CHUNK_SIZE-1 , z , BlockType.SOLID_1 );
+            }
+        }
+        chunk.updateIsEmptyFlag();
+        return chunk;
+    }
+
+    private static LightingEngine engine(Chunk... chunks)
+    {
+        final Heightmaps heightmaps = new Heightmaps();
+        for ( Chunk chunk : chunks ) {
+            heightmaps.chunkLoaded( chunk );
+        }
+        return new LightingEngine( heightmaps );
+    }
+
+    public void testLightIsPublishedExplicitly()
+    {
+        final Chunk chunk = createCoveredChunk( new ChunkKey( 0 , 0 , 0 ) );
+        final Chunk neighbour = createCoveredChunk( new ChunkKey( 1 , 0 , 0 ) );
+        chunk.rightNeighbour = neighbour;
+        neighbour.leftNeighbour = chunk;
+        chunk.setBlockType( 30 , 5 , 5 , BlockType.GLOWSTONE );
+        final byte emitted = BlockType.getEmittedLightLevel( BlockType.GLOWSTONE );
+
+        final LightingEngine.Result result = engine( chunk , neighbour ).calculateLighting( Arrays.asList( chunk ) );
+
+        // chunks are left alone until the result gets published
+        assertEquals( 0 , chunk.getLightLevel( 30 , 5 , 5 ) );
+        assertEquals( 0 , neighbour.getLightLevel( 0 , 5 , 5 ) );
+        assertEquals( 2 , result.chunks.length );
+
+        result.publish();
+        assertEquals( emitted , chunk.getBlockLight( Chunk.blockIndex( 30 , 5 , 5 ) ) );
+        assertEquals( emitted-1 , chunk.getBlockLight( Chunk.blockIndex( 31 , 5 , 5 ) ) );
+        assertEquals( emitted-2 , neighbour.getBlockLight( Chunk.blockIndex( 0 , 5 , 5 ) ) );
+        assertEquals( 0 , neighbour.getLightLevel( 20 , 5 , 5 ) );
+    }
+
+    public void testIncrementalEmitter()
+    {
+        final Chunk chunk = createCoveredChunk( new ChunkKey( 0 , 0 , 0 ) );
+        final Chunk neighbour = createCoveredChunk( new ChunkKey( 1 , 0 , 0 ) );
+        chunk.rightNeighbour = neighbour;
+        neighbour.leftNeighbour = chunk;
+        final LightingEngine engine = engine( chunk , neighbour );
+        engine.calculateLighting( Arrays.asList( chunk , neighbour ) ).publish();
+
+        final Set<Chunk> changed = new HashSet<>();
+        final int blockIndex = Chunk.blockIndex( 30 , 5 , 5 );
+        chunk.setBlockType( blockIndex , BlockType.GLOWSTONE );
+        engine.blockChanged( chunk , blockIndex , changed );
+        assertEquals( new HashSet<>( Arrays.asList( chunk , neighbour ) ) , changed );
+
+        // incremental update yields the same light levels as re-calculating everything
+        final byte[] expected1 = chunk.lightLevels.clone();
+        final byte[] expected2 = neighbour.lightLevels.clone();
+        engine.calculateLighting( Arrays.asList( chunk , neighbour ) ).publish();
+        assertTrue( Arrays.equals( expected1 , chunk.lightLevels ) );
+        assertTrue( Arrays.equals( expected2 , neighbour.lightLevels ) );
+
+        // removing the emitter darkens everything again
+        chunk.setBlockType( blockIndex , BlockType.AIR );
+        engine.blockChanged( chunk , blockIndex , changed );
+        assertEquals( 0 , countLitBlocks( chunk ) );
+        assertEquals( 0 , countLitBlocks( neighbour ) );
+    }
+
+    public void testSkyAndBlockLightAreSeparate()
+    {
+        final Chunk chunk = new Chunk( new ChunkKey( 0 , 0 , 0 ) );
+        final int blockIndex = Chunk.blockIndex( 5 , 5 , 5 );
+        chunk.setBlockType( blockIndex , BlockType.GLOWSTONE );
+        chunk.updateIsEmptyFlag();
+        final LightingEngine engine = engine( chunk );
+        engine.calculateLighting( Arrays.asList( chunk ) ).publish();
+
+        final int emitted = BlockType.getEmittedLightLevel( BlockType.GLOWSTONE );
+        final int next = Chunk.blockIndex( 6 , 5 , 5 );
+        assertEquals( Chunk.LIGHTLEVEL_SUNLIGHT , chunk.getSkyLight( next ) );
+        assertEquals( emitted-1 , chunk.getBlockLight( next ) );
+        assertEquals( 0 , chunk.getSkyLight( blockIndex ) );
+        assertEquals( emitted , chunk.getBlockLight( blockIndex ) );
+
+        // removing the emitter leaves sky light alone
+        final Set<Chunk> changed = new HashSet<>();
+        chunk.setBlockType( blockIndex , BlockType.AIR );
+        engine.blockChanged( chunk , blockIndex , changed );
+        assertEquals( World.BLOCKS_IN_CHUNK , countLitBlocks( chunk , Chunk.LIGHTLEVEL_SUNLIGHT ) );
+    }
+
+    public void testIncrementalSunlight()
+    {
+        final Chunk chunk = new Chunk( new ChunkKey( 0 , 0 , 0 ) );
+        final LightingEngine engine = engine( chunk );
+        engine.calculateLighting( Arrays.asList( chunk ) ).publish();
+        assertEquals( World.BLOCKS_IN_CHUNK , countLitBlocks( chunk , Chunk.LIGHTLEVEL_SUNLIGHT ) );
+
+        // blocking sun light only affects the column below
+        final Set<Chunk> changed = new HashSet<>();
+        final int blockIndex = Chunk.blockIndex( 10 , 20 , 10 );
+        chunk.setBlockType( blockIndex , BlockType.SOLID_1 );
+        engine.blockChanged( chunk , blockIndex , changed );
+        assertEquals( 0 , chunk.getLightLevel( blockIndex ) );
+        assertEquals( Chunk.LIGHTLEVEL_SUNLIGHT-1 , chunk.getLightLevel( 10 , 19 , 10 ) );
+        assertEquals( Chunk.LIGHTLEVEL_SUNLIGHT-1 , chunk.getLightLevel( 10 , 0 , 10 ) );
+        assertEquals( World.BLOCKS_IN_CHUNK - 21 , countLitBlocks( chunk , Chunk.LIGHTLEVEL_SUNLIGHT ) );
+
+        chunk.setBlockType( blockIndex , BlockType.AIR );
+        engine.blockChanged( chunk , blockIndex , changed );
+        assertEquals( World.BLOCKS_IN_CHUNK , countLitBlocks( chunk , Chunk.LIGHTLEVEL_SUNLIGHT ) );
+    }
+
+    public void testSunlightFromHeightmap()
+    {
+        final Chunk top = createCoveredChunk( new ChunkKey( 0 , 1 , 0 ) );
+        final Chunk bottom = new Chunk( new ChunkKey( 0 , 0 , 0 ) );
+        top.setBlockType( 7 , World.CHUNK_SIZE-1 , 7 , BlockType.AIR );
+        top.bottomNeighbour = bottom;
+        bottom.topNeighbour = top;
+        final Heightmaps heightmaps = new Heightmaps();
+        heightmaps.chunkLoaded( bottom );
+        heightmaps.chunkLoaded( top );
+        assertEquals( 2*World.CHUNK_SIZE-1 , heightmaps.getHeight( 0 , 0 , 0 , 0 ) );
+        assertEquals( Heightmaps.NO_BLOCKS , heightmaps.getHeight( 0 , 0 , 7 , 7 ) );
+
+        // the bottom chunk gets lit without the top chunk having been lit
+        final LightingEngine engine = new LightingEngine( heightmaps );
+        engine.calculateLighting( Arrays.asList( bottom ) ).publish();
+        assertEquals( Chunk.LIGHTLEVEL_SUNLIGHT , bottom.getLightLevel( 7 , 0 , 7 ) );
+        assertEquals( Chunk.LIGHTLEVEL_SUNLIGHT-1 , bottom.getLightLevel( 8 , 0 , 7 ) );
+        assertEquals( 0 , bottom.getLightLevel( 20 , 20 , 20 ) );
+
+        // closing the hole updates the heightmap
+        engine.calculateLighting( Arrays.asList( top ) ).publish();
+        final Set<Chunk> changed = new HashSet<>();
+        final int blockIndex = Chunk.blockIndex( 7 , World.CHUNK_SIZE-1 , 7 );
+        top.setBlockType( blockIndex , BlockType.SOLID_1 );
+        engine.blockChanged( top , blockIndex , changed );
+        assertEquals( 2*World.CHUNK_SIZE-1 , heightmaps.getHeight( 0 , 0 , 7 , 7 ) );
+        assertEquals( 0 , countLitBlocks( bottom ) );
+        assertEquals( 0 , countLitBlocks( top ) );
+
+        heightmaps.chunkUnloaded( top );
+        assertEquals( Heightmaps.NO_BLOCKS , heightmaps.getHeight( 0 , 0 , 7 , 7 ) );
+    }
+
+    public void testLightStamp()
+    {
+        final Chunk chunk = createCoveredChunk( new ChunkKey( 0 , 0 , 0 ) );
+        final Chunk neighbour = createCoveredChunk( new ChunkKey( 1 , 0 , 0 ) );
+        chunk.rightNeighbour = neighbour;
+        neighbour.leftNeighbour = chunk;
+        final LightingEngine engine = engine( chunk , neighbour );
+        final long stamp = engine.getLightStamp( chunk );
+        assertTrue( stamp != Chunk.NO_LIGHT_STAMP );
+
+        // changing a neighbour invalidates the stamp , the block hash is updated incrementally
+        final long hash = neighbour.getBlockHash();
+        neighbour.setBlockType( 5 , 5 , 5 , BlockType.GLOWSTONE );
+        assertTrue( hash != neighbour.getBlockHash() );
+        assertTrue( stamp != engine.getLightStamp( chunk ) );
+        neighbour.setBlockType( 5 , 5 , 5 , BlockType.AIR );
+        assertEquals( hash , neighbour.getBlockHash() );
+        assertEquals( stamp , engine.getLightStamp( chunk ) );
+
+        // identical surroundings yield identical stamps regardless of position
+        final Chunk other = createCoveredChunk( new ChunkKey( 10 , 5 , 10 ) );
+        final Chunk otherNeighbour = createCoveredChunk( new ChunkKey( 11 , 5 , 10 ) );
+        other.rightNeighbour = otherNeighbour;
+        otherNeighbour.leftNeighbour = other;
+        assertEquals( stamp , engine( other , otherNeighbour ).getLightStamp( other ) );
+    }
+
+    public void testLightFlowsFromNeighbours()
+    {
+        final Chunk chunk = createCoveredChunk( new ChunkKey( 0 , 0 , 0 ) );
+        final Chunk neighbour = createCoveredChunk( new ChunkKey( 1 , 0 , 0 ) );
+        chunk.rightNeighbour = neighbour;
+        neighbour.leftNeighbour = chunk;
+        neighbour.setBlockType( 1 , 5 , 5 , BlockType.GLOWSTONE );
+        final LightingEngine engine = engine( chunk , neighbour );
+        engine.calculateLighting( Arrays.asList( chunk , neighbour ) ).publish();
+        final byte[] expected = chunk.lightLevels.clone();
+        assertEquals( BlockType.getEmittedLightLevel( BlockType.GLOWSTONE ) - 2 , chunk.getBlockLight( Chunk.blockIndex( 31 , 5 , 5 ) ) );
+
+        // re-calculating only one chunk picks up the light coming from its up-to-date neighbour
+        engine.calculateLighting( Arrays.asList( chunk ) , Arrays.asList( neighbour ) ).publish();
+        assertTrue( Arrays.equals( expected , chunk.lightLevels ) );
+        engine.calculateLighting( Arrays.asList( chunk ) ).publish();
+        assertEquals( 0 , countLitBlocks( chunk ) );
+    }
+
+    private static int countLitBlocks(Chunk chunk)
+    {
+        int count = 0;
+        for ( byte level : chunk.lightLevels ) {
+            count += level != 0 ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static int countLitBlocks(Chunk chunk,byte level)
+    {
+        int count = 0;
+        for ( byte value : chunk.lightLevels ) {
+            count += value == level ? 1 : 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+import junit.framework.TestCase;
+
+public class LogStructuredStorageTest extends TestCase 
+{
+    private File tempDir;
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        tempDir = Files.createTempDirectory("logtest").toFile();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception 
+    {
+        ChunkManager.recursiveDelete( tempDir );
+    }
+    
+    public void testReplayWithoutCheckpoint() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( 1 , 0 , 2 );
+        final ChunkKey key2 = new ChunkKey( -3 , -1 , 2 );
+        
+        final LogStructuredStorage storage = new LogStructuredStorage( tempDir );
+        assertNull( storage.load( key1 ) );
+        storage.store( ChunkManager.generateChunk( key1 ) , false );
+        final Chunk modified = ChunkManager.generateChunk( key2 );
+        modified.setBlockType( 3 , BlockType.GLOWSTONE );
+        storage.store( ChunkManager.generateChunk( key2 ) , false );
+        storage.store( modified , true );
+        assertEquals( BlockType.GLOWSTONE , storage.load( key2 ).getBlockType( 3 ) );
+        
+        // simulate a crash: no checkpoint , torn record at the end of the log
+        final File segment = tempDir.listFiles( (dir,name) -> name.endsWith( LogStructuredStorage.SEGMENT_SUFFIX ) )[0];
+        final long size = segment.length();
+        try ( RandomAccessFile file = new RandomAccessFile( segment , "rw" ) ) 
+        {
+            file.seek( size );
+            file.writeInt( LogStructuredStorage.RECORD_MAGIC );
+            file.writeInt( 1000 );
+        }
+        final LogStructuredStorage reopened = new LogStructuredStorage( tempDir );
+        assertEquals( BlockType.GLOWSTONE , reopened.load( key2 ).getBlockType( 3 ) );
+        assertEquals( key1 , reopened.load( key1 ).chunkKey );
+        assertEquals( size , segment.length() );
+        reopened.close();
+        storage.close();
+    }
+    
+    public void testCompaction() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( 1 , 0 , 2 );
+        final ChunkKey key2 = new ChunkKey( 2 , 0 , 2 );
+        
+        // small segments so that every few writes start a new segment
+        final LogStructuredStorage storage = new LogStructuredStorage( tempDir , 4096 );
+        final Chunk chunk1 = ChunkManager.generateChunk( key1 );
+        for ( int i = 0 ; i < 20 ; i++ ) 
+        {
+            chunk1.setBlockType( i , BlockType.WOOD );
+            storage.store( chunk1 , false );
+        }
+        storage.store( ChunkManager.generateChunk( key2 ) , false );
+        storage.checkpoint();
+        
+        final long sizeBefore = storage.getSize();
+        final long garbageBefore = sizeBefore - storage.getLiveBytes();
+        assertTrue( storage.compact() > 0 );
+        assertTrue( storage.getSize() < sizeBefore );
+        assertTrue( storage.getSize() - storage.getLiveBytes() < garbageBefore );
+        storage.close();
+        
+        final LogStructuredStorage reopened = new LogStructuredStorage( tempDir , 4096 );
+        final Chunk loaded = reopened.load( key1 );
+        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ ) {
+            assertEquals( chunk1.getBlockType( i ) , loaded.getBlockType( i ) );
+        }
+        assertEquals( key2 , reopened.load( key2 ).chunkKey );
+        reopened.close();
+    }
+}
@@ -0,0 +1,193 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.util.Random;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.World;
+
+/**
+ * Compares the throughput of {@link HashNoise} against {@link SimplexNoise}.
+ *
+ * <p>Measures both single noise samples and filling the noise for whole chunks the way {@link ChunkGenerator} does,
+ * including re-seeding {@link SimplexNoise} (shuffling its permutation table) for every chunk.</p>
+ *
+ * <p>Also compares sampling {@link HashNoise} on coarser lattices against sampling every block: time per chunk , mean/max
+ * deviation of the noise values and the share of blocks that {@link ChunkGenerator} turns solid instead of empty (or vice versa).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class NoiseBenchmark
+{
+    private static final int SAMPLES = 4_000_000;
+    private static final int[] LATTICE_STEPS = {1,2,4,8};
+    private static final int RADIUS = 3; // 7x7x7 chunks
+
+    private static final float TILE_SIZE = 0.75f;
+    private static final int OCTAVE_COUNT = 2;
+    private static final float PERSISTANCE = 32f;
+
+    private static double sink;
+
+    public static void main(String[] args)
+    {
+        final long seed = ChunkGenerator.createSeed( new Random( 0xdeadbeef ) );
+        final SimplexNoise simplex = new SimplexNoise();
+        simplex.setSeed( seed );
+        final HashNoise hash = new HashNoise( seed );
+
+        final double[] points = new double[ 3 * 4096 ];
+        final Random rnd = new Random( 0xdeadbeef );
+        for ( int i = 0 ; i < points.length ; i++ ) {
+            points[i] = rnd.nextDouble() * 1000 - 500;
+        }
+
+        final float[] data = new float[ World.BLOCKS_IN_CHUNK ];
+        final int chunkCount = (2*RADIUS+1)*(2*RADIUS+1)*(2*RADIUS+1);
+        for ( int pass = 0 ; pass < 3 ; pass++ )
+        {
+            System.out.println("=== Pass "+(pass+1)+" ===");
+
+            long start = System.nanoTime();
+            sink += sampleSimplex( simplex , points );
+            final long simplexSamples = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += sampleHash( hash , points );
+            final long hashSamples = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += fillSimplex( simplex , seed , data );
+            final long simplexChunks = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += fillHash( hash , data );
+            final long hashChunks = System.nanoTime() - start;
+
+            System.out.println("noise3()  , SimplexNoise: "+perSample( simplexSamples , SAMPLES )+" ns/sample , HashNoise: "+perSample( hashSamples , SAMPLES )+" ns/sample");
+            System.out.println("chunks    , SimplexNoise: "+( simplexChunks / chunkCount / 1000 )+" us/chunk , HashNoise: "+( hashChunks / chunkCount / 1000 )+" us/chunk");
+
+            for ( int step : LATTICE_STEPS )
+            {
+                start = System.nanoTime();
+                sink += fillHash( hash , step , data );
+                final long elapsed = System.nanoTime() - start;
+                System.out.println("lattice step "+step+" , HashNoise: "+( elapsed / chunkCount / 1000 )+" us/chunk ("+
+                        String.format("%.1f" , hashChunks / (double) elapsed )+"x)");
+            }
+        }
+
+        System.out.println("=== Quality ===");
+        final float[] expected = new float[ World.BLOCKS_IN_CHUNK ];
+        for ( int step : LATTICE_STEPS )
+        {
+            double errorSum = 0;
+            double maxError = 0;
+            long blocksChanged = 0;
+            for ( int x = -RADIUS ; x <= RADIUS ; x++ ) {
+                for ( int y = -RADIUS ; y <= RADIUS ; y++ ) {
+                    for ( int z = -RADIUS ; z <= RADIUS ; z++ )
+                    {
+                        hash.createNoise3D( x * World.CHUNK_SIZE , y * World.CHUNK_SIZE , z * World.CHUNK_SIZE ,
+                                World.CHUNK_SIZE , TILE_SIZE / World.CHUNK_SIZE , OCTAVE_COUNT , PERSISTANCE , expected );
+                        hash.createNoise3D( x * World.CHUNK_SIZE , y * World.CHUNK_SIZE , z * World.CHUNK_SIZE ,
+                                World.CHUNK_SIZE , TILE_SIZE / World.CHUNK_SIZE , OCTAVE_COUNT , PERSISTANCE , step , data );
+                        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ )
+                        {
+                            final double error = Math.abs( expected[i] - data[i] );
+                            errorSum += error;
+                            maxError = Math.max( maxError , error );
+                        }
+                        final ChunkKey key = new ChunkKey( x , y , z );
+                        final Chunk full = ChunkGenerator.generateChunkFromNoise( key , seed , 1 );
+                        final Chunk coarse = ChunkGenerator.generateChunkFromNoise( key , seed , step );
+                        for ( int i = 0 ; i < World.BLOCKS_IN_CHUNK ; i++ )
+                        {
+                            if ( full.isBlockEmpty( i ) != coarse.isBlockEmpty( i ) ) {
+                                blocksChanged++;
+                            }
+                        }
+                    }
+                }
+            }
+            final long blocks = chunkCount * (long) World.BLOCKS_IN_CHUNK;
+            System.out.println("lattice step "+step+" , mean error: "+String.format("%.5f" , errorSum / blocks )+" , max. error: "+
+                    String.format("%.5f" , maxError )+" , blocks changed: "+String.format("%.3f" , 100d * blocksChanged / blocks )+"%");
+        }
+        System.out.println("(ignore: "+sink+")");
+    }
+
+    private static double sampleSimplex(SimplexNoise noise,double[] points)
+    {
+        double sum = 0;
+        for ( int i = 0 , ptr = 0 ; i < SAMPLES ; i++ , ptr = ( ptr + 3 ) % points.length ) {
+            sum += noise.noise3( points[ptr] , points[ptr+1] , points[ptr+2] );
+        }
+        return sum;
+    }
+
+    private static double sampleHash(HashNoise noise,double[] points)
+    {
+        double sum = 0;
+        for ( int i = 0 , ptr = 0 ; i < SAMPLES ; i++ , ptr = ( ptr + 3 ) % points.length ) {
+            sum += noise.noise3( points[ptr] , points[ptr+1] , points[ptr+2] );
+        }
+        return sum;
+    }
+
+    // same as ChunkGenerator for worlds with untagged seeds
+    private static double fillSimplex(SimplexNoise noise,long seed,float[] data)
+    {
+        double sum = 0;
+        for ( int x = -RADIUS ; x <= RADIUS ; x++ ) {
+            for ( int y = -RADIUS ; y <= RADIUS ; y++ ) {
+                for ( int z = -RADIUS ; z <= RADIUS ; z++ )
+                {
+                    noise.setSeed( new ChunkKey( x , y , z ).toID() ^ ( seed * 0x9e3779b97f4a7c15L ) );
+                    final float px = x * World.CHUNK_WIDTH;
+                    final float py = y * World.CHUNK_WIDTH;
+                    final float pz = z * World.CHUNK_WIDTH;
+                    noise.createNoise3D( px*TILE_SIZE , py*TILE_SIZE , pz*TILE_SIZE , World.CHUNK_SIZE , TILE_SIZE , OCTAVE_COUNT , PERSISTANCE , data );
+                    sum += data[ 0 ];
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static double fillHash(HashNoise noise,int latticeStep,float[] data)
+    {
+        double sum = 0;
+        for ( int x = -RADIUS ; x <= RADIUS ; x++ ) {
+            for ( int y = -RADIUS ; y <= RADIUS ; y++ ) {
+                for ( int z = -RADIUS ; z <= RADIUS ; z++ )
+                {
+                    noise.createNoise3D( x * World.CHUNK_SIZE , y * World.CHUNK_SIZE , z * World.CHUNK_SIZE ,
+                            World.CHUNK_SIZE , TILE_SIZE / World.CHUNK_SIZE , OCTAVE_COUNT , PERSISTANCE , latticeStep , data );
+                    sum += data[ 0 ];
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static double fillHash(HashNoise noise,float[] data)
+    {
+        double sum = 0;
+        for ( int x = -RADIUS ; x <= RADIUS ; x++ ) {
+            for ( int y = -RADIUS ; y <= RADIUS ; y++ ) {
+                for ( int z = -RADIUS ; z <= RADIUS ; z++ )
+                {
+                    noise.createNoise3D( x * World.CHUNK_SIZE , y * World.CHUNK_SIZE , z * World.CHUNK_SIZE ,
+                            World.CHUNK_SIZE , TILE_SIZE / World.CHUNK_SIZE , OCTAVE_COUNT , PERSISTANCE , data );
+                    sum += data[ 0 ];
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static String perSample(long nanos,int samples) {
+        return String.format("%.2f" , nanos / (double) samples );
+    }
+}
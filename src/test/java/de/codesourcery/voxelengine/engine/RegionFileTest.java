@@ -0,0 +1,242 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.codesourcery.voxelengine.model.BlockType;
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import de.codesourcery.voxelengine.model.HaloChunk;
+import junit.framework.TestCase;
+
+public class RegionFileTest extends TestCase 
+{
+    private File tempDir;
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        tempDir = Files.createTempDirectory("regiontest").toFile();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception 
+    {
+        ChunkManager.recursiveDelete( tempDir );
+    }
+    
+    public void testMortonIndex() 
+    {
+        final Set<Integer> indices = new HashSet<>();
+        for ( int x = 0 ; x < RegionFile.REGION_SIZE ; x++ ) {
+            for ( int y = 0 ; y < RegionFile.REGION_SIZE ; y++ ) {
+                for ( int z = 0 ; z < RegionFile.REGION_SIZE ; z++ ) {
+                    final int index = RegionFile.mortonIndex( x , y , z );
+                    assertTrue( index >= 0 && index < RegionFile.CHUNKS_PER_REGION );
+                    assertTrue( indices.add( index ) );
+                }
+            }
+        }
+        assertEquals( 7 , RegionFile.mortonIndex( 1 , 1 , 1 ) );
+        assertEquals( RegionFile.mortonIndex( 7 , 7 , 7 ) , RegionFile.localIndex( new ChunkKey( -1 , -9 , 15 ) ) );
+    }
+    
+    public void testStoreLoad() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( -1 , 0 , 3 );
+        final ChunkKey key2 = new ChunkKey( 0 , 0 , 3 ); // different region
+        final ChunkKey key3 = new ChunkKey( -2 , -1 , 3 );
+        
+        final RegionFileStorage storage = new RegionFileStorage( tempDir );
+        assertNull( storage.load( key1 ) );
+        
+        storage.store( ChunkManager.generateChunk( key1 ) , false );
+        storage.store( ChunkManager.generateChunk( key2 ) , false );
+        storage.store( ChunkManager.generateChunk( key3 ) , true );
+        // overwrite
+        final Chunk modified = ChunkManager.generateChunk( key1 );
+        modified.setBlockType( 1 , 2 , 3 , 4 );
+        storage.store( modified , false );
+        storage.close();
+        
+        final RegionFileStorage reopened = new RegionFileStorage( tempDir );
+        assertChunkEquals( modified , reopened.load( key1 ) );
+        assertChunkEquals( ChunkManager.generateChunk( key2 ) , reopened.load( key2 ) );
+        assertChunkEquals( ChunkManager.generateChunk( key3 ) , reopened.load( key3 ) );
+        assertNull( reopened.load( new ChunkKey( -3 , 0 , 3 ) ) );
+        
+        final HaloChunk borders = reopened.loadBorders( key1 );
+        assertEquals( modified.getBlockType( 0 , 2 , 3 ) , borders.getBlockType( 0 , 2 , 3 ) );
+        
+        // compaction must not lose anything
+        reopened.getRegion( key1 ).compact();
+        assertChunkEquals( modified , reopened.load( key1 ) );
+        assertChunkEquals( ChunkManager.generateChunk( key3 ) , reopened.load( key3 ) );
+        reopened.close();
+    }
+    
+    public void testUniformChunks() throws IOException 
+    {
+        final ChunkKey empty = new ChunkKey( 1 , 2 , 1 );
+        final ChunkKey solid = new ChunkKey( 1 , -5 , 1 );
+        final ChunkKey edited = new ChunkKey( 2 , 2 , 1 );
+        
+        final RegionFileStorage storage = new RegionFileStorage( tempDir );
+        storage.store( ChunkManager.generateChunk( empty ) , false );
+        storage.store( ChunkManager.generateChunk( solid ) , false );
+        final Chunk modified = ChunkManager.generateChunk( edited );
+        modified.setBlockType( 1 , 2 , 3 , 4 );
+        storage.store( modified , false );
+        // uniform chunks do not occupy any sectors
+        final File file = storage.getRegion( empty ).getFile();
+        assertEquals( RegionFile.HEADER_SECTORS + 1 , ( file.length() + RegionFile.SECTOR_SIZE - 1 ) / RegionFile.SECTOR_SIZE );
+        
+        // uniform chunk replacing a non-uniform one and vice versa
+        storage.store( ChunkManager.generateChunk( edited ) , false );
+        final Chunk modified2 = ChunkManager.generateChunk( empty );
+        modified2.setBlockType( 3 , 2 , 1 , 2 );
+        storage.store( modified2 , false );
+        storage.close();
+        
+        final RegionFileStorage reopened = new RegionFileStorage( tempDir );
+        assertChunkEquals( modified2 , reopened.load( empty ) );
+        final Chunk loaded = reopened.load( solid );
+        assertChunkEquals( ChunkManager.generateChunk( solid ) , loaded );
+        assertFalse( loaded.isEmpty() );
+        assertTrue( reopened.load( edited ).isEmpty() );
+        assertEquals( BlockType.SOLID_1 , reopened.loadBorders( solid ).getBlockType( 0 , 0 , 0 ) );
+        
+        reopened.getRegion( solid ).compact();
+        assertChunkEquals( ChunkManager.generateChunk( solid ) , reopened.load( solid ) );
+        assertTrue( reopened.getRegion( edited ).contains( RegionFile.localIndex( edited ) ) );
+        assertNull( reopened.load( new ChunkKey( 3 , 2 , 1 ) ) );
+        reopened.close();
+    }
+    
+    public void testSharedData() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( 1 , -5 , 1 );
+        final ChunkKey key2 = new ChunkKey( 2 , -5 , 1 );
+        final ChunkKey key3 = new ChunkKey( 1 , -5 , 2 );
+        
+        final RegionFileStorage storage = new RegionFileStorage( tempDir );
+        final Chunk chunk1 = ChunkManager.generateChunk( key1 );
+        chunk1.setBlockType( 1 , 2 , 3 , BlockType.AIR );
+        final Chunk chunk2 = ChunkManager.generateChunk( key2 );
+        chunk2.setBlockType( 1 , 2 , 3 , BlockType.AIR );
+        final Chunk chunk3 = ChunkManager.generateChunk( key3 );
+        chunk3.setBlockType( 3 , 2 , 1 , BlockType.AIR );
+        storage.store( chunk1 , false );
+        storage.store( chunk2 , false );
+        storage.store( chunk3 , false );
+        
+        final RegionFile region = storage.getRegion( key1 );
+        RegionFile.Usage usage = region.getUsage();
+        assertEquals( 3 , usage.chunks );
+        assertEquals( 2 , usage.sharedChunks );
+        assertEquals( usage.referencedBytes * 2 / 3 , usage.storedBytes );
+        storage.close();
+        
+        // reference counts survive re-opening , data is only released once no longer referenced
+        final RegionFileStorage reopened = new RegionFileStorage( tempDir );
+        final Chunk modified = ChunkManager.generateChunk( key1 );
+        modified.setBlockType( 4 , 5 , 6 , BlockType.AIR );
+        reopened.store( modified , false );
+        assertChunkEquals( modified , reopened.load( key1 ) );
+        assertChunkEquals( chunk2 , reopened.load( key2 ) );
+        usage = reopened.getRegion( key1 ).getUsage();
+        assertEquals( 0 , usage.sharedChunks );
+        assertEquals( usage.referencedBytes , usage.storedBytes );
+        
+        reopened.getRegion( key1 ).compact();
+        assertChunkEquals( chunk2 , reopened.load( key2 ) );
+        assertChunkEquals( chunk3 , reopened.load( key3 ) );
+        reopened.close();
+        
+        final StorageReport report = StorageReport.create( tempDir );
+        assertEquals( 1 , report.regions );
+        assertEquals( 3 , report.chunks );
+        assertEquals( 0 , report.getSharedBytesSaved() );
+    }
+
+    public void testReleasedSectorsReusedOnlyAfterSync() throws IOException
+    {
+        final RegionFile region = new RegionFile( new File( tempDir , "test.region" ) );
+        final byte[] data = new byte[ RegionFile.SECTOR_SIZE ];
+        data[0] = 1;
+        region.write( 0 , data , data.length , true );
+        final long sizeAfterFirstWrite = region.getUsage().fileSize;
+
+        // the header on disk still refers to the old sector until the next sync
+        data[0] = 2;
+        region.write( 0 , data , data.length , false );
+        data[0] = 3;
+        region.write( 1 , data , data.length , false );
+        final long sizeBeforeSync = region.getUsage().fileSize;
+        assertEquals( sizeAfterFirstWrite + 2 * RegionFile.SECTOR_SIZE , sizeBeforeSync );
+
+        region.sync();
+        data[0] = 4;
+        region.write( 2 , data , data.length , false );
+        assertEquals( sizeBeforeSync , region.getUsage().fileSize );
+        assertEquals( 2 , region.read( 0 )[0] );
+        assertEquals( 3 , region.read( 1 )[0] );
+        assertEquals( 4 , region.read( 2 )[0] );
+        region.close();
+    }
+
+    public void testMigration() throws IOException 
+    {
+        final ChunkFileStorage legacy = new ChunkFileStorage( tempDir );
+        final ChunkKey key1 = new ChunkKey( 5 , 0 , -7 );
+        final ChunkKey key2 = new ChunkKey( 6 , 0 , -7 );
+        legacy.store( ChunkManager.generateChunk( key1 ) , false );
+        legacy.store( ChunkManager.generateChunk( key2 ) , false );
+        assertTrue( RegionFileMigrator.hasChunkFiles( tempDir ) );
+        
+        assertEquals( 2 , RegionFileMigrator.migrate( tempDir , true ) );
+        assertFalse( RegionFileMigrator.hasChunkFiles( tempDir ) );
+        
+        final RegionFileStorage storage = new RegionFileStorage( tempDir );
+        assertChunkEquals( ChunkManager.generateChunk( key1 ) , storage.load( key1 ) );
+        assertChunkEquals( ChunkManager.generateChunk( key2 ) , storage.load( key2 ) );
+        storage.close();
+    }
+    
+    public void testMigrationSkipsBrokenFiles() throws IOException 
+    {
+        final ChunkFileStorage legacy = new ChunkFileStorage( tempDir );
+        final ChunkKey key1 = new ChunkKey( 5 , 0 , -7 );
+        final ChunkKey key2 = new ChunkKey( 6 , 0 , -7 );
+        legacy.store( ChunkManager.generateChunk( key1 ) , false );
+        final File broken = legacy.getFile( key2 );
+        Files.write( broken.toPath() , new byte[] { 1 , 2 , 3 } );
+        
+        assertEquals( 1 , RegionFileMigrator.migrate( tempDir , true ) );
+        assertFalse( legacy.getFile( key1 ).exists() );
+        assertTrue( broken.exists() );
+        
+        final RegionFileStorage storage = new RegionFileStorage( tempDir );
+        assertChunkEquals( ChunkManager.generateChunk( key1 ) , storage.load( key1 ) );
+        assertNull( storage.load( key2 ) );
+        // chunk got re-generated and saved to the region file in the meantime , the differing file must not be deleted either
+        storage.store( ChunkManager.generateChunk( key2 ) , true );
+        storage.close();
+        
+        assertEquals( 0 , RegionFileMigrator.migrate( tempDir , true ) );
+        assertTrue( broken.exists() );
+    }
+    
+    private static void assertChunkEquals(Chunk expected,Chunk actual) 
+    {
+        assertNotNull( actual );
+        assertEquals( expected.chunkKey , actual.chunkKey );
+        for ( int i = 0 ; i < expected.blockTypes.length ; i++ ) {
+            assertEquals( expected.blockTypes[i] , actual.blockTypes[i] );
+            assertEquals( expected.lightLevels[i] , actual.lightLevels[i] );
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package de.codesourcery.voxelengine.engine;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import junit.framework.TestCase;
+
+public class WorldRendererTest extends TestCase
+{
+    public void testChunkWithLightingInFlightIsNotRendered()
+    {
+        // freshly loaded chunk , submitLighting() clears the rebuild flags before the mesh gets built
+        final Chunk chunk = ChunkManager.generateChunk( new ChunkKey( 1 , -5 , 1 ) );
+        assertTrue( chunk.isNotEmpty() );
+        chunk.clearFlags( Chunk.FLAG_NEEDS_REBUILD | Chunk.FLAG_NEEDS_REMESH );
+        assertNull( chunk.renderer );
+        assertFalse( WorldRenderer.hasMesh( chunk ) );
+
+        // light levels got published and the mesh was built
+        chunk.renderer = new ChunkRenderer( chunk );
+        assertTrue( WorldRenderer.hasMesh( chunk ) );
+    }
+
+    public void testEmptyChunkIsNotRendered()
+    {
+        final Chunk chunk = ChunkManager.generateChunk( new ChunkKey( 1 , 2 , 1 ) );
+        assertTrue( chunk.isEmpty() );
+        assertFalse( WorldRenderer.hasMesh( chunk ) );
+    }
+}
@@ -0,0 +1,97 @@
+package de.codesourcery.voxelengine.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import de.codesourcery.voxelengine.model.Chunk;
+import de.codesourcery.voxelengine.model.ChunkKey;
+import junit.framework.TestCase;
+
+public class WriteBehindSaverTest extends TestCase 
+{
+    private File tempDir;
+    
+    @Override
+    protected void setUp() throws Exception 
+    {
+        tempDir = Files.createTempDirectory("writebehindtest").toFile();
+    }
+    
+    @Override
+    protected void tearDown() throws Exception 
+    {
+        ChunkManager.recursiveDelete( tempDir );
+    }
+    
+    public void testStoreLoadFlush() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( -1 , 0 , 3 );
+        final ChunkKey key2 = new ChunkKey( 5 , 2 , -7 );
+        
+        final WriteBehindSaver saver = new WriteBehindSaver( new RegionFileStorage( tempDir ) , WriteBehindSaver.FsyncPolicy.BATCH );
+        saver.setMaxDelayMillis( 10*1000 );
+        try 
+        {
+            final Chunk chunk1 = ChunkManager.generateChunk( key1 );
+            chunk1.setNeedsSave( true );
+            saver.store( chunk1 , false );
+            assertFalse( chunk1.needsSave() );
+            
+            // modifying the chunk after it was queued must not affect the queued data
+            final int oldType = chunk1.getBlockType( 1 , 2 , 3 );
+            chunk1.setBlockType( 1 , 2 , 3 , 4 );
+            Chunk loaded = saver.load( key1 );
+            assertNotNull( loaded );
+            assertEquals( oldType , loaded.getBlockType( 1 , 2 , 3 ) );
+            
+            // newer version replaces queued one
+            saver.store( chunk1 , false );
+            saver.store( ChunkManager.generateChunk( key2 ) , true );
+            assertEquals( 0 , saver.getStatistics().queueLength );
+            assertTrue( saver.getStatistics().syncs > 0 );
+        } 
+        finally {
+            saver.close();
+        }
+        
+        final RegionFileStorage storage = new RegionFileStorage( tempDir );
+        try {
+            assertEquals( 4 , storage.load( key1 ).getBlockType( 1 , 2 , 3 ) );
+            assertEquals( key2 , storage.load( key2 ).chunkKey );
+        } finally {
+            storage.close();
+        }
+    }
+    
+    public void testListenerGetsNotifiedAboutWrittenChunks() throws IOException 
+    {
+        final ChunkKey key1 = new ChunkKey( -1 , 0 , 3 );
+        final ChunkKey key2 = new ChunkKey( 5 , 2 , -7 );
+        final ChunkKey key3 = new ChunkKey( 6 , 2 , -7 );
+        
+        final WriteBehindSaver saver = new WriteBehindSaver( new RegionFileStorage( tempDir ) , WriteBehindSaver.FsyncPolicy.BATCH );
+        saver.setMaxDelayMillis( 10*1000 );
+        final List<ChunkKey> written = Collections.synchronizedList( new ArrayList<>() );
+        saver.addWriteListener( written::addAll );
+        try 
+        {
+            saver.store( ChunkManager.generateChunk( key1 ) , false );
+            saver.store( ChunkManager.generateChunk( key2 ) , false );
+            saver.store( ChunkManager.generateChunk( key3 ) , false );
+            // coalesced with the queued version , must be reported only once
+            saver.store( ChunkManager.generateChunk( key1 ) , false );
+            assertTrue( written.isEmpty() );
+            
+            saver.flush( 10*1000 );
+            assertEquals( Arrays.asList( key2 , key3 , key1 ) , written );
+        } 
+        finally {
+            saver.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package de.codesourcery.voxelengine.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.badlogic.gdx.utils.LongMap;
+
+import de.codesourcery.voxelengine.model.ChunkKey;
+
+/**
+ * Compares {@link ConcurrentLongMap} against libgdx's {@link LongMap} guarded by external locks.
+ *
+ * <p>Simulates the chunk manager's access pattern: one thread (the 'render thread') constantly
+ * looks up chunks around the player while loader threads concurrently add and remove chunks.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class ConcurrentLongMapBenchmark 
+{
+    private static final int RADIUS = 10; // 21x5x21 chunks
+    private static final int WRITER_THREADS = 2;
+    private static final long DURATION_MILLIS = 3000;
+    private static final int ROUNDS = 3;
+
+    private static final long[] KEYS;
+
+    static 
+    {
+        final int size = 2*RADIUS+1;
+        KEYS = new long[ size*5*size ];
+        int ptr = 0;
+        for ( int x = -RADIUS ; x <= RADIUS ; x++ ) {
+            for ( int y = -2 ; y <= 2 ; y++ ) {
+                for ( int z = -RADIUS ; z <= RADIUS ; z++ ) {
+                    KEYS[ptr++] = ChunkKey.toID( x , y , z );
+                }
+            }
+        }
+    }
+
+    protected interface IMap 
+    {
+        public Object get(long key);
+        public void put(long key,Object value);
+        public void remove(long key);
+    }
+
+    protected static final class Concurrent implements IMap 
+    {
+        private final ConcurrentLongMap<Object> map = new ConcurrentLongMap<>( 1000 );
+
+        @Override public Object get(long key) { return map.get( key ); }
+        @Override public void put(long key, Object value) { map.put( key , value ); }
+        @Override public void remove(long key) { map.remove( key ); }
+    }
+
+    protected static final class Synchronized implements IMap 
+    {
+        private final LongMap<Object> map = new LongMap<>( 1000 );
+
+        @Override public synchronized Object get(long key) { return map.get( key ); }
+        @Override public synchronized void put(long key, Object value) { map.put( key , value ); }
+        @Override public synchronized void remove(long key) { map.remove( key ); }
+    }
+
+    protected static final class ReadWriteLocked implements IMap 
+    {
+        private final LongMap<Object> map = new LongMap<>( 1000 );
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        @Override
+        public Object get(long key) 
+        {
+            lock.readLock().lock();
+            try {
+                return map.get( key );
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void put(long key, Object value) 
+        {
+            lock.writeLock().lock();
+            try {
+                map.put( key , value );
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public void remove(long key) 
+        {
+            lock.writeLock().lock();
+            try {
+                map.remove( key );
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception 
+    {
+        for ( int round = 1 ; round <= ROUNDS ; round++ ) 
+        {
+            System.out.println("=== Round "+round+" ===");
+            run( "ConcurrentLongMap" , new Concurrent() );
+            run( "LongMap + synchronized" , new Synchronized() );
+            run( "LongMap + ReentrantReadWriteLock" , new ReadWriteLocked() );
+        }
+    }
+
+    private static void run(String name,IMap map) throws InterruptedException 
+    {
+        final Object value = new Object();
+        for ( long key : KEYS ) {
+            map.put( key , value );
+        }
+
+        final long[] writes = new long[ WRITER_THREADS ];
+        final CountDownLatch latch = new CountDownLatch( WRITER_THREADS );
+        final long end = System.currentTimeMillis() + DURATION_MILLIS;
+        for ( int i = 0 ; i < WRITER_THREADS ; i++ ) 
+        {
+            final int threadNo = i;
+            new Thread( () -> 
+            {
+                long count = 0;
+                int ptr = threadNo;
+                while ( System.currentTimeMillis() < end ) 
+                {
+                    // unload/reload chunks owned by this thread
+                    final long key = KEYS[ ptr ];
+                    map.remove( key );
+                    map.put( key , value );
+                    ptr = ( ptr + WRITER_THREADS ) % KEYS.length;
+                    count += 2;
+                }
+                writes[threadNo] = count;
+                latch.countDown();
+            }).start();
+        }
+
+        long reads = 0;
+        int hits = 0;
+        while ( System.currentTimeMillis() < end ) 
+        {
+            for ( int i = 0 ; i < KEYS.length ; i++ ) {
+                if ( map.get( KEYS[i] ) != null ) {
+                    hits++;
+                }
+            }
+            reads += KEYS.length;
+        }
+        latch.await();
+
+        long totalWrites = 0;
+        for ( long w : writes ) {
+            totalWrites += w;
+        }
+        final float seconds = DURATION_MILLIS / 1000f;
+        System.out.println( String.format("%-35s reads/s: %12.0f , writes/s: %12.0f (hits: %d)" , name , reads / seconds , totalWrites / seconds , hits ) );
+    }
+}
@@ -0,0 +1,125 @@
+package de.codesourcery.voxelengine.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.codesourcery.voxelengine.model.ChunkKey;
+import junit.framework.TestCase;
+
+public class ConcurrentLongMapTest extends TestCase 
+{
+    public void testPutGetRemove() 
+    {
+        final ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+        assertTrue( map.isEmpty() );
+        assertNull( map.get( 42 ) );
+
+        assertNull( map.put( 42 , "a" ) );
+        assertEquals( "a" , map.put( 42 , "b" ) );
+        assertEquals( "b" , map.get( 42 ) );
+        assertEquals( 1 , map.size() );
+
+        assertEquals( "b" , map.remove( 42 ) );
+        assertNull( map.remove( 42 ) );
+        assertNull( map.get( 42 ) );
+        assertEquals( 0 , map.size() );
+
+        // re-use tombstone
+        assertNull( map.put( 42 , "c" ) );
+        assertEquals( "c" , map.get( 42 ) );
+        assertEquals( 1 , map.size() );
+    }
+
+    public void testGrowAndVisit() 
+    {
+        final ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        final Map<Long,Long> expected = new HashMap<>();
+        for ( int x = -10 ; x < 10 ; x++ ) 
+        {
+            for ( int z = -10 ; z < 10 ; z++ ) 
+            {
+                final long id = ChunkKey.toID( x , 0 , z );
+                map.put( id , id );
+                expected.put( id , id );
+            }
+        }
+        // remove every other entry
+        for ( int x = -10 ; x < 10 ; x+=2 ) 
+        {
+            for ( int z = -10 ; z < 10 ; z++ ) 
+            {
+                final long id = ChunkKey.toID( x , 0 , z );
+                assertEquals( Long.valueOf( id ) , map.remove( id ) );
+                expected.remove( id );
+            }
+        }
+        assertEquals( expected.size() , map.size() );
+
+        final Map<Long,Long> actual = new HashMap<>();
+        map.visit( (key,value) -> actual.put( key , value ) );
+        assertEquals( expected , actual );
+
+        final List<Long> values = new ArrayList<>();
+        assertEquals( expected.size() , map.values( values ) );
+
+        map.clear();
+        assertTrue( map.isEmpty() );
+        assertNull( map.get( ChunkKey.toID( 1 , 0 , 1 ) ) );
+    }
+
+    public void testReservedKey() 
+    {
+        try {
+            new ConcurrentLongMap<String>().put( ConcurrentLongMap.NO_KEY , "a" );
+            fail("Should've failed");
+        } catch(IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    public void testConcurrentWriters() throws Exception 
+    {
+        final ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        final int threadCount = 4;
+        final int keysPerThread = 10000;
+        final CountDownLatch latch = new CountDownLatch( threadCount );
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        for ( int i = 0 ; i < threadCount ; i++ ) 
+        {
+            final long offset = i * keysPerThread;
+            new Thread( () -> 
+            {
+                try 
+                {
+                    for ( long key = offset ; key < offset + keysPerThread ; key++ ) 
+                    {
+                        map.put( key , key );
+                        if ( ! Long.valueOf( key ).equals( map.get( key ) ) ) {
+                            throw new AssertionError("Lost key "+key);
+                        }
+                        if ( ( key & 1 ) == 0 ) {
+                            map.remove( key );
+                        }
+                    }
+                } 
+                catch(Throwable t) {
+                    error.set( t );
+                } 
+                finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assertNull( error.get() );
+        assertEquals( threadCount*keysPerThread/2 , map.size() );
+        for ( long key = 0 ; key < threadCount*keysPerThread ; key++ ) 
+        {
+            assertEquals( ( key & 1 ) == 0 ? null : Long.valueOf( key ) , map.get( key ) );
+        }
+    }
+}